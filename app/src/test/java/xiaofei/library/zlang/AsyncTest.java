@@ -0,0 +1,159 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncTest {
+
+    private static abstract class Fetch extends AsyncJavaFunction {
+        @Override
+        public boolean isVarArgs() {
+            return false;
+        }
+
+        @Override
+        public int getParameterNumber() {
+            return 1;
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "fetch";
+        }
+    }
+
+    private static final class Result implements Callback {
+
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        volatile Object result;
+
+        volatile Throwable error;
+
+        @Override
+        public void onResult(Object result) {
+            this.result = result;
+            latch.countDown();
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+            latch.countDown();
+        }
+
+        Object get() throws InterruptedException {
+            Assert.assertTrue(latch.await(30, TimeUnit.SECONDS));
+            return result;
+        }
+    }
+
+    private static Library build(AsyncJavaFunction fetch) {
+        return new Library.Builder()
+                .addJavaDependency(new JavaLibrary.Builder().addFunction(fetch).build())
+                .addFunctions("function f(a) {s = 0; for i = 1 to a step 1 s = s + g(i); return s;}")
+                .addFunctions("function g(a) {return fetch(a) * 2;}")
+                .addFunctions("function h(a) {fetch(a); return fetch(a + 1);}")
+                .build();
+    }
+
+    @Test
+    public void test1() throws Exception {
+        final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+        final ConcurrentHashMap<Thread, Boolean> threads = new ConcurrentHashMap<>();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        Library library = build(new Fetch() {
+            @Override
+            public void callAsync(final Object[] input, final Callback callback) {
+                int count = inFlight.incrementAndGet();
+                int max;
+                while (count > (max = maxInFlight.get()) && !maxInFlight.compareAndSet(max, count)) {
+                }
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        threads.put(Thread.currentThread(), true);
+                        inFlight.decrementAndGet();
+                        callback.onResult(input[0]);
+                    }
+                }, 10, TimeUnit.MILLISECONDS);
+            }
+        });
+        try {
+            int n = 2000;
+            Result[] results = new Result[n];
+            for (int i = 0; i < n; ++i) {
+                results[i] = new Result();
+                library.executeAsync("f", new Object[]{i % 5}, results[i]);
+            }
+            for (int i = 0; i < n; ++i) {
+                int k = i % 5;
+                Assert.assertEquals(k * (k + 1), results[i].get());
+            }
+            // The executions are suspended instead of blocking the two threads.
+            Assert.assertTrue(maxInFlight.get() > 100);
+            Assert.assertTrue(threads.size() <= 2);
+            Assert.assertEquals(30, library.execute("f", new Object[]{5}));
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void test2() throws Exception {
+        Library library = build(new Fetch() {
+            @Override
+            public void callAsync(Object[] input, Callback callback) {
+                if ((int) input[0] < 0) {
+                    callback.onError(new IllegalStateException("negative"));
+                } else {
+                    callback.onResult(input[0]);
+                }
+            }
+        });
+        // Completed synchronously, which should not grow the Java stack.
+        Result result = new Result();
+        library.executeAsync("f", new Object[]{100000}, result);
+        Assert.assertEquals((int) (100000L * 100001), result.get());
+        result = new Result();
+        library.executeAsync("h", new Object[]{-1}, result);
+        result.get();
+        Assert.assertTrue(result.error instanceof IllegalStateException);
+        result = new Result();
+        library.executeAsync("h", new Object[]{1}, result);
+        Assert.assertEquals(2, result.get());
+        try {
+            library.execute("h", new Object[]{-2});
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("negative", e.getMessage());
+        }
+    }
+}
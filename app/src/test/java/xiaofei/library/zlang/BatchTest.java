@@ -0,0 +1,139 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+public class BatchTest {
+
+    private static Library build(Engine engine, boolean jitEnabled) {
+        return new Library.Builder()
+                .addFunctions("function score(a, b) {if (a > b) return a * 2 - b; return b;}")
+                .addFunctions("function score(a) {return score(a, 10);}")
+                .addFunctions("function fail(a) {return a[0];}")
+                .setEngine(engine)
+                .setJitEnabled(jitEnabled)
+                .build();
+    }
+
+    private static Object[][] inputs(int n) {
+        Object[][] inputs = new Object[n][];
+        for (int i = 0; i < n; ++i) {
+            inputs[i] = i % 3 == 0 ? new Object[]{i} : new Object[]{i, i % 7};
+        }
+        return inputs;
+    }
+
+    private static int expected(Object[] input) {
+        int a = (int) input[0];
+        int b = input.length == 1 ? 10 : (int) input[1];
+        return a > b ? a * 2 - b : b;
+    }
+
+    private static class Results implements ResultSink {
+
+        final Object[] results;
+
+        Results(int n) {
+            results = new Object[n];
+        }
+
+        @Override
+        public void onResult(int index, Object result) {
+            results[index] = result;
+        }
+    }
+
+    @Test
+    public void test1() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        Object[][] inputs = inputs(5000);
+        for (Engine engine : Engine.values()) {
+            for (boolean jitEnabled : new boolean[]{false, true}) {
+                Library library = build(engine, jitEnabled);
+                for (ForkJoinPool batchPool : new ForkJoinPool[]{null, pool}) {
+                    Results results = new Results(inputs.length);
+                    BatchStats stats = library.executeBatch("score", inputs, results, batchPool);
+                    Assert.assertEquals(inputs.length, stats.getCount());
+                    Assert.assertEquals(batchPool == null, stats.getTasks() == 1);
+                    for (int i = 0; i < inputs.length; ++i) {
+                        Assert.assertEquals(expected(inputs[i]), results.results[i]);
+                    }
+                }
+                Results results = new Results(3);
+                library.executeBatch("score", Arrays.asList(inputs).subList(0, 3), results);
+                Assert.assertArrayEquals(new Object[]{10, 1, 2}, results.results);
+                Assert.assertEquals(0, library.executeBatch("score", new Object[0][], results).getCount());
+                try {
+                    library.executeBatch("fail", new Object[][]{{new int[1]}, {new int[0]}}, results, pool);
+                    Assert.fail();
+                } catch (ArrayIndexOutOfBoundsException e) {
+                }
+            }
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void test2() {
+        // A row reads a variable which only the previous row assigns.
+        Object[][] inputs = {{true}, {false}, {true}, {false}};
+        for (Engine engine : Engine.values()) {
+            for (boolean jitEnabled : new boolean[]{false, true}) {
+                Library library = new Library.Builder()
+                        .addFunctions("function f(c) {if (c) x = 1; return x;}")
+                        .setEngine(engine)
+                        .setJitEnabled(jitEnabled)
+                        .setJitThreshold(1)
+                        .build();
+                Results results = new Results(inputs.length);
+                library.executeBatch("f", inputs, results, null);
+                for (int i = 0; i < inputs.length; ++i) {
+                    Assert.assertEquals(library.execute("f", inputs[i]), results.results[i]);
+                }
+                Assert.assertNull(results.results[1]);
+            }
+        }
+    }
+
+    @Test
+    public void benchmark() {
+        ForkJoinPool pool = new ForkJoinPool();
+        Object[][] inputs = inputs(200000);
+        Results results = new Results(inputs.length);
+        for (Engine engine : Engine.values()) {
+            Library library = build(engine, false);
+            for (int round = 0; round < 2; ++round) {
+                long start = System.nanoTime();
+                for (int i = 0; i < inputs.length; ++i) {
+                    results.onResult(i, library.execute("score", inputs[i]));
+                }
+                System.out.println(engine + " execute: " + (System.nanoTime() - start) / 1000000 + "ms");
+                System.out.println(engine + " batch: " + library.executeBatch("score", inputs, results));
+                System.out.println(engine + " parallel batch: " + library.executeBatch("score", inputs, results, pool));
+            }
+        }
+        pool.shutdown();
+    }
+}
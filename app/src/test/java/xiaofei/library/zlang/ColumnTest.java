@@ -0,0 +1,121 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ColumnTest {
+
+    private static final Library LIBRARY = new Library.Builder()
+            .addFunctions("function f(a, b) {t = a * 2 + b; return -t * t - 7 / b + (3 - a);}")
+            .addFunctions("function g(x, y) {s = x * 0.5 - y; return s * s + 2.0 / y;}")
+            .addFunctions("function h(a, b) {if (a > b) return a - b; return b - a;}")
+            .addFunctions("function k(a, b) {return f(a, b) + 1;}")
+            .addFunctions("function m(a, x) {return a + x;}")
+            .addFunctions("function n(a) {return a;}")
+            .addFunctions("function p(a) {return 2 * 3 - 1;}")
+            .addFunctions("function q(a) {return 10 / a;}")
+            .build();
+
+    private static int[] ints(int n, int offset) {
+        int[] result = new int[n];
+        for (int i = 0; i < n; ++i) {
+            result[i] = i % 100 + offset;
+        }
+        return result;
+    }
+
+    private static double[] doubles(int n) {
+        double[] result = new double[n];
+        for (int i = 0; i < n; ++i) {
+            result[i] = i * 0.25 + 1;
+        }
+        return result;
+    }
+
+    private static void check(String name, Object[] columns) {
+        int n = columns[0] instanceof int[] ? ((int[]) columns[0]).length : ((double[]) columns[0]).length;
+        double[] result = new double[n];
+        LIBRARY.executeColumns(name, columns, result);
+        for (int i = 0; i < n; ++i) {
+            Object[] input = new Object[columns.length];
+            for (int j = 0; j < columns.length; ++j) {
+                input[j] = columns[j] instanceof int[] ? (Object) ((int[]) columns[j])[i] : ((double[]) columns[j])[i];
+            }
+            Assert.assertEquals(((Number) LIBRARY.execute(name, input)).doubleValue(), result[i], 0);
+        }
+    }
+
+    @Test
+    public void test1() {
+        int n = 3000;
+        check("f", new Object[]{ints(n, -50), ints(n, 1)});
+        check("g", new Object[]{doubles(n), doubles(n)});
+        check("h", new Object[]{ints(n, 0), ints(n, 30)});
+        check("k", new Object[]{ints(n, 0), ints(n, 30)});
+        check("n", new Object[]{doubles(n)});
+        check("p", new Object[]{doubles(n)});
+        int[] result = new int[n];
+        LIBRARY.executeColumns("n", new Object[]{ints(n, 3)}, result);
+        Assert.assertArrayEquals(ints(n, 3), result);
+        LIBRARY.executeColumns("f", new Object[]{ints(n, 0), ints(n, 1)}, result);
+        Assert.assertEquals(-5, result[0]);
+        try {
+            LIBRARY.executeColumns("g", new Object[]{doubles(n), doubles(n)}, result);
+            Assert.fail();
+        } catch (ClassCastException e) {
+        }
+        try {
+            LIBRARY.executeColumns("m", new Object[]{ints(n, 0), doubles(n)}, new double[n]);
+            Assert.fail();
+        } catch (ClassCastException e) {
+        }
+        try {
+            LIBRARY.executeColumns("q", new Object[]{ints(n, 0)}, result);
+            Assert.fail();
+        } catch (ArithmeticException e) {
+        }
+        try {
+            LIBRARY.executeColumns("n", new Object[]{ints(n + 1, 0)}, result);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void benchmark() {
+        int n = 1000000;
+        double[] x = doubles(n);
+        double[] y = doubles(n);
+        double[] result = new double[n];
+        for (int round = 0; round < 3; ++round) {
+            long start = System.nanoTime();
+            LIBRARY.executeColumns("g", new Object[]{x, y}, result);
+            long columnar = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < n; ++i) {
+                result[i] = (double) LIBRARY.execute("g", new Object[]{x[i], y[i]});
+            }
+            System.out.println("columns " + columnar / 1000000 + "ms rows "
+                    + (System.nanoTime() - start) / 1000000 + "ms");
+        }
+    }
+}
@@ -18,6 +18,7 @@
 
 package xiaofei.library.zlang;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 public class CompilerTest {
@@ -153,4 +154,51 @@ public class CompilerTest {
             // MISSING_SYMBOL 10 9 -1 ';'
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void test6() {
+        Library library = new Library.Builder()
+                .addFunctions("function f() {return 0.3;} function g() {return 123.456 + 1.;}")
+                .addFunctions("function h() {return \"a\\\"b\\\\c\" + \"\" + 'd' + '\\'';}")
+                .addFunctions("/* functions */ function ifs(iff, _f2) {/* if */ return iff + _f2;}")
+                .build();
+        Assert.assertEquals(0.3, library.execute("f", new Object[0]));
+        Assert.assertEquals(124.456, library.execute("g", new Object[0]));
+        Assert.assertEquals("a\"b\\cd'", library.execute("h", new Object[0]));
+        Assert.assertEquals(3, library.execute("ifs", new Object[]{1, 2}));
+    }
+
+    @Test
+    public void benchmark() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; builder.length() < 2 * 1024 * 1024; ++i) {
+            builder.append("function rule").append(i).append("(amount, country, score) {\n")
+                    .append("    /* generated */\n")
+                    .append("    if (amount > ").append(i).append(".75 && country == \"country").append(i % 50)
+                    .append("\" || score < 0.125) {\n")
+                    .append("        total = amount * 1.5 + score;\n")
+                    .append("        return total;\n")
+                    .append("    }\n")
+                    .append("    return 0.0;\n")
+                    .append("}\n");
+        }
+        String program = builder.toString();
+        for (int round = 0; round < 3; ++round) {
+            long start = System.nanoTime();
+            new Library.Builder().addFunctions(program).build();
+            long nanos = System.nanoTime() - start;
+            System.out.println(String.format("Compiled %d chars in %dms, %.1f MB/s", program.length(),
+                    nanos / 1000000, program.length() * 1000.0 / nanos));
+        }
+        // Long tokens take linear time.
+        builder = new StringBuilder("function s() {return \"");
+        for (int i = 0; i < 200000; ++i) {
+            builder.append((char) ('a' + i % 26));
+        }
+        program = builder.append("\";}").toString();
+        long start = System.nanoTime();
+        Library library = new Library.Builder().addFunctions(program).build();
+        System.out.println("Compiled a string of 200000 chars in " + (System.nanoTime() - start) / 1000000 + "ms");
+        Assert.assertEquals(200000, ((String) library.execute("s", new Object[0])).length());
+    }
+}
@@ -349,4 +349,471 @@ public class ExecutorTest {
                 .build();
         library.execute("g", new Object[]{2}); // Always java.lang.Integer
     }
-}
\ No newline at end of file
+
+    @Test
+    public void test15() {
+        Library library1 = new Library.Builder()
+                .addFunctions("function h(a) {return a * 2;}")
+                .build();
+        Library library2 = new Library.Builder()
+                .addDependency(library1)
+                .addFunctions("function f(a) {if (a == 0) return 0; else return h(a) + f(a - 1);}")
+                .addFunctions("function g(a) {s = 0; for i = 1 to a step 1 s = s + _length(_new_array(\"int\", i)); return s;}")
+                .build();
+        for (int i = 0; i < 3; ++i) {
+            Assert.assertEquals(110, library2.execute("f", new Object[]{10}));
+            Assert.assertEquals(55, library2.execute("g", new Object[]{10}));
+        }
+    }
+
+    @Test
+    public void test16() {
+        Library library = new Library.Builder()
+                .addFunctions("function f1(a) {if (a == 0) return 0; else return a + f1(a-1);}")
+                .build();
+        for (int i = 0; i < 2; ++i) {
+            Assert.assertEquals((int) 5000050000L, library.execute("f1", new Object[]{100000}));
+        }
+        Library limited = new Library.Builder()
+                .addFunctions("function f1(a) {if (a == 0) return 0; else return a + f1(a-1);}")
+                .setMaxCallDepth(100)
+                .build();
+        Assert.assertEquals(4950, limited.execute("f1", new Object[]{99}));
+        try {
+            limited.execute("f1", new Object[]{100});
+            Assert.fail();
+        } catch (ZlangRuntimeException e) {
+            Assert.assertTrue(e.getMessage().contains(ZlangRuntimeError.STACK_OVERFLOW.toString()));
+        }
+        Assert.assertEquals(4950, limited.execute("f1", new Object[]{99}));
+    }
+
+    private static int findOpr(CompiledFunction function) {
+        for (int i = 0; i < function.size(); ++i) {
+            if (Opcode.generic(function.opcodes[i]) == Opcode.OPR) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void test17() {
+        Library library = new Library.Builder()
+                .addFunctions("function f(a, b) {return a + b;}")
+                .addFunctions("function g(a, b) {return a < b;}")
+                .build();
+        CompiledFunction f = library.getFunction("f", 2);
+        CompiledFunction g = library.getFunction("g", 2);
+        int pc = findOpr(f);
+        Assert.assertEquals(Opcode.OPR, f.opcodes[pc]);
+        Assert.assertEquals(3, library.execute("f", new Object[]{1, 2}));
+        Assert.assertEquals(Opcode.PLUS_II, f.opcodes[pc]);
+        Assert.assertEquals(5, library.execute("f", new Object[]{2, 3}));
+        Assert.assertEquals("a1", library.execute("f", new Object[]{"a", 1}));
+        Assert.assertEquals(Opcode.OPR_GENERIC, f.opcodes[pc]);
+        Assert.assertEquals(3, library.execute("f", new Object[]{1, 2}));
+        Assert.assertEquals(true, library.execute("g", new Object[]{1.5, 2.5}));
+        Assert.assertEquals(Opcode.LESS_DD, g.opcodes[findOpr(g)]);
+        Assert.assertEquals(false, library.execute("g", new Object[]{3, 2}));
+        Assert.assertEquals(Opcode.OPR_GENERIC, g.opcodes[findOpr(g)]);
+    }
+
+    @Test
+    public void test18() {
+        Library library = new Library.Builder()
+                .addFunctions("function f(a, b) {return a == b;}")
+                .addFunctions("function g(a) {s = 0; for i = 1 to a step 1 s = s + i; return s;}")
+                .addFunctions("function h(a) {s = 0.0; for i = 1 to a step 1 s = s + 0.5; return -s;}")
+                .build();
+        Assert.assertEquals(true, library.execute("f", new Object[]{100000, 100000}));
+        Assert.assertEquals(true, library.execute("f", new Object[]{0.5, 0.5}));
+        Assert.assertEquals(false, library.execute("f", new Object[]{1, 1.0}));
+        Assert.assertEquals(false, library.execute("f", new Object[]{"a", 1}));
+        Assert.assertEquals(-50.0, library.execute("h", new Object[]{100}));
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < 10; ++i) {
+            library.execute("g", new Object[]{1000});
+        }
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        Assert.assertEquals((int) 500000500000L, library.execute("g", new Object[]{1000000}));
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+        // The loop runs on unboxed values, so the allocation does not grow with the number of iterations.
+        Assert.assertTrue("Allocated " + allocated + " bytes", allocated < 100000);
+    }
+
+    private static int count(CompiledFunction function, int opcode) {
+        int result = 0;
+        for (int i = 0; i < function.size(); ++i) {
+            if (function.opcodes[i] == opcode) {
+                ++result;
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void test19() {
+        Library library = new Library.Builder()
+                .addFunctions("function f(a) {s = 0; for i = 1 to a step 1 s = s + i; return s;}")
+                .addFunctions("function g(a, b) {s = \"\"; i = 0; while (i < a) {s = s + b; i = i + 1;} return s;}")
+                .addFunctions("function h(a) {s = 0.0; for i = 0.5 to a step 0.5 s = s + i; return s;}")
+                .build();
+        CompiledFunction f = library.getFunction("f", 1);
+        Assert.assertEquals(1, count(f, Opcode.INC_LOCAL));
+        Assert.assertEquals(1, count(f, Opcode.LOD_LOD_OPR_JPF));
+        Assert.assertEquals(1, count(f, Opcode.LOD_LOD_OPR));
+        Assert.assertEquals(5050, library.execute("f", new Object[]{100}));
+        Assert.assertEquals(0, library.execute("f", new Object[]{0}));
+        Assert.assertEquals("xyxyxy", library.execute("g", new Object[]{3, "xy"}));
+        Assert.assertEquals("111", library.execute("g", new Object[]{3, 1}));
+        Assert.assertEquals(5.0, library.execute("h", new Object[]{2.0}));
+    }
+
+    @Test
+    public void test20() {
+        for (Engine engine : Engine.values()) {
+            Library library = new Library.Builder()
+                    .addFunctions("function s(a, b) {if (a == 0) return b; return s(a - 1, b + a);}")
+                    .addFunctions("function even(a) {if (a == 0) return true; return odd(a - 1);}")
+                    .addFunctions("function odd(a) {if (a == 0) return false; return even(a - 1);}")
+                    .addFunctions("function l(a) {return _length(a);}")
+                    .addFunctions("function v(a) {return w(a);} function w(a) {_println(a);}")
+                    .setMaxCallDepth(100)
+                    .setEngine(engine)
+                    .build();
+            CompiledFunction s = library.getFunction("s", 2);
+            Assert.assertEquals(Opcode.TAIL_CALL, s.opcodes[s.size() - 2]);
+            Assert.assertEquals((int) 500000500000L, library.execute("s", new Object[]{1000000, 0}));
+            Assert.assertEquals(true, library.execute("even", new Object[]{100001 - 1}));
+            Assert.assertEquals(true, library.execute("odd", new Object[]{100001}));
+            Assert.assertEquals(3, library.execute("l", new Object[]{new int[3]}));
+            try {
+                library.execute("v", new Object[]{1});
+                Assert.fail();
+            } catch (ZlangRuntimeException e) {
+                Assert.assertTrue(e.getMessage().contains(ZlangRuntimeError.NO_RETURN_VALUE.toString()));
+            }
+        }
+    }
+
+    @Test
+    public void test21() {
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        long threadId = Thread.currentThread().getId();
+        for (Engine engine : Engine.values()) {
+            Library library = new Library.Builder()
+                    .addFunctions("function fib(n) {if (n < 2) return n; return fib(n - 1) + fib(n - 2);}")
+                    .addFunctions("function p(n) {if (n > 0) {p(n - 1); p(n - 1);}}")
+                    .setEngine(engine)
+                    .build();
+            library.execute("fib", new Object[]{15});
+            library.execute("p", new Object[]{10});
+            long before = threadBean.getThreadAllocatedBytes(threadId);
+            Assert.assertEquals(75025, library.execute("fib", new Object[]{25}));
+            Assert.assertEquals(Library.NO_RETURN_VALUE, library.execute("p", new Object[]{15}));
+            long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+            // The call frames are kept in the arrays of the execution context.
+            Assert.assertTrue(engine + " allocated " + allocated + " bytes", allocated < 100000);
+        }
+    }
+
+    @Test
+    public void test22() {
+        for (Engine engine : Engine.values()) {
+            Library library = new Library.Builder()
+                    .addFunctions("function p(a) {b = a;}")
+                    .addFunctions("function f(a) {x = 5; y = 7; p(a); p(a); return x * 10 + y;}")
+                    .setEngine(engine)
+                    .build();
+            Assert.assertEquals(57, library.execute("f", new Object[]{3}));
+        }
+    }
+
+    @Test
+    public void test23() {
+        for (Engine engine : Engine.values()) {
+            Library library = new Library.Builder()
+                    .addFunctions("function sum(a) {s = 0; for i = 0 to _length(a) - 1 step 1 s = s + a[i]; return s;}")
+                    .addFunctions("function scale(a, b) {for i = 0 to _length(a) - 1 step 1 a[i] = a[i] * b;}")
+                    .addFunctions("function first(a) {return a[0];}")
+                    .addFunctions("function get(a, i, j) {return a[i][j];}")
+                    .addFunctions("function set(a, i, j, b) {a[i][j] = b;}")
+                    .setEngine(engine)
+                    .build();
+            int[] ints = {1, 2, 3, 4};
+            double[] doubles = {0.5, 1.5};
+            Assert.assertEquals(10, library.execute("sum", new Object[]{ints}));
+            library.execute("scale", new Object[]{ints, 3});
+            Assert.assertArrayEquals(new int[]{3, 6, 9, 12}, ints);
+            library.execute("scale", new Object[]{doubles, 2.0});
+            Assert.assertEquals(3.0, doubles[1], 0);
+            // The same sites meet other classes of arrays.
+            Assert.assertEquals(3, library.execute("first", new Object[]{ints}));
+            Assert.assertEquals(1.0, library.execute("first", new Object[]{doubles}));
+            Assert.assertEquals(5L, library.execute("first", new Object[]{new long[]{5L, 7L}}));
+            Assert.assertEquals("a", library.execute("first", new Object[]{new String[]{"a", "b"}}));
+            Assert.assertEquals(true, library.execute("first", new Object[]{new boolean[]{true}}));
+            Assert.assertEquals('c', library.execute("first", new Object[]{new char[]{'c'}}));
+
+            int[][] matrix = new int[2][3];
+            String[][] strings = new String[2][2];
+            Object[][] objects = new Object[2][2];
+            library.execute("set", new Object[]{matrix, 1, 2, 5});
+            library.execute("set", new Object[]{strings, 0, 1, "x"});
+            library.execute("set", new Object[]{objects, 1, 0, 2.5});
+            Assert.assertEquals(5, library.execute("get", new Object[]{matrix, 1, 2}));
+            Assert.assertEquals("x", library.execute("get", new Object[]{strings, 0, 1}));
+            Assert.assertEquals(2.5, library.execute("get", new Object[]{objects, 1, 0}));
+            try {
+                library.execute("set", new Object[]{strings, 0, 1, 3});
+                Assert.fail();
+            } catch (IllegalArgumentException e) {
+            }
+            try {
+                library.execute("get", new Object[]{matrix, 2, 0});
+                Assert.fail();
+            } catch (ArrayIndexOutOfBoundsException e) {
+            }
+        }
+    }
+
+    @Test
+    public void test24() {
+        Library library = new Library.Builder()
+                .addFunctions("function sum(a) {s = 0; n = _length(a) - 1; for i = 0 to n step 1 s = s + a[i]; return s;}")
+                .addFunctions("function inc(a) {n = _length(a) - 1; for i = 0 to n step 1 a[i] = a[i] + 1;}")
+                .addFunctions("function inc(a, b) {for i = 0 to _length(a[b]) - 1 step 1 a[b][i] = a[b][i] + 1.0;}")
+                .build();
+        int[] ints = new int[100000];
+        double[][] doubles = new double[2][100];
+        library.execute("inc", new Object[]{ints});
+        library.execute("inc", new Object[]{doubles, 1});
+        Assert.assertEquals(100000, library.execute("sum", new Object[]{ints}));
+        Assert.assertEquals(1.0, doubles[1][99], 0);
+        CompiledFunction sum = library.getFunction("sum", 1);
+        CompiledFunction inc = library.getFunction("inc", 1);
+        Assert.assertEquals(1, count(sum, Opcode.ALOD_INT));
+        Assert.assertEquals(1, count(inc, Opcode.ALOD_INT));
+        Assert.assertEquals(1, count(inc, Opcode.ASTO_INT));
+        Assert.assertEquals(1, count(library.getFunction("inc", 2), Opcode.ASTO_DOUBLE));
+
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        library.execute("inc", new Object[]{ints});
+        Assert.assertEquals(200000, library.execute("sum", new Object[]{ints}));
+        System.out.println("int[] loops " + (System.nanoTime() - start) / 1000 + "us");
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+        // The elements are neither boxed nor accessed by reflection.
+        Assert.assertTrue("Allocated " + allocated + " bytes", allocated < 100000);
+    }
+
+    @Test
+    public void test25() {
+        for (Engine engine : Engine.values()) {
+            Library library = new Library.Builder()
+                    .addFunctions("function or(a, b) {return a || b;}")
+                    .addFunctions("function f(a) {return _length(a) > 0 && a[0] > 0 || _length(a) > 1 && a[1] > 0;}")
+                    .setEngine(engine)
+                    .build();
+            Assert.assertEquals(false, library.execute("or", new Object[]{false, false}));
+            Assert.assertEquals(true, library.execute("or", new Object[]{false, true}));
+            Assert.assertEquals(true, library.execute("or", new Object[]{true, false}));
+            Assert.assertEquals(false, library.execute("f", new Object[]{new int[0]}));
+            Assert.assertEquals(false, library.execute("f", new Object[]{new int[]{0}}));
+            Assert.assertEquals(true, library.execute("f", new Object[]{new int[]{1}}));
+            Assert.assertEquals(true, library.execute("f", new Object[]{new int[]{0, 2}}));
+        }
+    }
+
+    @Test
+    public void test26() {
+        String program = "function f(a, b) {if (a == 0) return 8*9; }"
+                + "function g(a) {k = 3; x = k * 2 + 1; if (false) return 1;"
+                + " while (true) {if (a > x) return a; a = a + 1;} return 0;}"
+                + "function h(a) {if (a > 0) y = 5; else z = 2; i = 0; s = 0;"
+                + " while (i < a) {if (i == 0) x = 1; else s = s + x; i = i + 1;} return s;}"
+                + "function p(a) {return true && a > 1 || false && a;}"
+                + "function q(a) {n = 4.0; return a / 2.0 + n - n + \"s\" + 'c';}"
+                + "function r(a) {n = 4; return 1 / 0 + n;}";
+        Object[][] inputs = {
+                {"f", 0, 1},
+                {"f", 1, 1},
+                {"g", 0},
+                {"g", 10},
+                {"h", 0},
+                {"h", 5},
+                {"p", 3},
+                {"p", 1},
+                {"q", 1.0},
+        };
+        Library plain = new Library.Builder().addFunctions(program).setOptimizationEnabled(false).build();
+        for (Engine engine : Engine.values()) {
+            Library library = new Library.Builder().addFunctions(program).setEngine(engine).build();
+            for (Object[] input : inputs) {
+                Object[] parameters = new Object[input.length - 1];
+                System.arraycopy(input, 1, parameters, 0, parameters.length);
+                Assert.assertEquals(plain.execute((String) input[0], parameters),
+                        library.execute((String) input[0], parameters));
+            }
+            try {
+                library.execute("r", new Object[]{1});
+                Assert.fail();
+            } catch (ArithmeticException e) {
+            }
+        }
+        Library library = new Library.Builder().addFunctions(program).setOptimizationDebugEnabled(true).build();
+        CompiledFunction f = library.getFunction("f", 2);
+        Assert.assertEquals(8, f.size());
+        Assert.assertEquals(72, f.constants[1]);
+        // Only the loop is left, where x is replaced by its value.
+        CompiledFunction g = library.getFunction("g", 1);
+        Assert.assertEquals(12, g.size());
+        Assert.assertEquals(7, g.constants[0]);
+        Assert.assertEquals(29, plain.getFunction("g", 1).size());
+        // The division by zero is left for the run time.
+        CompiledFunction r = library.getFunction("r", 1);
+        Assert.assertEquals(Opr.DIVIDE.ordinal(), r.operands[findOpr(r)]);
+    }
+
+    @Test
+    public void test27() {
+        String program = "function f(a, b) {if (a > 0 && b > 0) return 1; if (a > 0 || b > 0) return 2; return 3;}"
+                + "function g(a, b) {s = 0; for i = 0 to a step 1 {if (i == b) break; if (i == 2 || i == 4) continue;"
+                + " s = s + i;} return s;}"
+                + "function h(a) {s = 0; i = 0; while (i < a && !(i > 5 && i < 8 || i == 10)) {s = s + i; i = i + 1;}"
+                + " return s;}"
+                + "function p(a, b) {return a > 0 && b > 0 || a < 0 && b < 0;}"
+                + "function q(a) {s = 0; for i = 0 to a step 1 for j = i to a step 1 if (i + j > a) s = s + 1; return s;}";
+        Object[][] inputs = {
+                {"f", 1, 1},
+                {"f", 1, 0},
+                {"f", 0, 1},
+                {"f", 0, 0},
+                {"g", 10, 7},
+                {"g", 10, 20},
+                {"h", 5},
+                {"h", 9},
+                {"h", 20},
+                {"p", 1, 1},
+                {"p", -1, -1},
+                {"p", 1, -1},
+                {"q", 6},
+        };
+        Library plain = new Library.Builder().addFunctions(program).setOptimizationEnabled(false).build();
+        for (Engine engine : Engine.values()) {
+            Library library = new Library.Builder().addFunctions(program).setEngine(engine).build();
+            for (Object[] input : inputs) {
+                Object[] parameters = new Object[input.length - 1];
+                System.arraycopy(input, 1, parameters, 0, parameters.length);
+                Assert.assertEquals(plain.execute((String) input[0], parameters),
+                        library.execute((String) input[0], parameters));
+            }
+        }
+        Library library = new Library.Builder().addFunctions(program).build();
+        for (String name : new String[]{"f", "g", "h"}) {
+            CompiledFunction function = library.getFunction(name, name.equals("h") ? 1 : 2);
+            // The short circuits in the conditions become jumps.
+            Assert.assertEquals(0, count(function, Opcode.JPF_SC) + count(function, Opcode.JPT_SC));
+            for (int i = 0; i < function.size(); ++i) {
+                if (Opcode.generic(function.opcodes[i]) == Opcode.OPR) {
+                    int opr = function.operands[i];
+                    Assert.assertTrue(opr != Opr.AND.ordinal() && opr != Opr.OR.ordinal() && opr != Opr.NOT.ordinal());
+                }
+            }
+        }
+        // The step of the for loop follows the body, and only the jump back to the condition is left.
+        Assert.assertEquals(1, count(library.getFunction("g", 2), Opcode.JMP));
+        Assert.assertEquals(2, count(library.getFunction("q", 1), Opcode.JMP));
+        Assert.assertEquals(6, count(plain.getFunction("q", 1), Opcode.JMP));
+    }
+
+    @Test
+    public void test28() {
+        Library dependency = new Library.Builder().addFunctions("function f(a) {return a + 1;}").build();
+        Library library = new Library.Builder()
+                .addFunctions("function g(a) {return f(a) * 2;}")
+                .addDependency(dependency)
+                .build();
+        Assert.assertEquals(8, library.execute("g", new Object[]{3}));
+        CompiledFunction g = library.getFunction("g", 1);
+        CallSite callSite = null;
+        for (Object constant : g.constants) {
+            if (constant instanceof CallSite) {
+                callSite = (CallSite) constant;
+            }
+        }
+        CallSite.Target target = callSite.resolve(library, 1);
+        // The target is resolved in the dependency once and cached.
+        Assert.assertSame(dependency.getFunction("f", 1), target.function);
+        new Library.Builder().addFunctions("function f(a) {return a;}").build();
+        Assert.assertSame(target, callSite.resolve(library, 1));
+        Assert.assertEquals(8, library.execute("g", new Object[]{3}));
+    }
+
+    @Test
+    public void test29() {
+        // The folded comparisons of literals agree with the engines, which compare the tagged values.
+        String program = "function f() {return 100000 == 100000;}"
+                + "function g() {a = 1000; b = 1000; return a != b;}"
+                + "function h() {return \"ab\" == \"ab\";}"
+                + "function k() {return 1.5 == 1.5 && null != 0 && true == true && \"1\" != 1;}";
+        Library plain = new Library.Builder().addFunctions(program).setOptimizationEnabled(false).build();
+        for (Engine engine : Engine.values()) {
+            Library library = new Library.Builder().addFunctions(program).setEngine(engine).build();
+            for (String function : new String[]{"f", "g", "h", "k"}) {
+                Assert.assertEquals(function, plain.execute(function, new Object[0]),
+                        library.execute(function, new Object[0]));
+            }
+            Assert.assertEquals(true, library.execute("f", new Object[0]));
+            Assert.assertEquals(false, library.execute("g", new Object[0]));
+            Assert.assertEquals(true, library.execute("k", new Object[0]));
+        }
+    }
+
+    @Test
+    public void test30() {
+        // The branches which replace NOT, AND and OR reject a non-boolean as the operators do.
+        String program = "function f(a) {if (!a) return 4; return 5;}"
+                + "function g(a, b) {if (a > 0 && b) return 4; return 5;}"
+                + "function h(a, b) {if (a > 0 || b) return 4; return 5;}";
+        Object[][] inputs = {
+                {"f", 1},
+                {"g", 1, 1},
+                {"h", -1, 1},
+        };
+        for (Engine engine : Engine.values()) {
+            Library library = new Library.Builder().addFunctions(program).setEngine(engine).build();
+            for (Object[] input : inputs) {
+                Object[] parameters = new Object[input.length - 1];
+                System.arraycopy(input, 1, parameters, 0, parameters.length);
+                try {
+                    library.execute((String) input[0], parameters);
+                    Assert.fail();
+                } catch (IllegalArgumentException e) {
+                }
+            }
+            Assert.assertEquals(4, library.execute("f", new Object[]{false}));
+            Assert.assertEquals(5, library.execute("g", new Object[]{1, false}));
+            Assert.assertEquals(4, library.execute("h", new Object[]{-1, true}));
+        }
+    }
+}
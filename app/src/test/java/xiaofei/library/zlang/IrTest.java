@@ -0,0 +1,235 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+public class IrTest {
+
+    private static final String PROGRAM =
+            "function f(a) {if (a == 0) return 0; else return a + f(a - 1);}" +
+            "function g(a) {return f(a);}" +
+            "function sum(a) {s = 0; for i = 0 to a step 1 if (i != 3) s = s + i; return s;}" +
+            "function loop(a) {i = 0; while (true) {i = i + 1; if (i > a) break; if (i == 3) continue;} return i;}" +
+            "function swap(a, b) {t = a; a = b; b = t; return -a + b * 2;}" +
+            "function arrays(a) {a[9-8][2][3] = 4 * 5; b = 3; return a[b-2][8-6][b] + 1;}" +
+            "function logic(x) {return x == null || x != null && _is_string(x) || x != null && x < 0;}" +
+            "function call(a, b) {return _equal(a, b > 0 && a > 0);}" +
+            "function undefined(a) {i = 0; s = 0; while (i < a) {if (i == 0) x = 1; else s = s + x; i = i + 1;}" +
+            "  return s;}" +
+            "function squares(n) {s = 0; parallel for i = 1 to n step 1 reduce s s = s + i * i; return s;}" +
+            "function print(a) {_println(a);}";
+
+    private static final Object[][] FUNCTIONS = {
+            {"f", 1}, {"g", 1}, {"sum", 1}, {"loop", 1}, {"swap", 2}, {"arrays", 1}, {"logic", 1}, {"call", 2},
+            {"undefined", 1}, {"squares", 1}, {"print", 1},
+    };
+
+    private static ArrayList<Code> getCodes(CompiledFunction function) {
+        ArrayList<Code> codes = new ArrayList<>();
+        for (int i = 0; i < function.size(); ++i) {
+            int opcode = Opcode.generic(function.opcodes[i]);
+            for (Fct fct : Fct.values()) {
+                if (Opcode.of(fct) == opcode) {
+                    codes.add(new Code(fct, function.getOperand(i)));
+                    break;
+                }
+            }
+        }
+        return codes;
+    }
+
+    private static String toString(ArrayList<Code> codes) {
+        StringBuilder builder = new StringBuilder();
+        for (Code code : codes) {
+            builder.append(code.getOpr()).append(' ').append(code.getOperand()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static IrFunction build(Library library, String functionName, int parameterNumber) {
+        ArrayList<Code> codes = getCodes(library.getFunction(functionName, parameterNumber));
+        IrFunction function = IrBuilder.build(functionName, parameterNumber,
+                Optimizer.optimize(codes, parameterNumber));
+        IrVerifier.verify(function);
+        return function;
+    }
+
+    private static Library build() {
+        return new Library.Builder().addFunctions(PROGRAM).setOptimizationEnabled(false).build();
+    }
+
+    @Test
+    public void test1() {
+        // The codes are generated again as they were.
+        Library library = build();
+        for (Object[] function : FUNCTIONS) {
+            String functionName = (String) function[0];
+            int parameterNumber = (Integer) function[1];
+            ArrayList<Code> codes = Optimizer.optimize(getCodes(library.getFunction(functionName, parameterNumber)),
+                    parameterNumber);
+            IrFunction ir = IrBuilder.build(functionName, parameterNumber, codes);
+            IrVerifier.verify(ir);
+            Assert.assertEquals(functionName, toString(codes), toString(IrGenerator.generate(ir)));
+        }
+    }
+
+    @Test
+    public void test2() {
+        Library library = build();
+        // The loop variables s and i have phis at the condition of the loop.
+        IrFunction sum = build(library, "sum", 1);
+        String dump = sum.dump();
+        System.out.println(dump);
+        Assert.assertTrue(dump.startsWith("sum(1), 3 locals\n"));
+        Assert.assertTrue(dump.contains(" = phi 1 "));
+        Assert.assertTrue(dump.contains(" = phi 2 "));
+        Assert.assertFalse(dump.contains("stack"));
+        // x may be read before it is assigned.
+        Assert.assertTrue(build(library, "undefined", 1).dump().contains(" = undefined 3\n"));
+        // The values of the short circuits are passed on the stack.
+        IrFunction logic = build(library, "logic", 1);
+        Assert.assertTrue(logic.dump().contains(" = phi stack 0 "));
+        for (IrFunction.Block block : logic.blocks) {
+            if (block.terminator == IrFunction.Terminator.SHORT_CIRCUIT) {
+                Assert.assertSame(block.value, block.exitStack[block.exitStack.length - 1]);
+            }
+        }
+    }
+
+    @Test
+    public void test3() {
+        Library library = build();
+        IrFunction sum = build(library, "sum", 1);
+        IrFunction.Value phi = null;
+        for (IrFunction.Block block : sum.blocks) {
+            if (!block.phis.isEmpty()) {
+                phi = block.phis.get(0);
+            }
+        }
+        IrFunction.Value[] inputs = phi.inputs;
+        phi.inputs = new IrFunction.Value[]{inputs[0]};
+        try {
+            IrVerifier.verify(sum);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("inputs for"));
+        }
+        // An input of the phi of a variable must live in the variable.
+        phi.inputs = new IrFunction.Value[]{inputs[0], sum.blocks.get(0).instructions.get(0)};
+        try {
+            IrVerifier.verify(sum);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("not in the variable"));
+        }
+        // A value must be defined before it is used.
+        IrFunction swap = build(library, "swap", 2);
+        ArrayList<IrFunction.Value> instructions = swap.blocks.get(1).instructions;
+        instructions.add(instructions.remove(0));
+        try {
+            IrVerifier.verify(swap);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("does not dominate"));
+        }
+    }
+
+    @Test
+    public void test4() {
+        Library library = new Library.Builder()
+                .addFunctions("function twice(a) {return a * a + a * a;}")
+                .addFunctions("function order(a) {t = a * 2; _println(a); return t;}")
+                .build();
+        // Reuse the first product, which is then stored into a temporary variable.
+        IrFunction twice = build(library, "twice", 1);
+        ArrayList<IrFunction.Value> instructions = twice.blocks.get(1).instructions;
+        IrFunction.Value product = null;
+        for (IrFunction.Value value : instructions) {
+            if (value.kind == IrFunction.Kind.OPERATE && value.opr == Opr.TIMES) {
+                product = value;
+                break;
+            }
+        }
+        IrFunction.Value plus = twice.blocks.get(1).value;
+        Assert.assertEquals(Opr.PLUS, plus.opr);
+        instructions.remove(plus.inputs[1]);
+        plus.inputs[1] = product;
+        IrVerifier.verify(twice);
+        ArrayList<Code> codes = IrGenerator.generate(twice);
+        Assert.assertEquals("INT 2\nLOD 0\nLOD 0\nOPR TIMES\nSTO 1\nLOD 1\nLOD 1\nOPR PLUS\nFUN_RETURN 0\n",
+                toString(codes));
+        library.put("twice2", 1, codes);
+        Assert.assertEquals(18, library.execute("twice2", new Object[]{3}));
+        // Return the product instead of t, which is computed before the call.
+        IrFunction order = build(library, "order", 1);
+        IrFunction.Block block = order.blocks.get(1);
+        IrFunction.Value copy = block.value;
+        Assert.assertEquals(IrFunction.Kind.COPY, copy.kind);
+        block.value = copy.inputs[0];
+        block.instructions.remove(copy);
+        IrVerifier.verify(order);
+        codes = IrGenerator.generate(order);
+        Assert.assertEquals("INT 3\nLOD 0\nLIT 2\nOPR TIMES\nSTO 2\nLOD 0\nLIT 1\nPROC _println\nLOD 2\nFUN_RETURN 0\n",
+                toString(codes));
+        library.put("order2", 1, codes);
+        Assert.assertEquals(6, library.execute("order2", new Object[]{3}));
+    }
+
+    @Test
+    public void test5() {
+        Library library = new Library.Builder()
+                .addFunctions("function sum(n) {s = 0; for i = 1 to n step 1 s = s + i * 2; return s;}")
+                .addFunctions("function half(n) {x = 1.0; while (x > 0.001) x = x / 2.0; return -x;}")
+                .addFunctions("function mixed(n) {s = 0; for i = 1 to n step 1 s = s + n; return s;}")
+                .build();
+        // The counter and the accumulator are ints, while the bound is a parameter.
+        IrFunction sum = build(library, "sum", 1);
+        TypeInference.infer(sum);
+        Assert.assertTrue(sum.dump().contains("v6 = phi 2 v4 v15 : int\n    v8 = phi 1 v2 v12 : int\n"));
+        for (IrFunction.Block block : sum.blocks) {
+            for (IrFunction.Value value : block.instructions) {
+                if (value.kind == IrFunction.Kind.OPERATE) {
+                    Assert.assertEquals(value.opr == Opr.GREATER_EQUAL ? null : Tag.INT, value.type);
+                }
+            }
+        }
+        Assert.assertEquals("IMUL IADD IADD", getTypedOpcodes(library.getFunction("sum", 1)));
+        Assert.assertEquals("DGT DDIV DNEG", getTypedOpcodes(library.getFunction("half", 1)));
+        // The accumulator depends on the parameter, so only the step of the loop is typed.
+        Assert.assertEquals("IADD", getTypedOpcodes(library.getFunction("mixed", 1)));
+        Assert.assertEquals(110, library.execute("sum", new Object[]{10}));
+        Assert.assertEquals(-1.0 / 1024, library.execute("half", new Object[]{0}));
+        Assert.assertEquals(9, library.execute("mixed", new Object[]{3}));
+    }
+
+    private static String getTypedOpcodes(CompiledFunction function) {
+        StringBuilder builder = new StringBuilder();
+        for (int opcode : function.opcodes) {
+            if (opcode >= Opcode.IADD && opcode <= Opcode.DNEG) {
+                builder.append(builder.length() == 0 ? "" : " ").append(Opcode.getName(opcode));
+            }
+        }
+        return builder.toString();
+    }
+}
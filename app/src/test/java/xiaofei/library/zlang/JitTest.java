@@ -0,0 +1,128 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package xiaofei.library.zlang;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JitTest {
+
+    private static final String PROGRAM =
+            "function f1(a) {if (a == 0) return 0; else return a + f1(a-1);}" +
+            "function f2(a) {s = 0; for i = 0 to a step 1 s = s + i; return s;}" +
+            "function f3(a) {return f2(a + 1) - f2(a - 1) * 8 / 9;}" +
+            "function f4(x) {if (x != null && _is_string(x) || x == null) return 1; else return -1;}" +
+            "function f5(a) {a[1][2] = 4 * 5; b = 1; return a[b][b + 1] + 1;}" +
+            "function f6(a) {if (a) return \"t\"; else return \"j\" + 'k';}" +
+            "function f7(a) {i = 0; while (true) {i = i + 1; if (i > a) break; if (i == 3) continue;} return i;}" +
+            "function f8(a) {_println(a);}" +
+            "function f9(a) {f8(a); return -a * 2 + 1;}";
+
+    private static Library build(boolean jitEnabled) {
+        return new Library.Builder()
+                .addFunctions(PROGRAM)
+                .setJitEnabled(jitEnabled)
+                .setJitThreshold(1)
+                .build();
+    }
+
+    @Test
+    public void test1() {
+        Library interpreter = build(false);
+        Library jit = build(true);
+        Object[][] inputs = {
+                {"f1", 100},
+                {"f2", 100},
+                {"f3", 10},
+                {"f4", "abc"},
+                {"f4", null},
+                {"f6", true},
+                {"f6", false},
+                {"f7", 10},
+                {"f9", 3},
+        };
+        for (int round = 0; round < 3; ++round) {
+            for (Object[] input : inputs) {
+                String name = (String) input[0];
+                Assert.assertEquals(interpreter.execute(name, new Object[]{input[1]}),
+                        jit.execute(name, new Object[]{input[1]}));
+            }
+        }
+        Assert.assertEquals(21, jit.execute("f5", new Object[]{new int[2][3]}));
+        if (Jit.isAvailable()) {
+            Assert.assertNotNull(jit.getFunction("f1", 1).jitFunction);
+            Assert.assertNotNull(jit.getFunction("f5", 1).jitFunction);
+            Assert.assertNull(interpreter.getFunction("f1", 1).jitFunction);
+        }
+    }
+
+    @Test
+    public void test2() {
+        Library library = new Library.Builder()
+                .addFunctions("function f(a) {return g(a);} function g(a) {_println(a);}")
+                .setJitEnabled(true)
+                .setJitThreshold(1)
+                .build();
+        try {
+            library.execute("f", new Object[]{1});
+            Assert.fail();
+        } catch (ZlangRuntimeException e) {
+            Assert.assertTrue(e.getMessage().contains(ZlangRuntimeError.NO_RETURN_VALUE.toString()));
+        }
+    }
+
+    @Test
+    public void test3() {
+        // The deep calls fall back to the stack engine instead of overflowing the Java stack.
+        Library jit = build(true);
+        for (int round = 0; round < 3; ++round) {
+            Assert.assertEquals(705082704, jit.execute("f1", new Object[]{100000}));
+        }
+        Library library = new Library.Builder()
+                .addFunctions(PROGRAM)
+                .setJitEnabled(true)
+                .setJitThreshold(1)
+                .setMaxCallDepth(1000)
+                .build();
+        Assert.assertEquals(499500, library.execute("f1", new Object[]{999}));
+        try {
+            library.execute("f1", new Object[]{5000});
+            Assert.fail();
+        } catch (ZlangRuntimeException e) {
+            Assert.assertTrue(e.getMessage().contains(ZlangRuntimeError.STACK_OVERFLOW.toString()));
+        }
+    }
+
+    @Test
+    public void test4() {
+        // The optimizer turns the back edge of the loop into a JPF, which makes the function hot as well.
+        String program = "function f(n, m) {i = m; while (i < n) {i = i + 1; if (i == 7) {i = i + 1;}} return i;}";
+        for (Engine engine : new Engine[]{Engine.STACK, Engine.REGISTER}) {
+            Library library = new Library.Builder()
+                    .addFunctions(program)
+                    .setEngine(engine)
+                    .setJitEnabled(true)
+                    .build();
+            Assert.assertEquals(100000, library.execute("f", new Object[]{100000, 0}));
+            if (Jit.isAvailable()) {
+                Assert.assertNotNull(library.getFunction("f", 2).jitFunction);
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MemoTest {
+
+    @Test
+    public void test1() {
+        for (Engine engine : Engine.values()) {
+            for (boolean jitEnabled : new boolean[]{false, true}) {
+                Library library = new Library.Builder()
+                        .addFunctions("function fib(n) {if (n < 2) return n; return fib(n - 1) + fib(n - 2);}")
+                        .setEngine(engine)
+                        .setJitEnabled(jitEnabled)
+                        .setJitThreshold(1)
+                        .setMemoized("fib", 1, 100)
+                        .build();
+                long start = System.currentTimeMillis();
+                Assert.assertEquals(832040, library.execute("fib", new Object[]{30}));
+                System.out.println(engine + " jit " + jitEnabled + " " + (System.currentTimeMillis() - start) + "ms");
+                MemoCache cache = library.getMemoCache("fib", 1);
+                Assert.assertEquals(31, cache.getMissCount());
+                Assert.assertEquals(28, cache.getHitCount());
+                Assert.assertEquals(31, cache.size());
+                Assert.assertEquals(832040, library.execute("fib", new Object[]{30}));
+                Assert.assertEquals(29, cache.getHitCount());
+                cache.clear();
+                Assert.assertEquals(0, cache.size());
+                Assert.assertEquals(0, cache.getHitCount());
+            }
+        }
+    }
+
+    @Test
+    public void test2() {
+        Library library = new Library.Builder()
+                .addFunctions("function sq(a) {return a * a;}")
+                .addFunctions("function len(a) {return _length(a);}")
+                .addFunctions("function s(a, b) {if (a == 0) return b; return s(a - 1, b + a);}")
+                .addFunctions("function f(a) {return sq(a) + sq(a) + s(a, 0);}")
+                .setMemoized("sq", 1, 2)
+                .setMemoized("len", 1, 2)
+                .setMemoized("s", 2, 1000)
+                .build();
+        Assert.assertNull(library.getMemoCache("f", 1));
+        MemoCache cache = library.getMemoCache("sq", 1);
+        Assert.assertEquals(1, library.execute("sq", new Object[]{1}));
+        Assert.assertEquals(4, library.execute("sq", new Object[]{2}));
+        Assert.assertEquals(9, library.execute("sq", new Object[]{3}));
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(1, library.execute("sq", new Object[]{1}));
+        Assert.assertEquals(4, cache.getMissCount());
+        Assert.assertEquals(0, cache.getHitCount());
+        Assert.assertEquals(9, library.execute("sq", new Object[]{3}));
+        Assert.assertEquals(1, cache.getHitCount());
+
+        Assert.assertEquals(100 + 100 + 55, library.execute("f", new Object[]{10}));
+        Assert.assertEquals(2, cache.getHitCount());
+        // Each tail call takes a new frame and caches its result.
+        Assert.assertEquals(11, library.getMemoCache("s", 2).size());
+        Assert.assertEquals(55, library.execute("s", new Object[]{1, 54}));
+        Assert.assertEquals(1, library.getMemoCache("s", 2).getHitCount());
+
+        // Arrays may change, so they are not cached.
+        Assert.assertEquals(3, library.execute("len", new Object[]{new int[3]}));
+        Assert.assertEquals(0, library.getMemoCache("len", 1).getMissCount());
+        Assert.assertEquals(0, library.getMemoCache("len", 1).size());
+    }
+
+    @Test
+    public void test3() {
+        try {
+            new Library.Builder()
+                    .addFunctions("function sq(a) {return a * a;}")
+                    .setMemoized("sq", 2, 10)
+                    .build();
+            Assert.fail();
+        } catch (CompileException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+}
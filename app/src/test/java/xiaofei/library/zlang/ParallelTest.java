@@ -0,0 +1,133 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParallelTest {
+
+    private static final String[] FUNCTIONS = {
+            "function squares(n) {s = 0; parallel for i = 1 to n step 1 reduce s s = s + i * i; return s;}",
+            "function squares2(n) {s = 0; for i = 1 to n step 1 s = s + i * i; return s;}",
+            "function text(n) {s = \"\"; parallel for i = 1 to n step 1 reduce s s = s + i + \",\"; return s;}",
+            "function text2(n) {s = \"\"; for i = 1 to n step 1 s = s + i + \",\"; return s;}",
+            "function capture(n) {t = 5; s = 0; parallel for i = 1 to n step 1 reduce s {t = t + i; s = s + t;} return s * 1000 + t;}",
+            "function fill(n) {a = _new_array(\"int\", n); parallel for i = 0 to n - 1 step 1 a[i] = i * i; return a;}",
+            "function evens(n) {s = 0; parallel for i = 1 to n step 1 reduce s {if (i / 2 * 2 != i) continue; s = s + i;} return s;}",
+            "function nested(n) {s = 0; parallel for i = 1 to n step 1 reduce s {parallel for j = 1 to i step 1 reduce s s = s + j;} return s;}",
+            "function loops(n) {s = 0; parallel for i = 1 to n step 2 reduce s {for j = 1 to 10 step 1 {if (j > i) break; s = s + 1;}} return s;}",
+            "function halves(n) {s = 0.0; h = 0.5; parallel for i = 1 to n step 1 reduce s s = s + h; return s;}",
+            "function empty(n) {s = 7; parallel for i = 1 to n step 1 reduce s s = s + 1; return s;}",
+            "function outOfBounds(n) {a = _new_array(\"int\", 10); parallel for i = 0 to n step 1 a[i] = i;}",
+    };
+
+    private static Library build(Engine engine, boolean jitEnabled) {
+        Library.Builder builder = new Library.Builder().setEngine(engine).setJitEnabled(jitEnabled);
+        for (String function : FUNCTIONS) {
+            builder.addFunctions(function);
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void test1() {
+        for (Engine engine : Engine.values()) {
+            for (boolean jitEnabled : new boolean[]{false, true}) {
+                Library library = build(engine, jitEnabled);
+                Assert.assertEquals(library.execute("squares2", new Object[]{20000}),
+                        library.execute("squares", new Object[]{20000}));
+                Assert.assertEquals(library.execute("text2", new Object[]{3000}),
+                        library.execute("text", new Object[]{3000}));
+                Assert.assertEquals(105005, library.execute("capture", new Object[]{10}));
+                int[] array = (int[]) library.execute("fill", new Object[]{1000});
+                for (int i = 0; i < array.length; ++i) {
+                    Assert.assertEquals(i * i, array[i]);
+                }
+                Assert.assertEquals(2550, library.execute("evens", new Object[]{100}));
+                Assert.assertEquals(171700, library.execute("nested", new Object[]{100}));
+                Assert.assertEquals(75, library.execute("loops", new Object[]{20}));
+                Assert.assertEquals(50000.0, library.execute("halves", new Object[]{100000}));
+                Assert.assertEquals(7, library.execute("empty", new Object[]{0}));
+                try {
+                    library.execute("outOfBounds", new Object[]{10});
+                    Assert.fail();
+                } catch (ArrayIndexOutOfBoundsException e) {
+                }
+            }
+        }
+    }
+
+    @Test
+    public void test2() {
+        String[] programs = {
+                "function f(n) {parallel for i = 1 to n step 1 break;}",
+                "function f(n) {parallel for i = 1 to n step 1 return i;}",
+                "function f(n) {parallel for i = 1 to n step 1 reduce s s = s + 1;}",
+                "function f(n) {parallel for i = 1 to n step 1 reduce i i = i + 1;}",
+        };
+        for (String program : programs) {
+            try {
+                new Library.Builder().addFunctions(program).build();
+                Assert.fail(program);
+            } catch (CompileException e) {
+            }
+        }
+        try {
+            new Library.Builder().addFunctions("function f(n) {parallel for i = 1 to n step 0 ;}").build()
+                    .execute("f", new Object[]{1});
+            Assert.fail();
+        } catch (ZlangRuntimeException e) {
+        }
+        try {
+            new Library.Builder().addFunctions("function f(n) {return _parallel_for(n, 1, 2, 3);}").build()
+                    .execute("f", new Object[]{1});
+            Assert.fail();
+        } catch (ZlangRuntimeException e) {
+        }
+    }
+
+    @Test
+    public void test3() {
+        // "parallel" and "reduce" are not reserved words.
+        Library library = new Library.Builder()
+                .addFunctions("function reduce(a) {parallel = 3; return a + parallel;}")
+                .addFunctions("function g(n) {parallel = 0; parallel for i = 1 to n step 1 reduce parallel"
+                        + " parallel = parallel + reduce(i); return parallel;}")
+                .build();
+        Assert.assertEquals(4, library.execute("reduce", new Object[]{1}));
+        Assert.assertEquals(85, library.execute("g", new Object[]{10}));
+    }
+
+    @Test
+    public void benchmark() {
+        Library library = build(Engine.STACK, false);
+        for (int round = 0; round < 3; ++round) {
+            long start = System.nanoTime();
+            library.execute("squares2", new Object[]{1000000});
+            long sequential = System.nanoTime() - start;
+            start = System.nanoTime();
+            library.execute("squares", new Object[]{1000000});
+            System.out.println("sequential " + sequential / 1000000 + "ms parallel "
+                    + (System.nanoTime() - start) / 1000000 + "ms on "
+                    + Runtime.getRuntime().availableProcessors() + " processors");
+        }
+    }
+}
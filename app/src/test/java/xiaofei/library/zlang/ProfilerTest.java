@@ -0,0 +1,103 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ProfilerTest {
+
+    private static Library build(Engine engine, boolean profilingEnabled) {
+        return new Library.Builder()
+                .addFunctions("function fib(n) {if (n < 2) return n; return fib(n - 1) + fib(n - 2);}")
+                .addFunctions("function s(a, b) {if (a == 0) return b; return s(a - 1, b + a);}")
+                .addFunctions("function p(a) {b = _is_int(a);}")
+                .addFunctions("function f(a) {x = 5; p(a); p(a); return x * 10 + s(a, 0) + fib(a);}")
+                .setEngine(engine)
+                .setJitEnabled(true)
+                .setProfilingEnabled(profilingEnabled)
+                .build();
+    }
+
+    @Test
+    public void test1() {
+        for (Engine engine : Engine.values()) {
+            Assert.assertNull(build(engine, false).getProfiler());
+            Library library = build(engine, true);
+            Profiler profiler = library.getProfiler();
+            Assert.assertEquals(build(engine, false).execute("f", new Object[]{10}), library.execute("f", new Object[]{10}));
+            Assert.assertEquals(50 + 55 + 55, library.execute("f", new Object[]{10}));
+            Assert.assertEquals(2, profiler.getProfile("f", 1).getInvocationCount());
+            Assert.assertEquals(2 * 177, profiler.getProfile("fib", 1).getInvocationCount());
+            Assert.assertEquals(2 * 11, profiler.getProfile("s", 2).getInvocationCount());
+            Assert.assertEquals(4, profiler.getProfile("p", 1).getInvocationCount());
+            FunctionProfile isInt = profiler.getProfile("_is_int", 1);
+            Assert.assertTrue(isInt.isJavaFunction());
+            Assert.assertEquals(4, isInt.getInvocationCount());
+            Assert.assertNull(isInt.getHitCounts());
+
+            FunctionProfile fib = profiler.getProfile("fib", 1);
+            Assert.assertEquals(2 * 177, fib.getHitCounts()[0]);
+            Assert.assertTrue(fib.getInclusiveNanos() >= fib.getExclusiveNanos());
+            FunctionProfile f = profiler.getProfile("f", 1);
+            Assert.assertTrue(f.getInclusiveNanos() >= fib.getInclusiveNanos());
+
+            String stacks = profiler.getCollapsedStacks();
+            Assert.assertTrue(stacks, stacks.contains("f/1;fib/1;fib/1 "));
+            Assert.assertTrue(stacks, stacks.contains("f/1;p/1;_is_int/1 "));
+            // The tail calls replace the frame of the caller.
+            Assert.assertTrue(stacks, stacks.contains("f/1;s/2 "));
+            Assert.assertFalse(stacks, stacks.contains("s/2;s/2"));
+            String report = profiler.getReport();
+            Assert.assertTrue(report, report.contains("fib/1"));
+            System.out.println(report);
+
+            profiler.reset();
+            Assert.assertNull(profiler.getProfile("f", 1));
+            Assert.assertTrue(profiler.getProfiles().isEmpty());
+        }
+    }
+
+    @Test
+    public void test2() {
+        Library library = new Library.Builder()
+                .addFunctions("function loop(n) {s = 0; for i = 1 to n step 1 s = s + i; return s;}")
+                .setProfilingEnabled(true)
+                .build();
+        Library caller = new Library.Builder()
+                .addFunctions("function g(n) {return loop(n) + loop(n);}")
+                .addDependency(library)
+                .build();
+        Assert.assertEquals(110, caller.execute("g", new Object[]{10}));
+        FunctionProfile loop = library.getProfiler().getProfile("loop", 1);
+        Assert.assertEquals(2, loop.getInvocationCount());
+        long max = 0;
+        for (long count : loop.getHitCounts()) {
+            max = Math.max(max, count);
+        }
+        Assert.assertTrue(max >= 20);
+        try {
+            library.execute("loop", new Object[]{"x"});
+            Assert.fail();
+        } catch (RuntimeException e) {
+        }
+        Assert.assertEquals(3, library.getProfiler().getProfile("loop", 1).getInvocationCount());
+    }
+}
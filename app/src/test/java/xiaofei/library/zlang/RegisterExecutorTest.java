@@ -0,0 +1,158 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RegisterExecutorTest {
+
+    // The programs of ExecutorTest.
+    private static final String PROGRAM =
+            "function f1(a) {if (a == 0) return 0; else return a + f1(a-1);}" +
+            "function f1(a, b) {if (a == 0) return 8*9; }" +
+            "function g(a) {return f2(a);}" +
+            "function f2(a) {s = 0; for i = 0 to a step 1 s =s + i; return s;}" +
+            "function f2(a, b) {return a + b;}" +
+            "function f3(a) {return f2(a + 1, a - 1);}" +
+            "function f4(a) {if (a) return \"t\\\"\"; else return \"j\" + 'k';}" +
+            "function f5(a) {if (a == true) return null; else return 2;}" +
+            "function check(array, x) {len = _length(array); for i = 0 to len - 1 step 1 {" +
+            "  if (_equal(array[i], x)) {return i;}} return -1;}" +
+            "function plus(array) {len = _length(array); result = \"\";" +
+            "  for i = 0 to len - 1 step 1 {result = result + array[i];} return result;}" +
+            "function h(a) {a[9-8][2][3] = 4 * 5; b = 3; return a[b-2][8-6][b] + 1;}" +
+            "function k(a) {sum = 0; for i = 0 to 3 step 1 for j = 0 to 4 step 1 for k = 0 to 2 step 1" +
+            "  {a[i][j][k] = i * j * k; sum = sum + a[i][j][k];} return sum;}" +
+            "function m(x) {if (x == null || x != null && _is_string(x) || x != null && x < 0) return 1; else return -1;}" +
+            "function n(a) {i = 0; while (true) {i = i + 1; if (i > a) break; if (i == 3) continue;} return i;}" +
+            "function p(a, b) {t = a; a = b; b = t; return -a + b * 2;}" +
+            "function q(a) {s = 0.0; for x = 0.5 to a step 0.5 if (x != 1.5) s = s + x; return s;}" +
+            "function r(a) {_println(a);}" +
+            "function u(a) {r(a); return r(a);}";
+
+    private static Library build(Engine engine) {
+        return new Library.Builder()
+                .addFunctions(PROGRAM)
+                .setEngine(engine)
+                .build();
+    }
+
+    @Test
+    public void test1() {
+        Library stack = build(Engine.STACK);
+        Library register = build(Engine.REGISTER);
+        Object[][] inputs = {
+                {"f1", 100},
+                {"f1", 0, 3},
+                {"f1", 100, 3},
+                {"g", 100},
+                {"f3", 100},
+                {"f4", true},
+                {"f4", false},
+                {"f5", true},
+                {"f5", false},
+                {"check", new String[]{"ab", "cd", "e"}, "e"},
+                {"check", new String[]{"ab", "cd", "e"}, "abc"},
+                {"plus", new String[]{"ab", "cd", "e"}},
+                {"m", null},
+                {"m", "a"},
+                {"m", -1},
+                {"m", 1},
+                {"n", 10},
+                {"p", 3, 4},
+                {"q", 3.0},
+        };
+        for (Object[] input : inputs) {
+            Object[] parameters = new Object[input.length - 1];
+            System.arraycopy(input, 1, parameters, 0, parameters.length);
+            Assert.assertEquals(stack.execute((String) input[0], parameters),
+                    register.execute((String) input[0], parameters));
+        }
+        Assert.assertEquals(21, register.execute("h", new Object[]{new int[2][3][4]}));
+        int[][][] a = new int[4][5][3];
+        Assert.assertEquals(stack.execute("k", new Object[]{new int[4][5][3]}), register.execute("k", new Object[]{a}));
+        Assert.assertEquals(24, a[3][4][2]);
+        Assert.assertEquals(Library.NO_RETURN_VALUE, register.execute("r", new Object[]{1}));
+        try {
+            register.execute("u", new Object[]{1});
+            Assert.fail();
+        } catch (ZlangRuntimeException e) {
+            Assert.assertTrue(e.getMessage().contains(ZlangRuntimeError.NO_RETURN_VALUE.toString()));
+        }
+        register.print("k", 1);
+    }
+
+    @Test
+    public void test2() {
+        Library stack = build(Engine.STACK);
+        Library register = new Library.Builder()
+                .addDependency(stack)
+                .addFunctions("function f(a) {if (a == 0) return 0; else return f2(a) + f(a - 1);}")
+                .setEngine(Engine.REGISTER)
+                .setMaxCallDepth(100)
+                .build();
+        Library mixed = new Library.Builder()
+                .addDependency(register)
+                .addFunctions("function e(a) {return f(a) + 1;}")
+                .build();
+        Assert.assertEquals(221, mixed.execute("e", new Object[]{10}));
+        Assert.assertEquals((int) 5000050000L, register.execute("f1", new Object[]{100000}));
+        try {
+            register.execute("f", new Object[]{100});
+            Assert.fail();
+        } catch (ZlangRuntimeException e) {
+            Assert.assertTrue(e.getMessage().contains(ZlangRuntimeError.STACK_OVERFLOW.toString()));
+        }
+    }
+
+    private static long time(Library library, String functionName, Object[] input, int times) {
+        long start = System.nanoTime();
+        for (int i = 0; i < times; ++i) {
+            library.execute(functionName, input);
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    @Test
+    public void benchmark() {
+        Library stack = build(Engine.STACK);
+        Library register = build(Engine.REGISTER);
+        Object[][] inputs = {
+                {"f1", 1000, 200},
+                {"f2", 10000, 200},
+                {"k", new int[4][5][3], 2000},
+                {"check", new String[]{"ab", "cd", "e"}, 10000},
+                {"n", 10000, 200},
+        };
+        for (int round = 0; round < 2; ++round) {
+            for (Object[] input : inputs) {
+                String name = (String) input[0];
+                Object[] parameters = {input[1]};
+                if (name.equals("check")) {
+                    parameters = new Object[]{input[1], "e"};
+                }
+                int times = (int) input[2];
+                System.out.println(name + " stack " + time(stack, name, parameters, times)
+                        + "ms register " + time(register, name, parameters, times) + "ms");
+            }
+        }
+    }
+}
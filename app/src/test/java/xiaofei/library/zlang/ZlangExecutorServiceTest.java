@@ -0,0 +1,123 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ZlangExecutorServiceTest {
+
+    private static Library build(final AtomicInteger running, final AtomicInteger maxRunning) {
+        JavaFunction sleep = new JavaFunction() {
+            @Override
+            public boolean isVarArgs() {
+                return false;
+            }
+
+            @Override
+            public int getParameterNumber() {
+                return 1;
+            }
+
+            @Override
+            public String getFunctionName() {
+                return "sleep";
+            }
+
+            @Override
+            public Object call(Object[] input) {
+                int count = running.incrementAndGet();
+                int max;
+                while (count > (max = maxRunning.get()) && !maxRunning.compareAndSet(max, count)) {
+                }
+                try {
+                    Thread.sleep((int) input[0]);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    running.decrementAndGet();
+                }
+                return null;
+            }
+        };
+        return new Library.Builder()
+                .addJavaDependency(new JavaLibrary.Builder().addFunction(sleep).build())
+                .addFunctions("function f(a, t) {sleep(t); return a * 2;}")
+                .addFunctions("function g(a) {return a[0];}")
+                .build();
+    }
+
+    private static long time(ZlangExecutorService service, int n) throws Exception {
+        long start = System.nanoTime();
+        Future<?>[] futures = new Future<?>[n];
+        for (int i = 0; i < n; ++i) {
+            futures[i] = service.submit("f", new Object[]{i, 10});
+        }
+        for (int i = 0; i < n; ++i) {
+            Assert.assertEquals(i * 2, futures[i].get());
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    @Test
+    public void test1() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        Library library = build(running, maxRunning);
+        for (boolean preferVirtualThreads : new boolean[]{true, false}) {
+            ZlangExecutorService service = new ZlangExecutorService(library, 4, preferVirtualThreads);
+            Assert.assertEquals(preferVirtualThreads && ZlangExecutorService.isVirtualThreadSupported(),
+                    service.isUsingVirtualThreads());
+            maxRunning.set(0);
+            time(service, 100);
+            Assert.assertTrue(maxRunning.get() <= 4);
+            try {
+                service.submit("g", new Object[]{new int[0]}).get();
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof ArrayIndexOutOfBoundsException);
+            }
+            service.shutdown();
+            Assert.assertTrue(service.awaitTermination(10, TimeUnit.SECONDS));
+            Assert.assertTrue(service.isShutdown());
+        }
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        Library library = build(new AtomicInteger(), new AtomicInteger());
+        int n = 10000;
+        ZlangExecutorService platform = new ZlangExecutorService(library, 200, false);
+        System.out.println("platform threads (200): " + time(platform, n) + "ms for " + n + " scripts");
+        platform.shutdown();
+        if (ZlangExecutorService.isVirtualThreadSupported()) {
+            ZlangExecutorService virtual = new ZlangExecutorService(library, n);
+            System.out.println("virtual threads: " + time(virtual, n) + "ms for " + n + " scripts");
+            virtual.shutdown();
+        } else {
+            System.out.println("virtual threads: not supported by this JDK");
+        }
+    }
+}
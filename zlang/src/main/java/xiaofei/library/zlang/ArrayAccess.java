@@ -0,0 +1,116 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+import java.lang.reflect.Array;
+
+/**
+ * The element access of ALOD and ASTO.
+ *
+ * Each level but the last of a multi-dimensional array is an Object[], and the elements of the common
+ * array classes are accessed directly. Only the other array classes and the erroneous accesses go through
+ * {@link Array}, so the errors are the same as before.
+ */
+
+final class ArrayAccess {
+
+    private ArrayAccess() {}
+
+    /**
+     * Follows the indices from first to last - 1 on the stack and returns the array which the last index refers to.
+     */
+    static Object innermost(Object array, Object[] references, long[] primitives, int first, int last) {
+        for (int i = first; i < last; ++i) {
+            int index = Tag.intValue(references, primitives, i);
+            array = array instanceof Object[] ? ((Object[]) array)[index] : Array.get(array, index);
+        }
+        return array;
+    }
+
+    /**
+     * Loads the element into the slot without boxing it.
+     */
+    static void load(Object array, int index, Object[] references, long[] primitives, int target) {
+        if (array instanceof int[]) {
+            references[target] = Tag.INT;
+            primitives[target] = ((int[]) array)[index];
+        } else if (array instanceof double[]) {
+            references[target] = Tag.DOUBLE;
+            primitives[target] = Double.doubleToRawLongBits(((double[]) array)[index]);
+        } else if (array instanceof Object[]) {
+            Tag.unbox(references, primitives, target, ((Object[]) array)[index]);
+        } else if (array instanceof long[]) {
+            references[target] = Tag.LONG;
+            primitives[target] = ((long[]) array)[index];
+        } else if (array instanceof boolean[]) {
+            references[target] = Tag.BOOLEAN;
+            primitives[target] = ((boolean[]) array)[index] ? 1 : 0;
+        } else {
+            Tag.unbox(references, primitives, target, Array.get(array, index));
+        }
+    }
+
+    /**
+     * Stores the value in the slot into the array without boxing it if the types match.
+     */
+    static void store(Object array, int index, Object[] references, long[] primitives, int source) {
+        Object tag = references[source];
+        if (array instanceof int[] && tag == Tag.INT) {
+            ((int[]) array)[index] = (int) primitives[source];
+        } else if (array instanceof double[] && tag == Tag.DOUBLE) {
+            ((double[]) array)[index] = Double.longBitsToDouble(primitives[source]);
+        } else if (array instanceof long[] && tag == Tag.LONG) {
+            ((long[]) array)[index] = primitives[source];
+        } else if (array instanceof boolean[] && tag == Tag.BOOLEAN) {
+            ((boolean[]) array)[index] = primitives[source] != 0;
+        } else if (array != null && array.getClass() == Object[].class) {
+            ((Object[]) array)[index] = Tag.box(references, primitives, source);
+        } else {
+            Array.set(array, index, Tag.box(references, primitives, source));
+        }
+    }
+
+    /**
+     * The same as {@link #load(Object, int, Object[], long[], int)}, but for the boxed values of {@link Jit}.
+     */
+    static Object get(Object array, int index) {
+        if (array instanceof Object[]) {
+            return ((Object[]) array)[index];
+        } else if (array instanceof int[]) {
+            return ((int[]) array)[index];
+        } else if (array instanceof double[]) {
+            return ((double[]) array)[index];
+        } else {
+            return Array.get(array, index);
+        }
+    }
+
+    static void set(Object array, int index, Object value) {
+        if (array != null && array.getClass() == Object[].class) {
+            ((Object[]) array)[index] = value;
+        } else if (array instanceof int[] && value instanceof Integer) {
+            ((int[]) array)[index] = (int) value;
+        } else if (array instanceof double[] && value instanceof Double) {
+            ((double[]) array)[index] = (double) value;
+        } else {
+            Array.set(array, index, value);
+        }
+    }
+}
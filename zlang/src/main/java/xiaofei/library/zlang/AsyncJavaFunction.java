@@ -0,0 +1,72 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A {@link JavaFunction} which completes asynchronously, e.g. one which does I/O.
+ *
+ * When it is called by {@link Library#executeAsync(String, Object[], Callback)}, the execution is suspended
+ * without holding the thread and is resumed on the thread which invokes the callback. When it is called by
+ * {@link Library#execute(String, Object[])}, {@link #call(Object[])} blocks until the callback is invoked.
+ */
+
+public abstract class AsyncJavaFunction implements JavaFunction {
+
+    /**
+     * Starts the call. The callback should be invoked exactly once, on any thread.
+     */
+    public abstract void callAsync(Object[] input, Callback callback);
+
+    @Override
+    public Object call(Object[] input) {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Object[] result = new Object[1];
+        final Throwable[] error = new Throwable[1];
+        callAsync(input, new Callback() {
+            @Override
+            public void onResult(Object value) {
+                result[0] = value;
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                error[0] = throwable;
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ZlangRuntimeException(ZlangRuntimeError.ASYNC_CALL_ERROR, "Interrupted.");
+        }
+        if (error[0] instanceof RuntimeException) {
+            throw (RuntimeException) error[0];
+        } else if (error[0] instanceof Error) {
+            throw (Error) error[0];
+        } else if (error[0] != null) {
+            throw new ZlangRuntimeException(ZlangRuntimeError.ASYNC_CALL_ERROR, error[0].toString());
+        }
+        return result[0];
+    }
+}
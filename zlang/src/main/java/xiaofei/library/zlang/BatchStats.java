@@ -0,0 +1,67 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+/**
+ * The timing of a batch run by {@link Library#executeBatch(String, Object[][], ResultSink)}.
+ */
+
+public final class BatchStats {
+
+    private final int count;
+
+    private final int tasks;
+
+    private final long elapsedNanos;
+
+    BatchStats(int count, int tasks, long elapsedNanos) {
+        this.count = count;
+        this.tasks = tasks;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * The number of inputs executed.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * The number of tasks the batch was split into, which is 1 if it ran on the calling thread.
+     */
+    public int getTasks() {
+        return tasks;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public long getNanosPerExecution() {
+        return count == 0 ? 0 : elapsedNanos / count;
+    }
+
+    @Override
+    public String toString() {
+        return count + " executions in " + tasks + " tasks, " + elapsedNanos / 1000000 + "ms, "
+                + getNanosPerExecution() + "ns each";
+    }
+}
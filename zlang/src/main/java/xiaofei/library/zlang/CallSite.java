@@ -0,0 +1,82 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package xiaofei.library.zlang;
+
+/**
+ * A FUN or PROC instruction of a {@link CompiledFunction}, which caches the function it calls.
+ *
+ * The cache is monomorphic: a call site always calls from the same library, so the only thing which may
+ * change is the parameter number. The functions of a library and its dependencies are all put before
+ * {@link Library.Builder#build()} returns and are never replaced, so a resolved target stays valid.
+ */
+
+final class CallSite {
+
+    final String functionName;
+
+    private Target target;
+
+    CallSite(String functionName) {
+        this.functionName = functionName;
+    }
+
+    /**
+     * Returns the resolved target. Nothing is looked up or allocated if the cache hits.
+     *
+     * @param library the library of the function containing this call site
+     */
+    Target resolve(Library library, int parameterNumber) {
+        Target tmp = target;
+        if (tmp != null && tmp.parameterNumber == parameterNumber) {
+            return tmp;
+        }
+        JavaFunction javaFunction = library.getJavaFunction(functionName, parameterNumber);
+        CompiledFunction function = javaFunction == null ? library.getFunction(functionName, parameterNumber) : null;
+        // Target is immutable so it is safe to publish it without synchronization.
+        tmp = new Target(parameterNumber, javaFunction, function);
+        target = tmp;
+        return tmp;
+    }
+
+    @Override
+    public String toString() {
+        return functionName;
+    }
+
+    static final class Target {
+
+        final int parameterNumber;
+
+        /**
+         * Non-null if the call site calls a Java function.
+         */
+        final JavaFunction javaFunction;
+
+        /**
+         * Non-null if the call site calls a Zlang function. The owning library is {@link CompiledFunction#library}.
+         */
+        final CompiledFunction function;
+
+        Target(int parameterNumber, JavaFunction javaFunction, CompiledFunction function) {
+            this.parameterNumber = parameterNumber;
+            this.javaFunction = javaFunction;
+            this.function = function;
+        }
+    }
+}
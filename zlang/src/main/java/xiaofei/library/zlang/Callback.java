@@ -0,0 +1,35 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+/**
+ * Receives the result of an asynchronous call, see {@link AsyncJavaFunction} and
+ * {@link Library#executeAsync(String, Object[], Callback)}. Exactly one of the methods is invoked, once.
+ */
+
+public interface Callback {
+
+    /**
+     * @param result the result, or {@link Library#NO_RETURN_VALUE} if the function returns no value
+     */
+    void onResult(Object result);
+
+    void onError(Throwable error);
+}
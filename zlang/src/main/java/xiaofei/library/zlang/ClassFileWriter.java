@@ -0,0 +1,213 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package xiaofei.library.zlang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A minimal writer of class files, which supports what {@link Jit} needs and nothing more.
+ *
+ * The class files are of version 49 so that no StackMapTable is needed and the verifier infers the types.
+ */
+
+final class ClassFileWriter {
+
+    static final int ACC_PUBLIC = 0x0001;
+
+    static final int ACC_FINAL = 0x0010;
+
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int VERSION = 49;
+
+    private final ByteVector constantPool = new ByteVector();
+
+    private final HashMap<String, Integer> constantIndexes = new HashMap<>();
+
+    private int constantCount = 1;
+
+    private final ArrayList<byte[]> methods = new ArrayList<>();
+
+    private final int thisClass;
+
+    private final int superClass;
+
+    ClassFileWriter(String className, String superClassName) {
+        thisClass = classConstant(className);
+        superClass = classConstant(superClassName);
+    }
+
+    private int utf8Constant(String value) {
+        String key = "U" + value;
+        Integer index = constantIndexes.get(key);
+        if (index == null) {
+            constantPool.putByte(1).putUtf8(value);
+            constantIndexes.put(key, index = constantCount++);
+        }
+        return index;
+    }
+
+    int classConstant(String internalName) {
+        String key = "C" + internalName;
+        Integer index = constantIndexes.get(key);
+        if (index == null) {
+            int name = utf8Constant(internalName);
+            constantPool.putByte(7).putShort(name);
+            constantIndexes.put(key, index = constantCount++);
+        }
+        return index;
+    }
+
+    int integerConstant(int value) {
+        String key = "I" + value;
+        Integer index = constantIndexes.get(key);
+        if (index == null) {
+            constantPool.putByte(3).putInt(value);
+            constantIndexes.put(key, index = constantCount++);
+        }
+        return index;
+    }
+
+    private int nameAndTypeConstant(String name, String descriptor) {
+        String key = "T" + name + ' ' + descriptor;
+        Integer index = constantIndexes.get(key);
+        if (index == null) {
+            int nameIndex = utf8Constant(name);
+            int descriptorIndex = utf8Constant(descriptor);
+            constantPool.putByte(12).putShort(nameIndex).putShort(descriptorIndex);
+            constantIndexes.put(key, index = constantCount++);
+        }
+        return index;
+    }
+
+    private int memberConstant(int tag, String owner, String name, String descriptor) {
+        String key = "M" + tag + owner + '.' + name + ' ' + descriptor;
+        Integer index = constantIndexes.get(key);
+        if (index == null) {
+            int ownerIndex = classConstant(owner);
+            int nameAndType = nameAndTypeConstant(name, descriptor);
+            constantPool.putByte(tag).putShort(ownerIndex).putShort(nameAndType);
+            constantIndexes.put(key, index = constantCount++);
+        }
+        return index;
+    }
+
+    int fieldConstant(String owner, String name, String descriptor) {
+        return memberConstant(9, owner, name, descriptor);
+    }
+
+    int methodConstant(String owner, String name, String descriptor) {
+        return memberConstant(10, owner, name, descriptor);
+    }
+
+    void addMethod(int access, String name, String descriptor, int maxStack, int maxLocals, byte[] code) {
+        ByteVector method = new ByteVector();
+        method.putShort(access).putShort(utf8Constant(name)).putShort(utf8Constant(descriptor));
+        // One attribute: Code.
+        method.putShort(1).putShort(utf8Constant("Code")).putInt(12 + code.length);
+        method.putShort(maxStack).putShort(maxLocals).putInt(code.length).putBytes(code, code.length);
+        // No exception table and no attributes.
+        method.putShort(0).putShort(0);
+        methods.add(method.toByteArray());
+    }
+
+    byte[] toByteArray() {
+        ByteVector result = new ByteVector();
+        result.putInt(0xCAFEBABE).putShort(0).putShort(VERSION);
+        result.putShort(constantCount).putBytes(constantPool.data, constantPool.length);
+        result.putShort(ACC_FINAL | ACC_SUPER).putShort(thisClass).putShort(superClass);
+        // No interfaces and no fields.
+        result.putShort(0).putShort(0);
+        result.putShort(methods.size());
+        for (byte[] method : methods) {
+            result.putBytes(method, method.length);
+        }
+        // No attributes.
+        result.putShort(0);
+        return result.toByteArray();
+    }
+
+    static final class ByteVector {
+
+        private byte[] data = new byte[64];
+
+        private int length;
+
+        private void ensureCapacity(int size) {
+            if (length + size > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + size));
+            }
+        }
+
+        ByteVector putByte(int value) {
+            ensureCapacity(1);
+            data[length++] = (byte) value;
+            return this;
+        }
+
+        ByteVector putShort(int value) {
+            ensureCapacity(2);
+            data[length++] = (byte) (value >>> 8);
+            data[length++] = (byte) value;
+            return this;
+        }
+
+        ByteVector putInt(int value) {
+            ensureCapacity(4);
+            data[length++] = (byte) (value >>> 24);
+            data[length++] = (byte) (value >>> 16);
+            data[length++] = (byte) (value >>> 8);
+            data[length++] = (byte) value;
+            return this;
+        }
+
+        ByteVector putBytes(byte[] bytes, int size) {
+            ensureCapacity(size);
+            System.arraycopy(bytes, 0, data, length, size);
+            length += size;
+            return this;
+        }
+
+        ByteVector putUtf8(String value) {
+            // Class names and descriptors generated by Jit are ASCII.
+            int size = value.length();
+            putShort(size);
+            ensureCapacity(size);
+            for (int i = 0; i < size; ++i) {
+                data[length++] = (byte) value.charAt(i);
+            }
+            return this;
+        }
+
+        void setShort(int index, int value) {
+            data[index] = (byte) (value >>> 8);
+            data[index + 1] = (byte) value;
+        }
+
+        int length() {
+            return length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(data, length);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package xiaofei.library.zlang;
+
+/**
+ * Runs the {@link ClosureFunction}s of the libraries whose engine is {@link Engine#CLOSURE} or
+ * {@link Engine#METHOD_HANDLE}.
+ *
+ * The frames are laid out on the stack of {@link ExecutionContext} in the same way as {@link Executor}.
+ * A call of a function run by this engine is a recursive call of {@link #run(ClosureFrame, ClosureFunction)},
+ * except that a tail call reuses the frame and continues in the loop of the caller. Beyond
+ * {@link Executor#MAX_NESTED_CALL_DEPTH} nested calls, the callee is run by {@link Executor#interpretDeep}.
+ */
+
+final class ClosureExecutor {
+
+    /**
+     * Returned by {@link #call} when the callee has taken over the frame of the caller.
+     * It is also returned by a function which has made such a tail call.
+     */
+    static final Object TAIL_CALLED = new Object();
+
+    private ClosureExecutor() {}
+
+    static Object execute(CompiledFunction function, Object[] input) {
+        ExecutionContext context = ExecutionContext.obtain();
+        try {
+            return interpret(context, function, input);
+        } finally {
+            context.release();
+        }
+    }
+
+    static Object interpret(ExecutionContext context, CompiledFunction function, Object[] input) {
+        ClosureFunction closureFunction = ClosureTranslator.translate(function);
+        context.ensureCapacity(1 + function.frameSize);
+        for (int i = 0; i < input.length; ++i) {
+            Tag.unbox(context.stack, context.primitives, i + 1, input[i]);
+        }
+        ClosureFrame frame = new ClosureFrame(context, function.library.getMaxCallDepth());
+        frame.base = 1;
+        frame.callDepth = 1;
+        try {
+            Object result = run(frame, closureFunction);
+            return Tag.box(result, frame.value);
+        } catch (StackOverflowError e) {
+            // The calls are nested on the Java stack, which may be exhausted before the call depth is exceeded.
+            throw new ZlangRuntimeException(ZlangRuntimeError.STACK_OVERFLOW,
+                    "The Java stack overflows at call depth " + frame.callDepth + ".");
+        }
+    }
+
+    /**
+     * Runs the function in the current frame until it returns.
+     *
+     * @return the reference or the tag of the result, whose primitive value is in {@link ClosureFrame#value}
+     */
+    static Object run(ClosureFrame frame, ClosureFunction function) {
+        while (true) {
+            Object result = function.handles != null
+                    ? HandleCompiler.run(frame, function.handles) : run(frame, function.blocks);
+            if (result != TAIL_CALLED) {
+                return result;
+            }
+            function = frame.tailFunction;
+            frame.tailFunction = null;
+        }
+    }
+
+    /**
+     * @return the result, or {@link #TAIL_CALLED} if the function has made a tail call
+     */
+    private static Object run(ClosureFrame frame, ClosureFunction.Block[] blocks) {
+        int index = 0;
+        while (true) {
+            index = blocks[index].execute(frame);
+            if (index < 0) {
+                return index == ClosureFunction.RETURN ? frame.result : TAIL_CALLED;
+            }
+        }
+    }
+
+    /**
+     * Calls the function with the parameters in the slots from first. If isTail is true and the callee can take
+     * over the frame, the parameters are moved to the base of the frame and {@link #TAIL_CALLED} is returned.
+     *
+     * @return the reference or the tag of the result, whose primitive value is in {@link ClosureFrame#value}
+     */
+    static Object call(ClosureFrame frame, Library library, CallSite callSite, int first, int parameterNumber,
+                       boolean isTail) {
+        ExecutionContext context = frame.context;
+        CallSite.Target target = callSite.resolve(library, parameterNumber);
+        JavaFunction javaFunction = target.javaFunction;
+        if (javaFunction != null) {
+            return ClosureNode.unbox(frame, javaFunction.call(box(context, first, parameterNumber)));
+        }
+        CompiledFunction callee = target.function;
+        JitFunction jitFunction = callee.jitFunction;
+        if (jitFunction == null && callee.library.isJitEnabled()) {
+            jitFunction = Jit.onInvocation(callee);
+        }
+        Engine engine = callee.library.getEngine();
+        if (jitFunction != null || engine != Engine.CLOSURE && engine != Engine.METHOD_HANDLE
+                || callee.library.getProfiler() != null || callee.memoCache != null) {
+            Object[] parameters = box(context, first, parameterNumber);
+            return ClosureNode.unbox(frame,
+                    jitFunction != null ? jitFunction.invoke(parameters) : Executor.execute(callee, parameters));
+        }
+        ClosureFunction function = ClosureTranslator.translate(callee);
+        int base = frame.base;
+        if (isTail && callee.returnsValue) {
+            context.ensureCapacity(base + callee.frameSize);
+            System.arraycopy(context.stack, first, context.stack, base, parameterNumber);
+            System.arraycopy(context.primitives, first, context.primitives, base, parameterNumber);
+            frame.tailFunction = function;
+            return TAIL_CALLED;
+        }
+        if (frame.callDepth >= Executor.MAX_NESTED_CALL_DEPTH) {
+            // The calls are nested on the Java stack, so the deep ones run on the stack engine instead.
+            return ClosureNode.unbox(frame,
+                    Executor.interpretDeep(callee, box(context, first, parameterNumber), frame.callDepth + 1));
+        }
+        if (++frame.callDepth > frame.maxCallDepth) {
+            throw new ZlangRuntimeException(ZlangRuntimeError.STACK_OVERFLOW,
+                    "The call depth exceeds " + frame.maxCallDepth + ".");
+        }
+        context.ensureCapacity(first + callee.frameSize);
+        frame.base = first;
+        Object result = run(frame, function);
+        frame.base = base;
+        --frame.callDepth;
+        return result;
+    }
+
+    private static Object[] box(ExecutionContext context, int first, int parameterNumber) {
+        Object[] parameters = new Object[parameterNumber];
+        for (int i = 0; i < parameterNumber; ++i) {
+            parameters[i] = Tag.box(context.stack, context.primitives, first + i);
+        }
+        return parameters;
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package xiaofei.library.zlang;
+
+/**
+ * The state of an execution of {@link ClosureExecutor}.
+ *
+ * The frames are laid out on the stack of {@link ExecutionContext} in the same way as {@link Executor}, while
+ * the return addresses are kept on the Java stack. A {@link ClosureNode} returns the reference or the tag of
+ * its value and leaves the primitive value in {@link #value}, so values are passed between nodes without boxing.
+ */
+
+final class ClosureFrame {
+
+    final ExecutionContext context;
+
+    final int maxCallDepth;
+
+    /**
+     * The index of the first local variable of the current function.
+     */
+    int base;
+
+    int callDepth;
+
+    /**
+     * The primitive value of the last evaluated node.
+     */
+    long value;
+
+    /**
+     * The result of the function which has just returned, whose primitive value is in {@link #value}.
+     */
+    Object result;
+
+    /**
+     * The function which takes over the frame after a tail call.
+     */
+    ClosureFunction tailFunction;
+
+    ClosureFrame(ExecutionContext context, int maxCallDepth) {
+        this.context = context;
+        this.maxCallDepth = maxCallDepth;
+    }
+}
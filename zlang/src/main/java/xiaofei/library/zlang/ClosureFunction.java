@@ -0,0 +1,160 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package xiaofei.library.zlang;
+
+import java.lang.invoke.MethodHandle;
+
+/**
+ * The closure form of a {@link CompiledFunction}, which is what {@link ClosureExecutor} runs.
+ * It is translated from the stack code by {@link ClosureTranslator}.
+ *
+ * The function is a list of basic blocks. A block runs its statements and then its terminator, which returns
+ * the index of the next block, {@link #RETURN} or {@link #TAIL_CALL}. For {@link Engine#METHOD_HANDLE},
+ * each block is also compiled into a method handle by {@link HandleCompiler}.
+ */
+
+final class ClosureFunction {
+
+    static final int RETURN = -1;
+
+    /**
+     * The callee has taken over the frame and is in {@link ClosureFrame#tailFunction}.
+     */
+    static final int TAIL_CALL = -2;
+
+    final CompiledFunction function;
+
+    final Block[] blocks;
+
+    /**
+     * The handles of the blocks, or null if the blocks are evaluated as nodes.
+     */
+    final MethodHandle[] handles;
+
+    ClosureFunction(CompiledFunction function, Block[] blocks, MethodHandle[] handles) {
+        this.function = function;
+        this.blocks = blocks;
+        this.handles = handles;
+    }
+
+    static final class Block {
+
+        final ClosureNode[] statements;
+
+        final Terminator terminator;
+
+        Block(ClosureNode[] statements, Terminator terminator) {
+            this.statements = statements;
+            this.terminator = terminator;
+        }
+
+        int execute(ClosureFrame frame) {
+            for (ClosureNode statement : statements) {
+                statement.evaluate(frame);
+            }
+            return terminator.execute(frame);
+        }
+    }
+
+    abstract static class Terminator {
+
+        /**
+         * @return the index of the next block, {@link #RETURN} or {@link #TAIL_CALL}
+         */
+        abstract int execute(ClosureFrame frame);
+    }
+
+    static final class Jump extends Terminator {
+
+        final int target;
+
+        Jump(int target) {
+            this.target = target;
+        }
+
+        @Override
+        int execute(ClosureFrame frame) {
+            return target;
+        }
+    }
+
+    /**
+     * JPF and JPT, or JPF_SC and JPT_SC whose operand stays in its slot.
+     */
+    static final class Branch extends Terminator {
+
+        final ClosureNode condition;
+
+        final boolean jumpIfTrue;
+
+        final int target;
+
+        final int next;
+
+        Branch(ClosureNode condition, boolean jumpIfTrue, int target, int next) {
+            this.condition = condition;
+            this.jumpIfTrue = jumpIfTrue;
+            this.target = target;
+            this.next = next;
+        }
+
+        @Override
+        int execute(ClosureFrame frame) {
+            Object reference = condition.evaluate(frame);
+            return Tag.isTrue(reference, frame.value) == jumpIfTrue ? target : next;
+        }
+    }
+
+    /**
+     * FUN_RETURN, or VOID_RETURN if the value is null. The result is returned by {@link ClosureExecutor#run}.
+     */
+    static final class Return extends Terminator {
+
+        final ClosureNode value;
+
+        Return(ClosureNode value) {
+            this.value = value;
+        }
+
+        @Override
+        int execute(ClosureFrame frame) {
+            frame.result = value == null ? Executor.NO_RETURN_VALUE : value.evaluate(frame);
+            return RETURN;
+        }
+    }
+
+    static final class TailCall extends Terminator {
+
+        final ClosureNode.Call call;
+
+        TailCall(ClosureNode.Call call) {
+            this.call = call;
+        }
+
+        @Override
+        int execute(ClosureFrame frame) {
+            Object result = call.evaluateTail(frame);
+            if (result == ClosureExecutor.TAIL_CALLED) {
+                return TAIL_CALL;
+            }
+            frame.result = result;
+            return RETURN;
+        }
+    }
+}
@@ -0,0 +1,491 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package xiaofei.library.zlang;
+
+/**
+ * A node of the expression trees built by {@link ClosureTranslator}, which {@link ClosureExecutor} runs
+ * by calling {@link #evaluate(ClosureFrame)} instead of dispatching on opcodes.
+ *
+ * A node returns the reference or the {@link Tag} of its value and leaves the primitive value in
+ * {@link ClosureFrame#value}. A node for a statement returns null. The slots of a frame are the same as
+ * those of {@link Executor}: the local variables are followed by a slot for each depth of the operand stack,
+ * where the operands of calls and array accesses are put.
+ */
+
+abstract class ClosureNode {
+
+    private static final int NEGATIVE = Opr.NEGATIVE.ordinal();
+
+    private static final int PLUS = Opr.PLUS.ordinal();
+
+    private static final int MINUS = Opr.MINUS.ordinal();
+
+    private static final int TIMES = Opr.TIMES.ordinal();
+
+    private static final int LESS = Opr.LESS.ordinal();
+
+    private static final int LESS_EQUAL = Opr.LESS_EQUAL.ordinal();
+
+    private static final int GREATER = Opr.GREATER.ordinal();
+
+    private static final int EQUAL = Opr.EQUAL.ordinal();
+
+    private static final int NOT_EQUAL = Opr.NOT_EQUAL.ordinal();
+
+    private static final int NOT = Opr.NOT.ordinal();
+
+    abstract Object evaluate(ClosureFrame frame);
+
+    static Object unbox(ClosureFrame frame, Object value) {
+        if (value instanceof Integer) {
+            frame.value = (int) value;
+            return Tag.INT;
+        } else if (value instanceof Double) {
+            frame.value = Double.doubleToRawLongBits((double) value);
+            return Tag.DOUBLE;
+        } else if (value instanceof Boolean) {
+            frame.value = (boolean) value ? 1 : 0;
+            return Tag.BOOLEAN;
+        } else if (value instanceof Long) {
+            frame.value = (long) value;
+            return Tag.LONG;
+        } else {
+            return value;
+        }
+    }
+
+    /**
+     * Applies the operator to the values in the same way as {@link Executor#operate(ExecutionContext, int, int)}.
+     */
+    static Object operate(ClosureFrame frame, int opr, Object r1, long p1, Object r2, long p2) {
+        if (opr == EQUAL || opr == NOT_EQUAL) {
+            frame.value = Tag.equal(r1, p1, r2, p2) == (opr == EQUAL) ? 1 : 0;
+            return Tag.BOOLEAN;
+        }
+        Object[] operands = frame.context.operands;
+        operands[0] = Tag.box(r1, p1);
+        operands[1] = Tag.box(r2, p2);
+        return unbox(frame, OprAdapterFactory.getInstance(opr).operate(operands, 0));
+    }
+
+    static Object operate(ClosureFrame frame, int opr, Object reference, long primitive) {
+        Object[] operands = frame.context.operands;
+        operands[0] = Tag.box(reference, primitive);
+        return unbox(frame, OprAdapterFactory.getInstance(opr).operate(operands, 0));
+    }
+
+    static final class Literal extends ClosureNode {
+
+        final Object reference;
+
+        final long primitive;
+
+        Literal(Object value) {
+            Object[] references = new Object[1];
+            long[] primitives = new long[1];
+            Tag.unbox(references, primitives, 0, value);
+            this.reference = references[0];
+            this.primitive = primitives[0];
+        }
+
+        @Override
+        Object evaluate(ClosureFrame frame) {
+            frame.value = primitive;
+            return reference;
+        }
+    }
+
+    /**
+     * Loads a local variable or an operand which has been put into its slot.
+     */
+    static final class Load extends ClosureNode {
+
+        final int slot;
+
+        Load(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        Object evaluate(ClosureFrame frame) {
+            ExecutionContext context = frame.context;
+            int index = frame.base + slot;
+            frame.value = context.primitives[index];
+            return context.stack[index];
+        }
+    }
+
+    static final class Store extends ClosureNode {
+
+        final int slot;
+
+        final ClosureNode value;
+
+        Store(int slot, ClosureNode value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        Object evaluate(ClosureFrame frame) {
+            Object reference = value.evaluate(frame);
+            ExecutionContext context = frame.context;
+            int index = frame.base + slot;
+            context.stack[index] = reference;
+            context.primitives[index] = frame.value;
+            return null;
+        }
+    }
+
+    /**
+     * Evaluates the nodes and puts their values into the slots from the first one.
+     */
+    static void evaluate(ClosureFrame frame, ClosureNode[] nodes, int first) {
+        for (int i = 0; i < nodes.length; ++i) {
+            Object reference = nodes[i].evaluate(frame);
+            // The arrays are obtained again since a call may have grown them.
+            ExecutionContext context = frame.context;
+            context.stack[first + i] = reference;
+            context.primitives[first + i] = frame.value;
+        }
+    }
+
+    static final class ArrayLoad extends ClosureNode {
+
+        final int local;
+
+        final ClosureNode[] indices;
+
+        /**
+         * The slot of the first index, where the element is loaded.
+         */
+        final int slot;
+
+        ArrayLoad(int local, ClosureNode[] indices, int slot) {
+            this.local = local;
+            this.indices = indices;
+            this.slot = slot;
+        }
+
+        @Override
+        Object evaluate(ClosureFrame frame) {
+            int first = frame.base + slot;
+            if (indices.length == 1) {
+                Object reference = indices[0].evaluate(frame);
+                return load(frame, local, first, reference, frame.value);
+            }
+            evaluate(frame, indices, first);
+            return load(frame, local, first, indices.length);
+        }
+    }
+
+    /**
+     * Loads the element of a one-dimensional array at the index, which is not in its slot.
+     */
+    static Object load(ClosureFrame frame, int local, int first, Object reference, long primitive) {
+        int index = Tag.intValue(reference, primitive);
+        ExecutionContext context = frame.context;
+        Object array = context.stack[frame.base + local];
+        if (array instanceof int[]) {
+            frame.value = ((int[]) array)[index];
+            return Tag.INT;
+        } else if (array instanceof double[]) {
+            frame.value = Double.doubleToRawLongBits(((double[]) array)[index]);
+            return Tag.DOUBLE;
+        }
+        ArrayAccess.load(array, index, context.stack, context.primitives, first);
+        frame.value = context.primitives[first];
+        return context.stack[first];
+    }
+
+    /**
+     * Loads the element at the indices in the slots from first.
+     */
+    static Object load(ClosureFrame frame, int local, int first, int dimens) {
+        ExecutionContext context = frame.context;
+        int last = first + dimens - 1;
+        Object array = ArrayAccess.innermost(context.stack[frame.base + local], context.stack, context.primitives,
+                first, last);
+        ArrayAccess.load(array, Tag.intValue(context.stack, context.primitives, last), context.stack,
+                context.primitives, first);
+        frame.value = context.primitives[first];
+        return context.stack[first];
+    }
+
+    static final class ArrayStore extends ClosureNode {
+
+        final int local;
+
+        final ClosureNode[] indices;
+
+        final ClosureNode value;
+
+        /**
+         * The slot of the first index. The value is put into the slot after the last index.
+         */
+        final int slot;
+
+        ArrayStore(int local, ClosureNode[] indices, ClosureNode value, int slot) {
+            this.local = local;
+            this.indices = indices;
+            this.value = value;
+            this.slot = slot;
+        }
+
+        @Override
+        Object evaluate(ClosureFrame frame) {
+            int first = frame.base + slot;
+            evaluate(frame, indices, first);
+            Object reference = value.evaluate(frame);
+            store(frame, local, first, indices.length, reference, frame.value);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the value at the indices in the slots from first.
+     */
+    static void store(ClosureFrame frame, int local, int first, int dimens, Object reference, long primitive) {
+        ExecutionContext context = frame.context;
+        Object[] stack = context.stack;
+        long[] primitives = context.primitives;
+        int last = first + dimens - 1;
+        stack[last + 1] = reference;
+        primitives[last + 1] = primitive;
+        Object array = ArrayAccess.innermost(stack[frame.base + local], stack, primitives, first, last);
+        ArrayAccess.store(array, Tag.intValue(stack, primitives, last), stack, primitives, last + 1);
+    }
+
+    /**
+     * PLUS, MINUS, TIMES or DIVIDE.
+     */
+    static final class Arithmetic extends ClosureNode {
+
+        final int opr;
+
+        final ClosureNode left;
+
+        final ClosureNode right;
+
+        Arithmetic(int opr, ClosureNode left, ClosureNode right) {
+            this.opr = opr;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(ClosureFrame frame) {
+            Object r1 = left.evaluate(frame);
+            long p1 = frame.value;
+            Object r2 = right.evaluate(frame);
+            long p2 = frame.value;
+            if (r1 == Tag.INT && r2 == Tag.INT) {
+                int a = (int) p1;
+                int b = (int) p2;
+                frame.value = opr == PLUS ? a + b : opr == MINUS ? a - b : opr == TIMES ? a * b : a / b;
+                return Tag.INT;
+            } else if (r1 == Tag.DOUBLE && r2 == Tag.DOUBLE) {
+                double a = Double.longBitsToDouble(p1);
+                double b = Double.longBitsToDouble(p2);
+                frame.value = Double.doubleToRawLongBits(
+                        opr == PLUS ? a + b : opr == MINUS ? a - b : opr == TIMES ? a * b : a / b);
+                return Tag.DOUBLE;
+            }
+            return operate(frame, opr, r1, p1, r2, p2);
+        }
+    }
+
+    /**
+     * LESS, LESS_EQUAL, GREATER or GREATER_EQUAL.
+     */
+    static final class Comparison extends ClosureNode {
+
+        final int opr;
+
+        final ClosureNode left;
+
+        final ClosureNode right;
+
+        Comparison(int opr, ClosureNode left, ClosureNode right) {
+            this.opr = opr;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(ClosureFrame frame) {
+            Object r1 = left.evaluate(frame);
+            long p1 = frame.value;
+            Object r2 = right.evaluate(frame);
+            long p2 = frame.value;
+            boolean result;
+            if (r1 == Tag.INT && r2 == Tag.INT) {
+                int a = (int) p1;
+                int b = (int) p2;
+                result = opr == LESS ? a < b : opr == LESS_EQUAL ? a <= b : opr == GREATER ? a > b : a >= b;
+            } else if (r1 == Tag.DOUBLE && r2 == Tag.DOUBLE) {
+                double a = Double.longBitsToDouble(p1);
+                double b = Double.longBitsToDouble(p2);
+                result = opr == LESS ? a < b : opr == LESS_EQUAL ? a <= b : opr == GREATER ? a > b : a >= b;
+            } else {
+                return operate(frame, opr, r1, p1, r2, p2);
+            }
+            frame.value = result ? 1 : 0;
+            return Tag.BOOLEAN;
+        }
+    }
+
+    /**
+     * Any other binary operator.
+     */
+    static final class Binary extends ClosureNode {
+
+        final int opr;
+
+        final ClosureNode left;
+
+        final ClosureNode right;
+
+        Binary(int opr, ClosureNode left, ClosureNode right) {
+            this.opr = opr;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(ClosureFrame frame) {
+            Object r1 = left.evaluate(frame);
+            long p1 = frame.value;
+            Object r2 = right.evaluate(frame);
+            return operate(frame, opr, r1, p1, r2, frame.value);
+        }
+    }
+
+    static final class Unary extends ClosureNode {
+
+        final int opr;
+
+        final ClosureNode operand;
+
+        Unary(int opr, ClosureNode operand) {
+            this.opr = opr;
+            this.operand = operand;
+        }
+
+        @Override
+        Object evaluate(ClosureFrame frame) {
+            Object reference = operand.evaluate(frame);
+            long primitive = frame.value;
+            if (opr == NEGATIVE) {
+                if (reference == Tag.INT) {
+                    frame.value = -(int) primitive;
+                    return Tag.INT;
+                } else if (reference == Tag.DOUBLE) {
+                    frame.value = Double.doubleToRawLongBits(-Double.longBitsToDouble(primitive));
+                    return Tag.DOUBLE;
+                }
+            } else if (opr == NOT && reference == Tag.BOOLEAN) {
+                frame.value = primitive != 0 ? 0 : 1;
+                return Tag.BOOLEAN;
+            }
+            return operate(frame, opr, reference, primitive);
+        }
+    }
+
+    /**
+     * "a && b" or "a || b", which is compiled into JPF_SC or JPT_SC followed by b and the operator.
+     */
+    static final class ShortCircuit extends ClosureNode {
+
+        final int opr;
+
+        final boolean isAnd;
+
+        final ClosureNode left;
+
+        final ClosureNode right;
+
+        ShortCircuit(int opr, ClosureNode left, ClosureNode right) {
+            this.opr = opr;
+            this.isAnd = opr == Opr.AND.ordinal();
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(ClosureFrame frame) {
+            Object r1 = left.evaluate(frame);
+            long p1 = frame.value;
+            if (Tag.isTrue(r1, p1) != isAnd) {
+                frame.value = p1;
+                return r1;
+            }
+            Object r2 = right.evaluate(frame);
+            if (r2 == Tag.BOOLEAN) {
+                return r2;
+            }
+            return operate(frame, opr, r1, p1, r2, frame.value);
+        }
+    }
+
+    /**
+     * FUN or PROC. The parameters are put into the slots from {@link #slot}, where the frame of the callee starts.
+     */
+    static final class Call extends ClosureNode {
+
+        final Library library;
+
+        final CallSite callSite;
+
+        final ClosureNode[] parameters;
+
+        final int slot;
+
+        final boolean isFunction;
+
+        Call(Library library, CallSite callSite, ClosureNode[] parameters, int slot, boolean isFunction) {
+            this.library = library;
+            this.callSite = callSite;
+            this.parameters = parameters;
+            this.slot = slot;
+            this.isFunction = isFunction;
+        }
+
+        @Override
+        Object evaluate(ClosureFrame frame) {
+            int first = frame.base + slot;
+            evaluate(frame, parameters, first);
+            Object result = ClosureExecutor.call(frame, library, callSite, first, parameters.length, false);
+            if (isFunction && result == Executor.NO_RETURN_VALUE) {
+                throw new ZlangRuntimeException(ZlangRuntimeError.NO_RETURN_VALUE);
+            }
+            return result;
+        }
+
+        Object evaluateTail(ClosureFrame frame) {
+            int first = frame.base + slot;
+            evaluate(frame, parameters, first);
+            Object result = ClosureExecutor.call(frame, library, callSite, first, parameters.length, true);
+            if (result == Executor.NO_RETURN_VALUE) {
+                throw new ZlangRuntimeException(ZlangRuntimeError.NO_RETURN_VALUE);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package xiaofei.library.zlang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Translates the stack code of a {@link CompiledFunction} into a {@link ClosureFunction}.
+ *
+ * The expression trees are rebuilt from the stack code with {@link StackAnalysis}: each slot of the operand stack
+ * holds the node which computes its value, and an instruction which consumes the slots builds a new node of them.
+ * The pending nodes are put into their slots before a statement, so that they are evaluated in the same order as
+ * the stack code, and at the end of a basic block, where the next block expects the values in the slots.
+ * A short circuit whose right operand is an expression becomes a single node instead of a branch.
+ */
+
+final class ClosureTranslator {
+
+    private static final int PLUS = Opr.PLUS.ordinal();
+
+    private static final int MINUS = Opr.MINUS.ordinal();
+
+    private static final int TIMES = Opr.TIMES.ordinal();
+
+    private static final int DIVIDE = Opr.DIVIDE.ordinal();
+
+    private static final int LESS = Opr.LESS.ordinal();
+
+    private static final int LESS_EQUAL = Opr.LESS_EQUAL.ordinal();
+
+    private static final int GREATER = Opr.GREATER.ordinal();
+
+    private static final int GREATER_EQUAL = Opr.GREATER_EQUAL.ordinal();
+
+    private static final int AND = Opr.AND.ordinal();
+
+    private static final int OR = Opr.OR.ordinal();
+
+    private final CompiledFunction function;
+
+    private final StackAnalysis analysis;
+
+    private final int locals;
+
+    /**
+     * The generic opcodes of the instructions.
+     */
+    private final int[] opcodes;
+
+    /**
+     * For the JPF_SC or JPT_SC of a short circuit which becomes a node, the index of its AND or OR. Otherwise -1.
+     */
+    private final int[] closers;
+
+    /**
+     * For the AND or OR of a short circuit which becomes a node, the index of its JPF_SC or JPT_SC. Otherwise -1.
+     */
+    private final int[] openers;
+
+    private final ClosureNode[] slots;
+
+    private final ArrayList<ClosureNode> statements = new ArrayList<>();
+
+    private ClosureTranslator(CompiledFunction function) {
+        this.function = function;
+        this.analysis = StackAnalysis.analyze(function);
+        // INT is always the first instruction and reserves the local variables.
+        this.locals = function.operands[0];
+        int length = function.size();
+        this.opcodes = new int[length];
+        for (int i = 0; i < length; ++i) {
+            opcodes[i] = Opcode.generic(function.opcodes[i]);
+        }
+        this.closers = new int[length];
+        this.openers = new int[length];
+        Arrays.fill(closers, -1);
+        Arrays.fill(openers, -1);
+        this.slots = new ClosureNode[analysis.maxDepth];
+    }
+
+    static ClosureFunction translate(CompiledFunction function) {
+        ClosureFunction result = function.closureFunction;
+        if (result == null) {
+            // Translating twice does no harm, so there is no lock.
+            function.closureFunction = result = new ClosureTranslator(function).translate();
+        }
+        return result;
+    }
+
+    private ClosureFunction translate() {
+        int[] operands = function.operands;
+        int length = opcodes.length;
+        // Inner short circuits come first.
+        for (int pc = length - 1; pc >= 0; --pc) {
+            if ((opcodes[pc] == Opcode.JPF_SC || opcodes[pc] == Opcode.JPT_SC) && isFoldable(pc)) {
+                closers[pc] = operands[pc] - 1;
+                openers[operands[pc] - 1] = pc;
+            }
+        }
+        boolean[] leaders = new boolean[length + 1];
+        leaders[0] = true;
+        for (int pc = 0; pc < length; ++pc) {
+            switch (opcodes[pc]) {
+                case Opcode.JPF_SC:
+                case Opcode.JPT_SC:
+                    if (closers[pc] < 0) {
+                        leaders[operands[pc]] = true;
+                        leaders[pc + 1] = true;
+                    }
+                    break;
+                case Opcode.JMP:
+                case Opcode.JPF:
+                case Opcode.JPT:
+                    leaders[operands[pc]] = true;
+                    leaders[pc + 1] = true;
+                    break;
+                case Opcode.TAIL_CALL:
+                case Opcode.FUN_RETURN:
+                case Opcode.VOID_RETURN:
+                    leaders[pc + 1] = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+        int[] blockIndices = new int[length + 1];
+        int blockCount = 0;
+        for (int pc = 0; pc < length; ++pc) {
+            if (leaders[pc]) {
+                blockIndices[pc] = blockCount++;
+            }
+        }
+        ClosureFunction.Block[] blocks = new ClosureFunction.Block[blockCount];
+        for (int pc = 0; pc < length; ++pc) {
+            if (leaders[pc]) {
+                blocks[blockIndices[pc]] = translateBlock(pc, leaders, blockIndices);
+            }
+        }
+        return new ClosureFunction(function, blocks,
+                function.library.getEngine() == Engine.METHOD_HANDLE ? HandleCompiler.compile(blocks) : null);
+    }
+
+    /**
+     * Returns true if the right operand of the short circuit at the specified index only consists of instructions
+     * which build expressions, and no other jump goes into it.
+     */
+    private boolean isFoldable(int pc) {
+        int[] operands = function.operands;
+        int[] depths = analysis.depths;
+        int depth = depths[pc];
+        int closer = operands[pc] - 1;
+        if (depth < 0 || closer <= pc + 1 || opcodes[closer] != Opcode.OPR
+                || operands[closer] != (opcodes[pc] == Opcode.JPF_SC ? AND : OR) || depths[closer] != depth + 1) {
+            return false;
+        }
+        for (int i = pc + 1; i < closer; ++i) {
+            switch (opcodes[i]) {
+                case Opcode.LIT:
+                case Opcode.LOD:
+                case Opcode.ALOD:
+                case Opcode.OPR:
+                case Opcode.FUN:
+                    break;
+                case Opcode.JPF_SC:
+                case Opcode.JPT_SC:
+                    if (closers[i] < 0 || closers[i] >= closer) {
+                        return false;
+                    }
+                    break;
+                default:
+                    return false;
+            }
+            // The left operand stays below the right operand.
+            if (i > pc + 1 && depths[i] <= depth) {
+                return false;
+            }
+        }
+        for (int i = 0; i < opcodes.length; ++i) {
+            if (i >= pc && i < closer) {
+                continue;
+            }
+            switch (opcodes[i]) {
+                case Opcode.JMP:
+                case Opcode.JPF:
+                case Opcode.JPT:
+                case Opcode.JPF_SC:
+                case Opcode.JPT_SC:
+                    if (operands[i] > pc && operands[i] <= closer) {
+                        return false;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return true;
+    }
+
+    private ClosureFunction.Block translateBlock(int start, boolean[] leaders, int[] blockIndices) {
+        int[] operands = function.operands;
+        Object[] constants = function.constants;
+        int[] depths = analysis.depths;
+        int[] counts = analysis.counts;
+        statements.clear();
+        if (depths[start] < 0) {
+            return new ClosureFunction.Block(new ClosureNode[0], new ClosureFunction.Return(null));
+        }
+        for (int i = 0; i < depths[start]; ++i) {
+            slots[i] = new ClosureNode.Load(locals + i);
+        }
+        ClosureFunction.Terminator terminator = null;
+        int pc = start;
+        while (terminator == null) {
+            int depth = depths[pc];
+            int operand = operands[pc];
+            switch (opcodes[pc]) {
+                case Opcode.INT:
+                    break;
+                case Opcode.LIT:
+                    slots[depth] = new ClosureNode.Literal(constants[operand]);
+                    break;
+                case Opcode.LOD:
+                    slots[depth] = new ClosureNode.Load(operand);
+                    break;
+                case Opcode.STO: {
+                    ClosureNode value = slots[depth - 1];
+                    spill(depth - 1, false);
+                    statements.add(new ClosureNode.Store(operand, value));
+                    break;
+                }
+                case Opcode.ALOD: {
+                    int first = depth - 1 - counts[pc];
+                    ClosureNode[] indices = Arrays.copyOfRange(slots, first, depth - 1);
+                    slots[first] = new ClosureNode.ArrayLoad(operand, indices, locals + first);
+                    break;
+                }
+                case Opcode.ASTO: {
+                    int first = depth - 2 - counts[pc];
+                    ClosureNode[] indices = Arrays.copyOfRange(slots, first, depth - 2);
+                    ClosureNode value = slots[depth - 1];
+                    spill(first, false);
+                    statements.add(new ClosureNode.ArrayStore(operand, indices, value, locals + first));
+                    break;
+                }
+                case Opcode.OPR:
+                    if (openers[pc] >= 0) {
+                        slots[depth - 2] = new ClosureNode.ShortCircuit(operand, slots[depth - 2], slots[depth - 1]);
+                    } else if (OprAdapterFactory.getInstance(operand).getOperandNumber() == 2) {
+                        slots[depth - 2] = operate(operand, slots[depth - 2], slots[depth - 1]);
+                    } else {
+                        slots[depth - 1] = new ClosureNode.Unary(operand, slots[depth - 1]);
+                    }
+                    break;
+                case Opcode.JMP:
+                    spill(depth, true);
+                    terminator = new ClosureFunction.Jump(blockIndices[operand]);
+                    break;
+                case Opcode.JPF:
+                case Opcode.JPT: {
+                    ClosureNode condition = slots[depth - 1];
+                    spill(depth - 1, true);
+                    terminator = new ClosureFunction.Branch(condition, opcodes[pc] == Opcode.JPT,
+                            blockIndices[operand], blockIndices[pc + 1]);
+                    break;
+                }
+                case Opcode.JPF_SC:
+                case Opcode.JPT_SC:
+                    if (closers[pc] < 0) {
+                        // The operand stays on the stack for both successors.
+                        spill(depth, true);
+                        terminator = new ClosureFunction.Branch(new ClosureNode.Load(locals + depth - 1),
+                                opcodes[pc] == Opcode.JPT_SC, blockIndices[operand], blockIndices[pc + 1]);
+                    }
+                    break;
+                case Opcode.FUN:
+                case Opcode.PROC:
+                case Opcode.TAIL_CALL: {
+                    int first = depth - 1 - counts[pc];
+                    ClosureNode.Call call = new ClosureNode.Call(function.library, (CallSite) constants[operand],
+                            Arrays.copyOfRange(slots, first, depth - 1), locals + first,
+                            opcodes[pc] != Opcode.PROC);
+                    if (opcodes[pc] == Opcode.FUN) {
+                        slots[first] = call;
+                    } else {
+                        spill(first, false);
+                        if (opcodes[pc] == Opcode.PROC) {
+                            statements.add(call);
+                        } else {
+                            terminator = new ClosureFunction.TailCall(call);
+                        }
+                    }
+                    break;
+                }
+                case Opcode.FUN_RETURN: {
+                    ClosureNode value = slots[depth - 1];
+                    spill(depth - 1, false);
+                    terminator = new ClosureFunction.Return(value);
+                    break;
+                }
+                case Opcode.VOID_RETURN:
+                    spill(depth, false);
+                    terminator = new ClosureFunction.Return(null);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode " + Opcode.getName(opcodes[pc]) + " at " + pc);
+            }
+            ++pc;
+            if (terminator == null && leaders[pc]) {
+                spill(depths[pc], true);
+                terminator = new ClosureFunction.Jump(blockIndices[pc]);
+            }
+        }
+        return new ClosureFunction.Block(statements.toArray(new ClosureNode[statements.size()]), terminator);
+    }
+
+    private static ClosureNode operate(int opr, ClosureNode left, ClosureNode right) {
+        if (opr == PLUS || opr == MINUS || opr == TIMES || opr == DIVIDE) {
+            return new ClosureNode.Arithmetic(opr, left, right);
+        } else if (opr == LESS || opr == LESS_EQUAL || opr == GREATER || opr == GREATER_EQUAL) {
+            return new ClosureNode.Comparison(opr, left, right);
+        } else {
+            return new ClosureNode.Binary(opr, left, right);
+        }
+    }
+
+    /**
+     * Puts the values of the pending nodes below the specified depth into their slots. Literals are left pending
+     * unless all is true, which is needed at the end of a block.
+     */
+    private void spill(int depth, boolean all) {
+        for (int i = 0; i < depth; ++i) {
+            ClosureNode node = slots[i];
+            if (node instanceof ClosureNode.Load && ((ClosureNode.Load) node).slot == locals + i
+                    || !all && node instanceof ClosureNode.Literal) {
+                continue;
+            }
+            statements.add(new ClosureNode.Store(locals + i, node));
+            slots[i] = new ClosureNode.Load(locals + i);
+        }
+    }
+}
@@ -0,0 +1,452 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Evaluates a function over columns of arguments, see {@link Library#executeColumns(String, Object[], double[])}.
+ *
+ * If the code of the function before its first return only loads, stores and does arithmetic on numbers,
+ * it is translated into operations on whole columns. The operations run chunk by chunk as tight loops over
+ * primitive arrays. Otherwise, e.g. if the function calls another function, branches or mixes ints and doubles,
+ * the function is interpreted once for each row.
+ */
+
+final class ColumnEvaluator {
+
+    private static final int CHUNK_SIZE = 1024;
+
+    private static final int ADD = 0;
+
+    private static final int SUB = 1;
+
+    private static final int MUL = 2;
+
+    private static final int DIV = 3;
+
+    private static final int NEG = 4;
+
+    private static final int NEGATIVE = Opr.NEGATIVE.ordinal();
+
+    private static final int PLUS = Opr.PLUS.ordinal();
+
+    private static final int MINUS = Opr.MINUS.ordinal();
+
+    private static final int TIMES = Opr.TIMES.ordinal();
+
+    private static final int DIVIDE = Opr.DIVIDE.ordinal();
+
+    /**
+     * The first registers are the columns. A value is a register, or ~index of a constant.
+     */
+    private final ArrayList<Object> registerTags = new ArrayList<>();
+
+    private final ArrayList<Object> constants = new ArrayList<>();
+
+    /**
+     * {op, destination, first operand, second operand}, where the operands are values.
+     */
+    private final ArrayList<int[]> operations = new ArrayList<>();
+
+    /**
+     * The registers holding a constant, which are filled before the first chunk.
+     */
+    private final ArrayList<int[]> fills = new ArrayList<>();
+
+    private int result;
+
+    private ColumnEvaluator() {}
+
+    static void evaluate(CompiledFunction function, Object[] columns, Object result) {
+        int rows = result instanceof int[] ? ((int[]) result).length : ((double[]) result).length;
+        for (Object column : columns) {
+            int length;
+            if (column instanceof int[]) {
+                length = ((int[]) column).length;
+            } else if (column instanceof double[]) {
+                length = ((double[]) column).length;
+            } else {
+                throw new IllegalArgumentException("A column should be an int[] or a double[].");
+            }
+            if (length != rows) {
+                throw new IllegalArgumentException("The columns and the result should have the same length.");
+            }
+        }
+        ColumnEvaluator evaluator = new ColumnEvaluator();
+        if (evaluator.translate(function, columns, result instanceof int[])) {
+            evaluator.run(columns, result, rows);
+        } else {
+            interpret(function, columns, result, rows);
+        }
+    }
+
+    private static void interpret(CompiledFunction function, Object[] columns, Object result, int rows) {
+        ExecutionContext context = ExecutionContext.obtain();
+        try {
+            Object[] input = new Object[columns.length];
+            for (int row = 0; row < rows; ++row) {
+                for (int i = 0; i < columns.length; ++i) {
+                    if (columns[i] instanceof int[]) {
+                        input[i] = ((int[]) columns[i])[row];
+                    } else {
+                        input[i] = ((double[]) columns[i])[row];
+                    }
+                }
+                Object value = Executor.execute(context, function, input);
+                if (result instanceof int[]) {
+                    ((int[]) result)[row] = (Integer) value;
+                } else {
+                    ((double[]) result)[row] = ((Number) value).doubleValue();
+                }
+            }
+        } finally {
+            context.release();
+        }
+    }
+
+    private Object getTag(int value) {
+        return value >= 0 ? registerTags.get(value) : constants.get(~value) instanceof Integer ? Tag.INT : Tag.DOUBLE;
+    }
+
+    private int newRegister(Object tag) {
+        registerTags.add(tag);
+        return registerTags.size() - 1;
+    }
+
+    private int newConstant(Object constant) {
+        constants.add(constant);
+        return ~(constants.size() - 1);
+    }
+
+    /**
+     * Interprets the code symbolically up to the first return.
+     *
+     * @return false if the code cannot be translated.
+     */
+    private boolean translate(CompiledFunction function, Object[] columns, boolean intResult) {
+        int[] locals = new int[function.frameSize];
+        boolean[] defined = new boolean[function.frameSize];
+        for (int i = 0; i < columns.length; ++i) {
+            locals[i] = newRegister(columns[i] instanceof int[] ? Tag.INT : Tag.DOUBLE);
+            defined[i] = true;
+        }
+        int[] stack = new int[function.opcodes.length];
+        int top = -1;
+        int[] opcodes = function.opcodes;
+        int[] operands = function.operands;
+        for (int pos = 0; pos < opcodes.length; ++pos) {
+            int operand = operands[pos];
+            switch (Opcode.generic(opcodes[pos])) {
+                case Opcode.INT:
+                    break;
+                case Opcode.LIT: {
+                    Object constant = function.constants[operand];
+                    if (!(constant instanceof Integer || constant instanceof Double)) {
+                        return false;
+                    }
+                    stack[++top] = newConstant(constant);
+                    break;
+                }
+                case Opcode.LOD:
+                    if (!defined[operand]) {
+                        return false;
+                    }
+                    stack[++top] = locals[operand];
+                    break;
+                case Opcode.STO:
+                    locals[operand] = stack[top--];
+                    defined[operand] = true;
+                    break;
+                case Opcode.OPR:
+                    if (operand == NEGATIVE) {
+                        stack[top] = negate(stack[top]);
+                    } else {
+                        int value = operate(operand, stack[top - 1], stack[top]);
+                        if (value == Integer.MIN_VALUE) {
+                            return false;
+                        }
+                        stack[--top] = value;
+                    }
+                    break;
+                case Opcode.FUN_RETURN:
+                    result = stack[top];
+                    return getTag(result) == Tag.INT || !intResult;
+                default:
+                    return false;
+            }
+        }
+        return false;
+    }
+
+    private int negate(int value) {
+        Object tag = getTag(value);
+        if (value < 0) {
+            Object constant = constants.get(~value);
+            return newConstant(tag == Tag.INT ? (Object) (-(Integer) constant) : (Object) (-(Double) constant));
+        }
+        int register = newRegister(tag);
+        operations.add(new int[]{NEG, register, value, 0});
+        return register;
+    }
+
+    /**
+     * @return the value of the result, or {@link Integer#MIN_VALUE} if the operation cannot be translated.
+     */
+    private int operate(int opr, int value1, int value2) {
+        int op;
+        if (opr == PLUS) {
+            op = ADD;
+        } else if (opr == MINUS) {
+            op = SUB;
+        } else if (opr == TIMES) {
+            op = MUL;
+        } else if (opr == DIVIDE) {
+            op = DIV;
+        } else {
+            return Integer.MIN_VALUE;
+        }
+        Object tag = getTag(value1);
+        if (tag != getTag(value2)) {
+            // The interpreter throws an exception.
+            return Integer.MIN_VALUE;
+        }
+        if (value1 < 0 && value2 < 0) {
+            Object constant1 = constants.get(~value1);
+            Object constant2 = constants.get(~value2);
+            if (tag == Tag.INT) {
+                int int1 = (Integer) constant1;
+                int int2 = (Integer) constant2;
+                if (op == DIV && int2 == 0) {
+                    return Integer.MIN_VALUE;
+                }
+                return newConstant(op == ADD ? int1 + int2 : op == SUB ? int1 - int2
+                        : op == MUL ? int1 * int2 : int1 / int2);
+            } else {
+                double double1 = (Double) constant1;
+                double double2 = (Double) constant2;
+                return newConstant(op == ADD ? double1 + double2 : op == SUB ? double1 - double2
+                        : op == MUL ? double1 * double2 : double1 / double2);
+            }
+        }
+        if (value1 < 0) {
+            if (op == ADD || op == MUL) {
+                int tmp = value1;
+                value1 = value2;
+                value2 = tmp;
+            } else {
+                int register = newRegister(tag);
+                fills.add(new int[]{register, value1});
+                value1 = register;
+            }
+        }
+        int register = newRegister(tag);
+        operations.add(new int[]{op, register, value1, value2});
+        return register;
+    }
+
+    private void run(Object[] columns, Object resultArray, int rows) {
+        int registerCount = registerTags.size();
+        Object[] arrays = new Object[registerCount];
+        int[] bases = new int[registerCount];
+        System.arraycopy(columns, 0, arrays, 0, columns.length);
+        for (int i = columns.length; i < registerCount; ++i) {
+            arrays[i] = registerTags.get(i) == Tag.INT ? new int[CHUNK_SIZE] : new double[CHUNK_SIZE];
+        }
+        for (int[] fill : fills) {
+            Object constant = constants.get(~fill[1]);
+            if (constant instanceof Integer) {
+                Arrays.fill((int[]) arrays[fill[0]], (Integer) constant);
+            } else {
+                Arrays.fill((double[]) arrays[fill[0]], (Double) constant);
+            }
+        }
+        for (int start = 0; start < rows; start += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, rows - start);
+            for (int i = 0; i < columns.length; ++i) {
+                bases[i] = start;
+            }
+            for (int[] operation : operations) {
+                int op = operation[0];
+                int value1 = operation[2];
+                int value2 = operation[3];
+                if (registerTags.get(operation[1]) == Tag.INT) {
+                    int[] destination = (int[]) arrays[operation[1]];
+                    int[] array1 = (int[]) arrays[value1];
+                    if (op == NEG) {
+                        negate(destination, array1, bases[value1], length);
+                    } else if (value2 >= 0) {
+                        operate(op, destination, array1, bases[value1], (int[]) arrays[value2], bases[value2], length);
+                    } else {
+                        operate(op, destination, array1, bases[value1], (Integer) constants.get(~value2), length);
+                    }
+                } else {
+                    double[] destination = (double[]) arrays[operation[1]];
+                    double[] array1 = (double[]) arrays[value1];
+                    if (op == NEG) {
+                        negate(destination, array1, bases[value1], length);
+                    } else if (value2 >= 0) {
+                        operate(op, destination, array1, bases[value1],
+                                (double[]) arrays[value2], bases[value2], length);
+                    } else {
+                        operate(op, destination, array1, bases[value1], (Double) constants.get(~value2), length);
+                    }
+                }
+            }
+            store(arrays, bases, resultArray, start, length);
+        }
+    }
+
+    private void store(Object[] arrays, int[] bases, Object resultArray, int start, int length) {
+        if (result < 0) {
+            Object constant = constants.get(~result);
+            if (resultArray instanceof int[]) {
+                Arrays.fill((int[]) resultArray, start, start + length, (Integer) constant);
+            } else {
+                Arrays.fill((double[]) resultArray, start, start + length, ((Number) constant).doubleValue());
+            }
+        } else if (registerTags.get(result) == Tag.INT && resultArray instanceof double[]) {
+            int[] source = (int[]) arrays[result];
+            double[] destination = (double[]) resultArray;
+            int base = bases[result];
+            for (int i = 0; i < length; ++i) {
+                destination[start + i] = source[base + i];
+            }
+        } else {
+            System.arraycopy(arrays[result], bases[result], resultArray, start, length);
+        }
+    }
+
+    private static void negate(int[] destination, int[] source, int base, int length) {
+        for (int i = 0; i < length; ++i) {
+            destination[i] = -source[base + i];
+        }
+    }
+
+    private static void negate(double[] destination, double[] source, int base, int length) {
+        for (int i = 0; i < length; ++i) {
+            destination[i] = -source[base + i];
+        }
+    }
+
+    private static void operate(int op, int[] destination, int[] array1, int base1, int[] array2, int base2,
+                                int length) {
+        switch (op) {
+            case ADD:
+                for (int i = 0; i < length; ++i) {
+                    destination[i] = array1[base1 + i] + array2[base2 + i];
+                }
+                break;
+            case SUB:
+                for (int i = 0; i < length; ++i) {
+                    destination[i] = array1[base1 + i] - array2[base2 + i];
+                }
+                break;
+            case MUL:
+                for (int i = 0; i < length; ++i) {
+                    destination[i] = array1[base1 + i] * array2[base2 + i];
+                }
+                break;
+            default:
+                for (int i = 0; i < length; ++i) {
+                    destination[i] = array1[base1 + i] / array2[base2 + i];
+                }
+                break;
+        }
+    }
+
+    private static void operate(int op, int[] destination, int[] array1, int base1, int constant, int length) {
+        switch (op) {
+            case ADD:
+                for (int i = 0; i < length; ++i) {
+                    destination[i] = array1[base1 + i] + constant;
+                }
+                break;
+            case SUB:
+                for (int i = 0; i < length; ++i) {
+                    destination[i] = array1[base1 + i] - constant;
+                }
+                break;
+            case MUL:
+                for (int i = 0; i < length; ++i) {
+                    destination[i] = array1[base1 + i] * constant;
+                }
+                break;
+            default:
+                for (int i = 0; i < length; ++i) {
+                    destination[i] = array1[base1 + i] / constant;
+                }
+                break;
+        }
+    }
+
+    private static void operate(int op, double[] destination, double[] array1, int base1,
+                                double[] array2, int base2, int length) {
+        switch (op) {
+            case ADD:
+                for (int i = 0; i < length; ++i) {
+                    destination[i] = array1[base1 + i] + array2[base2 + i];
+                }
+                break;
+            case SUB:
+                for (int i = 0; i < length; ++i) {
+                    destination[i] = array1[base1 + i] - array2[base2 + i];
+                }
+                break;
+            case MUL:
+                for (int i = 0; i < length; ++i) {
+                    destination[i] = array1[base1 + i] * array2[base2 + i];
+                }
+                break;
+            default:
+                for (int i = 0; i < length; ++i) {
+                    destination[i] = array1[base1 + i] / array2[base2 + i];
+                }
+                break;
+        }
+    }
+
+    private static void operate(int op, double[] destination, double[] array1, int base1, double constant,
+                                int length) {
+        switch (op) {
+            case ADD:
+                for (int i = 0; i < length; ++i) {
+                    destination[i] = array1[base1 + i] + constant;
+                }
+                break;
+            case SUB:
+                for (int i = 0; i < length; ++i) {
+                    destination[i] = array1[base1 + i] - constant;
+                }
+                break;
+            case MUL:
+                for (int i = 0; i < length; ++i) {
+                    destination[i] = array1[base1 + i] * constant;
+                }
+                break;
+            default:
+                for (int i = 0; i < length; ++i) {
+                    destination[i] = array1[base1 + i] / constant;
+                }
+                break;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package xiaofei.library.zlang;
+
+/**
+ * The frozen form of a compiled function, which is what {@link Executor} runs.
+ *
+ * Each instruction is stored as an opcode in {@link #opcodes} and an int operand in {@link #operands}.
+ * Literals and {@link CallSite}s are stored in {@link #constants} and the operand is the index of the constant.
+ * Operators are stored as the ordinal of {@link Opr}. Other operands are stored as they are.
+ *
+ * The opcodes of OPR instructions are rewritten by {@link Executor} at runtime, see {@link Opcode#quicken}.
+ */
+
+final class CompiledFunction {
+
+    final Library library;
+
+    final String functionName;
+
+    final int parameterNumber;
+
+    final int[] opcodes;
+
+    final int[] operands;
+
+    final Object[] constants;
+
+    /**
+     * The number of stack slots used by the local variables and the operands of this function.
+     */
+    final int frameSize;
+
+    /**
+     * Whether no VOID_RETURN is reachable, in which case a TAIL_CALL of this function can reuse the frame.
+     */
+    final boolean returnsValue;
+
+    /**
+     * The number of invocations and backward jumps, which decides when {@link Jit} compiles this function.
+     * It is not synchronized since an approximate count is enough.
+     */
+    int hotness;
+
+    /**
+     * Non-null once {@link Jit} has compiled this function.
+     */
+    volatile JitFunction jitFunction;
+
+    boolean jitFailed;
+
+    /**
+     * Non-null if the results of this function are cached, see {@link Library.Builder#setMemoized}.
+     * It is set when the library is built.
+     */
+    MemoCache memoCache;
+
+    /**
+     * The register form used by {@link RegisterExecutor}, which is translated on the first execution.
+     */
+    volatile RegisterFunction registerFunction;
+
+    /**
+     * The closure form used by {@link ClosureExecutor}, which is translated on the first execution.
+     */
+    volatile ClosureFunction closureFunction;
+
+    CompiledFunction(Library library, String functionName, int parameterNumber,
+                     int[] opcodes, int[] operands, Object[] constants, int frameSize, boolean returnsValue) {
+        this.library = library;
+        this.functionName = functionName;
+        this.parameterNumber = parameterNumber;
+        this.opcodes = opcodes;
+        this.operands = operands;
+        this.constants = constants;
+        this.frameSize = frameSize;
+        this.returnsValue = returnsValue;
+    }
+
+    int size() {
+        return opcodes.length;
+    }
+
+    /**
+     * Returns the operand of the instruction at the specified index as it was generated by {@link Compiler}.
+     */
+    Object getOperand(int index) {
+        switch (Opcode.generic(opcodes[index])) {
+            case Opcode.LIT:
+                return constants[operands[index]];
+            case Opcode.FUN:
+            case Opcode.PROC:
+            case Opcode.TAIL_CALL:
+                return ((CallSite) constants[operands[index]]).functionName;
+            case Opcode.OPR:
+                return Opr.values()[operands[index]];
+            default:
+                return operands[index];
+        }
+    }
+}
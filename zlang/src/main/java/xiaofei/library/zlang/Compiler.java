@@ -40,29 +40,66 @@ import java.util.Map;
 
 class Compiler {
 
-    private static final HashSet<Character> SPACE_CHARS = new HashSet<Character>() {
-        {
-            add(' ');
-            add('\t');
-            add('\n');
-        }
-    };
+    private static final int SPACE = 1;
 
-    private static final HashMap<String, Symbol> RESERVED_WORDS_SYMBOLS = new HashMap<String, Symbol>() {
-        {
-            put("END", Symbol.END);
-            put("function", Symbol.FUNCTION);
-            put("if", Symbol.IF);
-            put("else", Symbol.ELSE);
-            put("while", Symbol.WHILE);
-            put("for", Symbol.FOR);
-            put("to", Symbol.TO);
-            put("step", Symbol.STEP);
-            put("break", Symbol.BREAK);
-            put("continue",Symbol.CONTINUE);
-            put("return", Symbol.RETURN);
+    private static final int LETTER = 2;
+
+    private static final int DIGIT = 4;
+
+    /**
+     * The classes of the ASCII characters. Other characters belong to no class.
+     */
+    private static final byte[] CHAR_CLASSES = new byte[128];
+
+    /**
+     * The keywords and the literals true, false and null, indexed by {@link #keywordHash(char[], int, int)},
+     * which has no collision among them.
+     */
+    private static final String[] KEYWORDS = new String[32];
+
+    private static final Symbol[] KEYWORD_SYMBOLS = new Symbol[32];
+
+    private static final Object[] KEYWORD_OBJECTS = new Object[32];
+
+    private static final Symbol[] CHARACTER_SYMBOLS = new Symbol[128];
+
+    static {
+        CHAR_CLASSES[' '] = CHAR_CLASSES['\t'] = CHAR_CLASSES['\n'] = SPACE;
+        CHAR_CLASSES['_'] = LETTER;
+        for (char ch = 'a'; ch <= 'z'; ++ch) {
+            CHAR_CLASSES[ch] = LETTER;
+            CHAR_CLASSES[Character.toUpperCase(ch)] = LETTER;
         }
-    };
+        for (char ch = '0'; ch <= '9'; ++ch) {
+            CHAR_CLASSES[ch] = DIGIT;
+        }
+        addKeyword("END", Symbol.END);
+        addKeyword("function", Symbol.FUNCTION);
+        addKeyword("if", Symbol.IF);
+        addKeyword("else", Symbol.ELSE);
+        addKeyword("while", Symbol.WHILE);
+        addKeyword("for", Symbol.FOR);
+        addKeyword("to", Symbol.TO);
+        addKeyword("step", Symbol.STEP);
+        addKeyword("break", Symbol.BREAK);
+        addKeyword("continue", Symbol.CONTINUE);
+        addKeyword("return", Symbol.RETURN);
+        addKeyword("true", Symbol.BOOLEAN, true);
+        addKeyword("false", Symbol.BOOLEAN, false);
+        addKeyword("null", Symbol.NULL, null);
+        CHARACTER_SYMBOLS[','] = Symbol.COMMA;
+        CHARACTER_SYMBOLS[';'] = Symbol.SEMICOLON;
+        CHARACTER_SYMBOLS['('] = Symbol.LEFT_PARENTHESIS;
+        CHARACTER_SYMBOLS[')'] = Symbol.RIGHT_PARENTHESIS;
+        CHARACTER_SYMBOLS['{'] = Symbol.LEFT_BRACE;
+        CHARACTER_SYMBOLS['}'] = Symbol.RIGHT_BRACE;
+        CHARACTER_SYMBOLS['['] = Symbol.LEFT_BRACKET;
+        CHARACTER_SYMBOLS[']'] = Symbol.RIGHT_BRACKET;
+        CHARACTER_SYMBOLS['+'] = Symbol.PLUS;
+        CHARACTER_SYMBOLS['-'] = Symbol.MINUS;
+        CHARACTER_SYMBOLS['*'] = Symbol.TIMES;
+        CHARACTER_SYMBOLS['/'] = Symbol.DIVIDE;
+    }
 
     private static final HashSet<Symbol> LEADING_WORDS = new HashSet<Symbol>() {
         {
@@ -75,23 +112,6 @@ class Compiler {
         }
     };
 
-    private static final HashMap<Character, Symbol> CHARACTER_SYMBOLS = new HashMap<Character, Symbol>() {
-        {
-            put(',', Symbol.COMMA);
-            put(';', Symbol.SEMICOLON);
-            put('(', Symbol.LEFT_PARENTHESIS);
-            put(')', Symbol.RIGHT_PARENTHESIS);
-            put('{', Symbol.LEFT_BRACE);
-            put('}', Symbol.RIGHT_BRACE);
-            put('[', Symbol.LEFT_BRACKET);
-            put(']', Symbol.RIGHT_BRACKET);
-            put('+', Symbol.PLUS);
-            put('-', Symbol.MINUS);
-            put('*', Symbol.TIMES);
-            put('/', Symbol.DIVIDE);
-        }
-    };
-
     private int pos = -1;
 
     private int lineNumber = 1;
@@ -124,26 +144,105 @@ class Compiler {
 
     private String program;
 
+    /**
+     * The program followed by "END ", which is scanned.
+     */
+    private char[] chars;
+
+    /**
+     * The identifiers met so far, in an open addressing table, so that each identifier is created once.
+     */
+    private String[] identifiers = new String[64];
+
+    private int identifierCount;
+
     private ArrayList<Code> codes;
 
+    private String functionName;
+
+    private int parallelLoopNumber;
+
+    private boolean inParallelLoop;
+
     Compiler(Library library) {
         program = library.getProgram();
         this.library = library;
     }
 
-    private static boolean isAlpha(char ch) {
-        return ch == '_' || 'a' <= ch && ch <= 'z' || 'A' <= ch && ch <= 'Z';
+    private static void addKeyword(String keyword, Symbol symbol) {
+        addKeyword(keyword, symbol, symbol);
+    }
+
+    private static void addKeyword(String keyword, Symbol symbol, Object object) {
+        int hash = keywordHash(keyword.toCharArray(), 0, keyword.length());
+        if (KEYWORDS[hash] != null) {
+            throw new IllegalStateException("Keywords " + KEYWORDS[hash] + " and " + keyword + " collide.");
+        }
+        KEYWORDS[hash] = keyword;
+        KEYWORD_SYMBOLS[hash] = symbol;
+        KEYWORD_OBJECTS[hash] = object;
+    }
+
+    private static int keywordHash(char[] chars, int start, int length) {
+        return (chars[start] * 3 + chars[start + length - 1] * 11 + length) & 31;
+    }
+
+    private static int charClass(char ch) {
+        return ch < 128 ? CHAR_CLASSES[ch] : 0;
     }
 
     private static boolean isDigit(char ch) {
         return '0' <= ch && ch <= '9';
     }
 
+    private static boolean matches(String string, char[] chars, int start, int length) {
+        if (string.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; ++i) {
+            if (string.charAt(i) != chars[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the identifier in the span, whose hash code is the specified one.
+     */
+    private String identifier(int start, int length, int hash) {
+        int mask = identifiers.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            String identifier = identifiers[i];
+            if (identifier == null) {
+                identifier = new String(chars, start, length);
+                identifiers[i] = identifier;
+                if (++identifierCount * 2 > identifiers.length) {
+                    String[] oldIdentifiers = identifiers;
+                    identifiers = new String[oldIdentifiers.length * 2];
+                    mask = identifiers.length - 1;
+                    for (String oldIdentifier : oldIdentifiers) {
+                        if (oldIdentifier != null) {
+                            int j = oldIdentifier.hashCode() & mask;
+                            while (identifiers[j] != null) {
+                                j = (j + 1) & mask;
+                            }
+                            identifiers[j] = oldIdentifier;
+                        }
+                    }
+                }
+                return identifier;
+            } else if (identifier.hashCode() == hash && matches(identifier, chars, start, length)) {
+                return identifier;
+            }
+        }
+    }
+
     private void moveToNextChar() {
-        if (++pos == program.length()) {
+        if (++pos == chars.length) {
             throw new CompileException(CompileError.INCOMPLETE_PROGRAM,  linePos == 0 ? lineNumber - 1 : lineNumber, previousLinePos, "Program incomplete!");
         }
-		nextChar = program.charAt(pos);
+		nextChar = chars[pos];
 //        if (nextChar == '\r') {
 //
 //        }
@@ -156,10 +255,10 @@ class Compiler {
     }
 
     private void moveToNextSymbol() {
-        while (SPACE_CHARS.contains(nextChar)) {
+        while (charClass(nextChar) == SPACE) {
             moveToNextChar();
         }
-        while (nextChar == '/' && program.charAt(pos + 1) == '*') {
+        while (nextChar == '/' && chars[pos + 1] == '*') {
             moveToNextChar();
             moveToNextChar();
             char tmp;
@@ -168,49 +267,42 @@ class Compiler {
                 moveToNextChar();
             } while (tmp != '*' || nextChar != '/');
             moveToNextChar();
-            while (SPACE_CHARS.contains(nextChar)) {
+            while (charClass(nextChar) == SPACE) {
                 moveToNextChar();
             }
         }
 //        previousPos = pos;
         previousLinePos = linePos;
-        if (isAlpha(nextChar)) {
-            String id = "";
+        if (charClass(nextChar) == LETTER) {
+            int start = pos;
+            int hash = 0;
             do {
-                id = id + nextChar;
+                hash = 31 * hash + nextChar;
                 moveToNextChar();
-            } while (isAlpha(nextChar) || isDigit(nextChar));
-            if (RESERVED_WORDS_SYMBOLS.containsKey(id)) {
-                nextSymbol = RESERVED_WORDS_SYMBOLS.get(id);
-                nextObject = nextSymbol;
-            } else if (id.equals("true") || id.equals("false")) {
-                nextSymbol = Symbol.BOOLEAN;
-                nextObject = id.equals("true");
-            } else if (id.equals("null")) {
-                nextSymbol = Symbol.NULL;
-                nextObject = null;
+            } while ((charClass(nextChar) & (LETTER | DIGIT)) != 0);
+            int length = pos - start;
+            int keywordHash = keywordHash(chars, start, length);
+            if (KEYWORDS[keywordHash] != null && matches(KEYWORDS[keywordHash], chars, start, length)) {
+                nextSymbol = KEYWORD_SYMBOLS[keywordHash];
+                nextObject = KEYWORD_OBJECTS[keywordHash];
             } else {
                 nextSymbol = Symbol.ID;
-                nextObject = id;
+                nextObject = identifier(start, length, hash);
             }
         } else if (isDigit(nextChar)) {
             nextSymbol = Symbol.NUMBER;
-            int intNum = nextChar - '0';
-            moveToNextChar();
-            while (isDigit(nextChar)) {
+            int start = pos;
+            int intNum = 0;
+            do {
                 intNum = intNum * 10 + nextChar - '0';
                 moveToNextChar();
-            }
+            } while (isDigit(nextChar));
             if (nextChar == '.') {
-                double doubleNum = intNum;
-                double tmp = 1;
-                moveToNextChar();
-                while (isDigit(nextChar)) {
-                    tmp /= 10;
-                    doubleNum = doubleNum + tmp * (nextChar - '0');
+                do {
                     moveToNextChar();
-                }
-                nextObject = doubleNum;
+                } while (isDigit(nextChar));
+                // Parsed as a whole, so the value is the nearest double.
+                nextObject = Double.parseDouble(new String(chars, start, pos - start));
             } else {
                 nextObject = intNum;
             }
@@ -225,16 +317,23 @@ class Compiler {
             moveToNextChar();
         } else if (nextChar == '\"') {
             nextSymbol = Symbol.STRING;
-            String data = "";
             moveToNextChar();
+            int start = pos;
+            // Only needed if there is an escape.
+            StringBuilder data = null;
             while (nextChar != '\"') {
                 if (nextChar == '\\') {
+                    if (data == null) {
+                        data = new StringBuilder().append(chars, start, pos - start);
+                    }
                     moveToNextChar();
                 }
-                data += nextChar;
+                if (data != null) {
+                    data.append(nextChar);
+                }
                 moveToNextChar();
             }
-            nextObject = data;
+            nextObject = data == null ? new String(chars, start, pos - start) : data.toString();
             moveToNextChar();
         } else if (nextChar == '<') {
             moveToNextChar();
@@ -291,7 +390,7 @@ class Compiler {
             }
             nextObject = nextSymbol;
         } else {
-            nextSymbol = CHARACTER_SYMBOLS.get(nextChar);
+            nextSymbol = nextChar < 128 ? CHARACTER_SYMBOLS[nextChar] : null;
             if (nextSymbol == null) {
                 throw new CompileException(CompileError.ILLEGAL_SYMBOL, linePos == 0 ? lineNumber - 1 : lineNumber, previousLinePos, Character.toString(nextChar));
             }
@@ -492,6 +591,10 @@ class Compiler {
         } else if (nextSymbol == Symbol.ID) {
             String id = (String) nextObject;
             moveToNextSymbol();
+            if (nextSymbol == Symbol.FOR && id.equals("parallel")) {//parallel for j=a to b step c reduce s
+                parallelLoop();
+                return;
+            }
             if (nextSymbol == Symbol.ASSIGN) {
                 Integer address = symbolTable.get(id);
                 if (address == null) {
@@ -603,6 +706,9 @@ class Compiler {
             if (!inLoop) {
                 throw new CompileException(CompileError.SEMANTIC_ERROR, linePos == 0 ? lineNumber - 1 : lineNumber, previousLinePos, "'break' appears outside a loop.");
             }
+            if (breakRecorder.isEmpty()) {
+                throw new CompileException(CompileError.SEMANTIC_ERROR, linePos == 0 ? lineNumber - 1 : lineNumber, previousLinePos, "'break' appears in a parallel loop.");
+            }
             generateCode(Fct.JMP, 0);
             breakRecorder.addCode(codeIndex);
             moveToNextSymbol();
@@ -671,9 +777,16 @@ class Compiler {
             }
             moveToNextSymbol();
         } else if (nextSymbol == Symbol.RETURN) {
+            if (inParallelLoop) {
+                throw new CompileException(CompileError.SEMANTIC_ERROR, linePos == 0 ? lineNumber - 1 : lineNumber, previousLinePos, "'return' appears in a parallel loop.");
+            }
             moveToNextSymbol();
             if (nextSymbol != Symbol.SEMICOLON) {
                 disjunctionExpression();
+                Code last = codes.get(codeIndex);
+                if (last.getOpr() == Fct.FUN) {
+                    codes.set(codeIndex, new Code(Fct.TAIL_CALL, last.getOperand()));
+                }
                 generateCode(Fct.FUN_RETURN, 0);
             } else {
                 generateCode(Fct.VOID_RETURN, 0);
@@ -685,6 +798,123 @@ class Compiler {
         }
     }
 
+    /**
+     * Compiles the body of a parallel loop into a synthetic function, see {@link ParallelLoop},
+     * and the loop into a call to _parallel_for.
+     *
+     * "parallel" and "reduce" are not reserved, so they may still name variables and functions. "parallel" starts
+     * a loop only if it is followed by "for", and "reduce" is a clause only right after the step.
+     */
+    private void parallelLoop() {
+        moveToNextSymbol();
+        if (nextSymbol != Symbol.ID) {
+            throw new CompileException(CompileError.ILLEGAL_SYMBOL, linePos == 0 ? lineNumber - 1 : lineNumber, previousLinePos, "" + nextSymbol);
+        }
+        String id = (String) nextObject;
+        moveToNextSymbol();
+        if (nextSymbol != Symbol.ASSIGN) {
+            throw new CompileException(CompileError.MISSING_SYMBOL, linePos == 0 ? lineNumber - 1 : lineNumber, previousLinePos, "=");
+        }
+        generateCode(Fct.LIT, null);
+        int loopIndex = codeIndex;
+        moveToNextSymbol();
+        numericExpression();
+        if (nextSymbol != Symbol.TO) {
+            throw new CompileException(CompileError.MISSING_SYMBOL, linePos == 0 ? lineNumber - 1 : lineNumber, previousLinePos, "to");
+        }
+        moveToNextSymbol();
+        numericExpression();
+        if (nextSymbol != Symbol.STEP) {
+            throw new CompileException(CompileError.MISSING_SYMBOL, linePos == 0 ? lineNumber - 1 : lineNumber, previousLinePos, "step");
+        }
+        moveToNextSymbol();
+        numericExpression();
+        String reduction = null;
+        Integer reductionAddress = null;
+        if (nextSymbol == Symbol.ID && nextObject.equals("reduce")) {
+            moveToNextSymbol();
+            if (nextSymbol != Symbol.ID) {
+                throw new CompileException(CompileError.ILLEGAL_SYMBOL, linePos == 0 ? lineNumber - 1 : lineNumber, previousLinePos, "" + nextSymbol);
+            }
+            reduction = (String) nextObject;
+            reductionAddress = symbolTable.get(reduction);
+            if (reductionAddress == null) {
+                throw new CompileException(CompileError.UNINITIALIZED_VARIABLE, linePos == 0 ? lineNumber - 1 : lineNumber, previousLinePos, reduction);
+            }
+            if (reduction.equals(id)) {
+                throw new CompileException(CompileError.SEMANTIC_ERROR, linePos == 0 ? lineNumber - 1 : lineNumber, previousLinePos, "The loop variable cannot be reduced.");
+            }
+            generateCode(Fct.LOD, reductionAddress);
+            moveToNextSymbol();
+        }
+        // The other variables are passed by value, in the order of their addresses.
+        String[] captured = new String[offset + 1];
+        for (Map.Entry<String, Integer> entry : symbolTable.entrySet()) {
+            if (!entry.getKey().equals(id) && !entry.getKey().equals(reduction)) {
+                captured[entry.getValue()] = entry.getKey();
+            }
+        }
+        HashMap<String, Integer> loopSymbolTable = new HashMap<>();
+        loopSymbolTable.put(id, 0);
+        if (reduction != null) {
+            loopSymbolTable.put(reduction, 1);
+        }
+        for (int i = 0; i < captured.length; ++i) {
+            if (captured[i] != null) {
+                loopSymbolTable.put(captured[i], loopSymbolTable.size());
+                generateCode(Fct.LOD, i);
+            }
+        }
+        int parameterNumber = loopSymbolTable.size();
+        generateCode(Fct.LIT, parameterNumber + 3);
+        if (reduction != null) {
+            generateCode(Fct.FUN, "_parallel_for");
+            generateCode(Fct.STO, reductionAddress);
+        } else {
+            generateCode(Fct.PROC, "_parallel_for");
+        }
+        addIntoNeededFunctions("_parallel_for", parameterNumber + 3);
+        String loopFunctionName = functionName + "$" + ++parallelLoopNumber;
+        modifyCodeOperand(loopIndex, new ParallelLoop(library, loopFunctionName, parameterNumber, reduction != null));
+
+        ArrayList<Code> outerCodes = codes;
+        int outerCodeIndex = codeIndex;
+        Map<String, Integer> outerSymbolTable = symbolTable;
+        int outerOffset = offset;
+        LabelRecorder outerBreakRecorder = breakRecorder;
+        LabelRecorder outerContinueRecorder = continueRecorder;
+        boolean outerInParallelLoop = inParallelLoop;
+        codes = new ArrayList<>();
+        codeIndex = -1;
+        symbolTable = loopSymbolTable;
+        offset = parameterNumber - 1;
+        breakRecorder = new LabelRecorder();
+        breakRecorder.init();
+        continueRecorder = new LabelRecorder();
+        continueRecorder.init();
+        continueRecorder.createNewLabel();
+        inParallelLoop = true;
+        generateCode(Fct.INT, 0);
+        int tmp = codeIndex;
+        statement(true);
+        continueRecorder.modifyCode(codeIndex + 1);
+        if (reduction != null) {
+            generateCode(Fct.LOD, 1);
+            generateCode(Fct.FUN_RETURN, 0);
+        } else {
+            generateCode(Fct.VOID_RETURN, 0);
+        }
+        modifyCodeOperand(tmp, offset + 1);
+        library.put(loopFunctionName, parameterNumber, codes);
+        codes = outerCodes;
+        codeIndex = outerCodeIndex;
+        symbolTable = outerSymbolTable;
+        offset = outerOffset;
+        breakRecorder = outerBreakRecorder;
+        continueRecorder = outerContinueRecorder;
+        inParallelLoop = outerInParallelLoop;
+    }
+
     private void function() {
 		breakRecorder.init();
         continueRecorder.init();
@@ -701,7 +931,7 @@ class Compiler {
         if (nextSymbol != Symbol.ID) {
             throw new CompileException(CompileError.ILLEGAL_SYMBOL, linePos == 0 ? lineNumber - 1 : lineNumber, previousLinePos, "" + nextSymbol);
         }
-        String functionName = (String) nextObject;
+        functionName = (String) nextObject;
         moveToNextSymbol();
         int parameterNumber = 0;
         offset = -1;
@@ -736,7 +966,7 @@ class Compiler {
     }
 
     void compile() {
-        program += "END ";
+        chars = (program + "END ").toCharArray();
         do {
             function();
             if (nextSymbol == Symbol.END) {
@@ -776,6 +1006,13 @@ class Compiler {
             labels.get(currentLabel).add(codeIndex);
         }
 
+        /**
+         * Returns true if no loop is open, e.g. in the body of a parallel loop.
+         */
+        boolean isEmpty() {
+            return currentLabel == 0;
+        }
+
         void createNewLabel() {
             labels.put(++currentLabel, new HashSet<Integer>());
         }
@@ -0,0 +1,232 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An execution started by {@link Library#executeAsync(String, Object[], Callback)}.
+ *
+ * When {@link Executor} meets an {@link AsyncJavaFunction}, it saves its state here and returns
+ * {@link Executor#SUSPENDED}, which releases the thread and its {@link ExecutionContext}. The continuation then
+ * starts the call and is resumed by the callback of the call. If the callback is invoked before
+ * {@link AsyncJavaFunction#callAsync(Object[], Callback)} returns, the execution continues in a loop
+ * instead of a recursion.
+ */
+
+final class Continuation implements Callback {
+
+    private static final int CALLING = 0;
+
+    private static final int WAITING = 1;
+
+    private static final int COMPLETED = 2;
+
+    private static final Object FAILED = new Object();
+
+    private final Callback callback;
+
+    private final AtomicInteger state = new AtomicInteger(COMPLETED);
+
+    CompiledFunction function;
+
+    int pos;
+
+    int base;
+
+    int top;
+
+    int callDepth;
+
+    /**
+     * The minimum capacity of the stack when the execution is resumed.
+     */
+    int capacity;
+
+    /**
+     * Whether the result of the pending call is pushed onto the stack.
+     */
+    boolean isFunction;
+
+    Object[] references;
+
+    long[] primitives;
+
+    /**
+     * The call frames from depth 1 to {@link #callDepth}, see {@link ExecutionContext#frameFunctions}.
+     */
+    private Object[] frameFunctions;
+
+    private int[] framePositions;
+
+    private int[] frameBases;
+
+    private int[] frameResults;
+
+    private Object[] frameKeys;
+
+    private AsyncJavaFunction pendingFunction;
+
+    private Object[] pendingParameters;
+
+    private Object value;
+
+    private Throwable error;
+
+    Continuation(Callback callback) {
+        this.callback = callback;
+    }
+
+    void start(CompiledFunction function, Object[] input) {
+        Object result;
+        RuntimeException failure = null;
+        ExecutionContext context = ExecutionContext.obtain();
+        try {
+            result = Executor.start(context, function, input, 1, this);
+        } catch (RuntimeException e) {
+            failure = e;
+            result = FAILED;
+        } finally {
+            context.release();
+        }
+        if (failure != null) {
+            callback.onError(failure);
+        }
+        proceed(result);
+    }
+
+    void suspend(ExecutionContext context, CompiledFunction function, int pos, int base, int top, int callDepth,
+                 boolean isFunction, AsyncJavaFunction pendingFunction, Object[] pendingParameters) {
+        this.function = function;
+        this.pos = pos;
+        this.base = base;
+        this.top = top;
+        this.callDepth = callDepth;
+        this.capacity = base + function.frameSize;
+        this.isFunction = isFunction;
+        this.references = new Object[top + 1];
+        this.primitives = new long[top + 1];
+        System.arraycopy(context.stack, 0, references, 0, top + 1);
+        System.arraycopy(context.primitives, 0, primitives, 0, top + 1);
+        int frames = callDepth + 1;
+        this.frameFunctions = Arrays.copyOf(context.frameFunctions, frames);
+        this.framePositions = Arrays.copyOf(context.framePositions, frames);
+        this.frameBases = Arrays.copyOf(context.frameBases, frames);
+        this.frameResults = Arrays.copyOf(context.frameResults, frames);
+        this.frameKeys = Arrays.copyOf(context.frameKeys, frames);
+        this.pendingFunction = pendingFunction;
+        this.pendingParameters = pendingParameters;
+    }
+
+    void restoreFrames(ExecutionContext context) {
+        int frames = callDepth + 1;
+        context.ensureFrameCapacity(callDepth);
+        System.arraycopy(frameFunctions, 0, context.frameFunctions, 0, frames);
+        System.arraycopy(framePositions, 0, context.framePositions, 0, frames);
+        System.arraycopy(frameBases, 0, context.frameBases, 0, frames);
+        System.arraycopy(frameResults, 0, context.frameResults, 0, frames);
+        System.arraycopy(frameKeys, 0, context.frameKeys, 0, frames);
+        frameFunctions = null;
+        framePositions = null;
+        frameBases = null;
+        frameResults = null;
+        frameKeys = null;
+    }
+
+    private void proceed(Object result) {
+        while (result == Executor.SUSPENDED) {
+            AsyncJavaFunction function = pendingFunction;
+            Object[] parameters = pendingParameters;
+            pendingFunction = null;
+            pendingParameters = null;
+            state.set(CALLING);
+            try {
+                function.callAsync(parameters, this);
+            } catch (RuntimeException e) {
+                state.set(COMPLETED);
+                callback.onError(e);
+                return;
+            }
+            if (state.compareAndSet(CALLING, WAITING)) {
+                // The callback will resume the execution.
+                return;
+            }
+            result = resume();
+        }
+        if (result != FAILED) {
+            callback.onResult(result);
+        }
+    }
+
+    /**
+     * Continues the execution with the result of the pending call.
+     *
+     * @return the result of the execution, {@link Executor#SUSPENDED}, or {@link #FAILED} after reporting an error
+     */
+    private Object resume() {
+        if (error != null) {
+            references = null;
+            primitives = null;
+            frameFunctions = null;
+            frameKeys = null;
+            callback.onError(error);
+            return FAILED;
+        }
+        Object result;
+        RuntimeException failure = null;
+        ExecutionContext context = ExecutionContext.obtain();
+        try {
+            result = Executor.resume(context, this, value);
+        } catch (RuntimeException e) {
+            failure = e;
+            result = FAILED;
+        } finally {
+            value = null;
+            context.release();
+        }
+        if (failure != null) {
+            callback.onError(failure);
+        }
+        return result;
+    }
+
+    @Override
+    public void onResult(Object result) {
+        complete(result, null);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        complete(null, throwable);
+    }
+
+    private void complete(Object result, Throwable throwable) {
+        value = result;
+        error = throwable;
+        if (state.compareAndSet(CALLING, COMPLETED)) {
+            // Invoked within callAsync, so proceed() continues the execution.
+            return;
+        }
+        if (state.compareAndSet(WAITING, COMPLETED)) {
+            proceed(resume());
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+/**
+ * The engines which run the functions of a {@link Library}. See {@link Library.Builder#setEngine(Engine)}.
+ */
+
+public enum Engine {
+
+    /**
+     * Runs the stack code generated by {@link Compiler}. This is the default engine.
+     */
+    STACK,
+
+    /**
+     * Translates the stack code into register code, which needs fewer instructions, and runs the register code.
+     */
+    REGISTER,
+
+    /**
+     * Translates the stack code into trees of nodes, which are evaluated without decoding instructions.
+     * A call is nested on the Java stack, so a deep recursion may fail with STACK_OVERFLOW before
+     * the maximum call depth is reached.
+     */
+    CLOSURE,
+
+    /**
+     * The same as {@link #CLOSURE}, except that the nodes of each basic block are composed into a method handle,
+     * so the JVM sees a chain of bound handles instead of virtual calls. Until the handles are compiled by
+     * the JVM, a call takes several times as much of the Java stack as with {@link #CLOSURE}.
+     */
+    METHOD_HANDLE,
+}
@@ -0,0 +1,189 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package xiaofei.library.zlang;
+
+import java.util.Arrays;
+
+/**
+ * The stack on which {@link Executor} runs. Each thread reuses its own stack across executions.
+ *
+ * The stack is a pair of parallel arrays holding tagged values, see {@link Tag}. The call frames are kept in
+ * another set of parallel arrays, so calls do not allocate.
+ *
+ * The stack grows on demand. When an execution finishes, the slots it used are cleared so that the stack
+ * does not retain garbage, and a stack which has grown too large is dropped.
+ */
+
+final class ExecutionContext {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final int RETAINED_CAPACITY = 1 << 16;
+
+    private static final int INITIAL_FRAME_CAPACITY = 64;
+
+    private static final int RETAINED_FRAME_CAPACITY = 1 << 12;
+
+    private static final ThreadLocal<ExecutionContext> CONTEXTS = new ThreadLocal<ExecutionContext>() {
+        @Override
+        protected ExecutionContext initialValue() {
+            return new ExecutionContext();
+        }
+    };
+
+    Object[] stack = new Object[INITIAL_CAPACITY];
+
+    long[] primitives = new long[INITIAL_CAPACITY];
+
+    /**
+     * The call frames, indexed by the call depth. The frame at a depth saves the state of the caller of
+     * the function running at that depth: the function, the position to return to, the base of its frame,
+     * and where the result goes, whose meaning depends on the engine. The function of the root frame is null.
+     */
+    Object[] frameFunctions = new Object[INITIAL_FRAME_CAPACITY];
+
+    int[] framePositions = new int[INITIAL_FRAME_CAPACITY];
+
+    int[] frameBases = new int[INITIAL_FRAME_CAPACITY];
+
+    int[] frameResults = new int[INITIAL_FRAME_CAPACITY];
+
+    /**
+     * The arguments of the memoized call running at each depth, whose result is cached when it returns.
+     * See {@link MemoCache}.
+     */
+    Object[] frameKeys = new Object[INITIAL_FRAME_CAPACITY];
+
+    /**
+     * The boxed operands passed to an {@link OprAdapter}.
+     */
+    final Object[] operands = new Object[2];
+
+    /**
+     * Whether the stack engine runs all the Zlang functions it calls on this context, see
+     * {@link Executor#interpretDeep}.
+     */
+    boolean interpretsAll;
+
+    /**
+     * The number of calls made by JIT-compiled functions which are nested on the Java stack of the thread.
+     * It is only kept on the first context of the thread, see {@link #current()}.
+     */
+    int nestedCallDepth;
+
+    /**
+     * The number of slots which may have been written since the context was obtained.
+     */
+    private int used;
+
+    private int usedFrames;
+
+    private boolean inUse;
+
+    /**
+     * The context for an execution started while this one is in use,
+     * e.g. by a Java function or a JIT-compiled function on the same thread.
+     */
+    private ExecutionContext nested;
+
+    private ExecutionContext() {}
+
+    /**
+     * Returns the first context of the current thread, whether it is in use or not.
+     */
+    static ExecutionContext current() {
+        return CONTEXTS.get();
+    }
+
+    static ExecutionContext obtain() {
+        ExecutionContext context = CONTEXTS.get();
+        while (context.inUse) {
+            if (context.nested == null) {
+                context.nested = new ExecutionContext();
+            }
+            context = context.nested;
+        }
+        context.inUse = true;
+        return context;
+    }
+
+    /**
+     * Makes sure that the stack has at least the specified number of slots.
+     * The arrays may be replaced, so the caller should read them again.
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity > used) {
+            used = capacity;
+            if (capacity > stack.length) {
+                int newCapacity = Math.max(stack.length * 2, capacity);
+                stack = Arrays.copyOf(stack, newCapacity);
+                primitives = Arrays.copyOf(primitives, newCapacity);
+            }
+        }
+    }
+
+    /**
+     * Makes sure that there is a frame at the specified depth. The arrays may be replaced.
+     */
+    void ensureFrameCapacity(int depth) {
+        if (depth >= usedFrames) {
+            usedFrames = depth + 1;
+            if (depth >= frameFunctions.length) {
+                int newCapacity = Math.max(frameFunctions.length * 2, depth + 1);
+                frameFunctions = Arrays.copyOf(frameFunctions, newCapacity);
+                framePositions = Arrays.copyOf(framePositions, newCapacity);
+                frameBases = Arrays.copyOf(frameBases, newCapacity);
+                frameResults = Arrays.copyOf(frameResults, newCapacity);
+                frameKeys = Arrays.copyOf(frameKeys, newCapacity);
+            }
+        }
+    }
+
+    void release() {
+        reset();
+        inUse = false;
+    }
+
+    /**
+     * Clears the slots and the frames used since the context was obtained, so that the next execution on the
+     * context sees none of the values of the previous ones.
+     */
+    void reset() {
+        if (stack.length > RETAINED_CAPACITY) {
+            stack = new Object[INITIAL_CAPACITY];
+            primitives = new long[INITIAL_CAPACITY];
+        } else {
+            Arrays.fill(stack, 0, Math.min(used, stack.length), null);
+        }
+        if (frameFunctions.length > RETAINED_FRAME_CAPACITY) {
+            frameFunctions = new Object[INITIAL_FRAME_CAPACITY];
+            framePositions = new int[INITIAL_FRAME_CAPACITY];
+            frameBases = new int[INITIAL_FRAME_CAPACITY];
+            frameResults = new int[INITIAL_FRAME_CAPACITY];
+            frameKeys = new Object[INITIAL_FRAME_CAPACITY];
+        } else {
+            Arrays.fill(frameFunctions, 0, Math.min(usedFrames, frameFunctions.length), null);
+            Arrays.fill(frameKeys, 0, Math.min(usedFrames, frameKeys.length), null);
+        }
+        operands[0] = operands[1] = null;
+        interpretsAll = false;
+        used = 0;
+        usedFrames = 0;
+    }
+}
@@ -18,8 +18,9 @@
 
 package xiaofei.library.zlang;
 
-import java.lang.reflect.Array;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by Xiaofei on 2017/9/21.
@@ -29,160 +30,900 @@ class Executor {
 
     static final Object NO_RETURN_VALUE = new Object();
 
+    /**
+     * Returned when an asynchronous execution is suspended, see {@link Continuation}.
+     */
+    static final Object SUSPENDED = new Object();
+
+    /**
+     * The number of Zlang calls which may be nested on the Java stack by JIT-compiled functions, or by
+     * {@link ClosureExecutor}, before the deeper calls fall back to {@link #interpretDeep}. The closure engines
+     * exhaust the default Java stack after a few hundred calls.
+     */
+    static final int MAX_NESTED_CALL_DEPTH = 200;
+
+    private static final int EQUAL = Opr.EQUAL.ordinal();
+
+    private static final int NOT_EQUAL = Opr.NOT_EQUAL.ordinal();
+
+    private static final int PLUS = Opr.PLUS.ordinal();
+
+    private static final int MIN_BATCH_TASK_SIZE = 256;
+
+    /**
+     * The value of {@link ExecutionContext#frameResults} for a memoized call, whose result is pushed onto
+     * the stack and cached. Otherwise it is 1 if the result is pushed and 0 if it is discarded.
+     */
+    private static final int MEMOIZED = 2;
+
     private Executor() {}
 
     static Object execute(Library inputLibrary, String functionName, Object[] input) {
-        Object[] stack = new Object[1000];
-        Library.FunctionSearchResult functionSearchResult = inputLibrary.getFunction(functionName, input.length);
-        CopyOnWriteArrayList<Code> codes = functionSearchResult.codes;
-        Library library = functionSearchResult.library;
-        stack[0] = new Frame(0, -1, null, null, false);
-        int length = input.length;
-        for (int i = 0; i < length; ++i) {
-            stack[i + 1] = input[i];
-        }
-        int pos = 0, base = 1, top = 0;
+        return execute(inputLibrary.getFunction(functionName, input.length), input);
+    }
+
+    static Object execute(CompiledFunction function, Object[] input) {
+        MemoCache memoCache = function.memoCache;
+        if (memoCache != null) {
+            Object key = MemoCache.key(input);
+            if (key != null) {
+                Object result = memoCache.get(key);
+                if (result == MemoCache.MISS) {
+                    result = invoke(function, input);
+                    memoCache.put(key, result);
+                }
+                return result;
+            }
+        }
+        return invoke(function, input);
+    }
+
+    private static Object invoke(CompiledFunction function, Object[] input) {
+        if (function.library.getProfiler() != null) {
+            ExecutionContext context = ExecutionContext.obtain();
+            try {
+                return ProfilingExecutor.execute(context, function, input);
+            } finally {
+                context.release();
+            }
+        }
+        JitFunction jitFunction = function.jitFunction;
+        if (jitFunction == null && function.library.isJitEnabled()) {
+            jitFunction = Jit.onInvocation(function);
+        }
+        if (jitFunction != null) {
+            return jitFunction.invoke(input);
+        }
+        if (function.library.getEngine() == Engine.REGISTER) {
+            return RegisterExecutor.execute(function, input);
+        }
+        if (function.library.getEngine() == Engine.CLOSURE
+                || function.library.getEngine() == Engine.METHOD_HANDLE) {
+            return ClosureExecutor.execute(function, input);
+        }
+        ExecutionContext context = ExecutionContext.obtain();
+        try {
+            return interpret(context, function, input);
+        } finally {
+            context.release();
+        }
+    }
+
+    /**
+     * Executes the function with the stack engine, which can be suspended by an {@link AsyncJavaFunction}.
+     * Functions run by the JIT or by another engine are called synchronously.
+     */
+    static void executeAsync(Library library, String functionName, Object[] input, Callback callback) {
+        new Continuation(callback).start(library.getFunction(functionName, input.length), input);
+    }
+
+    /**
+     * Executes the function once for each input. The function is resolved once, and each thread running
+     * the batch reuses one execution context, which is cleared between the inputs. If the pool is not null,
+     * the batch is split across it.
+     */
+    static BatchStats executeBatch(Library library, String functionName, Object[][] inputs, ResultSink sink,
+                                   ForkJoinPool pool) {
+        long start = System.nanoTime();
+        int tasks = 1;
+        if (inputs.length > 0) {
+            CompiledFunction function = library.getFunction(functionName, inputs[0].length);
+            if (pool == null || inputs.length < 2 * MIN_BATCH_TASK_SIZE) {
+                executeBatch(library, functionName, function, inputs, 0, inputs.length, sink);
+            } else {
+                int taskSize = Math.max(MIN_BATCH_TASK_SIZE, inputs.length / (4 * pool.getParallelism()));
+                BatchTask task = new BatchTask(library, functionName, function, inputs, 0, inputs.length,
+                        taskSize, sink, new AtomicInteger());
+                pool.invoke(task);
+                tasks = task.tasks.get();
+            }
+        }
+        return new BatchStats(inputs.length, tasks, System.nanoTime() - start);
+    }
+
+    private static void executeBatch(Library library, String functionName, CompiledFunction function,
+                                     Object[][] inputs, int from, int to, ResultSink sink) {
+        ExecutionContext context = ExecutionContext.obtain();
+        try {
+            for (int i = from; i < to; ++i) {
+                if (i > from) {
+                    // The local variables of the previous row must not leak into this one.
+                    context.reset();
+                }
+                Object[] input = inputs[i];
+                if (function == null || function.parameterNumber != input.length) {
+                    function = library.getFunction(functionName, input.length);
+                }
+                sink.onResult(i, execute(context, function, input));
+            }
+        } finally {
+            context.release();
+        }
+    }
+
+    /**
+     * The same as {@link #execute(CompiledFunction, Object[])}, but on a context which is already obtained.
+     */
+    static Object execute(ExecutionContext context, CompiledFunction function, Object[] input) {
+        MemoCache memoCache = function.memoCache;
+        if (memoCache != null) {
+            Object key = MemoCache.key(input);
+            if (key != null) {
+                Object result = memoCache.get(key);
+                if (result == MemoCache.MISS) {
+                    result = invoke(context, function, input);
+                    memoCache.put(key, result);
+                }
+                return result;
+            }
+        }
+        return invoke(context, function, input);
+    }
+
+    private static Object invoke(ExecutionContext context, CompiledFunction function, Object[] input) {
+        if (function.library.getProfiler() != null) {
+            return ProfilingExecutor.execute(context, function, input);
+        }
+        JitFunction jitFunction = function.jitFunction;
+        if (jitFunction == null && function.library.isJitEnabled()) {
+            jitFunction = Jit.onInvocation(function);
+        }
+        if (jitFunction != null) {
+            return jitFunction.invoke(input);
+        }
+        if (function.library.getEngine() == Engine.REGISTER) {
+            return RegisterExecutor.interpret(context, RegisterTranslator.translate(function), input);
+        }
+        if (function.library.getEngine() == Engine.CLOSURE
+                || function.library.getEngine() == Engine.METHOD_HANDLE) {
+            return ClosureExecutor.interpret(context, function, input);
+        }
+        return interpret(context, function, input);
+    }
+
+    private static Object interpret(ExecutionContext context, CompiledFunction function, Object[] input) {
+        return start(context, function, input, 1, null);
+    }
+
+    /**
+     * Executes the function with the stack engine, which then runs all the Zlang functions it calls itself,
+     * whatever their engines are, instead of nesting them on the Java stack. It is used once the calls nested on
+     * the Java stack are too deep, see {@link #MAX_NESTED_CALL_DEPTH}.
+     *
+     * @param callDepth the call depth of the function, which counts towards the maximum call depth
+     */
+    static Object interpretDeep(CompiledFunction function, Object[] input, int callDepth) {
+        int maxCallDepth = function.library.getMaxCallDepth();
+        if (callDepth > maxCallDepth) {
+            throw new ZlangRuntimeException(ZlangRuntimeError.STACK_OVERFLOW,
+                    "The call depth exceeds " + maxCallDepth + ".");
+        }
+        ExecutionContext context = ExecutionContext.obtain();
+        context.interpretsAll = true;
+        try {
+            return start(context, function, input, callDepth, null);
+        } finally {
+            context.release();
+        }
+    }
+
+    static Object start(ExecutionContext context, CompiledFunction function, Object[] input, int callDepth,
+                        Continuation continuation) {
+        context.ensureCapacity(1 + function.frameSize);
+        context.ensureFrameCapacity(callDepth);
+        context.frameFunctions[callDepth] = null;
+        context.framePositions[callDepth] = -1;
+        context.frameBases[callDepth] = 0;
+        context.frameResults[callDepth] = 0;
+        for (int i = 0; i < input.length; ++i) {
+            Tag.unbox(context.stack, context.primitives, i + 1, input[i]);
+        }
+        return run(context, function, 0, 1, 0, callDepth, continuation);
+    }
+
+    /**
+     * Resumes a suspended execution with the result of the pending call.
+     */
+    static Object resume(ExecutionContext context, Continuation continuation, Object result) {
+        int top = continuation.top;
+        context.ensureCapacity(continuation.capacity);
+        System.arraycopy(continuation.references, 0, context.stack, 0, top + 1);
+        System.arraycopy(continuation.primitives, 0, context.primitives, 0, top + 1);
+        continuation.restoreFrames(context);
+        continuation.references = null;
+        continuation.primitives = null;
+        if (continuation.isFunction) {
+            Tag.unbox(context.stack, context.primitives, ++top, result);
+        }
+        return run(context, continuation.function, continuation.pos, continuation.base, top,
+                continuation.callDepth, continuation);
+    }
+
+    /**
+     * Runs until the root function returns. If the continuation is not null, the execution is suspended
+     * when an {@link AsyncJavaFunction} is called.
+     *
+     * @return the result, or {@link #SUSPENDED}
+     */
+    private static Object run(ExecutionContext context, CompiledFunction function, int pos, int base, int top,
+                              int callDepth, Continuation continuation) {
+        // The references, or the tags of the primitive values, and the primitive values. See Tag.
+        Object[] stack = context.stack;
+        long[] values = context.primitives;
+        Library library = function.library;
+        int[] opcodes = function.opcodes;
+        int[] operands = function.operands;
+        Object[] constants = function.constants;
+        int maxCallDepth = library.getMaxCallDepth();
+        boolean interpretsAll = context.interpretsAll;
         Object returnValue = null;
         do {
-            Code code = codes.get(pos++);
-            Fct fct = code.getOpr();
-            Object operand = code.getOperand();
-            switch (fct) {
-                case LIT:
-                    stack[++top] = operand;
+            int opcode = opcodes[pos];
+            int operand = operands[pos++];
+            switch (opcode) {
+                case Opcode.LIT:
+                    Tag.unbox(stack, values, ++top, constants[operand]);
+                    break;
+                case Opcode.LOD: {
+                    int address = base + operand;
+                    stack[++top] = stack[address];
+                    values[top] = values[address];
+                    break;
+                }
+                case Opcode.ALOD: {
+                    int dimens = (int) values[top--];
+                    int first = top - dimens + 1;
+                    Object array = ArrayAccess.innermost(stack[base + operand], stack, values, first, top);
+                    opcodes[pos - 1] = Opcode.quickenLoad(array);
+                    ArrayAccess.load(array, Tag.intValue(stack, values, top), stack, values, first);
+                    top = first;
+                    break;
+                }
+                case Opcode.ALOD_INT: {
+                    int dimens = (int) values[top--];
+                    int first = top - dimens + 1;
+                    Object array = ArrayAccess.innermost(stack[base + operand], stack, values, first, top);
+                    int index = Tag.intValue(stack, values, top);
+                    if (array instanceof int[]) {
+                        stack[first] = Tag.INT;
+                        values[first] = ((int[]) array)[index];
+                    } else {
+                        opcodes[pos - 1] = Opcode.ALOD_GENERIC;
+                        ArrayAccess.load(array, index, stack, values, first);
+                    }
+                    top = first;
+                    break;
+                }
+                case Opcode.ALOD_DOUBLE: {
+                    int dimens = (int) values[top--];
+                    int first = top - dimens + 1;
+                    Object array = ArrayAccess.innermost(stack[base + operand], stack, values, first, top);
+                    int index = Tag.intValue(stack, values, top);
+                    if (array instanceof double[]) {
+                        stack[first] = Tag.DOUBLE;
+                        values[first] = Double.doubleToRawLongBits(((double[]) array)[index]);
+                    } else {
+                        opcodes[pos - 1] = Opcode.ALOD_GENERIC;
+                        ArrayAccess.load(array, index, stack, values, first);
+                    }
+                    top = first;
+                    break;
+                }
+                case Opcode.ALOD_OBJECT: {
+                    int dimens = (int) values[top--];
+                    int first = top - dimens + 1;
+                    Object array = ArrayAccess.innermost(stack[base + operand], stack, values, first, top);
+                    int index = Tag.intValue(stack, values, top);
+                    if (array instanceof Object[]) {
+                        Tag.unbox(stack, values, first, ((Object[]) array)[index]);
+                    } else {
+                        opcodes[pos - 1] = Opcode.ALOD_GENERIC;
+                        ArrayAccess.load(array, index, stack, values, first);
+                    }
+                    top = first;
                     break;
-                case LOD:
-                    stack[++top] = stack[base + (int) operand];
+                }
+                case Opcode.ALOD_GENERIC: {
+                    int dimens = (int) values[top--];
+                    int first = top - dimens + 1;
+                    Object array = ArrayAccess.innermost(stack[base + operand], stack, values, first, top);
+                    ArrayAccess.load(array, Tag.intValue(stack, values, top), stack, values, first);
+                    top = first;
+                    break;
+                }
+                case Opcode.STO: {
+                    int address = base + operand;
+                    stack[address] = stack[top];
+                    values[address] = values[top--];
+                    break;
+                }
+                case Opcode.ASTO: {
+                    int source = top--;
+                    int dimens = (int) values[top--];
+                    Object array = ArrayAccess.innermost(stack[base + operand], stack, values, top - dimens + 1, top);
+                    opcodes[pos - 1] = Opcode.quickenStore(array, stack[source]);
+                    ArrayAccess.store(array, Tag.intValue(stack, values, top), stack, values, source);
+                    top -= dimens;
                     break;
-                case ALOD: {
-                    int dimens = (int) stack[top--];
-                    Object tmp = stack[base + (int) operand];
-                    for (int i = top - dimens + 1; i <= top; ++i) {
-                        tmp = Array.get(tmp, (int) stack[i]);
+                }
+                case Opcode.ASTO_INT: {
+                    int source = top--;
+                    int dimens = (int) values[top--];
+                    Object array = ArrayAccess.innermost(stack[base + operand], stack, values, top - dimens + 1, top);
+                    int index = Tag.intValue(stack, values, top);
+                    if (array instanceof int[] && stack[source] == Tag.INT) {
+                        ((int[]) array)[index] = (int) values[source];
+                    } else {
+                        opcodes[pos - 1] = Opcode.ASTO_GENERIC;
+                        ArrayAccess.store(array, index, stack, values, source);
                     }
-                    stack[top = top - dimens + 1] = tmp;
+                    top -= dimens;
                     break;
                 }
-                case STO:
-                    stack[base + (int) operand] = stack[top--];
+                case Opcode.ASTO_DOUBLE: {
+                    int source = top--;
+                    int dimens = (int) values[top--];
+                    Object array = ArrayAccess.innermost(stack[base + operand], stack, values, top - dimens + 1, top);
+                    int index = Tag.intValue(stack, values, top);
+                    if (array instanceof double[] && stack[source] == Tag.DOUBLE) {
+                        ((double[]) array)[index] = Double.longBitsToDouble(values[source]);
+                    } else {
+                        opcodes[pos - 1] = Opcode.ASTO_GENERIC;
+                        ArrayAccess.store(array, index, stack, values, source);
+                    }
+                    top -= dimens;
                     break;
-                case ASTO: {
-                    Object value = stack[top--];
-                    int dimens = (int) stack[top--];
-                    Object tmp = stack[base + (int) operand];
-                    for (int i = top - dimens + 1; i <= top - 1; ++i) {
-                        tmp = Array.get(tmp, (int) stack[i]);
+                }
+                case Opcode.ASTO_OBJECT: {
+                    int source = top--;
+                    int dimens = (int) values[top--];
+                    Object array = ArrayAccess.innermost(stack[base + operand], stack, values, top - dimens + 1, top);
+                    int index = Tag.intValue(stack, values, top);
+                    if (array != null && array.getClass() == Object[].class) {
+                        ((Object[]) array)[index] = Tag.box(stack, values, source);
+                    } else {
+                        opcodes[pos - 1] = Opcode.ASTO_GENERIC;
+                        ArrayAccess.store(array, index, stack, values, source);
                     }
-                    Array.set(tmp, (int) stack[top], value);
                     top -= dimens;
                     break;
                 }
-                case INT:
-                    top += (int) operand;
+                case Opcode.ASTO_GENERIC: {
+                    int source = top--;
+                    int dimens = (int) values[top--];
+                    Object array = ArrayAccess.innermost(stack[base + operand], stack, values, top - dimens + 1, top);
+                    ArrayAccess.store(array, Tag.intValue(stack, values, top), stack, values, source);
+                    top -= dimens;
                     break;
-                case JMP:
-                    pos = (int) operand;
+                }
+                case Opcode.INT:
+                    top += operand;
+                    break;
+                case Opcode.JMP:
+                    pos = jump(function, pos, operand);
+                    break;
+                case Opcode.JPF:
+                    if (!Tag.isTrue(stack, values, top--)) {
+                        pos = jump(function, pos, operand);
+                    }
                     break;
-                case JPF:
-                    if (!(boolean) stack[top--]) {
-                        pos = (int) operand;
+                case Opcode.JPT:
+                    if (Tag.isTrue(stack, values, top--)) {
+                        pos = jump(function, pos, operand);
                     }
                     break;
-                case JPF_SC:
-                    if (!(boolean) stack[top]) {
-                        pos = (int) operand;
+                case Opcode.JPF_SC:
+                    if (!Tag.isTrue(stack, values, top)) {
+                        pos = jump(function, pos, operand);
                     }
                     break;
-                case JPT_SC:
-                    if ((boolean) stack[top]) {
-                        pos = (int) operand;
+                case Opcode.JPT_SC:
+                    if (Tag.isTrue(stack, values, top)) {
+                        pos = jump(function, pos, operand);
                     }
                     break;
-                case FUN:
-                case PROC: {
-                    String target = (String) operand;
-                    int parameterNumber = (int) stack[top--];
-                    JavaFunction javaFunction = library.getJavaFunction(target, parameterNumber);
+                case Opcode.FUN:
+                case Opcode.PROC:
+                case Opcode.TAIL_CALL: {
+                    CallSite callSite = (CallSite) constants[operand];
+                    int parameterNumber = (int) values[top--];
+                    CallSite.Target target = callSite.resolve(library, parameterNumber);
+                    JavaFunction javaFunction = target.javaFunction;
                     if (javaFunction != null) {
                         Object[] parameters = new Object[parameterNumber];
                         // 0 -> top - num + 1, num - 1 -> top
                         for (int i = 0; i < parameterNumber; ++i) {
-                            parameters[i] = stack[top - parameterNumber + 1 + i];
+                            parameters[i] = Tag.box(stack, values, top - parameterNumber + 1 + i);
                         }
                         top -= parameterNumber;
+                        if (continuation != null && javaFunction instanceof AsyncJavaFunction) {
+                            continuation.suspend(context, function, pos, base, top, callDepth,
+                                    opcode != Opcode.PROC, (AsyncJavaFunction) javaFunction, parameters);
+                            return SUSPENDED;
+                        }
                         Object result = javaFunction.call(parameters);
-                        if (fct == Fct.FUN) {
-                            stack[++top] = result;
+                        if (opcode != Opcode.PROC) {
+                            Tag.unbox(stack, values, ++top, result);
                         }
                     } else {
-                        // TODO What if the function block?
-                        for (int i = top; i >= top - parameterNumber + 1; --i) {
-                            stack[i + 1] = stack[i];
+                        CompiledFunction callee = target.function;
+                        JitFunction calleeJitFunction = callee.jitFunction;
+                        if (calleeJitFunction == null && callee.library.isJitEnabled() && !interpretsAll) {
+                            calleeJitFunction = Jit.onInvocation(callee);
+                        }
+                        if (!interpretsAll && (calleeJitFunction != null || callee.library.getEngine() != Engine.STACK
+                                || callee.library.getProfiler() != null)) {
+                            Object[] parameters = new Object[parameterNumber];
+                            for (int i = 0; i < parameterNumber; ++i) {
+                                parameters[i] = Tag.box(stack, values, top - parameterNumber + 1 + i);
+                            }
+                            top -= parameterNumber;
+                            Object result = calleeJitFunction != null
+                                    ? calleeJitFunction.invoke(parameters) : execute(callee, parameters);
+                            if (opcode != Opcode.PROC) {
+                                if (result == NO_RETURN_VALUE) {
+                                    throw new ZlangRuntimeException(ZlangRuntimeError.NO_RETURN_VALUE);
+                                }
+                                Tag.unbox(stack, values, ++top, result);
+                            }
+                            break;
+                        }
+                        Object memoKey = null;
+                        MemoCache memoCache = callee.memoCache;
+                        if (memoCache != null && opcode != Opcode.PROC) {
+                            memoKey = MemoCache.key(stack, values, top - parameterNumber + 1, parameterNumber);
+                            if (memoKey != null) {
+                                Object result = memoCache.get(memoKey);
+                                if (result != MemoCache.MISS) {
+                                    if (result == NO_RETURN_VALUE) {
+                                        throw new ZlangRuntimeException(ZlangRuntimeError.NO_RETURN_VALUE);
+                                    }
+                                    top -= parameterNumber;
+                                    Tag.unbox(stack, values, ++top, result);
+                                    break;
+                                }
+                            }
+                        }
+                        // A memoized call needs its own frame to cache its result.
+                        if (opcode == Opcode.TAIL_CALL && callee.returnsValue && memoKey == null
+                                && context.frameResults[callDepth] != MEMOIZED) {
+                            // The callee takes over the frame, so its return goes directly to the caller.
+                            context.ensureCapacity(base + callee.frameSize);
+                            stack = context.stack;
+                            values = context.primitives;
+                            int first = top - parameterNumber + 1;
+                            System.arraycopy(stack, first, stack, base, parameterNumber);
+                            System.arraycopy(values, first, values, base, parameterNumber);
+                            top = base - 1;
+                            function = callee;
+                            library = function.library;
+                            opcodes = function.opcodes;
+                            operands = function.operands;
+                            constants = function.constants;
+                            pos = 0;
+                            break;
+                        }
+                        if (++callDepth > maxCallDepth) {
+                            throw new ZlangRuntimeException(ZlangRuntimeError.STACK_OVERFLOW,
+                                    "The call depth exceeds " + maxCallDepth + ".");
                         }
-                        stack[top = top - parameterNumber + 1] = new Frame(base, pos, codes, library, fct == Fct.FUN);
-                        base = top + 1;
-                        Library.FunctionSearchResult result = library.getFunction(target, parameterNumber);
-                        library = result.library;
-                        codes = result.codes;
+                        // The callee's frame starts at its first parameter, where the result is returned.
+                        int first = top - parameterNumber + 1;
+                        context.ensureCapacity(first + callee.frameSize);
+                        context.ensureFrameCapacity(callDepth);
+                        stack = context.stack;
+                        values = context.primitives;
+                        context.frameFunctions[callDepth] = function;
+                        context.framePositions[callDepth] = pos;
+                        context.frameBases[callDepth] = base;
+                        if (memoKey != null) {
+                            context.frameResults[callDepth] = MEMOIZED;
+                            context.frameKeys[callDepth] = memoKey;
+                        } else {
+                            context.frameResults[callDepth] = opcode != Opcode.PROC ? 1 : 0;
+                        }
+                        top = first - 1;
+                        base = first;
+                        function = callee;
+                        library = function.library;
+                        opcodes = function.opcodes;
+                        operands = function.operands;
+                        constants = function.constants;
                         pos = 0;
                     }
                     break;
                 }
-                case FUN_RETURN: {
-                    returnValue = stack[top];
-                    Frame frame = (Frame) stack[top = base - 1];
-                    pos = frame.pos;
-                    base = frame.base;
-                    library = frame.dependency;
-                    codes = frame.codes;
-                    // TODO check
-                    if (frame.isFunction) {
-                        stack[top] = returnValue;
+                case Opcode.FUN_RETURN: {
+                    int depth = callDepth--;
+                    int results = context.frameResults[depth];
+                    if (results == MEMOIZED) {
+                        function.memoCache.put(context.frameKeys[depth], Tag.box(stack, values, top));
+                        context.frameKeys[depth] = null;
+                    }
+                    int from = top;
+                    top = base;
+                    pos = context.framePositions[depth];
+                    base = context.frameBases[depth];
+                    function = (CompiledFunction) context.frameFunctions[depth];
+                    if (function != null) {
+                        library = function.library;
+                        opcodes = function.opcodes;
+                        operands = function.operands;
+                        constants = function.constants;
+                    } else {
+                        // Only the value returned to the caller of the executor is boxed.
+                        returnValue = Tag.box(stack, values, from);
+                    }
+                    if (results != 0) {
+                        stack[top] = stack[from];
+                        values[top] = values[from];
                     } else {
                         --top;
                     }
                     break;
                 }
-                case VOID_RETURN: {
+                case Opcode.VOID_RETURN: {
+                    int depth = callDepth--;
                     returnValue = NO_RETURN_VALUE;
-                    Frame frame = (Frame) stack[top = base - 1];
-                    pos = frame.pos;
-                    base = frame.base;
-                    library = frame.dependency;
-                    codes = frame.codes;
-                    if (frame.isFunction) {
+                    top = base - 1;
+                    pos = context.framePositions[depth];
+                    base = context.frameBases[depth];
+                    function = (CompiledFunction) context.frameFunctions[depth];
+                    if (function != null) {
+                        library = function.library;
+                        opcodes = function.opcodes;
+                        operands = function.operands;
+                        constants = function.constants;
+                    }
+                    if (context.frameResults[depth] != 0) {
                         throw new ZlangRuntimeException(ZlangRuntimeError.NO_RETURN_VALUE);
+                    }
+                    break;
+                }
+                case Opcode.OPR:
+                case Opcode.OPR_GENERIC:
+                case Opcode.PLUS_II:
+                case Opcode.MINUS_II:
+                case Opcode.TIMES_II:
+                case Opcode.DIVIDE_II:
+                case Opcode.LESS_II:
+                case Opcode.LESS_EQUAL_II:
+                case Opcode.GREATER_II:
+                case Opcode.GREATER_EQUAL_II:
+                case Opcode.PLUS_DD:
+                case Opcode.MINUS_DD:
+                case Opcode.TIMES_DD:
+                case Opcode.DIVIDE_DD:
+                case Opcode.LESS_DD:
+                case Opcode.LESS_EQUAL_DD:
+                case Opcode.GREATER_DD:
+                case Opcode.GREATER_EQUAL_DD:
+                case Opcode.NEGATIVE_I:
+                case Opcode.NEGATIVE_D:
+                case Opcode.IADD:
+                case Opcode.ISUB:
+                case Opcode.IMUL:
+                case Opcode.IDIV:
+                case Opcode.ILT:
+                case Opcode.ILE:
+                case Opcode.IGT:
+                case Opcode.IGE:
+                case Opcode.INEG:
+                case Opcode.DADD:
+                case Opcode.DSUB:
+                case Opcode.DMUL:
+                case Opcode.DDIV:
+                case Opcode.DLT:
+                case Opcode.DLE:
+                case Opcode.DGT:
+                case Opcode.DGE:
+                case Opcode.DNEG:
+                    top = operate(context, opcodes, pos - 1, top, operand);
+                    break;
+                case Opcode.LOD_LOD_OPR: {
+                    int address = base + operand;
+                    stack[++top] = stack[address];
+                    values[top] = values[address];
+                    address = base + operands[pos];
+                    stack[++top] = stack[address];
+                    values[top] = values[address];
+                    top = operate(context, opcodes, pos + 1, top, operands[pos + 1]);
+                    pos += 2;
+                    break;
+                }
+                case Opcode.LOD_LIT_OPR: {
+                    int address = base + operand;
+                    stack[++top] = stack[address];
+                    values[top] = values[address];
+                    Tag.unbox(stack, values, ++top, constants[operands[pos]]);
+                    top = operate(context, opcodes, pos + 1, top, operands[pos + 1]);
+                    pos += 2;
+                    break;
+                }
+                case Opcode.LOD_LOD_OPR_JPF: {
+                    int address = base + operand;
+                    stack[++top] = stack[address];
+                    values[top] = values[address];
+                    address = base + operands[pos];
+                    stack[++top] = stack[address];
+                    values[top] = values[address];
+                    top = operate(context, opcodes, pos + 1, top, operands[pos + 1]);
+                    pos = Tag.isTrue(stack, values, top--) ? pos + 3 : jump(function, pos, operands[pos + 2]);
+                    break;
+                }
+                case Opcode.LOD_LIT_OPR_JPF: {
+                    int address = base + operand;
+                    stack[++top] = stack[address];
+                    values[top] = values[address];
+                    Tag.unbox(stack, values, ++top, constants[operands[pos]]);
+                    top = operate(context, opcodes, pos + 1, top, operands[pos + 1]);
+                    pos = Tag.isTrue(stack, values, top--) ? pos + 3 : jump(function, pos, operands[pos + 2]);
+                    break;
+                }
+                case Opcode.LOD_LOD_OPR_JPT: {
+                    int address = base + operand;
+                    stack[++top] = stack[address];
+                    values[top] = values[address];
+                    address = base + operands[pos];
+                    stack[++top] = stack[address];
+                    values[top] = values[address];
+                    top = operate(context, opcodes, pos + 1, top, operands[pos + 1]);
+                    pos = Tag.isTrue(stack, values, top--) ? jump(function, pos, operands[pos + 2]) : pos + 3;
+                    break;
+                }
+                case Opcode.LOD_LIT_OPR_JPT: {
+                    int address = base + operand;
+                    stack[++top] = stack[address];
+                    values[top] = values[address];
+                    Tag.unbox(stack, values, ++top, constants[operands[pos]]);
+                    top = operate(context, opcodes, pos + 1, top, operands[pos + 1]);
+                    pos = Tag.isTrue(stack, values, top--) ? jump(function, pos, operands[pos + 2]) : pos + 3;
+                    break;
+                }
+                case Opcode.INC_LOCAL: {
+                    int address = base + operands[pos];
+                    Object constant = constants[operand];
+                    if (stack[address] == Tag.INT && constant instanceof Integer) {
+                        values[address] = (int) values[address] + (int) constant;
                     } else {
-                        --top;
+                        Tag.unbox(stack, values, ++top, constant);
+                        stack[++top] = stack[address];
+                        values[top] = values[address];
+                        top = operate(context, top, PLUS);
+                        stack[address] = stack[top];
+                        values[address] = values[top--];
                     }
+                    pos += 3;
                     break;
                 }
-                case OPR: {
-                    OprAdapter oprAdapter = OprAdapterFactory.getInstance((Opr) operand);
-                    int num = oprAdapter.getOperandNumber();
-                    top = top - num + 1;
-                    stack[top] = oprAdapter.operate(stack, top);
+                case Opcode.STO_JMP: {
+                    int address = base + operand;
+                    stack[address] = stack[top];
+                    values[address] = values[top--];
+                    pos = jump(function, pos, operands[pos]);
                     break;
                 }
                 default:
-                    throw new ZlangRuntimeException(ZlangRuntimeError.UNKNOWN_OPERATION, fct.toString());
+                    throw new ZlangRuntimeException(ZlangRuntimeError.UNKNOWN_OPERATION, Opcode.getName(opcode));
             }
         } while (pos != -1);
         return returnValue;
     }
 
-    private static class Frame {
-        final int base;
-        final int pos;
-        final CopyOnWriteArrayList<Code> codes;
-        final Library dependency;
-        final boolean isFunction;
-        Frame(int base, int pos, CopyOnWriteArrayList<Code> codes, Library dependency, boolean isFunction) {
-            this.base = base;
-            this.pos = pos;
-            this.codes = codes;
-            this.dependency =  dependency;
-            this.isFunction = isFunction;
+    /**
+     * Returns the target of a taken jump from the code before pos. A jump backwards closes a loop, so it makes
+     * the function hotter for {@link Jit}, whichever kind of jump it is.
+     */
+    static int jump(CompiledFunction function, int pos, int target) {
+        if (target < pos && function.library.isJitEnabled()) {
+            Jit.onBackEdge(function);
+        }
+        return target;
+    }
+
+    /**
+     * Applies the operator to the operands on the top of the stack. EQUAL and NOT_EQUAL are applied to the tagged
+     * values directly, and the other operators are applied through {@link OprAdapter}.
+     *
+     * @return the new top
+     */
+    static int operate(ExecutionContext context, int top, int opr) {
+        Object[] stack = context.stack;
+        long[] values = context.primitives;
+        if (opr == EQUAL || opr == NOT_EQUAL) {
+            boolean equal = Tag.equal(stack, values, top - 1, top);
+            stack[--top] = Tag.BOOLEAN;
+            values[top] = equal == (opr == EQUAL) ? 1 : 0;
+            return top;
+        }
+        OprAdapter oprAdapter = OprAdapterFactory.getInstance(opr);
+        int operandNumber = oprAdapter.getOperandNumber();
+        top = top - operandNumber + 1;
+        Object[] operands = context.operands;
+        for (int i = 0; i < operandNumber; ++i) {
+            operands[i] = Tag.box(stack, values, top + i);
+        }
+        Tag.unbox(stack, values, top, oprAdapter.operate(operands, 0));
+        return top;
+    }
+
+    /**
+     * Applies the operator of the OPR instruction at the specified index, which is executed on its own or as part
+     * of a superinstruction. An OPR is quickened according to the operands it meets, and a quickened instruction
+     * runs as its typed form if the tags of the operands match, or falls back to OPR_GENERIC otherwise. A typed
+     * instruction checks nothing.
+     *
+     * @return the new top
+     */
+    private static int operate(ExecutionContext context, int[] opcodes, int index, int top, int opr) {
+        Object[] stack = context.stack;
+        long[] values = context.primitives;
+        int opcode = opcodes[index];
+        if (opcode == Opcode.OPR) {
+            if (OprAdapterFactory.getInstance(opr).getOperandNumber() == 2) {
+                opcode = Opcode.quicken(opr, stack[top - 1], stack[top]);
+            } else {
+                opcode = Opcode.quicken(opr, stack[top]);
+            }
+            opcodes[index] = opcode;
+        }
+        if (opcode >= Opcode.PLUS_II && opcode <= Opcode.NEGATIVE_D) {
+            Object tag = opcode <= Opcode.GREATER_EQUAL_II || opcode == Opcode.NEGATIVE_I ? Tag.INT : Tag.DOUBLE;
+            if (stack[top] != tag || opcode < Opcode.NEGATIVE_I && stack[top - 1] != tag) {
+                opcodes[index] = Opcode.OPR_GENERIC;
+                return operate(context, top, opr);
+            }
+            opcode = Opcode.typed(opr, (Tag) tag);
+        }
+        switch (opcode) {
+            case Opcode.IADD:
+                --top;
+                values[top] = (int) values[top] + (int) values[top + 1];
+                return top;
+            case Opcode.ISUB:
+                --top;
+                values[top] = (int) values[top] - (int) values[top + 1];
+                return top;
+            case Opcode.IMUL:
+                --top;
+                values[top] = (int) values[top] * (int) values[top + 1];
+                return top;
+            case Opcode.IDIV:
+                --top;
+                values[top] = (int) values[top] / (int) values[top + 1];
+                return top;
+            case Opcode.ILT:
+                stack[--top] = Tag.BOOLEAN;
+                values[top] = (int) values[top] < (int) values[top + 1] ? 1 : 0;
+                return top;
+            case Opcode.ILE:
+                stack[--top] = Tag.BOOLEAN;
+                values[top] = (int) values[top] <= (int) values[top + 1] ? 1 : 0;
+                return top;
+            case Opcode.IGT:
+                stack[--top] = Tag.BOOLEAN;
+                values[top] = (int) values[top] > (int) values[top + 1] ? 1 : 0;
+                return top;
+            case Opcode.IGE:
+                stack[--top] = Tag.BOOLEAN;
+                values[top] = (int) values[top] >= (int) values[top + 1] ? 1 : 0;
+                return top;
+            case Opcode.INEG:
+                values[top] = -(int) values[top];
+                return top;
+            case Opcode.DADD:
+                --top;
+                values[top] = Double.doubleToRawLongBits(Double.longBitsToDouble(values[top])
+                        + Double.longBitsToDouble(values[top + 1]));
+                return top;
+            case Opcode.DSUB:
+                --top;
+                values[top] = Double.doubleToRawLongBits(Double.longBitsToDouble(values[top])
+                        - Double.longBitsToDouble(values[top + 1]));
+                return top;
+            case Opcode.DMUL:
+                --top;
+                values[top] = Double.doubleToRawLongBits(Double.longBitsToDouble(values[top])
+                        * Double.longBitsToDouble(values[top + 1]));
+                return top;
+            case Opcode.DDIV:
+                --top;
+                values[top] = Double.doubleToRawLongBits(Double.longBitsToDouble(values[top])
+                        / Double.longBitsToDouble(values[top + 1]));
+                return top;
+            case Opcode.DLT:
+                stack[--top] = Tag.BOOLEAN;
+                values[top] = Double.longBitsToDouble(values[top])
+                        < Double.longBitsToDouble(values[top + 1]) ? 1 : 0;
+                return top;
+            case Opcode.DLE:
+                stack[--top] = Tag.BOOLEAN;
+                values[top] = Double.longBitsToDouble(values[top])
+                        <= Double.longBitsToDouble(values[top + 1]) ? 1 : 0;
+                return top;
+            case Opcode.DGT:
+                stack[--top] = Tag.BOOLEAN;
+                values[top] = Double.longBitsToDouble(values[top])
+                        > Double.longBitsToDouble(values[top + 1]) ? 1 : 0;
+                return top;
+            case Opcode.DGE:
+                stack[--top] = Tag.BOOLEAN;
+                values[top] = Double.longBitsToDouble(values[top])
+                        >= Double.longBitsToDouble(values[top + 1]) ? 1 : 0;
+                return top;
+            case Opcode.DNEG:
+                values[top] = Double.doubleToRawLongBits(-Double.longBitsToDouble(values[top]));
+                return top;
+            default:
+                return operate(context, top, opr);
+        }
+    }
+
+    private static class BatchTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        final Library library;
+
+        final String functionName;
+
+        final CompiledFunction function;
+
+        final Object[][] inputs;
+
+        final int from;
+
+        final int to;
+
+        final int taskSize;
+
+        final ResultSink sink;
+
+        final AtomicInteger tasks;
+
+        BatchTask(Library library, String functionName, CompiledFunction function, Object[][] inputs,
+                  int from, int to, int taskSize, ResultSink sink, AtomicInteger tasks) {
+            this.library = library;
+            this.functionName = functionName;
+            this.function = function;
+            this.inputs = inputs;
+            this.from = from;
+            this.to = to;
+            this.taskSize = taskSize;
+            this.sink = sink;
+            this.tasks = tasks;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= taskSize) {
+                tasks.incrementAndGet();
+                executeBatch(library, functionName, function, inputs, from, to, sink);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new BatchTask(library, functionName, function, inputs, from, middle, taskSize, sink, tasks),
+                        new BatchTask(library, functionName, function, inputs, middle, to, taskSize, sink, tasks));
+            }
         }
     }
 }
@@ -38,4 +38,8 @@ enum Fct {
     PROC,
     FUN_RETURN,
     VOID_RETURN,
+    TAIL_CALL, // FUN in tail position, always followed by FUN_RETURN
+    JPT, // Generated by Optimizer only
+    OPR_INT, // OPR whose operands are proven ints, generated by TypeInference only
+    OPR_DOUBLE, // OPR whose operands are proven doubles, generated by TypeInference only
 }
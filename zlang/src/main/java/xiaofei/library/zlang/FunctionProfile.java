@@ -0,0 +1,120 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+/**
+ * The profile of a Zlang function or a Java function recorded by a {@link Profiler}.
+ */
+
+public final class FunctionProfile {
+
+    private final Library library;
+
+    private final String functionName;
+
+    private final int parameterNumber;
+
+    private final boolean javaFunction;
+
+    long invocationCount;
+
+    long inclusiveNanos;
+
+    long exclusiveNanos;
+
+    /**
+     * The hit count of each instruction, or null for a Java function.
+     */
+    final long[] hitCounts;
+
+    FunctionProfile(Library library, String functionName, int parameterNumber, boolean javaFunction, int size) {
+        this.library = library;
+        this.functionName = functionName;
+        this.parameterNumber = parameterNumber;
+        this.javaFunction = javaFunction;
+        this.hitCounts = javaFunction ? null : new long[size];
+    }
+
+    FunctionProfile(FunctionProfile profile) {
+        this.library = profile.library;
+        this.functionName = profile.functionName;
+        this.parameterNumber = profile.parameterNumber;
+        this.javaFunction = profile.javaFunction;
+        this.invocationCount = profile.invocationCount;
+        this.inclusiveNanos = profile.inclusiveNanos;
+        this.exclusiveNanos = profile.exclusiveNanos;
+        this.hitCounts = profile.hitCounts == null ? null : profile.hitCounts.clone();
+    }
+
+    /**
+     * The library of the Zlang function, or null for a Java function.
+     */
+    public Library getLibrary() {
+        return library;
+    }
+
+    public String getFunctionName() {
+        return functionName;
+    }
+
+    public int getParameterNumber() {
+        return parameterNumber;
+    }
+
+    public boolean isJavaFunction() {
+        return javaFunction;
+    }
+
+    public long getInvocationCount() {
+        return invocationCount;
+    }
+
+    /**
+     * The time spent in the function and its callees. The time of a recursive call is counted only once.
+     */
+    public long getInclusiveNanos() {
+        return inclusiveNanos;
+    }
+
+    /**
+     * The time spent in the function itself.
+     */
+    public long getExclusiveNanos() {
+        return exclusiveNanos;
+    }
+
+    /**
+     * Returns the number of times each instruction was executed, indexed like the listing of the function.
+     * Returns null for a Java function.
+     */
+    public long[] getHitCounts() {
+        return hitCounts == null ? null : hitCounts.clone();
+    }
+
+    String getLabel() {
+        return functionName + "/" + parameterNumber;
+    }
+
+    @Override
+    public String toString() {
+        return getLabel() + " invocations: " + invocationCount + " inclusive: " + inclusiveNanos
+                + "ns exclusive: " + exclusiveNanos + "ns";
+    }
+}
@@ -0,0 +1,456 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package xiaofei.library.zlang;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Compiles the blocks of a {@link ClosureFunction} into method handles for {@link Engine#METHOD_HANDLE}.
+ *
+ * Each node becomes a static method below, to which the handles of its children and its constants are bound
+ * with {@link MethodHandles#insertArguments}. The statements of a block are chained with
+ * {@link MethodHandles#foldArguments} and a branch becomes {@link MethodHandles#guardWithTest}, so a block is
+ * a single handle from the frame to the index of the next block. Java 7 has no loop combinator, so the blocks
+ * are still dispatched by the loop of {@link #run}.
+ *
+ * A call takes several times more Java stack than one of {@link Engine#CLOSURE}, and the deep calls are run by
+ * the stack engine, see {@link ClosureExecutor#call}.
+ */
+
+final class HandleCompiler {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final MethodType STATEMENT = MethodType.methodType(void.class, ClosureFrame.class);
+
+    private static final int PLUS = Opr.PLUS.ordinal();
+
+    private static final int MINUS = Opr.MINUS.ordinal();
+
+    private static final int TIMES = Opr.TIMES.ordinal();
+
+    private static final int DIVIDE = Opr.DIVIDE.ordinal();
+
+    private static final int LESS = Opr.LESS.ordinal();
+
+    private static final int LESS_EQUAL = Opr.LESS_EQUAL.ordinal();
+
+    private static final int GREATER = Opr.GREATER.ordinal();
+
+    private static final int NEGATIVE = Opr.NEGATIVE.ordinal();
+
+    private static final int NOT = Opr.NOT.ordinal();
+
+    private static final MethodHandle LITERAL = find(Object.class, "literal", Object.class, long.class);
+
+    private static final MethodHandle LOAD = find(Object.class, "load", int.class);
+
+    private static final MethodHandle STORE = find(Object.class, "store", int.class, MethodHandle.class);
+
+    private static final MethodHandle ARRAY_LOAD =
+            find(Object.class, "arrayLoad", int.class, MethodHandle.class, int.class);
+
+    private static final MethodHandle ARRAY_LOAD_N =
+            find(Object.class, "arrayLoad", int.class, MethodHandle[].class, int.class);
+
+    private static final MethodHandle ARRAY_STORE =
+            find(Object.class, "arrayStore", int.class, MethodHandle[].class, MethodHandle.class, int.class);
+
+    private static final MethodHandle PLUS_HANDLE =
+            find(Object.class, "plus", MethodHandle.class, MethodHandle.class);
+
+    private static final MethodHandle MINUS_HANDLE =
+            find(Object.class, "minus", MethodHandle.class, MethodHandle.class);
+
+    private static final MethodHandle TIMES_HANDLE =
+            find(Object.class, "times", MethodHandle.class, MethodHandle.class);
+
+    private static final MethodHandle DIVIDE_HANDLE =
+            find(Object.class, "divide", MethodHandle.class, MethodHandle.class);
+
+    private static final MethodHandle COMPARISON =
+            find(Object.class, "compare", int.class, MethodHandle.class, MethodHandle.class);
+
+    private static final MethodHandle BINARY =
+            find(Object.class, "operate", int.class, MethodHandle.class, MethodHandle.class);
+
+    private static final MethodHandle UNARY = find(Object.class, "operate", int.class, MethodHandle.class);
+
+    private static final MethodHandle SHORT_CIRCUIT =
+            find(Object.class, "shortCircuit", int.class, boolean.class, MethodHandle.class, MethodHandle.class);
+
+    private static final MethodHandle CALL = find(Object.class, "call",
+            Library.class, CallSite.class, MethodHandle[].class, int.class, boolean.class);
+
+    private static final MethodHandle IS_TRUE = find(boolean.class, "isTrue", MethodHandle.class);
+
+    private static final MethodHandle RETURN = find(int.class, "returnValue", MethodHandle.class);
+
+    private static final MethodHandle VOID_RETURN = find(int.class, "voidReturn");
+
+    private static final MethodHandle TAIL_CALL = find(int.class, "tailCall",
+            Library.class, CallSite.class, MethodHandle[].class, int.class);
+
+    private HandleCompiler() {}
+
+    /**
+     * Finds the static method below whose parameters are followed by the frame.
+     */
+    private static MethodHandle find(Class<?> returnType, String name, Class<?>... parameterTypes) {
+        Class<?>[] types = new Class<?>[parameterTypes.length + 1];
+        System.arraycopy(parameterTypes, 0, types, 0, parameterTypes.length);
+        types[parameterTypes.length] = ClosureFrame.class;
+        try {
+            return LOOKUP.findStatic(HandleCompiler.class, name, MethodType.methodType(returnType, types));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle[] compile(ClosureFunction.Block[] blocks) {
+        MethodHandle[] result = new MethodHandle[blocks.length];
+        for (int i = 0; i < blocks.length; ++i) {
+            MethodHandle handle = compile(blocks[i].terminator);
+            ClosureNode[] statements = blocks[i].statements;
+            for (int j = statements.length - 1; j >= 0; --j) {
+                handle = MethodHandles.foldArguments(handle, compile(statements[j]).asType(STATEMENT));
+            }
+            result[i] = handle;
+        }
+        return result;
+    }
+
+    private static MethodHandle compile(ClosureFunction.Terminator terminator) {
+        if (terminator instanceof ClosureFunction.Jump) {
+            return next(((ClosureFunction.Jump) terminator).target);
+        } else if (terminator instanceof ClosureFunction.Branch) {
+            ClosureFunction.Branch branch = (ClosureFunction.Branch) terminator;
+            MethodHandle test = MethodHandles.insertArguments(IS_TRUE, 0, compile(branch.condition));
+            return branch.jumpIfTrue
+                    ? MethodHandles.guardWithTest(test, next(branch.target), next(branch.next))
+                    : MethodHandles.guardWithTest(test, next(branch.next), next(branch.target));
+        } else if (terminator instanceof ClosureFunction.Return) {
+            ClosureNode value = ((ClosureFunction.Return) terminator).value;
+            return value == null ? VOID_RETURN : MethodHandles.insertArguments(RETURN, 0, compile(value));
+        } else {
+            ClosureNode.Call call = ((ClosureFunction.TailCall) terminator).call;
+            return MethodHandles.insertArguments(TAIL_CALL, 0, call.library, call.callSite,
+                    compile(call.parameters), call.slot);
+        }
+    }
+
+    private static MethodHandle next(int index) {
+        return MethodHandles.dropArguments(MethodHandles.constant(int.class, index), 0, ClosureFrame.class);
+    }
+
+    private static MethodHandle[] compile(ClosureNode[] nodes) {
+        MethodHandle[] result = new MethodHandle[nodes.length];
+        for (int i = 0; i < nodes.length; ++i) {
+            result[i] = compile(nodes[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a handle which evaluates the node in the same way as {@link ClosureNode#evaluate(ClosureFrame)}.
+     */
+    private static MethodHandle compile(ClosureNode node) {
+        if (node instanceof ClosureNode.Literal) {
+            ClosureNode.Literal literal = (ClosureNode.Literal) node;
+            return MethodHandles.insertArguments(LITERAL, 0, literal.reference, literal.primitive);
+        } else if (node instanceof ClosureNode.Load) {
+            return MethodHandles.insertArguments(LOAD, 0, ((ClosureNode.Load) node).slot);
+        } else if (node instanceof ClosureNode.Store) {
+            ClosureNode.Store store = (ClosureNode.Store) node;
+            return MethodHandles.insertArguments(STORE, 0, store.slot, compile(store.value));
+        } else if (node instanceof ClosureNode.ArrayLoad) {
+            ClosureNode.ArrayLoad load = (ClosureNode.ArrayLoad) node;
+            return load.indices.length == 1
+                    ? MethodHandles.insertArguments(ARRAY_LOAD, 0, load.local, compile(load.indices[0]), load.slot)
+                    : MethodHandles.insertArguments(ARRAY_LOAD_N, 0, load.local, compile(load.indices), load.slot);
+        } else if (node instanceof ClosureNode.ArrayStore) {
+            ClosureNode.ArrayStore store = (ClosureNode.ArrayStore) node;
+            return MethodHandles.insertArguments(ARRAY_STORE, 0, store.local, compile(store.indices),
+                    compile(store.value), store.slot);
+        } else if (node instanceof ClosureNode.Arithmetic) {
+            ClosureNode.Arithmetic arithmetic = (ClosureNode.Arithmetic) node;
+            int opr = arithmetic.opr;
+            MethodHandle handle = opr == PLUS ? PLUS_HANDLE : opr == MINUS ? MINUS_HANDLE
+                    : opr == TIMES ? TIMES_HANDLE : DIVIDE_HANDLE;
+            return MethodHandles.insertArguments(handle, 0, compile(arithmetic.left), compile(arithmetic.right));
+        } else if (node instanceof ClosureNode.Comparison) {
+            ClosureNode.Comparison comparison = (ClosureNode.Comparison) node;
+            return MethodHandles.insertArguments(COMPARISON, 0, comparison.opr, compile(comparison.left),
+                    compile(comparison.right));
+        } else if (node instanceof ClosureNode.Binary) {
+            ClosureNode.Binary binary = (ClosureNode.Binary) node;
+            return MethodHandles.insertArguments(BINARY, 0, binary.opr, compile(binary.left),
+                    compile(binary.right));
+        } else if (node instanceof ClosureNode.Unary) {
+            ClosureNode.Unary unary = (ClosureNode.Unary) node;
+            return MethodHandles.insertArguments(UNARY, 0, unary.opr, compile(unary.operand));
+        } else if (node instanceof ClosureNode.ShortCircuit) {
+            ClosureNode.ShortCircuit shortCircuit = (ClosureNode.ShortCircuit) node;
+            return MethodHandles.insertArguments(SHORT_CIRCUIT, 0, shortCircuit.opr, shortCircuit.isAnd,
+                    compile(shortCircuit.left), compile(shortCircuit.right));
+        } else {
+            ClosureNode.Call call = (ClosureNode.Call) node;
+            return MethodHandles.insertArguments(CALL, 0, call.library, call.callSite, compile(call.parameters),
+                    call.slot, call.isFunction);
+        }
+    }
+
+    /**
+     * Runs the blocks from the first one until the function returns.
+     *
+     * @return the result, or {@link ClosureExecutor#TAIL_CALLED} if the function has made a tail call
+     */
+    static Object run(ClosureFrame frame, MethodHandle[] handles) {
+        int index = 0;
+        try {
+            while (true) {
+                index = (int) handles[index].invokeExact(frame);
+                if (index < 0) {
+                    return index == ClosureFunction.RETURN ? frame.result : ClosureExecutor.TAIL_CALLED;
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            // The methods below only throw unchecked exceptions.
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static Object literal(Object reference, long primitive, ClosureFrame frame) {
+        frame.value = primitive;
+        return reference;
+    }
+
+    private static Object load(int slot, ClosureFrame frame) {
+        ExecutionContext context = frame.context;
+        int index = frame.base + slot;
+        frame.value = context.primitives[index];
+        return context.stack[index];
+    }
+
+    private static Object store(int slot, MethodHandle value, ClosureFrame frame) throws Throwable {
+        Object reference = (Object) value.invokeExact(frame);
+        ExecutionContext context = frame.context;
+        int index = frame.base + slot;
+        context.stack[index] = reference;
+        context.primitives[index] = frame.value;
+        return null;
+    }
+
+    private static void evaluate(MethodHandle[] handles, int first, ClosureFrame frame) throws Throwable {
+        for (int i = 0; i < handles.length; ++i) {
+            Object reference = (Object) handles[i].invokeExact(frame);
+            ExecutionContext context = frame.context;
+            context.stack[first + i] = reference;
+            context.primitives[first + i] = frame.value;
+        }
+    }
+
+    private static Object arrayLoad(int local, MethodHandle index, int slot, ClosureFrame frame) throws Throwable {
+        Object reference = (Object) index.invokeExact(frame);
+        return ClosureNode.load(frame, local, frame.base + slot, reference, frame.value);
+    }
+
+    private static Object arrayLoad(int local, MethodHandle[] indices, int slot, ClosureFrame frame)
+            throws Throwable {
+        int first = frame.base + slot;
+        evaluate(indices, first, frame);
+        return ClosureNode.load(frame, local, first, indices.length);
+    }
+
+    private static Object arrayStore(int local, MethodHandle[] indices, MethodHandle value, int slot,
+                                     ClosureFrame frame) throws Throwable {
+        int first = frame.base + slot;
+        evaluate(indices, first, frame);
+        Object reference = (Object) value.invokeExact(frame);
+        ClosureNode.store(frame, local, first, indices.length, reference, frame.value);
+        return null;
+    }
+
+    private static Object plus(MethodHandle left, MethodHandle right, ClosureFrame frame) throws Throwable {
+        Object r1 = (Object) left.invokeExact(frame);
+        long p1 = frame.value;
+        Object r2 = (Object) right.invokeExact(frame);
+        long p2 = frame.value;
+        if (r1 == Tag.INT && r2 == Tag.INT) {
+            frame.value = (int) p1 + (int) p2;
+            return Tag.INT;
+        } else if (r1 == Tag.DOUBLE && r2 == Tag.DOUBLE) {
+            frame.value = Double.doubleToRawLongBits(Double.longBitsToDouble(p1) + Double.longBitsToDouble(p2));
+            return Tag.DOUBLE;
+        }
+        return ClosureNode.operate(frame, PLUS, r1, p1, r2, p2);
+    }
+
+    private static Object minus(MethodHandle left, MethodHandle right, ClosureFrame frame) throws Throwable {
+        Object r1 = (Object) left.invokeExact(frame);
+        long p1 = frame.value;
+        Object r2 = (Object) right.invokeExact(frame);
+        long p2 = frame.value;
+        if (r1 == Tag.INT && r2 == Tag.INT) {
+            frame.value = (int) p1 - (int) p2;
+            return Tag.INT;
+        } else if (r1 == Tag.DOUBLE && r2 == Tag.DOUBLE) {
+            frame.value = Double.doubleToRawLongBits(Double.longBitsToDouble(p1) - Double.longBitsToDouble(p2));
+            return Tag.DOUBLE;
+        }
+        return ClosureNode.operate(frame, MINUS, r1, p1, r2, p2);
+    }
+
+    private static Object times(MethodHandle left, MethodHandle right, ClosureFrame frame) throws Throwable {
+        Object r1 = (Object) left.invokeExact(frame);
+        long p1 = frame.value;
+        Object r2 = (Object) right.invokeExact(frame);
+        long p2 = frame.value;
+        if (r1 == Tag.INT && r2 == Tag.INT) {
+            frame.value = (int) p1 * (int) p2;
+            return Tag.INT;
+        } else if (r1 == Tag.DOUBLE && r2 == Tag.DOUBLE) {
+            frame.value = Double.doubleToRawLongBits(Double.longBitsToDouble(p1) * Double.longBitsToDouble(p2));
+            return Tag.DOUBLE;
+        }
+        return ClosureNode.operate(frame, TIMES, r1, p1, r2, p2);
+    }
+
+    private static Object divide(MethodHandle left, MethodHandle right, ClosureFrame frame) throws Throwable {
+        Object r1 = (Object) left.invokeExact(frame);
+        long p1 = frame.value;
+        Object r2 = (Object) right.invokeExact(frame);
+        long p2 = frame.value;
+        if (r1 == Tag.INT && r2 == Tag.INT) {
+            frame.value = (int) p1 / (int) p2;
+            return Tag.INT;
+        } else if (r1 == Tag.DOUBLE && r2 == Tag.DOUBLE) {
+            frame.value = Double.doubleToRawLongBits(Double.longBitsToDouble(p1) / Double.longBitsToDouble(p2));
+            return Tag.DOUBLE;
+        }
+        return ClosureNode.operate(frame, DIVIDE, r1, p1, r2, p2);
+    }
+
+    private static Object compare(int opr, MethodHandle left, MethodHandle right, ClosureFrame frame)
+            throws Throwable {
+        Object r1 = (Object) left.invokeExact(frame);
+        long p1 = frame.value;
+        Object r2 = (Object) right.invokeExact(frame);
+        long p2 = frame.value;
+        boolean result;
+        if (r1 == Tag.INT && r2 == Tag.INT) {
+            int a = (int) p1;
+            int b = (int) p2;
+            result = opr == LESS ? a < b : opr == LESS_EQUAL ? a <= b : opr == GREATER ? a > b : a >= b;
+        } else if (r1 == Tag.DOUBLE && r2 == Tag.DOUBLE) {
+            double a = Double.longBitsToDouble(p1);
+            double b = Double.longBitsToDouble(p2);
+            result = opr == LESS ? a < b : opr == LESS_EQUAL ? a <= b : opr == GREATER ? a > b : a >= b;
+        } else {
+            return ClosureNode.operate(frame, opr, r1, p1, r2, p2);
+        }
+        frame.value = result ? 1 : 0;
+        return Tag.BOOLEAN;
+    }
+
+    private static Object operate(int opr, MethodHandle left, MethodHandle right, ClosureFrame frame)
+            throws Throwable {
+        Object r1 = (Object) left.invokeExact(frame);
+        long p1 = frame.value;
+        Object r2 = (Object) right.invokeExact(frame);
+        return ClosureNode.operate(frame, opr, r1, p1, r2, frame.value);
+    }
+
+    private static Object operate(int opr, MethodHandle operand, ClosureFrame frame) throws Throwable {
+        Object reference = (Object) operand.invokeExact(frame);
+        long primitive = frame.value;
+        if (opr == NEGATIVE) {
+            if (reference == Tag.INT) {
+                frame.value = -(int) primitive;
+                return Tag.INT;
+            } else if (reference == Tag.DOUBLE) {
+                frame.value = Double.doubleToRawLongBits(-Double.longBitsToDouble(primitive));
+                return Tag.DOUBLE;
+            }
+        } else if (opr == NOT && reference == Tag.BOOLEAN) {
+            frame.value = primitive != 0 ? 0 : 1;
+            return Tag.BOOLEAN;
+        }
+        return ClosureNode.operate(frame, opr, reference, primitive);
+    }
+
+    private static Object shortCircuit(int opr, boolean isAnd, MethodHandle left, MethodHandle right,
+                                       ClosureFrame frame) throws Throwable {
+        Object r1 = (Object) left.invokeExact(frame);
+        long p1 = frame.value;
+        if (Tag.isTrue(r1, p1) != isAnd) {
+            frame.value = p1;
+            return r1;
+        }
+        Object r2 = (Object) right.invokeExact(frame);
+        if (r2 == Tag.BOOLEAN) {
+            return r2;
+        }
+        return ClosureNode.operate(frame, opr, r1, p1, r2, frame.value);
+    }
+
+    private static Object call(Library library, CallSite callSite, MethodHandle[] parameters, int slot,
+                               boolean isFunction, ClosureFrame frame) throws Throwable {
+        int first = frame.base + slot;
+        evaluate(parameters, first, frame);
+        Object result = ClosureExecutor.call(frame, library, callSite, first, parameters.length, false);
+        if (isFunction && result == Executor.NO_RETURN_VALUE) {
+            throw new ZlangRuntimeException(ZlangRuntimeError.NO_RETURN_VALUE);
+        }
+        return result;
+    }
+
+    private static boolean isTrue(MethodHandle condition, ClosureFrame frame) throws Throwable {
+        Object reference = (Object) condition.invokeExact(frame);
+        return Tag.isTrue(reference, frame.value);
+    }
+
+    private static int returnValue(MethodHandle value, ClosureFrame frame) throws Throwable {
+        frame.result = (Object) value.invokeExact(frame);
+        return ClosureFunction.RETURN;
+    }
+
+    private static int voidReturn(ClosureFrame frame) {
+        frame.result = Executor.NO_RETURN_VALUE;
+        return ClosureFunction.RETURN;
+    }
+
+    private static int tailCall(Library library, CallSite callSite, MethodHandle[] parameters, int slot,
+                                ClosureFrame frame) throws Throwable {
+        int first = frame.base + slot;
+        evaluate(parameters, first, frame);
+        Object result = ClosureExecutor.call(frame, library, callSite, first, parameters.length, true);
+        if (result == ClosureExecutor.TAIL_CALLED) {
+            return ClosureFunction.TAIL_CALL;
+        } else if (result == Executor.NO_RETURN_VALUE) {
+            throw new ZlangRuntimeException(ZlangRuntimeError.NO_RETURN_VALUE);
+        }
+        frame.result = result;
+        return ClosureFunction.RETURN;
+    }
+}
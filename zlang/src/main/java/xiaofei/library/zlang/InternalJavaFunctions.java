@@ -110,6 +110,8 @@ class InternalJavaFunctions extends JavaLibrary {
                 new Reflection.StaticPublicFieldGetter(),
                 new Reflection.StaticFieldSetter(),
                 new Reflection.StaticPublicFieldSetter(),
+
+                new Parallel.ParallelFor(),
         };
     }
 
@@ -523,6 +525,39 @@ class InternalJavaFunctions extends JavaLibrary {
         }
     }
 
+    private static class Parallel {
+
+        /**
+         * Called by the code compiled from a parallel loop, with the {@link ParallelLoop} as the first argument.
+         */
+        private static class ParallelFor implements JavaFunction {
+            @Override
+            public boolean isVarArgs() {
+                return true;
+            }
+            @Override
+            public int getParameterNumber() {
+                return 4;
+            }
+
+            @Override
+            public String getFunctionName() {
+                return "_parallel_for";
+            }
+
+            @Override
+            public Object call(Object[] input) {
+                if (!(input[0] instanceof ParallelLoop)) {
+                    throw new ZlangRuntimeException(ZlangRuntimeError.ILLEGAL_ARGUMENT,
+                            input[0] + " is not a parallel loop.");
+                }
+                Object[] arguments = new Object[input.length - 1];
+                System.arraycopy(input, 1, arguments, 0, arguments.length);
+                return ((ParallelLoop) input[0]).run(arguments);
+            }
+        }
+    }
+
     private static class List {
 
         private static class NewList implements JavaFunction {
@@ -0,0 +1,570 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import xiaofei.library.zlang.IrFunction.Block;
+import xiaofei.library.zlang.IrFunction.Kind;
+import xiaofei.library.zlang.IrFunction.Terminator;
+import xiaofei.library.zlang.IrFunction.Value;
+
+/**
+ * Builds the {@link IrFunction} of the codes of a function.
+ *
+ * The codes are split into basic blocks at the jump targets and after the jumps and the returns, and the
+ * unreachable blocks are dropped. The blocks are then filled in the order of the codes, where the operand stack is
+ * simulated with the values which are pushed. The values of the local variables are looked up with the algorithm
+ * of Braun et al., "Simple and Efficient Construction of Static Single Assignment Form": a block whose predecessors
+ * are not all filled gets incomplete phis, which are completed when the last predecessor is filled, and a phi
+ * whose inputs are all the same value or itself is replaced by that value.
+ */
+
+final class IrBuilder {
+
+    private final Fct[] fcts;
+
+    private final Object[] operands;
+
+    private final IrFunction function;
+
+    /**
+     * The first code of each block, the code after the last code of each block and the block starting at each code.
+     */
+    private final ArrayList<Integer> starts = new ArrayList<>();
+
+    private final ArrayList<Integer> ends = new ArrayList<>();
+
+    private final Block[] blockAt;
+
+    /**
+     * The last value assigned to each local variable in each block.
+     */
+    private Value[][] definitions;
+
+    private boolean[] filled;
+
+    private boolean[] sealed;
+
+    private ArrayList<ArrayList<Value>> incompletePhis;
+
+    private Value[] undefinedValues;
+
+    /**
+     * The operand stack of the block being filled.
+     */
+    private final ArrayList<Value> stack = new ArrayList<>();
+
+    /**
+     * The phis which use each phi of a variable.
+     */
+    private final IdentityHashMap<Value, ArrayList<Value>> phiUsers = new IdentityHashMap<>();
+
+    private IrBuilder(String functionName, int parameterNumber, ArrayList<Code> codes) {
+        int size = codes.size();
+        fcts = new Fct[size];
+        operands = new Object[size];
+        for (int i = 0; i < size; ++i) {
+            Code code = codes.get(i);
+            fcts[i] = code.getOpr();
+            operands[i] = code.getOperand();
+        }
+        if (size == 0 || fcts[0] != Fct.INT) {
+            throw new IllegalStateException("The function " + functionName + " does not start with INT.");
+        }
+        function = new IrFunction(functionName, parameterNumber, (Integer) operands[0]);
+        blockAt = new Block[size + 1];
+    }
+
+    static IrFunction build(String functionName, int parameterNumber, ArrayList<Code> codes) {
+        IrBuilder builder = new IrBuilder(functionName, parameterNumber, codes);
+        builder.split();
+        builder.fill();
+        builder.resolve();
+        return builder.function;
+    }
+
+    private static boolean endsBlock(Fct fct) {
+        switch (fct) {
+            case JMP:
+            case JPF:
+            case JPT:
+            case JPF_SC:
+            case JPT_SC:
+            case FUN_RETURN:
+            case VOID_RETURN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean fallsThrough(Fct fct) {
+        return fct != Fct.JMP && fct != Fct.FUN_RETURN && fct != Fct.VOID_RETURN;
+    }
+
+    private int target(int pc) {
+        int target = (Integer) operands[pc];
+        if (target <= 0 || target >= fcts.length) {
+            throw new IllegalStateException("Jump out of the function at " + pc);
+        }
+        return target;
+    }
+
+    /**
+     * Creates the reachable blocks and their edges.
+     */
+    private void split() {
+        int size = fcts.length;
+        boolean[] leaders = new boolean[size + 1];
+        leaders[1] = true;
+        for (int pc = 1; pc < size; ++pc) {
+            Fct fct = fcts[pc];
+            if (endsBlock(fct)) {
+                leaders[pc + 1] = true;
+                if (fct != Fct.FUN_RETURN && fct != Fct.VOID_RETURN) {
+                    leaders[target(pc)] = true;
+                }
+            }
+        }
+        // Find the reachable leaders.
+        boolean[] reachable = new boolean[size + 1];
+        ArrayDeque<Integer> worklist = new ArrayDeque<>();
+        reachable[1] = true;
+        worklist.add(1);
+        while (!worklist.isEmpty()) {
+            int pc = worklist.poll();
+            int end = pc;
+            while (!endsBlock(fcts[end]) && !leaders[end + 1]) {
+                if (++end >= size) {
+                    throw new IllegalStateException("The function " + function.functionName + " does not return.");
+                }
+            }
+            Fct fct = fcts[end];
+            if (fallsThrough(fct)) {
+                if (end + 1 >= size) {
+                    throw new IllegalStateException("The function " + function.functionName + " does not return.");
+                }
+                mark(end + 1, reachable, worklist);
+            }
+            if (endsBlock(fct) && fct != Fct.FUN_RETURN && fct != Fct.VOID_RETURN) {
+                mark(target(end), reachable, worklist);
+            }
+        }
+        Block entry = function.newBlock();
+        entry.terminator = Terminator.JUMP;
+        for (int pc = 1; pc < size; ++pc) {
+            if (leaders[pc] && reachable[pc]) {
+                blockAt[pc] = function.newBlock();
+                starts.add(pc);
+            }
+        }
+        entry.target = blockAt[1];
+        entry.target.predecessors.add(entry);
+        starts.add(0, 0);
+        ends.add(1);
+        for (int i = 1; i < function.blocks.size(); ++i) {
+            Block block = function.blocks.get(i);
+            int end = starts.get(i);
+            while (!leaders[end + 1]) {
+                ++end;
+            }
+            ends.add(end + 1);
+            Fct fct = fcts[end];
+            if (fallsThrough(fct)) {
+                block.next = blockAt[end + 1];
+                block.next.predecessors.add(block);
+            }
+            if (endsBlock(fct) && fct != Fct.FUN_RETURN && fct != Fct.VOID_RETURN) {
+                block.target = blockAt[target(end)];
+                block.target.predecessors.add(block);
+            }
+        }
+    }
+
+    private static void mark(int pc, boolean[] reachable, ArrayDeque<Integer> worklist) {
+        if (!reachable[pc]) {
+            reachable[pc] = true;
+            worklist.add(pc);
+        }
+    }
+
+    private void fill() {
+        int blockNumber = function.blocks.size();
+        definitions = new Value[blockNumber][function.localNumber];
+        filled = new boolean[blockNumber];
+        sealed = new boolean[blockNumber];
+        incompletePhis = new ArrayList<>(blockNumber);
+        for (int i = 0; i < blockNumber; ++i) {
+            incompletePhis.add(null);
+        }
+        undefinedValues = new Value[function.localNumber];
+        Block entry = function.blocks.get(0);
+        sealed[0] = true;
+        for (int i = 0; i < function.parameterNumber; ++i) {
+            Value parameter = function.newValue(Kind.PARAMETER, entry, IrFunction.EMPTY);
+            parameter.local = i;
+            entry.instructions.add(parameter);
+            definitions[0][i] = parameter;
+        }
+        finish(entry);
+        for (int i = 1; i < blockNumber; ++i) {
+            fill(function.blocks.get(i), starts.get(i), ends.get(i));
+        }
+    }
+
+    /**
+     * Marks the block filled and seals the successors whose predecessors are all filled.
+     */
+    private void finish(Block block) {
+        filled[block.index] = true;
+        for (Block successor : block.successors()) {
+            if (sealed[successor.index]) {
+                continue;
+            }
+            boolean ready = true;
+            for (Block predecessor : successor.predecessors) {
+                ready &= filled[predecessor.index];
+            }
+            if (ready) {
+                seal(successor);
+            }
+        }
+    }
+
+    private void fill(Block block, int start, int end) {
+        ArrayList<Value> stack = this.stack;
+        stack.clear();
+        block.entryStack = entryStack(block);
+        stack.addAll(Arrays.asList(block.entryStack));
+        for (int pc = start; pc < end; ++pc) {
+            Object operand = operands[pc];
+            switch (fcts[pc]) {
+                case LIT: {
+                    Value value = add(Kind.CONSTANT, block, IrFunction.EMPTY);
+                    value.constant = operand;
+                    stack.add(value);
+                    break;
+                }
+                case LOD:
+                    stack.add(readVariable((Integer) operand, block));
+                    break;
+                case STO: {
+                    Value value = add(Kind.COPY, block, new Value[]{pop(stack, pc)});
+                    value.local = (Integer) operand;
+                    writeVariable(value.local, block, value);
+                    break;
+                }
+                case ALOD: {
+                    int dimens = count(stack, block, pc);
+                    Value[] inputs = new Value[dimens + 1];
+                    inputs[0] = readVariable((Integer) operand, block);
+                    System.arraycopy(pop(stack, dimens, pc), 0, inputs, 1, dimens);
+                    stack.add(add(Kind.LOAD_ELEMENT, block, inputs));
+                    break;
+                }
+                case ASTO: {
+                    Value value = pop(stack, pc);
+                    int dimens = count(stack, block, pc);
+                    Value[] inputs = new Value[dimens + 2];
+                    inputs[0] = readVariable((Integer) operand, block);
+                    System.arraycopy(pop(stack, dimens, pc), 0, inputs, 1, dimens);
+                    inputs[dimens + 1] = value;
+                    add(Kind.STORE_ELEMENT, block, inputs);
+                    break;
+                }
+                case OPR: {
+                    Opr opr = (Opr) operand;
+                    int number = OprAdapterFactory.getInstance(opr).getOperandNumber();
+                    Value value = add(Kind.OPERATE, block, pop(stack, number, pc));
+                    value.opr = opr;
+                    stack.add(value);
+                    break;
+                }
+                case FUN:
+                case PROC:
+                case TAIL_CALL: {
+                    Fct fct = fcts[pc];
+                    Kind kind = fct == Fct.FUN ? Kind.CALL : fct == Fct.PROC ? Kind.PROCEDURE : Kind.TAIL_CALL;
+                    Value value = add(kind, block, pop(stack, count(stack, block, pc), pc));
+                    value.function = (String) operand;
+                    if (fct != Fct.PROC) {
+                        stack.add(value);
+                    }
+                    break;
+                }
+                case JMP:
+                    block.terminator = Terminator.JUMP;
+                    break;
+                case JPF:
+                case JPT:
+                    block.terminator = Terminator.BRANCH;
+                    block.jumpIfTrue = fcts[pc] == Fct.JPT;
+                    block.value = pop(stack, pc);
+                    break;
+                case JPF_SC:
+                case JPT_SC:
+                    block.terminator = Terminator.SHORT_CIRCUIT;
+                    block.jumpIfTrue = fcts[pc] == Fct.JPT_SC;
+                    if (stack.isEmpty()) {
+                        throw new IllegalStateException("Stack underflow at " + pc);
+                    }
+                    block.value = stack.get(stack.size() - 1);
+                    break;
+                case FUN_RETURN:
+                    block.terminator = Terminator.RETURN;
+                    block.value = pop(stack, pc);
+                    break;
+                case VOID_RETURN:
+                    block.terminator = Terminator.VOID_RETURN;
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected " + fcts[pc] + " at " + pc);
+            }
+        }
+        if (block.terminator == null) {
+            block.terminator = Terminator.JUMP;
+            block.target = block.next;
+            block.next = null;
+        }
+        block.exitStack = stack.isEmpty() ? IrFunction.EMPTY : stack.toArray(new Value[stack.size()]);
+        finish(block);
+    }
+
+    private Value add(Kind kind, Block block, Value[] inputs) {
+        Value value = function.newValue(kind, block, inputs);
+        block.instructions.add(value);
+        return value;
+    }
+
+    private static Value pop(ArrayList<Value> stack, int pc) {
+        if (stack.isEmpty()) {
+            throw new IllegalStateException("Stack underflow at " + pc);
+        }
+        return stack.remove(stack.size() - 1);
+    }
+
+    private static Value[] pop(ArrayList<Value> stack, int number, int pc) {
+        int size = stack.size();
+        if (number > size) {
+            throw new IllegalStateException("Stack underflow at " + pc);
+        }
+        List<Value> top = stack.subList(size - number, size);
+        Value[] values = top.toArray(new Value[number]);
+        top.clear();
+        return values;
+    }
+
+    /**
+     * Pops the literal parameter number of a call or dimensions of an array access, which is not kept as a value.
+     */
+    private static int count(ArrayList<Value> stack, Block block, int pc) {
+        Value value = pop(stack, pc);
+        if (value.kind != Kind.CONSTANT || value.block != block || !(value.constant instanceof Integer)) {
+            throw new IllegalStateException("The count is not a literal at " + pc);
+        }
+        block.instructions.remove(block.instructions.lastIndexOf(value));
+        return (Integer) value.constant;
+    }
+
+    /**
+     * Takes the values on the stack from the predecessors, with a phi for each slot whose values differ.
+     */
+    private Value[] entryStack(Block block) {
+        Value[] stack = null;
+        for (Block predecessor : block.predecessors) {
+            if (!filled[predecessor.index]) {
+                continue;
+            }
+            if (stack == null) {
+                stack = predecessor.exitStack;
+            } else if (stack.length != predecessor.exitStack.length) {
+                throw new IllegalStateException("Inconsistent stack depth at b" + block.index);
+            }
+        }
+        if (stack == null || stack.length == 0) {
+            return IrFunction.EMPTY;
+        }
+        if (!sealed[block.index]) {
+            throw new IllegalStateException("A value is on the stack at the loop b" + block.index);
+        }
+        Value[] result = stack.clone();
+        for (int slot = 0; slot < result.length; ++slot) {
+            Value[] inputs = new Value[block.predecessors.size()];
+            boolean same = true;
+            for (int i = 0; i < inputs.length; ++i) {
+                inputs[i] = block.predecessors.get(i).exitStack[slot];
+                same &= inputs[i] == inputs[0];
+            }
+            if (!same) {
+                Value phi = function.newValue(Kind.PHI, block, inputs);
+                phi.slot = slot;
+                block.phis.add(phi);
+                result[slot] = phi;
+            }
+        }
+        return result;
+    }
+
+    private void writeVariable(int local, Block block, Value value) {
+        definitions[block.index][local] = value;
+    }
+
+    private Value readVariable(int local, Block block) {
+        if (local < 0 || local >= function.localNumber) {
+            throw new IllegalStateException("The local variable " + local + " is out of range.");
+        }
+        Value value = definitions[block.index][local];
+        if (value != null) {
+            return value.resolve();
+        }
+        if (!sealed[block.index]) {
+            value = newPhi(local, block);
+            if (incompletePhis.get(block.index) == null) {
+                incompletePhis.set(block.index, new ArrayList<Value>());
+            }
+            incompletePhis.get(block.index).add(value);
+        } else if (block.predecessors.isEmpty()) {
+            value = undefined(local);
+        } else if (block.predecessors.size() == 1) {
+            value = readVariable(local, block.predecessors.get(0));
+        } else {
+            Value phi = newPhi(local, block);
+            writeVariable(local, block, phi);
+            value = addPhiInputs(phi);
+        }
+        writeVariable(local, block, value);
+        return value;
+    }
+
+    private Value newPhi(int local, Block block) {
+        Value phi = function.newValue(Kind.PHI, block, null);
+        phi.local = local;
+        block.phis.add(phi);
+        phiUsers.put(phi, new ArrayList<Value>());
+        return phi;
+    }
+
+    private Value undefined(int local) {
+        Value value = undefinedValues[local];
+        if (value == null) {
+            Block entry = function.blocks.get(0);
+            value = function.newValue(Kind.UNDEFINED, entry, IrFunction.EMPTY);
+            value.local = local;
+            entry.instructions.add(value);
+            undefinedValues[local] = value;
+        }
+        return value;
+    }
+
+    private Value addPhiInputs(Value phi) {
+        Block block = phi.block;
+        Value[] inputs = new Value[block.predecessors.size()];
+        for (int i = 0; i < inputs.length; ++i) {
+            inputs[i] = readVariable(phi.local, block.predecessors.get(i));
+            if (inputs[i].kind == Kind.PHI) {
+                phiUsers.get(inputs[i]).add(phi);
+            }
+        }
+        phi.inputs = inputs;
+        return removeTrivialPhi(phi);
+    }
+
+    private Value removeTrivialPhi(Value phi) {
+        Value same = null;
+        for (Value input : phi.inputs) {
+            input = input.resolve();
+            if (input == same || input == phi) {
+                continue;
+            }
+            if (same != null) {
+                return phi;
+            }
+            same = input;
+        }
+        if (same == null) {
+            same = undefined(phi.local);
+        }
+        phi.replacement = same;
+        // The phis which use the removed phi may have become trivial.
+        ArrayList<Value> users = phiUsers.remove(phi);
+        if (same.kind == Kind.PHI) {
+            phiUsers.get(same).addAll(users);
+        }
+        for (Value user : users) {
+            if (user != phi && user.replacement == null) {
+                removeTrivialPhi(user);
+            }
+        }
+        return same;
+    }
+
+    private void seal(Block block) {
+        ArrayList<Value> phis = incompletePhis.get(block.index);
+        sealed[block.index] = true;
+        if (phis != null) {
+            incompletePhis.set(block.index, null);
+            for (Value phi : phis) {
+                if (phi.replacement == null) {
+                    addPhiInputs(phi);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the removed phis with their replacements.
+     */
+    private void resolve() {
+        for (Block block : function.blocks) {
+            ArrayList<Value> phis = new ArrayList<>(block.phis.size());
+            for (Value phi : block.phis) {
+                if (phi.replacement == null) {
+                    phis.add(phi);
+                }
+            }
+            block.phis.clear();
+            block.phis.addAll(phis);
+        }
+        for (Block block : function.blocks) {
+            for (Value phi : block.phis) {
+                resolve(phi.inputs);
+            }
+            for (Value value : block.instructions) {
+                resolve(value.inputs);
+            }
+            resolve(block.entryStack);
+            resolve(block.exitStack);
+            if (block.value != null) {
+                block.value = block.value.resolve();
+            }
+        }
+    }
+
+    private static void resolve(Value[] values) {
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = values[i].resolve();
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+import java.util.ArrayList;
+
+/**
+ * The intermediate representation of a function, which is a control flow graph of basic blocks in static single
+ * assignment form. It is built from the codes of {@link Compiler} by {@link IrBuilder}, checked by
+ * {@link IrVerifier}, typed by {@link TypeInference} and turned back into codes by {@link IrGenerator}.
+ *
+ * A load of a local variable is a use of the value last assigned to it, and a variable which has different values
+ * on the incoming edges of a block gets a phi there. An assignment is kept as a {@link Kind#COPY} into the
+ * variable. All the values of a variable, which are its parameter, its copies, its phis and its undefined value,
+ * live in the variable, so no copies are needed for the phis when the codes are generated. The operand stack is
+ * only non-empty at the end of a block around a short circuit. Its slots are kept in {@link Block#exitStack} and
+ * {@link Block#entryStack}, with a phi for a slot whose values differ on the incoming edges.
+ */
+
+final class IrFunction {
+
+    enum Kind {
+        PARAMETER,
+        UNDEFINED, // The value of a local variable before its first assignment
+        CONSTANT,
+        COPY,
+        PHI,
+        OPERATE,
+        LOAD_ELEMENT, // The inputs are the array and the indexes
+        STORE_ELEMENT, // The inputs are the array, the indexes and the value
+        CALL,
+        PROCEDURE,
+        TAIL_CALL,
+    }
+
+    enum Terminator {
+        JUMP,
+        BRANCH, // JPF or JPT
+        SHORT_CIRCUIT, // JPF_SC or JPT_SC, which keep the condition on the stack
+        RETURN,
+        VOID_RETURN,
+    }
+
+    static final Value[] EMPTY = new Value[0];
+
+    final String functionName;
+
+    final int parameterNumber;
+
+    /**
+     * The number of local variables, including the parameters.
+     */
+    final int localNumber;
+
+    /**
+     * The blocks in the order of the codes. The first block is the entry, which has no codes and defines the
+     * parameters and the undefined values.
+     */
+    final ArrayList<Block> blocks = new ArrayList<>();
+
+    private int valueNumber;
+
+    IrFunction(String functionName, int parameterNumber, int localNumber) {
+        this.functionName = functionName;
+        this.parameterNumber = parameterNumber;
+        this.localNumber = localNumber;
+    }
+
+    Block newBlock() {
+        Block block = new Block(blocks.size());
+        blocks.add(block);
+        return block;
+    }
+
+    Value newValue(Kind kind, Block block, Value[] inputs) {
+        return new Value(valueNumber++, kind, block, inputs);
+    }
+
+    int getValueNumber() {
+        return valueNumber;
+    }
+
+    String dump() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(functionName).append('(').append(parameterNumber).append("), ")
+                .append(localNumber).append(" locals\n");
+        for (Block block : blocks) {
+            builder.append('b').append(block.index).append(':');
+            if (!block.predecessors.isEmpty()) {
+                builder.append(" <-");
+                for (Block predecessor : block.predecessors) {
+                    builder.append(" b").append(predecessor.index);
+                }
+            }
+            builder.append('\n');
+            if (block.entryStack.length > 0) {
+                builder.append("    stack").append(names(block.entryStack)).append('\n');
+            }
+            for (Value phi : block.phis) {
+                builder.append("    ").append(phi).append('\n');
+            }
+            for (Value value : block.instructions) {
+                builder.append("    ").append(value).append('\n');
+            }
+            if (block.exitStack.length > 0) {
+                builder.append("    exit").append(names(block.exitStack)).append('\n');
+            }
+            builder.append("    ").append(block.terminatorString()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static String names(Value[] values) {
+        StringBuilder builder = new StringBuilder();
+        for (Value value : values) {
+            builder.append(' ').append(value.name());
+        }
+        return builder.toString();
+    }
+
+    static final class Block {
+
+        final int index;
+
+        final ArrayList<Block> predecessors = new ArrayList<>();
+
+        final ArrayList<Value> phis = new ArrayList<>();
+
+        final ArrayList<Value> instructions = new ArrayList<>();
+
+        /**
+         * The values on the operand stack when the block is entered, from the bottom to the top.
+         */
+        Value[] entryStack = EMPTY;
+
+        /**
+         * The values left on the operand stack when the block is left, which is the entry stack of the successors.
+         */
+        Value[] exitStack = EMPTY;
+
+        Terminator terminator;
+
+        /**
+         * The condition of a branch or a short circuit, or the returned value.
+         */
+        Value value;
+
+        boolean jumpIfTrue;
+
+        Block target;
+
+        /**
+         * The successor of a branch or a short circuit when it does not jump.
+         */
+        Block next;
+
+        Block(int index) {
+            this.index = index;
+        }
+
+        Block[] successors() {
+            switch (terminator) {
+                case JUMP:
+                    return new Block[]{target};
+                case BRANCH:
+                case SHORT_CIRCUIT:
+                    return new Block[]{next, target};
+                default:
+                    return new Block[0];
+            }
+        }
+
+        String terminatorString() {
+            if (terminator == null) {
+                return "<no terminator>";
+            }
+            switch (terminator) {
+                case JUMP:
+                    return "jump b" + target.index;
+                case BRANCH:
+                    return (jumpIfTrue ? "jpt " : "jpf ") + value.name() + " b" + target.index + " else b" + next.index;
+                case SHORT_CIRCUIT:
+                    return (jumpIfTrue ? "jpt_sc " : "jpf_sc ") + value.name() + " b" + target.index
+                            + " else b" + next.index;
+                case RETURN:
+                    return "return " + value.name();
+                default:
+                    return "return";
+            }
+        }
+    }
+
+    static final class Value {
+
+        final int id;
+
+        final Kind kind;
+
+        final Block block;
+
+        Value[] inputs;
+
+        /**
+         * The local variable of a parameter, an undefined value, a copy or a phi of a variable, or -1.
+         */
+        int local = -1;
+
+        /**
+         * The stack slot of a phi of the operand stack, or -1.
+         */
+        int slot = -1;
+
+        Object constant;
+
+        Opr opr;
+
+        String function;
+
+        /**
+         * The type proven by {@link TypeInference}, which is {@link Tag#INT} or {@link Tag#DOUBLE}, or null if
+         * the value is dynamic or its type is not inferred.
+         */
+        Tag type;
+
+        /**
+         * The value which replaces a trivial phi while the function is built.
+         */
+        Value replacement;
+
+        Value(int id, Kind kind, Block block, Value[] inputs) {
+            this.id = id;
+            this.kind = kind;
+            this.block = block;
+            this.inputs = inputs;
+        }
+
+        Value resolve() {
+            Value value = this;
+            while (value.replacement != null) {
+                value = value.replacement;
+            }
+            return value;
+        }
+
+        /**
+         * Whether the value lives in the local variable {@link #local}.
+         */
+        boolean isVariable() {
+            return local >= 0;
+        }
+
+        boolean hasResult() {
+            return kind != Kind.STORE_ELEMENT && kind != Kind.PROCEDURE;
+        }
+
+        String name() {
+            return "v" + id;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            if (hasResult()) {
+                builder.append(name()).append(" = ");
+            }
+            builder.append(kind.name().toLowerCase());
+            switch (kind) {
+                case PARAMETER:
+                case UNDEFINED:
+                case COPY:
+                    builder.append(' ').append(local);
+                    break;
+                case PHI:
+                    builder.append(slot >= 0 ? " stack " + slot : " " + local);
+                    break;
+                case CONSTANT:
+                    builder.append(' ').append(constant instanceof String ? "\"" + constant + "\"" : constant);
+                    break;
+                case OPERATE:
+                    builder.append(' ').append(opr);
+                    break;
+                case CALL:
+                case PROCEDURE:
+                case TAIL_CALL:
+                    builder.append(' ').append(function);
+                    break;
+                default:
+                    break;
+            }
+            if (inputs == null) {
+                return builder.append(" <incomplete>").toString();
+            }
+            for (Value input : inputs) {
+                builder.append(' ').append(input == null ? "null" : input.name());
+            }
+            if (type != null) {
+                builder.append(" : ").append(type);
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,423 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import xiaofei.library.zlang.IrFunction.Block;
+import xiaofei.library.zlang.IrFunction.Kind;
+import xiaofei.library.zlang.IrFunction.Terminator;
+import xiaofei.library.zlang.IrFunction.Value;
+
+/**
+ * Generates the codes of an {@link IrFunction}, which are linked by {@link Linker}.
+ *
+ * The blocks are laid out in their order, and a jump to the next block is omitted. The values are emitted as
+ * expression trees: a value which is used once in its own block is computed where it is used, and the other
+ * values are computed in the order of the block as statements. A value of a variable is loaded from the
+ * variable, a constant is pushed where it is used, and any other value which is not computed where it is used is
+ * stored into a temporary variable after the local variables. The values on the stack at the start of a block are
+ * consumed in place. If the trees would change the order of the computations in a block, the value which comes
+ * too late is stored into a temporary variable and the function is generated again. An operator whose operands
+ * are typed by {@link TypeInference} is emitted as {@link Fct#OPR_INT} or {@link Fct#OPR_DOUBLE}.
+ */
+
+final class IrGenerator {
+
+    private final IrFunction function;
+
+    private final ArrayList<Code> codes = new ArrayList<>();
+
+    /**
+     * The number of uses of each value in its own block.
+     */
+    private final int[] uses;
+
+    /**
+     * Whether each value is used in another block, where it is not on the stack when the block is entered.
+     */
+    private final boolean[] usedOutside;
+
+    private final boolean[] spilled;
+
+    private final int[] temporaries;
+
+    private final boolean[] emitted;
+
+    private int temporaryNumber;
+
+    private final int[] blockStarts;
+
+    private final ArrayList<Code> jumps = new ArrayList<>();
+
+    private final ArrayList<Block> jumpTargets = new ArrayList<>();
+
+    /**
+     * The values on the stack while a block is generated, where null stands for a count.
+     */
+    private final ArrayList<Value> stack = new ArrayList<>();
+
+    /**
+     * The number of values at the bottom of the stack which were there when the block was entered.
+     */
+    private int carried;
+
+    /**
+     * The values of the block which are computed in order, and the number of them which have been computed.
+     */
+    private final ArrayList<Value> ordered = new ArrayList<>();
+
+    private int computed;
+
+    private IrGenerator(IrFunction function) {
+        this.function = function;
+        int valueNumber = function.getValueNumber();
+        uses = new int[valueNumber];
+        usedOutside = new boolean[valueNumber];
+        spilled = new boolean[valueNumber];
+        temporaries = new int[valueNumber];
+        emitted = new boolean[valueNumber];
+        blockStarts = new int[function.blocks.size()];
+        Arrays.fill(temporaries, -1);
+        countUses();
+    }
+
+    static ArrayList<Code> generate(IrFunction function) {
+        IrGenerator generator = new IrGenerator(function);
+        while (!generator.run()) {
+            // A value has been spilled, try again.
+        }
+        return generator.codes;
+    }
+
+    private void countUses() {
+        for (Block block : function.blocks) {
+            for (Value value : block.instructions) {
+                for (Value input : value.inputs) {
+                    use(block, input);
+                }
+            }
+            if (block.value != null && block.terminator != Terminator.SHORT_CIRCUIT) {
+                use(block, block.value);
+            }
+            for (Value value : block.exitStack) {
+                // The values from the other blocks are passed through on the stack.
+                if (value.block == block) {
+                    use(block, value);
+                }
+            }
+        }
+    }
+
+    private void use(Block block, Value value) {
+        if (value.block == block) {
+            ++uses[value.id];
+        } else if (!Arrays.asList(block.entryStack).contains(value)) {
+            usedOutside[value.id] = true;
+        }
+    }
+
+    private static boolean isComputed(Value value) {
+        switch (value.kind) {
+            case PARAMETER:
+            case UNDEFINED:
+            case CONSTANT:
+            case PHI:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Whether the value is computed where it is used.
+     */
+    private boolean isInline(Value value) {
+        switch (value.kind) {
+            case OPERATE:
+            case LOAD_ELEMENT:
+            case CALL:
+            case TAIL_CALL:
+                return !spilled[value.id] && uses[value.id] == 1 && !usedOutside[value.id];
+            default:
+                return false;
+        }
+    }
+
+    private boolean fail(Value value) {
+        if (spilled[value.id] || !isInline(value)) {
+            throw new IllegalStateException("Cannot generate " + value + " of " + function.functionName + "\n"
+                    + function.dump());
+        }
+        spilled[value.id] = true;
+        return false;
+    }
+
+    private boolean run() {
+        codes.clear();
+        jumps.clear();
+        jumpTargets.clear();
+        temporaryNumber = 0;
+        for (Block block : function.blocks) {
+            for (Value value : block.instructions) {
+                emitted[value.id] = false;
+                temporaries[value.id] = -1;
+                if (value.hasResult() && value.kind != Kind.COPY && isComputed(value) && !isInline(value)) {
+                    temporaries[value.id] = function.localNumber + temporaryNumber++;
+                }
+            }
+        }
+        codes.add(new Code(Fct.INT, function.localNumber + temporaryNumber));
+        for (int i = 1; i < function.blocks.size(); ++i) {
+            if (!generate(function.blocks.get(i))) {
+                return false;
+            }
+        }
+        for (int i = 0; i < jumps.size(); ++i) {
+            jumps.get(i).setOperand(blockStarts[jumpTargets.get(i).index]);
+        }
+        return true;
+    }
+
+    private boolean generate(Block block) {
+        blockStarts[block.index] = codes.size();
+        stack.clear();
+        for (Value value : block.entryStack) {
+            stack.add(value);
+        }
+        carried = stack.size();
+        ordered.clear();
+        computed = 0;
+        for (Value value : block.instructions) {
+            if (isComputed(value)) {
+                ordered.add(value);
+            }
+        }
+        for (Value value : block.instructions) {
+            if (isComputed(value) && !isInline(value) && !generateInstruction(value)) {
+                return false;
+            }
+        }
+        // Leave the exit stack and the condition or the result, which start with the values passed through.
+        Value[] exitStack = block.exitStack;
+        Value[] end = exitStack;
+        if (block.terminator == Terminator.BRANCH || block.terminator == Terminator.RETURN) {
+            end = Arrays.copyOf(exitStack, exitStack.length + 1);
+            end[exitStack.length] = block.value;
+        }
+        int passed = 0;
+        while (passed < stack.size() && passed < end.length && stack.get(passed) == end[passed]) {
+            ++passed;
+        }
+        for (int i = passed; i < end.length; ++i) {
+            if (!generateValue(end[i])) {
+                return false;
+            }
+        }
+        if (!stack.equals(Arrays.asList(end))) {
+            throw new IllegalStateException("The stack of b" + block.index + " of " + function.functionName
+                    + " is consumed out of order.\n" + function.dump());
+        }
+        if (computed < ordered.size()) {
+            return fail(ordered.get(computed));
+        }
+        Block next = block.index + 1 < function.blocks.size() ? function.blocks.get(block.index + 1) : null;
+        switch (block.terminator) {
+            case JUMP:
+                if (block.target != next) {
+                    jump(Fct.JMP, block.target);
+                }
+                break;
+            case BRANCH:
+                jump(block.jumpIfTrue ? Fct.JPT : Fct.JPF, block.target);
+                if (block.next != next) {
+                    jump(Fct.JMP, block.next);
+                }
+                break;
+            case SHORT_CIRCUIT:
+                jump(block.jumpIfTrue ? Fct.JPT_SC : Fct.JPF_SC, block.target);
+                if (block.next != next) {
+                    jump(Fct.JMP, block.next);
+                }
+                break;
+            case RETURN:
+                codes.add(new Code(Fct.FUN_RETURN, 0));
+                break;
+            default:
+                codes.add(new Code(Fct.VOID_RETURN, 0));
+                break;
+        }
+        return true;
+    }
+
+    private void jump(Fct fct, Block target) {
+        Code code = new Code(fct, null);
+        codes.add(code);
+        jumps.add(code);
+        jumpTargets.add(target);
+    }
+
+    /**
+     * Pushes a value which is not on the stack.
+     */
+    private boolean generateValue(Value value) {
+        if (value.kind == Kind.CONSTANT) {
+            emit(Fct.LIT, value.constant, 0, value);
+        } else if (value.isVariable() || value.kind == Kind.PHI && value.slot < 0) {
+            emit(Fct.LOD, value.local, 0, value);
+        } else if (temporaries[value.id] >= 0) {
+            if (!emitted[value.id]) {
+                throw new IllegalStateException(value + " of " + function.functionName + " is used before it is"
+                        + " computed.\n" + function.dump());
+            }
+            emit(Fct.LOD, temporaries[value.id], 0, value);
+        } else if (isInline(value) && !emitted[value.id]) {
+            return generateInstruction(value);
+        } else {
+            return fail(value);
+        }
+        return true;
+    }
+
+    /**
+     * Pushes the operands, where the values which were on the stack when the block was entered are used in place.
+     */
+    private boolean generateOperands(Value[] inputs, int from, int to) {
+        int matched = 0;
+        if (stack.size() == carried) {
+            for (matched = Math.min(to - from, carried); matched > 0; --matched) {
+                int bottom = stack.size() - matched;
+                boolean match = true;
+                for (int i = 0; i < matched && match; ++i) {
+                    match = stack.get(bottom + i) == inputs[from + i];
+                }
+                if (match) {
+                    break;
+                }
+            }
+        }
+        for (int i = from + matched; i < to; ++i) {
+            if (!generateValue(inputs[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean generateInstruction(Value value) {
+        Value[] inputs = value.inputs;
+        int length = inputs.length;
+        switch (value.kind) {
+            case COPY:
+                if (!generateOperands(inputs, 0, 1)) {
+                    return false;
+                }
+                check(inputs, 0, 1, 0);
+                emit(Fct.STO, value.local, 1, null);
+                break;
+            case OPERATE:
+                if (!generateOperands(inputs, 0, length)) {
+                    return false;
+                }
+                check(inputs, 0, length, 0);
+                emit(oprFct(value), value.opr, length, value);
+                break;
+            case LOAD_ELEMENT:
+                if (!generateOperands(inputs, 1, length)) {
+                    return false;
+                }
+                emit(Fct.LIT, length - 1, 0, null);
+                check(inputs, 1, length, 1);
+                emit(Fct.ALOD, inputs[0].local, length, value);
+                break;
+            case STORE_ELEMENT:
+                if (!generateOperands(inputs, 1, length - 1)) {
+                    return false;
+                }
+                emit(Fct.LIT, length - 2, 0, null);
+                if (!generateValue(inputs[length - 1])) {
+                    return false;
+                }
+                check(inputs, 1, length - 1, 2);
+                check(inputs, length - 1, length, 0);
+                emit(Fct.ASTO, inputs[0].local, length, null);
+                break;
+            default: {
+                if (!generateOperands(inputs, 0, length)) {
+                    return false;
+                }
+                emit(Fct.LIT, length, 0, null);
+                check(inputs, 0, length, 1);
+                Fct fct = value.kind == Kind.CALL ? Fct.FUN : value.kind == Kind.PROCEDURE ? Fct.PROC : Fct.TAIL_CALL;
+                emit(fct, value.function, length + 1, value.hasResult() ? value : null);
+                break;
+            }
+        }
+        if (computed >= ordered.size() || ordered.get(computed) != value) {
+            // Something before the value is computed later.
+            return fail(ordered.get(computed));
+        }
+        ++computed;
+        emitted[value.id] = true;
+        if (temporaries[value.id] >= 0) {
+            emit(Fct.STO, temporaries[value.id], 1, null);
+        }
+        return true;
+    }
+
+    /**
+     * Checks that the inputs are on the stack below the given number of other entries.
+     */
+    private void check(Value[] inputs, int from, int to, int above) {
+        int bottom = stack.size() - above - (to - from);
+        for (int i = from; i < to; ++i) {
+            if (bottom + i - from < 0 || stack.get(bottom + i - from) != inputs[i]) {
+                throw new IllegalStateException("The input " + inputs[i].name() + " of " + function.functionName
+                        + " is not on the stack.\n" + function.dump());
+            }
+        }
+    }
+
+    private static Fct oprFct(Value value) {
+        Tag type = TypeInference.operandType(value);
+        if (type == Tag.INT) {
+            return Fct.OPR_INT;
+        } else if (type == Tag.DOUBLE) {
+            return Fct.OPR_DOUBLE;
+        } else {
+            return Fct.OPR;
+        }
+    }
+
+    private void emit(Fct fct, Object operand, int pops, Value push) {
+        if (pops > stack.size()) {
+            throw new IllegalStateException("Stack underflow in " + function.functionName);
+        }
+        for (int i = 0; i < pops; ++i) {
+            stack.remove(stack.size() - 1);
+        }
+        carried = Math.min(carried, stack.size());
+        if (push != null || fct == Fct.LIT || fct == Fct.LOD) {
+            stack.add(push);
+        }
+        codes.add(new Code(fct, operand));
+    }
+}
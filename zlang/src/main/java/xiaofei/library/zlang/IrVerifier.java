@@ -0,0 +1,379 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import xiaofei.library.zlang.IrFunction.Block;
+import xiaofei.library.zlang.IrFunction.Kind;
+import xiaofei.library.zlang.IrFunction.Terminator;
+import xiaofei.library.zlang.IrFunction.Value;
+
+/**
+ * Checks that an {@link IrFunction} is well formed, and throws an {@link IllegalStateException} describing the
+ * first problem otherwise.
+ *
+ * Besides the shape of the graph and of each value, the verifier checks that every value is defined once and
+ * dominates its uses, that the inputs of a phi of a variable live in the variable, and that the stacks of the
+ * blocks agree on each edge. These are what {@link IrGenerator} relies on.
+ */
+
+final class IrVerifier {
+
+    private final IrFunction function;
+
+    /**
+     * The position of each value in its block, where the phis come before the instructions.
+     */
+    private final IdentityHashMap<Value, Integer> positions = new IdentityHashMap<>();
+
+    private int[] dominators;
+
+    private IrVerifier(IrFunction function) {
+        this.function = function;
+    }
+
+    static void verify(IrFunction function) {
+        IrVerifier verifier = new IrVerifier(function);
+        verifier.checkGraph();
+        verifier.computeDominators();
+        verifier.checkDefinitions();
+        verifier.checkUses();
+    }
+
+    private IllegalStateException error(Block block, String message) {
+        return new IllegalStateException(function.functionName + "(" + function.parameterNumber + ") b"
+                + block.index + ": " + message + "\n" + function.dump());
+    }
+
+    private void checkGraph() {
+        ArrayList<Block> blocks = function.blocks;
+        if (blocks.isEmpty()) {
+            throw new IllegalStateException(function.functionName + " has no blocks.");
+        }
+        Block entry = blocks.get(0);
+        if (!entry.predecessors.isEmpty() || !entry.phis.isEmpty() || entry.terminator != Terminator.JUMP) {
+            throw error(entry, "The entry has predecessors, phis or a conditional terminator.");
+        }
+        for (int i = 0; i < blocks.size(); ++i) {
+            Block block = blocks.get(i);
+            if (block.index != i) {
+                throw error(block, "The index is not " + i + ".");
+            }
+            if (block.terminator == null) {
+                throw error(block, "No terminator.");
+            }
+            switch (block.terminator) {
+                case BRANCH:
+                case SHORT_CIRCUIT:
+                    if (block.next == null || block.value == null || block.target == null) {
+                        throw error(block, "A branch without a condition or a successor.");
+                    }
+                    break;
+                case JUMP:
+                    if (block.target == null) {
+                        throw error(block, "A jump without a target.");
+                    }
+                    break;
+                case RETURN:
+                    if (block.value == null) {
+                        throw error(block, "A return without a value.");
+                    }
+                    break;
+                default:
+                    break;
+            }
+            for (Block successor : block.successors()) {
+                if (successor.index >= blocks.size() || blocks.get(successor.index) != successor) {
+                    throw error(block, "The successor b" + successor.index + " is not in the function.");
+                }
+                if (count(successor.predecessors, block) != count(block.successors(), successor)) {
+                    throw error(successor, "The predecessors do not match the edges from b" + block.index + ".");
+                }
+            }
+            for (Block predecessor : block.predecessors) {
+                if (count(predecessor.successors(), block) == 0) {
+                    throw error(block, "b" + predecessor.index + " is a predecessor without an edge.");
+                }
+            }
+        }
+    }
+
+    private static int count(ArrayList<Block> blocks, Block block) {
+        int count = 0;
+        for (Block b : blocks) {
+            if (b == block) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private static int count(Block[] blocks, Block block) {
+        int count = 0;
+        for (Block b : blocks) {
+            if (b == block) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Computes the immediate dominators with the algorithm of Cooper, Harvey and Kennedy.
+     */
+    private void computeDominators() {
+        int size = function.blocks.size();
+        int[] order = new int[size];
+        int[] postorder = new int[size];
+        int number = 0;
+        // An iterative depth first search.
+        boolean[] visited = new boolean[size];
+        int[] stack = new int[size];
+        int[] next = new int[size];
+        int top = 0;
+        stack[0] = 0;
+        visited[0] = true;
+        while (top >= 0) {
+            Block block = function.blocks.get(stack[top]);
+            Block[] successors = block.successors();
+            if (next[top] < successors.length) {
+                Block successor = successors[next[top]++];
+                if (!visited[successor.index]) {
+                    visited[successor.index] = true;
+                    stack[++top] = successor.index;
+                    next[top] = 0;
+                }
+            } else {
+                postorder[number] = block.index;
+                order[block.index] = number++;
+                --top;
+            }
+        }
+        for (Block block : function.blocks) {
+            if (!visited[block.index]) {
+                throw error(block, "Unreachable.");
+            }
+        }
+        dominators = new int[size];
+        for (int i = 0; i < size; ++i) {
+            dominators[i] = -1;
+        }
+        dominators[0] = 0;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = size - 1; i >= 0; --i) {
+                Block block = function.blocks.get(postorder[i]);
+                if (block.index == 0) {
+                    continue;
+                }
+                int dominator = -1;
+                for (Block predecessor : block.predecessors) {
+                    int p = predecessor.index;
+                    if (dominators[p] == -1) {
+                        continue;
+                    }
+                    if (dominator == -1) {
+                        dominator = p;
+                        continue;
+                    }
+                    while (dominator != p) {
+                        while (order[dominator] < order[p]) {
+                            dominator = dominators[dominator];
+                        }
+                        while (order[p] < order[dominator]) {
+                            p = dominators[p];
+                        }
+                    }
+                }
+                if (dominators[block.index] != dominator) {
+                    dominators[block.index] = dominator;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private boolean dominates(Block dominator, Block block) {
+        int index = block.index;
+        while (index != dominator.index) {
+            if (index == 0) {
+                return false;
+            }
+            index = dominators[index];
+        }
+        return true;
+    }
+
+    private void checkDefinitions() {
+        for (Block block : function.blocks) {
+            int position = 0;
+            for (Value phi : block.phis) {
+                define(block, phi, position++);
+                if (phi.kind != Kind.PHI) {
+                    throw error(block, phi.name() + " is among the phis.");
+                }
+                if (phi.inputs.length != block.predecessors.size()) {
+                    throw error(block, phi.name() + " has " + phi.inputs.length + " inputs for "
+                            + block.predecessors.size() + " predecessors.");
+                }
+                if ((phi.local >= 0) == (phi.slot >= 0)) {
+                    throw error(block, phi.name() + " is not a phi of either a variable or a stack slot.");
+                }
+                if (phi.slot >= 0 && (phi.slot >= block.entryStack.length || block.entryStack[phi.slot] != phi)) {
+                    throw error(block, phi.name() + " is not in its stack slot.");
+                }
+            }
+            for (Value value : block.instructions) {
+                define(block, value, position++);
+                checkShape(block, value);
+            }
+        }
+    }
+
+    private void define(Block block, Value value, int position) {
+        if (value.block != block) {
+            throw error(block, value.name() + " belongs to another block.");
+        }
+        if (positions.put(value, position) != null) {
+            throw error(block, value.name() + " is defined more than once.");
+        }
+    }
+
+    private void checkShape(Block block, Value value) {
+        int inputs = value.inputs.length;
+        boolean valid;
+        switch (value.kind) {
+            case PARAMETER:
+                valid = block.index == 0 && inputs == 0 && value.local < function.parameterNumber;
+                break;
+            case UNDEFINED:
+                valid = block.index == 0 && inputs == 0;
+                break;
+            case CONSTANT:
+                valid = inputs == 0;
+                break;
+            case COPY:
+                valid = inputs == 1;
+                break;
+            case OPERATE:
+                valid = value.opr != null && inputs == OprAdapterFactory.getInstance(value.opr).getOperandNumber();
+                break;
+            case LOAD_ELEMENT:
+                valid = inputs >= 2 && value.inputs[0].isVariable();
+                break;
+            case STORE_ELEMENT:
+                valid = inputs >= 3 && value.inputs[0].isVariable();
+                break;
+            case CALL:
+            case PROCEDURE:
+                valid = value.function != null;
+                break;
+            case TAIL_CALL:
+                valid = value.function != null && block.terminator == Terminator.RETURN && block.value == value
+                        && block.instructions.get(block.instructions.size() - 1) == value;
+                break;
+            default:
+                valid = false;
+                break;
+        }
+        if (value.isVariable() && value.local >= function.localNumber) {
+            valid = false;
+        }
+        if (value.isVariable() != (value.kind == Kind.PARAMETER || value.kind == Kind.UNDEFINED
+                || value.kind == Kind.COPY)) {
+            valid = false;
+        }
+        if (!valid) {
+            throw error(block, "Malformed " + value + ".");
+        }
+    }
+
+    private void checkUses() {
+        for (Block block : function.blocks) {
+            for (Value phi : block.phis) {
+                for (int i = 0; i < phi.inputs.length; ++i) {
+                    Value input = phi.inputs[i];
+                    Block predecessor = block.predecessors.get(i);
+                    checkUse(predecessor, input, Integer.MAX_VALUE, phi);
+                    if (phi.local >= 0 && input.local != phi.local) {
+                        throw error(block, phi + " takes " + input.name() + " which is not in the variable.");
+                    }
+                    if (phi.slot >= 0 && predecessor.exitStack[phi.slot] != input) {
+                        throw error(block, phi + " does not take the stack of b" + predecessor.index + ".");
+                    }
+                }
+            }
+            int position = block.phis.size();
+            for (Value value : block.instructions) {
+                for (Value input : value.inputs) {
+                    checkUse(block, input, position, value);
+                }
+                ++position;
+            }
+            for (Value value : block.entryStack) {
+                checkUse(block, value, block.phis.size(), null);
+            }
+            for (Value value : block.exitStack) {
+                checkUse(block, value, Integer.MAX_VALUE, null);
+            }
+            if (block.value != null) {
+                checkUse(block, block.value, Integer.MAX_VALUE, null);
+            }
+            if (block.terminator == Terminator.SHORT_CIRCUIT && (block.exitStack.length == 0
+                    || block.exitStack[block.exitStack.length - 1] != block.value)) {
+                throw error(block, "The condition of the short circuit is not on the top of the stack.");
+            }
+            for (Block successor : block.successors()) {
+                if (successor.entryStack.length != block.exitStack.length) {
+                    throw error(successor, "The stack depth differs from b" + block.index + ".");
+                }
+                for (int slot = 0; slot < block.exitStack.length; ++slot) {
+                    Value value = successor.entryStack[slot];
+                    if (value != block.exitStack[slot] && (value.slot != slot || value.block != successor)) {
+                        throw error(successor, "The stack slot " + slot + " differs from b" + block.index + ".");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that the input is defined before the position of the block.
+     */
+    private void checkUse(Block block, Value input, int position, Value user) {
+        String name = user == null ? "the stack or the terminator" : user.name();
+        if (input == null) {
+            throw error(block, "A null input of " + name + ".");
+        }
+        Integer definition = positions.get(input);
+        if (definition == null) {
+            throw error(block, input.name() + " used by " + name + " is not defined.");
+        }
+        if (!input.hasResult()) {
+            throw error(block, input.name() + " used by " + name + " has no result.");
+        }
+        if (input.block == block ? definition >= position : !dominates(input.block, block)) {
+            throw error(block, input.name() + " does not dominate its use by " + name + ".");
+        }
+    }
+}
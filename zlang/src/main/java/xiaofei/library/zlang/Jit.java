@@ -0,0 +1,433 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package xiaofei.library.zlang;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The JIT tier, which compiles a hot {@link CompiledFunction} into a subclass of {@link JitFunction}.
+ *
+ * Each local variable of the function becomes a local variable of the JVM and the operand stack of
+ * {@link Executor} becomes the operand stack of the JVM. The generated class is defined in this package
+ * through {@link MethodHandles.Lookup}, so the JIT only works on JVMs where hidden classes
+ * or Lookup.defineClass are available. Otherwise, or if the function cannot be compiled,
+ * the function keeps running in the interpreter.
+ */
+
+final class Jit {
+
+    private static final String PACKAGE = "xiaofei/library/zlang/";
+
+    private static final String JIT_FUNCTION = PACKAGE + "JitFunction";
+
+    private static final String OBJECT = "java/lang/Object";
+
+    private static final String INVOKE_DESCRIPTOR = "([Ljava/lang/Object;)Ljava/lang/Object;";
+
+    private static final AtomicInteger CLASS_COUNT = new AtomicInteger();
+
+    private static final ClassDefiner DEFINER = ClassDefiner.create();
+
+    // JVM opcodes.
+    private static final int ACONST_NULL = 0x01;
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int ALOAD = 0x19;
+    private static final int AALOAD = 0x32;
+    private static final int ASTORE = 0x3a;
+    private static final int AASTORE = 0x53;
+    private static final int POP = 0x57;
+    private static final int DUP = 0x59;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int GOTO = 0xa7;
+    private static final int ARETURN = 0xb0;
+    private static final int RETURN = 0xb1;
+    private static final int GETSTATIC = 0xb2;
+    private static final int GETFIELD = 0xb4;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int ANEWARRAY = 0xbd;
+    private static final int WIDE = 0xc4;
+
+    private Jit() {}
+
+    static boolean isAvailable() {
+        return DEFINER != null;
+    }
+
+    /**
+     * Called when the interpreter enters a function of a library where the JIT is enabled.
+     *
+     * @return the compiled function if it is available
+     */
+    static JitFunction onInvocation(CompiledFunction function) {
+        if (++function.hotness < function.library.getJitThreshold()) {
+            return null;
+        }
+        return compile(function);
+    }
+
+    /**
+     * Called when the interpreter jumps backwards in a function of a library where the JIT is enabled.
+     * The compiled function is used from the next invocation.
+     */
+    static void onBackEdge(CompiledFunction function) {
+        if (++function.hotness >= function.library.getJitThreshold()) {
+            compile(function);
+        }
+    }
+
+    private static JitFunction compile(CompiledFunction function) {
+        synchronized (function) {
+            if (function.jitFunction != null || function.jitFailed) {
+                return function.jitFunction;
+            }
+            JitFunction result = null;
+            if (DEFINER != null) {
+                try {
+                    result = new Jit.Generator(function).generate();
+                } catch (RuntimeException | LinkageError e) {
+                    result = null;
+                }
+            }
+            if (result == null) {
+                function.jitFailed = true;
+            } else {
+                function.jitFunction = result;
+            }
+            return result;
+        }
+    }
+
+    private static final class Generator {
+
+        private final CompiledFunction function;
+
+        private final StackAnalysis analysis;
+
+        private final ClassFileWriter writer;
+
+        private final String className;
+
+        private final ClassFileWriter.ByteVector code = new ClassFileWriter.ByteVector();
+
+        private final int[] offsets;
+
+        // Pairs of (the offset of the jump instruction, the target pc).
+        private final ArrayList<int[]> jumps = new ArrayList<>();
+
+        private final int localNumber;
+
+        private final int firstTemporary;
+
+        Generator(CompiledFunction function) {
+            this.function = function;
+            this.analysis = StackAnalysis.analyze(function);
+            this.className = PACKAGE + "JitFunction$" + function.functionName.replace('$', '_')
+                    + '$' + CLASS_COUNT.incrementAndGet();
+            this.writer = new ClassFileWriter(className, JIT_FUNCTION);
+            this.offsets = new int[function.size() + 1];
+            if (function.opcodes[0] != Opcode.INT) {
+                throw new IllegalStateException("A function should start with INT.");
+            }
+            this.localNumber = function.operands[0];
+            // JVM local 0 is this and 1 is the input.
+            this.firstTemporary = 2 + localNumber;
+        }
+
+        JitFunction generate() {
+            generateConstructor();
+            generateInvoke();
+            byte[] bytes = writer.toByteArray();
+            Class<?> clazz = DEFINER.define(bytes);
+            try {
+                return (JitFunction) clazz.getDeclaredConstructor(CompiledFunction.class).newInstance(function);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void generateConstructor() {
+            ClassFileWriter.ByteVector constructor = new ClassFileWriter.ByteVector();
+            constructor.putByte(ALOAD).putByte(0).putByte(ALOAD).putByte(1);
+            constructor.putByte(INVOKESPECIAL).putShort(writer.methodConstant(
+                    JIT_FUNCTION, "<init>", "(L" + PACKAGE + "CompiledFunction;)V"));
+            constructor.putByte(RETURN);
+            writer.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "(L" + PACKAGE + "CompiledFunction;)V",
+                    2, 2, constructor.toByteArray());
+        }
+
+        private void generateInvoke() {
+            int parameterNumber = function.parameterNumber;
+            for (int i = 0; i < localNumber; ++i) {
+                if (i < parameterNumber) {
+                    loadLocal(1);
+                    pushInt(i);
+                    code.putByte(AALOAD);
+                } else {
+                    code.putByte(ACONST_NULL);
+                }
+                storeLocal(2 + i);
+            }
+            int size = function.size();
+            int maxTemporaries = 0;
+            for (int pc = 0; pc < size; ++pc) {
+                offsets[pc] = code.length();
+                if (analysis.depths[pc] >= 0) {
+                    maxTemporaries = Math.max(maxTemporaries, generateInstruction(pc));
+                }
+            }
+            offsets[size] = code.length();
+            for (int[] jump : jumps) {
+                int offset = offsets[jump[1]] - jump[0];
+                if (offset != (short) offset) {
+                    throw new IllegalStateException("The function is too large.");
+                }
+                code.setShort(jump[0] + 1, offset);
+            }
+            if (code.length() > 65535) {
+                throw new IllegalStateException("The function is too large.");
+            }
+            // The calls push this, the array, the array again, the index and the element above the stack.
+            int maxStack = analysis.maxDepth + 6;
+            writer.addMethod(0, "invoke", INVOKE_DESCRIPTOR, maxStack, firstTemporary + maxTemporaries + 1,
+                    code.toByteArray());
+        }
+
+        /**
+         * @return the number of temporary local variables which are used
+         */
+        private int generateInstruction(int pc) {
+            int operand = function.operands[pc];
+            switch (Opcode.generic(function.opcodes[pc])) {
+                case Opcode.LIT:
+                    loadConstant(operand);
+                    return 0;
+                case Opcode.LOD:
+                    loadLocal(2 + operand);
+                    return 0;
+                case Opcode.STO:
+                    storeLocal(2 + operand);
+                    return 0;
+                case Opcode.ALOD: {
+                    int dimens = analysis.counts[pc];
+                    code.putByte(POP);
+                    for (int i = dimens - 1; i >= 0; --i) {
+                        storeLocal(firstTemporary + i);
+                    }
+                    loadLocal(2 + operand);
+                    for (int i = 0; i < dimens; ++i) {
+                        loadLocal(firstTemporary + i);
+                        invokeStatic("arrayGet", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+                    }
+                    return dimens;
+                }
+                case Opcode.ASTO: {
+                    int dimens = analysis.counts[pc];
+                    storeLocal(firstTemporary + dimens);
+                    code.putByte(POP);
+                    for (int i = dimens - 1; i >= 0; --i) {
+                        storeLocal(firstTemporary + i);
+                    }
+                    loadLocal(2 + operand);
+                    for (int i = 0; i < dimens - 1; ++i) {
+                        loadLocal(firstTemporary + i);
+                        invokeStatic("arrayGet", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+                    }
+                    loadLocal(firstTemporary + dimens - 1);
+                    loadLocal(firstTemporary + dimens);
+                    invokeStatic("arraySet", "(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)V");
+                    return dimens + 1;
+                }
+                case Opcode.OPR: {
+                    pushInt(operand);
+                    if (OprAdapterFactory.getInstance(operand).getOperandNumber() == 1) {
+                        invokeStatic("operate", "(Ljava/lang/Object;I)Ljava/lang/Object;");
+                    } else {
+                        invokeStatic("operate", "(Ljava/lang/Object;Ljava/lang/Object;I)Ljava/lang/Object;");
+                    }
+                    return 0;
+                }
+                case Opcode.INT:
+                    if (pc != 0) {
+                        throw new IllegalStateException("INT should only appear at the beginning.");
+                    }
+                    return 0;
+                case Opcode.JMP:
+                    jump(GOTO, operand);
+                    return 0;
+                case Opcode.JPF:
+                    invokeStatic("isTrue", "(Ljava/lang/Object;)Z");
+                    jump(IFEQ, operand);
+                    return 0;
+                case Opcode.JPT:
+                    invokeStatic("isTrue", "(Ljava/lang/Object;)Z");
+                    jump(IFNE, operand);
+                    return 0;
+                case Opcode.JPF_SC:
+                    code.putByte(DUP);
+                    invokeStatic("isTrue", "(Ljava/lang/Object;)Z");
+                    jump(IFEQ, operand);
+                    return 0;
+                case Opcode.JPT_SC:
+                    code.putByte(DUP);
+                    invokeStatic("isTrue", "(Ljava/lang/Object;)Z");
+                    jump(IFNE, operand);
+                    return 0;
+                case Opcode.FUN:
+                case Opcode.PROC:
+                case Opcode.TAIL_CALL: {
+                    int parameterNumber = analysis.counts[pc];
+                    code.putByte(POP);
+                    for (int i = parameterNumber - 1; i >= 0; --i) {
+                        storeLocal(firstTemporary + i);
+                    }
+                    loadLocal(0);
+                    pushInt(parameterNumber);
+                    code.putByte(ANEWARRAY).putShort(writer.classConstant(OBJECT));
+                    for (int i = 0; i < parameterNumber; ++i) {
+                        code.putByte(DUP);
+                        pushInt(i);
+                        loadLocal(firstTemporary + i);
+                        code.putByte(AASTORE);
+                    }
+                    pushInt(operand);
+                    if (function.opcodes[pc] != Opcode.PROC) {
+                        code.putByte(INVOKEVIRTUAL).putShort(writer.methodConstant(
+                                JIT_FUNCTION, "callFunction", "([Ljava/lang/Object;I)Ljava/lang/Object;"));
+                    } else {
+                        code.putByte(INVOKEVIRTUAL).putShort(writer.methodConstant(
+                                JIT_FUNCTION, "callProcedure", "([Ljava/lang/Object;I)V"));
+                    }
+                    return parameterNumber;
+                }
+                case Opcode.FUN_RETURN:
+                    code.putByte(ARETURN);
+                    return 0;
+                case Opcode.VOID_RETURN:
+                    code.putByte(GETSTATIC).putShort(writer.fieldConstant(
+                            PACKAGE + "Executor", "NO_RETURN_VALUE", "Ljava/lang/Object;"));
+                    code.putByte(ARETURN);
+                    return 0;
+                default:
+                    throw new IllegalStateException("Unsupported opcode " + Opcode.getName(function.opcodes[pc]));
+            }
+        }
+
+        private void jump(int opcode, int target) {
+            jumps.add(new int[]{code.length(), target});
+            code.putByte(opcode).putShort(0);
+        }
+
+        private void invokeStatic(String name, String descriptor) {
+            code.putByte(INVOKESTATIC).putShort(writer.methodConstant(JIT_FUNCTION, name, descriptor));
+        }
+
+        private void loadConstant(int index) {
+            loadLocal(0);
+            code.putByte(GETFIELD).putShort(writer.fieldConstant(JIT_FUNCTION, "constants", "[Ljava/lang/Object;"));
+            pushInt(index);
+            code.putByte(AALOAD);
+        }
+
+        private void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                code.putByte(ICONST_0 + value);
+            } else if (value == (byte) value) {
+                code.putByte(BIPUSH).putByte(value);
+            } else if (value == (short) value) {
+                code.putByte(SIPUSH).putShort(value);
+            } else {
+                code.putByte(LDC_W).putShort(writer.integerConstant(value));
+            }
+        }
+
+        private void loadLocal(int index) {
+            if (index < 256) {
+                code.putByte(ALOAD).putByte(index);
+            } else {
+                code.putByte(WIDE).putByte(ALOAD).putShort(index);
+            }
+        }
+
+        private void storeLocal(int index) {
+            if (index < 256) {
+                code.putByte(ASTORE).putByte(index);
+            } else {
+                code.putByte(WIDE).putByte(ASTORE).putShort(index);
+            }
+        }
+    }
+
+    /**
+     * Defines a class in this package. Hidden classes (Java 15) are preferred because they can be unloaded.
+     * Otherwise Lookup.defineClass (Java 9) is used.
+     */
+    private abstract static class ClassDefiner {
+
+        abstract Class<?> define(byte[] bytes);
+
+        static ClassDefiner create() {
+            final MethodHandles.Lookup lookup = MethodHandles.lookup();
+            try {
+                Class<?> optionClass = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+                final Object options = Array.newInstance(optionClass, 0);
+                final Method defineHiddenClass = MethodHandles.Lookup.class.getMethod(
+                        "defineHiddenClass", byte[].class, boolean.class, options.getClass());
+                final Method lookupClass = MethodHandles.Lookup.class.getMethod("lookupClass");
+                return new ClassDefiner() {
+                    @Override
+                    Class<?> define(byte[] bytes) {
+                        try {
+                            Object hiddenLookup = defineHiddenClass.invoke(lookup, bytes, true, options);
+                            return (Class<?>) lookupClass.invoke(hiddenLookup);
+                        } catch (ReflectiveOperationException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                };
+            } catch (ReflectiveOperationException e) {
+                // Fall through.
+            }
+            try {
+                final Method defineClass = MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+                return new ClassDefiner() {
+                    @Override
+                    Class<?> define(byte[] bytes) {
+                        try {
+                            return (Class<?>) defineClass.invoke(lookup, (Object) bytes);
+                        } catch (ReflectiveOperationException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                };
+            } catch (ReflectiveOperationException e) {
+                return null;
+            }
+        }
+    }
+}
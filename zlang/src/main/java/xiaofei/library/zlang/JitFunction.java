@@ -0,0 +1,125 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package xiaofei.library.zlang;
+
+/**
+ * The super class of the classes generated by {@link Jit}. A subclass runs a particular
+ * {@link CompiledFunction} as JVM bytecode.
+ *
+ * The static methods are the runtime support of the generated code.
+ */
+
+abstract class JitFunction {
+
+    private static final Opr[] OPRS = Opr.values();
+
+    final CompiledFunction function;
+
+    final Object[] constants;
+
+    JitFunction(CompiledFunction function) {
+        this.function = function;
+        this.constants = function.constants;
+    }
+
+    /**
+     * @return the return value, or {@link Executor#NO_RETURN_VALUE} if the function does not return a value
+     */
+    abstract Object invoke(Object[] input);
+
+    final Object callFunction(Object[] parameters, int constantIndex) {
+        Object result = call(parameters, constantIndex);
+        if (result == Executor.NO_RETURN_VALUE) {
+            throw new ZlangRuntimeException(ZlangRuntimeError.NO_RETURN_VALUE);
+        }
+        return result;
+    }
+
+    final void callProcedure(Object[] parameters, int constantIndex) {
+        call(parameters, constantIndex);
+    }
+
+    private Object call(Object[] parameters, int constantIndex) {
+        CallSite.Target target = ((CallSite) constants[constantIndex]).resolve(function.library, parameters.length);
+        if (target.javaFunction != null) {
+            return target.javaFunction.call(parameters);
+        }
+        // The calls are nested on the Java stack, so the deep ones run on the stack engine instead.
+        ExecutionContext context = ExecutionContext.current();
+        int depth = context.nestedCallDepth;
+        if (depth >= Executor.MAX_NESTED_CALL_DEPTH) {
+            return Executor.interpretDeep(target.function, parameters, depth + 2);
+        }
+        context.nestedCallDepth = depth + 1;
+        try {
+            return Executor.execute(target.function, parameters);
+        } finally {
+            context.nestedCallDepth = depth;
+        }
+    }
+
+    static boolean isTrue(Object condition) {
+        return (boolean) condition;
+    }
+
+    static Object operate(Object operand, int opr) {
+        if (opr == Opr.NEGATIVE.ordinal() && operand instanceof Integer) {
+            return -(int) operand;
+        }
+        return OprAdapterFactory.getInstance(opr).operate(new Object[]{operand}, 0);
+    }
+
+    static Object operate(Object o1, Object o2, int opr) {
+        if (opr == Opr.EQUAL.ordinal()) {
+            return Tag.equal(o1, o2);
+        } else if (opr == Opr.NOT_EQUAL.ordinal()) {
+            return !Tag.equal(o1, o2);
+        }
+        if (o1 instanceof Integer && o2 instanceof Integer) {
+            int i1 = (int) o1, i2 = (int) o2;
+            switch (OPRS[opr]) {
+                case PLUS:
+                    return i1 + i2;
+                case MINUS:
+                    return i1 - i2;
+                case TIMES:
+                    return i1 * i2;
+                case LESS:
+                    return i1 < i2;
+                case LESS_EQUAL:
+                    return i1 <= i2;
+                case GREATER:
+                    return i1 > i2;
+                case GREATER_EQUAL:
+                    return i1 >= i2;
+                default:
+                    break;
+            }
+        }
+        return OprAdapterFactory.getInstance(opr).operate(new Object[]{o1, o2}, 0);
+    }
+
+    static Object arrayGet(Object array, Object index) {
+        return ArrayAccess.get(array, (int) index);
+    }
+
+    static void arraySet(Object array, Object index, Object value) {
+        ArrayAccess.set(array, (int) index, value);
+    }
+}
@@ -19,9 +19,12 @@
 package xiaofei.library.zlang;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Created by Xiaofei on 2017/9/23.
@@ -35,26 +38,54 @@ public class Library {
 
     private final ConcurrentLinkedQueue<JavaLibrary> javaDependencies;
 
-    private volatile ConcurrentHashMap<String, ConcurrentHashMap<Integer, CopyOnWriteArrayList<Code>>> codeMap;
+    private volatile ConcurrentHashMap<String, ConcurrentHashMap<Integer, CompiledFunction>> codeMap;
 
     private final String program;
 
+    private final boolean jitEnabled;
+
+    private final int jitThreshold;
+
+    private final int maxCallDepth;
+
+    private final Engine engine;
+
+    private final Profiler profiler;
+
+    private final boolean optimizationEnabled;
+
+    private final boolean optimizationDebugEnabled;
+
     private Library(ConcurrentLinkedQueue<Library> dependencies,
                     ConcurrentLinkedQueue<JavaLibrary> javaDependencies,
-                    String program) {
+                    String program,
+                    boolean jitEnabled,
+                    int jitThreshold,
+                    int maxCallDepth,
+                    Engine engine,
+                    Profiler profiler,
+                    boolean optimizationEnabled,
+                    boolean optimizationDebugEnabled) {
         this.dependencies = dependencies;
         this.javaDependencies = javaDependencies;
         this.codeMap = null;
         this.program = program;
+        this.jitEnabled = jitEnabled;
+        this.jitThreshold = jitThreshold;
+        this.maxCallDepth = maxCallDepth;
+        this.engine = engine;
+        this.profiler = profiler;
+        this.optimizationEnabled = optimizationEnabled;
+        this.optimizationDebugEnabled = optimizationDebugEnabled;
     }
 
     boolean containsFunction(String functionName, int parameterNumber) {
         if (codeMap == null) {
             throw new CompileException(CompileError.NOT_COMPILED, -1, -1, "Library " + this + " is not compiled.");
         }
-        ConcurrentHashMap<Integer, CopyOnWriteArrayList<Code>> codes = codeMap.get(functionName);
-        if (codes != null) {
-            if (codes.containsKey(parameterNumber)) {
+        ConcurrentHashMap<Integer, CompiledFunction> functions = codeMap.get(functionName);
+        if (functions != null) {
+            if (functions.containsKey(parameterNumber)) {
                 return true;
             }
         }
@@ -87,20 +118,20 @@ public class Library {
         return null;
     }
 
-    FunctionSearchResult getFunction(String functionName, int parameterNumber) {
+    CompiledFunction getFunction(String functionName, int parameterNumber) {
         if (codeMap == null) {
             throw new CompileException(CompileError.NOT_COMPILED, -1, -1, "Library " + this + " is not compiled.");
         }
-        ConcurrentHashMap<Integer, CopyOnWriteArrayList<Code>> codes = codeMap.get(functionName);
-        CopyOnWriteArrayList<Code> code = null;
-        if (codes != null) {
-            code = codes.get(parameterNumber);
+        ConcurrentHashMap<Integer, CompiledFunction> functions = codeMap.get(functionName);
+        CompiledFunction function = null;
+        if (functions != null) {
+            function = functions.get(parameterNumber);
         }
-        if (code != null) {
-            return new FunctionSearchResult(this, code);
+        if (function != null) {
+            return function;
         }
         for (Library library : dependencies) {
-            FunctionSearchResult result  = library.getFunction(functionName, parameterNumber);
+            CompiledFunction result  = library.getFunction(functionName, parameterNumber);
             if (result != null) {
                 return result;
             }
@@ -109,12 +140,27 @@ public class Library {
     }
 
     synchronized void put(String functionName, int parameterNumber, ArrayList<Code> codesToPut) {
-        ConcurrentHashMap<Integer, CopyOnWriteArrayList<Code>> codes = codeMap.get(functionName);
-        if (codes == null) {
-            codes = new ConcurrentHashMap<>();
-            codeMap.put(functionName, codes);
+        if (optimizationEnabled) {
+            int size = codesToPut.size();
+            codesToPut = Optimizer.optimize(codesToPut, parameterNumber);
+            IrFunction function = IrBuilder.build(functionName, parameterNumber, codesToPut);
+            if (optimizationDebugEnabled) {
+                IrVerifier.verify(function);
+            }
+            TypeInference.infer(function);
+            codesToPut = IrGenerator.generate(function);
+            if (optimizationDebugEnabled) {
+                System.out.println("Optimized " + functionName + " " + parameterNumber + ": "
+                        + size + " -> " + codesToPut.size() + " instructions");
+                System.out.print(function.dump());
+            }
         }
-        if (codes.put(parameterNumber, new CopyOnWriteArrayList<>(codesToPut)) != null) {
+        ConcurrentHashMap<Integer, CompiledFunction> functions = codeMap.get(functionName);
+        if (functions == null) {
+            functions = new ConcurrentHashMap<>();
+            codeMap.put(functionName, functions);
+        }
+        if (functions.put(parameterNumber, Linker.link(this, functionName, parameterNumber, codesToPut)) != null) {
             throw new CompileException(CompileError.FUNCTION_ALREADY_EXIST, -1, -1,
                     "function name: " + functionName + " parameter number: " + parameterNumber);
         }
@@ -132,9 +178,88 @@ public class Library {
         return Executor.execute(this, functionName, input);
     }
 
+    /**
+     * Executes the function without blocking on {@link AsyncJavaFunction}s. When such a function is called,
+     * the execution is suspended and the thread is released. The execution is resumed on the thread which
+     * completes the call, and the callback receives the result on the thread which finishes the execution.
+     * The function is always interpreted by the stack engine. Functions run by the JIT or by another engine
+     * are called synchronously.
+     */
+    public void executeAsync(String functionName, Object[] input, Callback callback) {
+        Executor.executeAsync(this, functionName, input, callback);
+    }
+
+    public BatchStats executeBatch(String functionName, Object[][] inputs, ResultSink sink) {
+        return Executor.executeBatch(this, functionName, inputs, sink, null);
+    }
+
+    public BatchStats executeBatch(String functionName, List<Object[]> inputs, ResultSink sink) {
+        return executeBatch(functionName, inputs.toArray(new Object[inputs.size()][]), sink);
+    }
+
+    /**
+     * Executes the function once for each input and passes the results to the sink. The function is resolved
+     * once for the whole batch and each thread reuses one execution context, so this is faster than calling
+     * {@link #execute(String, Object[])} for each input.
+     *
+     * @param pool if not null, the batch is split into tasks which run on the pool.
+     *             Then the sink is called concurrently.
+     * @return the timing of the batch.
+     */
+    public BatchStats executeBatch(String functionName, Object[][] inputs, ResultSink sink, ForkJoinPool pool) {
+        return Executor.executeBatch(this, functionName, inputs, sink, pool);
+    }
+
+    /**
+     * Evaluates the function for each row of the columns and writes the results into the result array.
+     * Each column is an int[] or a double[] holding one parameter, and has the same length as the result.
+     * If the function is a formula which does only arithmetic, it is evaluated column by column rather than
+     * row by row. The function should return ints for an int[] result, or numbers for a double[] result.
+     */
+    public void executeColumns(String functionName, Object[] columns, double[] result) {
+        ColumnEvaluator.evaluate(getFunction(functionName, columns.length), columns, result);
+    }
+
+    public void executeColumns(String functionName, Object[] columns, int[] result) {
+        ColumnEvaluator.evaluate(getFunction(functionName, columns.length), columns, result);
+    }
+
     String getProgram() {
         return program;
     }
+
+    boolean isJitEnabled() {
+        return jitEnabled;
+    }
+
+    int getJitThreshold() {
+        return jitThreshold;
+    }
+
+    int getMaxCallDepth() {
+        return maxCallDepth;
+    }
+
+    Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Returns the cache of the function, or null if the function is not memoized.
+     * See {@link Builder#setMemoized(String, int, int)}.
+     */
+    public MemoCache getMemoCache(String functionName, int parameterNumber) {
+        CompiledFunction function = getFunction(functionName, parameterNumber);
+        return function == null ? null : function.memoCache;
+    }
+
+    /**
+     * Returns the profiler which records the executions of the functions of the library,
+     * or null if profiling is disabled.
+     */
+    public Profiler getProfiler() {
+        return profiler;
+    }
 //
 //    void compileDependencies() {
 //        for (Library library : dependencies) {
@@ -149,15 +274,23 @@ public class Library {
      * @param parameterNumber
      */
     void print(String functionName, int parameterNumber) {
-        FunctionSearchResult result = getFunction(functionName, parameterNumber);
-        if (result == null) {
+        CompiledFunction function = getFunction(functionName, parameterNumber);
+        if (function == null) {
             System.out.println("No such function.");
         } else {
             System.out.println(functionName + " " + parameterNumber);
-            int size = result.codes.size();
+            int size = function.size();
             for (int i = 0; i < size; ++i) {
-                Code code = result.codes.get(i);
-                System.out.println(i+ "\t" + code.getOpr() + "\t" + code.getOperand());
+                System.out.println(i+ "\t" + Opcode.getName(function.opcodes[i]) + "\t" + function.getOperand(i));
+            }
+            if (engine == Engine.REGISTER) {
+                RegisterFunction registerFunction = RegisterTranslator.translate(function);
+                System.out.println("Registers: " + registerFunction.registerCount);
+                for (int i = 0; i < registerFunction.size(); ++i) {
+                    System.out.println(i + "\t" + RegisterOpcode.getName(registerFunction.opcodes[i])
+                            + "\t" + registerFunction.a[i] + "\t" + registerFunction.b[i]
+                            + "\t" + registerFunction.c[i] + "\t" + registerFunction.d[i]);
+                }
             }
             System.out.println("End.");
         }
@@ -171,10 +304,34 @@ public class Library {
 
         private ArrayList<JavaLibrary> javaDependencies;
 
+        private boolean jitEnabled;
+
+        private int jitThreshold;
+
+        private int maxCallDepth;
+
+        private Engine engine;
+
+        private boolean profilingEnabled;
+
+        private HashMap<String, HashMap<Integer, Integer>> memoizedFunctions;
+
+        private boolean optimizationEnabled;
+
+        private boolean optimizationDebugEnabled;
+
         public Builder() {
             program = new StringBuilder();
             dependencies = new ArrayList<>();
             javaDependencies = new ArrayList<>();
+            jitEnabled = false;
+            jitThreshold = 1000;
+            maxCallDepth = 1000000;
+            engine = Engine.STACK;
+            profilingEnabled = false;
+            memoizedFunctions = new HashMap<>();
+            optimizationEnabled = true;
+            optimizationDebugEnabled = false;
         }
 
         public Builder addFunctions(String functions) {
@@ -192,6 +349,102 @@ public class Library {
             return this;
         }
 
+        /**
+         * Enables or disables the JIT, which compiles the hot functions of the library into JVM bytecode.
+         * The JIT is disabled by default. If the JVM does not support it, the functions are interpreted.
+         */
+        public Builder setJitEnabled(boolean jitEnabled) {
+            this.jitEnabled = jitEnabled;
+            return this;
+        }
+
+        /**
+         * Sets how many invocations and backward jumps make a function hot. The default value is 1000.
+         */
+        public Builder setJitThreshold(int jitThreshold) {
+            if (jitThreshold < 1) {
+                throw new IllegalArgumentException("The threshold should be positive.");
+            }
+            this.jitThreshold = jitThreshold;
+            return this;
+        }
+
+        /**
+         * Sets the maximum depth of the calls between Zlang functions in an execution of a function
+         * of the library. Exceeding it causes a {@link ZlangRuntimeException}. The default value is 1000000.
+         * The calls made by JIT-compiled functions are nested on the Java stack, so beyond a few hundred of them
+         * the deeper calls are run by the stack engine, which keeps its frames on the heap.
+         */
+        public Builder setMaxCallDepth(int maxCallDepth) {
+            if (maxCallDepth < 1) {
+                throw new IllegalArgumentException("The maximum call depth should be positive.");
+            }
+            this.maxCallDepth = maxCallDepth;
+            return this;
+        }
+
+        /**
+         * Sets the engine which runs the functions of the library. The default engine is {@link Engine#STACK}.
+         * Libraries with different engines can depend on each other.
+         */
+        public Builder setEngine(Engine engine) {
+            if (engine == null) {
+                throw new IllegalArgumentException("The engine should not be null.");
+            }
+            this.engine = engine;
+            return this;
+        }
+
+        /**
+         * Enables or disables profiling, which is disabled by default. When it is enabled, the library counts
+         * the invocations and the executed instructions of its functions and measures their time, see
+         * {@link Library#getProfiler()}. The functions are then interpreted by a slower loop and never
+         * compiled by the JIT.
+         */
+        public Builder setProfilingEnabled(boolean profilingEnabled) {
+            this.profilingEnabled = profilingEnabled;
+            return this;
+        }
+
+        /**
+         * Caches the results of the function, which should depend only on its arguments and have no side effects.
+         * The cache holds the results of at most the specified number of argument lists and evicts the least
+         * recently used ones. Only the calls whose arguments are null, strings, or boxed primitives are cached.
+         * A memoized function called in a tail position still takes a new frame so that its result is cached.
+         */
+        public Builder setMemoized(String functionName, int parameterNumber, int maximumSize) {
+            if (maximumSize < 1) {
+                throw new IllegalArgumentException("The maximum size should be positive.");
+            }
+            HashMap<Integer, Integer> sizes = memoizedFunctions.get(functionName);
+            if (sizes == null) {
+                sizes = new HashMap<>();
+                memoizedFunctions.put(functionName, sizes);
+            }
+            sizes.put(parameterNumber, maximumSize);
+            return this;
+        }
+
+        /**
+         * Enables or disables the optimization of the functions, which is enabled by default. The optimizer folds
+         * the constant expressions, propagates the literals assigned to local variables only once and removes
+         * the unreachable code and the dead assignments. The operators whose operands are proven to be ints or
+         * doubles are then linked into typed instructions, which check no types when they are executed.
+         */
+        public Builder setOptimizationEnabled(boolean optimizationEnabled) {
+            this.optimizationEnabled = optimizationEnabled;
+            return this;
+        }
+
+        /**
+         * If enabled, the intermediate representation of each function is verified, and the number of its
+         * instructions before and after the optimization is printed, followed by the dump of the representation.
+         */
+        public Builder setOptimizationDebugEnabled(boolean optimizationDebugEnabled) {
+            this.optimizationDebugEnabled = optimizationDebugEnabled;
+            return this;
+        }
+
         public Library build() { // NOT thread-safe
             ArrayList<JavaLibrary> javaLibraries = new ArrayList<>();
             javaLibraries.add(InternalJavaFunctions.INSTANCE);
@@ -199,18 +452,28 @@ public class Library {
             Library library = new Library(
                     new ConcurrentLinkedQueue<>(dependencies),
                     new ConcurrentLinkedQueue<>(javaLibraries),
-                    program.toString());
+                    program.toString(),
+                    jitEnabled && !profilingEnabled && Jit.isAvailable(),
+                    jitThreshold,
+                    maxCallDepth,
+                    engine,
+                    profilingEnabled ? new Profiler() : null,
+                    optimizationEnabled,
+                    optimizationDebugEnabled);
             library.compile();
+            for (Map.Entry<String, HashMap<Integer, Integer>> entry : memoizedFunctions.entrySet()) {
+                String functionName = entry.getKey();
+                ConcurrentHashMap<Integer, CompiledFunction> functions = library.codeMap.get(functionName);
+                for (Map.Entry<Integer, Integer> size : entry.getValue().entrySet()) {
+                    CompiledFunction function = functions == null ? null : functions.get(size.getKey());
+                    if (function == null) {
+                        throw new CompileException(CompileError.UNDEFINED_FUNCTION, -1, -1,
+                                "function name: " + functionName + " parameter number: " + size.getKey());
+                    }
+                    function.memoCache = new MemoCache(size.getValue());
+                }
+            }
             return library;
         }
     }
-
-    static class FunctionSearchResult {
-        final Library library;
-        final CopyOnWriteArrayList<Code> codes;
-        FunctionSearchResult(Library library, CopyOnWriteArrayList<Code> codes) {
-            this.library = library;
-            this.codes = codes;
-        }
-    }
 }
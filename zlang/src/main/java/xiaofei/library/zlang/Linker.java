@@ -0,0 +1,96 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package xiaofei.library.zlang;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Freezes the codes generated by {@link Compiler} into a {@link CompiledFunction}.
+ */
+
+class Linker {
+
+    private Linker() {}
+
+    static CompiledFunction link(Library library, String functionName, int parameterNumber, List<Code> codes) {
+        int size = codes.size();
+        int[] opcodes = new int[size];
+        int[] operands = new int[size];
+        ArrayList<Object> constants = new ArrayList<>();
+        for (int i = 0; i < size; ++i) {
+            Code code = codes.get(i);
+            Fct fct = code.getOpr();
+            Object operand = code.getOperand();
+            opcodes[i] = Opcode.of(fct);
+            switch (fct) {
+                case LIT:
+                    operands[i] = addConstant(constants, operand);
+                    break;
+                case FUN:
+                case PROC:
+                case TAIL_CALL:
+                    // Each call site has its own cache so it is never shared.
+                    operands[i] = constants.size();
+                    constants.add(new CallSite((String) operand));
+                    break;
+                case OPR:
+                    operands[i] = ((Opr) operand).ordinal();
+                    break;
+                case OPR_INT:
+                    operands[i] = ((Opr) operand).ordinal();
+                    opcodes[i] = Opcode.typed(operands[i], Tag.INT);
+                    break;
+                case OPR_DOUBLE:
+                    operands[i] = ((Opr) operand).ordinal();
+                    opcodes[i] = Opcode.typed(operands[i], Tag.DOUBLE);
+                    break;
+                default:
+                    operands[i] = (int) operand;
+                    break;
+            }
+        }
+        Object[] constantArray = constants.toArray();
+        // INT is always the first instruction and reserves the local variables.
+        StackAnalysis analysis = StackAnalysis.analyze(opcodes, operands, constantArray);
+        int frameSize = operands[0] + analysis.maxDepth;
+        boolean returnsValue = true;
+        for (int i = 0; i < size; ++i) {
+            if (opcodes[i] == Opcode.VOID_RETURN && analysis.depths[i] >= 0) {
+                returnsValue = false;
+                break;
+            }
+        }
+        Peephole.fuse(opcodes, operands);
+        return new CompiledFunction(library, functionName, parameterNumber,
+                opcodes, operands, constantArray, frameSize, returnsValue);
+    }
+
+    private static int addConstant(ArrayList<Object> constants, Object constant) {
+        int size = constants.size();
+        for (int i = 0; i < size; ++i) {
+            Object tmp = constants.get(i);
+            if (tmp == null ? constant == null : tmp.equals(constant)) {
+                return i;
+            }
+        }
+        constants.add(constant);
+        return size;
+    }
+}
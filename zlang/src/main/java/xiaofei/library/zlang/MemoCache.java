@@ -0,0 +1,202 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The cache of the results of a memoized function, see {@link Library.Builder#setMemoized(String, int, int)}.
+ *
+ * The cache is keyed on the arguments. Only calls whose arguments are null, strings, or boxed primitives are
+ * cached, and other calls are executed as usual. The cache is split into segments, each of which evicts its
+ * least recently used entry when it is full, so the eviction is approximately LRU.
+ */
+
+public final class MemoCache {
+
+    /**
+     * Returned by {@link #get(Object)} if the key is not cached.
+     */
+    static final Object MISS = new Object();
+
+    private static final int MAX_SEGMENTS = 16;
+
+    private final int maximumSize;
+
+    private final Segment[] segments;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    MemoCache(int maximumSize) {
+        this.maximumSize = maximumSize;
+        int segmentNumber = 1;
+        while (segmentNumber < MAX_SEGMENTS && segmentNumber * 2 * MAX_SEGMENTS <= maximumSize) {
+            segmentNumber *= 2;
+        }
+        segments = new Segment[segmentNumber];
+        for (int i = 0; i < segmentNumber; ++i) {
+            // The segments share the maximum size, the first ones taking the remainder.
+            segments[i] = new Segment(maximumSize / segmentNumber + (i < maximumSize % segmentNumber ? 1 : 0));
+        }
+    }
+
+    /**
+     * Returns the key of the arguments, or null if the call should not be cached.
+     */
+    static Object key(Object[] arguments) {
+        for (Object argument : arguments) {
+            if (!isValue(argument)) {
+                return null;
+            }
+        }
+        return new Key(arguments.clone());
+    }
+
+    /**
+     * Returns the key of the arguments on the stack, or null if the call should not be cached.
+     */
+    static Object key(Object[] references, long[] primitives, int first, int number) {
+        Object[] arguments = new Object[number];
+        for (int i = 0; i < number; ++i) {
+            Object argument = Tag.box(references, primitives, first + i);
+            if (!isValue(argument)) {
+                return null;
+            }
+            arguments[i] = argument;
+        }
+        return new Key(arguments);
+    }
+
+    private static boolean isValue(Object object) {
+        return object == null || object instanceof Integer || object instanceof Long || object instanceof Double
+                || object instanceof String || object instanceof Boolean || object instanceof Character
+                || object instanceof Float || object instanceof Short || object instanceof Byte;
+    }
+
+    private Segment segmentFor(Object key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return segments[hash & (segments.length - 1)];
+    }
+
+    /**
+     * Returns the cached result, or {@link #MISS}.
+     */
+    Object get(Object key) {
+        Segment segment = segmentFor(key);
+        Object result;
+        synchronized (segment) {
+            result = segment.containsKey(key) ? segment.get(key) : MISS;
+        }
+        (result == MISS ? missCount : hitCount).incrementAndGet();
+        return result;
+    }
+
+    void put(Object key, Object result) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, result);
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Removes the cached results and resets the counters.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+        hitCount.set(0);
+        missCount.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "size: " + size() + "/" + maximumSize + " hits: " + getHitCount() + " misses: " + getMissCount();
+    }
+
+    private static final class Key {
+
+        private final Object[] arguments;
+
+        private final int hash;
+
+        Key(Object[] arguments) {
+            this.arguments = arguments;
+            this.hash = Arrays.hashCode(arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && hash == ((Key) obj).hash && Arrays.equals(arguments, ((Key) obj).arguments);
+        }
+    }
+
+    private static final class Segment extends LinkedHashMap<Object, Object> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+            return size() > capacity;
+        }
+    }
+}
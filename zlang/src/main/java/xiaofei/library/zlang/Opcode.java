@@ -0,0 +1,514 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package xiaofei.library.zlang;
+
+/**
+ * The opcodes of the linked form of a function. The first ones mirror {@link Fct}.
+ *
+ * The others are quickened forms of OPR, into which {@link Executor} rewrites an OPR instruction
+ * according to the types of the operands it meets the first time. A quickened instruction keeps the ordinal
+ * of the {@link Opr} as its operand, so it can always fall back to OPR_GENERIC.
+ *
+ * ALOD and ASTO are quickened in the same way according to the class of the array they access, which is
+ * the innermost array of a multi-dimensional one. A quickened array instruction which meets another class
+ * falls back to ALOD_GENERIC or ASTO_GENERIC.
+ *
+ * The typed forms from IADD to DNEG are linked from the OPR instructions whose operand types are proven by
+ * {@link TypeInference}. Unlike the quickened forms they never check the tags of their operands and are never
+ * rewritten.
+ *
+ * The superinstructions are described in {@link Peephole}. A superinstruction replaces only the opcode of
+ * the first instruction of a sequence and reads the operands of the whole sequence from their original slots.
+ */
+
+final class Opcode {
+
+    static final int LIT = 0;
+
+    static final int LOD = 1;
+
+    static final int ALOD = 2;
+
+    static final int STO = 3;
+
+    static final int ASTO = 4;
+
+    static final int OPR = 5;
+
+    static final int INT = 6;
+
+    static final int JMP = 7;
+
+    static final int JPF = 8;
+
+    static final int JPF_SC = 9;
+
+    static final int JPT_SC = 10;
+
+    static final int FUN = 11;
+
+    static final int PROC = 12;
+
+    static final int FUN_RETURN = 13;
+
+    static final int VOID_RETURN = 14;
+
+    /**
+     * An OPR whose operands are not of a single specialized type. It is never quickened again.
+     */
+    static final int OPR_GENERIC = 15;
+
+    static final int PLUS_II = 16;
+
+    static final int MINUS_II = 17;
+
+    static final int TIMES_II = 18;
+
+    static final int DIVIDE_II = 19;
+
+    static final int LESS_II = 20;
+
+    static final int LESS_EQUAL_II = 21;
+
+    static final int GREATER_II = 22;
+
+    static final int GREATER_EQUAL_II = 23;
+
+    static final int PLUS_DD = 24;
+
+    static final int MINUS_DD = 25;
+
+    static final int TIMES_DD = 26;
+
+    static final int DIVIDE_DD = 27;
+
+    static final int LESS_DD = 28;
+
+    static final int LESS_EQUAL_DD = 29;
+
+    static final int GREATER_DD = 30;
+
+    static final int GREATER_EQUAL_DD = 31;
+
+    static final int NEGATIVE_I = 32;
+
+    static final int NEGATIVE_D = 33;
+
+    /**
+     * LOD a; LOD b; OPR op
+     */
+    static final int LOD_LOD_OPR = 34;
+
+    /**
+     * LOD a; LIT c; OPR op
+     */
+    static final int LOD_LIT_OPR = 35;
+
+    /**
+     * LOD a; LOD b; OPR op; JPF label
+     */
+    static final int LOD_LOD_OPR_JPF = 36;
+
+    /**
+     * LOD a; LIT c; OPR op; JPF label
+     */
+    static final int LOD_LIT_OPR_JPF = 37;
+
+    /**
+     * LIT c; LOD a; OPR PLUS; STO a, which is the step of a for loop.
+     */
+    static final int INC_LOCAL = 38;
+
+    /**
+     * STO a; JMP label
+     */
+    static final int STO_JMP = 39;
+
+    /**
+     * A FUN whose result is returned by the following FUN_RETURN. If the callee is a Zlang function run by
+     * {@link Executor}, the callee replaces the current function in its frame.
+     */
+    static final int TAIL_CALL = 40;
+
+    /**
+     * An ALOD of an int[].
+     */
+    static final int ALOD_INT = 41;
+
+    static final int ALOD_DOUBLE = 42;
+
+    /**
+     * An ALOD of any array of references.
+     */
+    static final int ALOD_OBJECT = 43;
+
+    /**
+     * An ALOD which is never quickened again.
+     */
+    static final int ALOD_GENERIC = 44;
+
+    /**
+     * An ASTO of an int into an int[].
+     */
+    static final int ASTO_INT = 45;
+
+    static final int ASTO_DOUBLE = 46;
+
+    /**
+     * An ASTO into an array whose class is exactly Object[], which needs no store check.
+     */
+    static final int ASTO_OBJECT = 47;
+
+    static final int ASTO_GENERIC = 48;
+
+    /**
+     * Pops the condition and jumps if it is true. It is generated only by {@link Optimizer}.
+     */
+    static final int JPT = 49;
+
+    /**
+     * LOD a; LOD b; OPR op; JPT label
+     */
+    static final int LOD_LOD_OPR_JPT = 50;
+
+    /**
+     * LOD a; LIT c; OPR op; JPT label
+     */
+    static final int LOD_LIT_OPR_JPT = 51;
+
+    static final int IADD = 52;
+
+    static final int ISUB = 53;
+
+    static final int IMUL = 54;
+
+    static final int IDIV = 55;
+
+    static final int ILT = 56;
+
+    static final int ILE = 57;
+
+    static final int IGT = 58;
+
+    static final int IGE = 59;
+
+    static final int INEG = 60;
+
+    static final int DADD = 61;
+
+    static final int DSUB = 62;
+
+    static final int DMUL = 63;
+
+    static final int DDIV = 64;
+
+    static final int DLT = 65;
+
+    static final int DLE = 66;
+
+    static final int DGT = 67;
+
+    static final int DGE = 68;
+
+    static final int DNEG = 69;
+
+    private static final int[] INT_OPCODES = new int[Opr.values().length];
+
+    private static final int[] DOUBLE_OPCODES = new int[Opr.values().length];
+
+    private static final int[] PROVEN_INT_OPCODES = new int[Opr.values().length];
+
+    private static final int[] PROVEN_DOUBLE_OPCODES = new int[Opr.values().length];
+
+    static {
+        for (int i = 0; i < INT_OPCODES.length; ++i) {
+            INT_OPCODES[i] = OPR_GENERIC;
+            DOUBLE_OPCODES[i] = OPR_GENERIC;
+            PROVEN_INT_OPCODES[i] = OPR;
+            PROVEN_DOUBLE_OPCODES[i] = OPR;
+        }
+        INT_OPCODES[Opr.PLUS.ordinal()] = PLUS_II;
+        INT_OPCODES[Opr.MINUS.ordinal()] = MINUS_II;
+        INT_OPCODES[Opr.TIMES.ordinal()] = TIMES_II;
+        INT_OPCODES[Opr.DIVIDE.ordinal()] = DIVIDE_II;
+        INT_OPCODES[Opr.LESS.ordinal()] = LESS_II;
+        INT_OPCODES[Opr.LESS_EQUAL.ordinal()] = LESS_EQUAL_II;
+        INT_OPCODES[Opr.GREATER.ordinal()] = GREATER_II;
+        INT_OPCODES[Opr.GREATER_EQUAL.ordinal()] = GREATER_EQUAL_II;
+        DOUBLE_OPCODES[Opr.PLUS.ordinal()] = PLUS_DD;
+        DOUBLE_OPCODES[Opr.MINUS.ordinal()] = MINUS_DD;
+        DOUBLE_OPCODES[Opr.TIMES.ordinal()] = TIMES_DD;
+        DOUBLE_OPCODES[Opr.DIVIDE.ordinal()] = DIVIDE_DD;
+        DOUBLE_OPCODES[Opr.LESS.ordinal()] = LESS_DD;
+        DOUBLE_OPCODES[Opr.LESS_EQUAL.ordinal()] = LESS_EQUAL_DD;
+        DOUBLE_OPCODES[Opr.GREATER.ordinal()] = GREATER_DD;
+        DOUBLE_OPCODES[Opr.GREATER_EQUAL.ordinal()] = GREATER_EQUAL_DD;
+        PROVEN_INT_OPCODES[Opr.PLUS.ordinal()] = IADD;
+        PROVEN_INT_OPCODES[Opr.MINUS.ordinal()] = ISUB;
+        PROVEN_INT_OPCODES[Opr.TIMES.ordinal()] = IMUL;
+        PROVEN_INT_OPCODES[Opr.DIVIDE.ordinal()] = IDIV;
+        PROVEN_INT_OPCODES[Opr.LESS.ordinal()] = ILT;
+        PROVEN_INT_OPCODES[Opr.LESS_EQUAL.ordinal()] = ILE;
+        PROVEN_INT_OPCODES[Opr.GREATER.ordinal()] = IGT;
+        PROVEN_INT_OPCODES[Opr.GREATER_EQUAL.ordinal()] = IGE;
+        PROVEN_INT_OPCODES[Opr.NEGATIVE.ordinal()] = INEG;
+        PROVEN_DOUBLE_OPCODES[Opr.PLUS.ordinal()] = DADD;
+        PROVEN_DOUBLE_OPCODES[Opr.MINUS.ordinal()] = DSUB;
+        PROVEN_DOUBLE_OPCODES[Opr.TIMES.ordinal()] = DMUL;
+        PROVEN_DOUBLE_OPCODES[Opr.DIVIDE.ordinal()] = DDIV;
+        PROVEN_DOUBLE_OPCODES[Opr.LESS.ordinal()] = DLT;
+        PROVEN_DOUBLE_OPCODES[Opr.LESS_EQUAL.ordinal()] = DLE;
+        PROVEN_DOUBLE_OPCODES[Opr.GREATER.ordinal()] = DGT;
+        PROVEN_DOUBLE_OPCODES[Opr.GREATER_EQUAL.ordinal()] = DGE;
+        PROVEN_DOUBLE_OPCODES[Opr.NEGATIVE.ordinal()] = DNEG;
+    }
+
+    private static final String[] NAMES = {
+            "LIT",
+            "LOD",
+            "ALOD",
+            "STO",
+            "ASTO",
+            "OPR",
+            "INT",
+            "JMP",
+            "JPF",
+            "JPF_SC",
+            "JPT_SC",
+            "FUN",
+            "PROC",
+            "FUN_RETURN",
+            "VOID_RETURN",
+            "OPR_GENERIC",
+            "PLUS_II",
+            "MINUS_II",
+            "TIMES_II",
+            "DIVIDE_II",
+            "LESS_II",
+            "LESS_EQUAL_II",
+            "GREATER_II",
+            "GREATER_EQUAL_II",
+            "PLUS_DD",
+            "MINUS_DD",
+            "TIMES_DD",
+            "DIVIDE_DD",
+            "LESS_DD",
+            "LESS_EQUAL_DD",
+            "GREATER_DD",
+            "GREATER_EQUAL_DD",
+            "NEGATIVE_I",
+            "NEGATIVE_D",
+            "LOD_LOD_OPR",
+            "LOD_LIT_OPR",
+            "LOD_LOD_OPR_JPF",
+            "LOD_LIT_OPR_JPF",
+            "INC_LOCAL",
+            "STO_JMP",
+            "TAIL_CALL",
+            "ALOD_INT",
+            "ALOD_DOUBLE",
+            "ALOD_OBJECT",
+            "ALOD_GENERIC",
+            "ASTO_INT",
+            "ASTO_DOUBLE",
+            "ASTO_OBJECT",
+            "ASTO_GENERIC",
+            "JPT",
+            "LOD_LOD_OPR_JPT",
+            "LOD_LIT_OPR_JPT",
+            "IADD",
+            "ISUB",
+            "IMUL",
+            "IDIV",
+            "ILT",
+            "ILE",
+            "IGT",
+            "IGE",
+            "INEG",
+            "DADD",
+            "DSUB",
+            "DMUL",
+            "DDIV",
+            "DLT",
+            "DLE",
+            "DGT",
+            "DGE",
+            "DNEG",
+    };
+
+    private Opcode() {}
+
+    /**
+     * Returns the opcode of the instruction. A typed OPR gets OPR, as its opcode depends on its operator,
+     * see {@link #typed(int, Tag)}.
+     */
+    static int of(Fct fct) {
+        switch (fct) {
+            case LIT:
+                return LIT;
+            case LOD:
+                return LOD;
+            case ALOD:
+                return ALOD;
+            case STO:
+                return STO;
+            case ASTO:
+                return ASTO;
+            case OPR:
+            case OPR_INT:
+            case OPR_DOUBLE:
+                return OPR;
+            case INT:
+                return INT;
+            case JMP:
+                return JMP;
+            case JPF:
+                return JPF;
+            case JPF_SC:
+                return JPF_SC;
+            case JPT_SC:
+                return JPT_SC;
+            case FUN:
+                return FUN;
+            case PROC:
+                return PROC;
+            case FUN_RETURN:
+                return FUN_RETURN;
+            case VOID_RETURN:
+                return VOID_RETURN;
+            case TAIL_CALL:
+                return TAIL_CALL;
+            case JPT:
+                return JPT;
+            default:
+                throw new IllegalArgumentException(fct.toString());
+        }
+    }
+
+    /**
+     * Returns the opcode into which a binary OPR is quickened when it meets operands with the specified tags.
+     *
+     * @see Tag
+     */
+    static int quicken(int opr, Object tag1, Object tag2) {
+        if (tag1 == Tag.INT && tag2 == Tag.INT) {
+            return INT_OPCODES[opr];
+        } else if (tag1 == Tag.DOUBLE && tag2 == Tag.DOUBLE) {
+            return DOUBLE_OPCODES[opr];
+        } else {
+            return OPR_GENERIC;
+        }
+    }
+
+    /**
+     * Returns the opcode into which a unary OPR is quickened when it meets an operand with the specified tag.
+     */
+    static int quicken(int opr, Object tag) {
+        if (opr != Opr.NEGATIVE.ordinal()) {
+            return OPR_GENERIC;
+        } else if (tag == Tag.INT) {
+            return NEGATIVE_I;
+        } else if (tag == Tag.DOUBLE) {
+            return NEGATIVE_D;
+        } else {
+            return OPR_GENERIC;
+        }
+    }
+
+    /**
+     * Returns the typed opcode of an OPR whose operands are proven to be of the specified type, or OPR if the
+     * operator has no typed form.
+     */
+    static int typed(int opr, Tag type) {
+        if (type == Tag.INT) {
+            return PROVEN_INT_OPCODES[opr];
+        } else if (type == Tag.DOUBLE) {
+            return PROVEN_DOUBLE_OPCODES[opr];
+        } else {
+            return OPR;
+        }
+    }
+
+    /**
+     * Returns the opcode into which an ALOD is quickened when it meets the array.
+     */
+    static int quickenLoad(Object array) {
+        if (array instanceof int[]) {
+            return ALOD_INT;
+        } else if (array instanceof double[]) {
+            return ALOD_DOUBLE;
+        } else if (array instanceof Object[]) {
+            return ALOD_OBJECT;
+        } else {
+            return ALOD_GENERIC;
+        }
+    }
+
+    /**
+     * Returns the opcode into which an ASTO is quickened when it stores a value with the specified tag
+     * into the array.
+     */
+    static int quickenStore(Object array, Object tag) {
+        if (array instanceof int[] && tag == Tag.INT) {
+            return ASTO_INT;
+        } else if (array instanceof double[] && tag == Tag.DOUBLE) {
+            return ASTO_DOUBLE;
+        } else if (array != null && array.getClass() == Object[].class) {
+            return ASTO_OBJECT;
+        } else {
+            return ASTO_GENERIC;
+        }
+    }
+
+    /**
+     * Maps a quickened or typed opcode back to OPR, ALOD or ASTO, and a superinstruction back to the opcode of its
+     * first instruction. Other opcodes are returned as they are.
+     */
+    static int generic(int opcode) {
+        if (opcode < OPR_GENERIC) {
+            return opcode;
+        } else if (opcode <= NEGATIVE_D) {
+            return OPR;
+        } else if (opcode <= LOD_LIT_OPR_JPF) {
+            return LOD;
+        } else if (opcode == INC_LOCAL) {
+            return LIT;
+        } else if (opcode == STO_JMP) {
+            return STO;
+        } else if (opcode == TAIL_CALL) {
+            return TAIL_CALL;
+        } else if (opcode <= ALOD_GENERIC) {
+            return ALOD;
+        } else if (opcode <= ASTO_GENERIC) {
+            return ASTO;
+        } else if (opcode == JPT) {
+            return JPT;
+        } else if (opcode <= LOD_LIT_OPR_JPT) {
+            return LOD;
+        } else if (opcode <= DNEG) {
+            return OPR;
+        } else {
+            return opcode;
+        }
+    }
+
+    static String getName(int opcode) {
+        return opcode >= 0 && opcode < NAMES.length ? NAMES[opcode] : Integer.toString(opcode);
+    }
+}
@@ -23,6 +23,24 @@ package xiaofei.library.zlang;
  */
 
 class OprAdapterFactory {
+
+    private static final OprAdapter[] ADAPTERS;
+
+    static {
+        Opr[] oprs = Opr.values();
+        ADAPTERS = new OprAdapter[oprs.length];
+        for (Opr opr : oprs) {
+            ADAPTERS[opr.ordinal()] = getInstance(opr);
+        }
+    }
+
+    /**
+     * @param opr the ordinal of the {@link Opr}
+     */
+    static OprAdapter getInstance(int opr) {
+        return ADAPTERS[opr];
+    }
+
     static OprAdapter getInstance(Opr opr) {
         switch (opr) {
             case NEGATIVE:
@@ -474,7 +492,7 @@ class OprAdapterFactory {
         public Object operate(Object[] stack, int start) {
             Object o1 = stack[start], o2 = stack[start + 1];
             if (o1 instanceof Boolean && o2 instanceof Boolean) {
-                return !(boolean) o1 || (boolean) o2;
+                return (boolean) o1 || (boolean) o2;
             } else {
                 throw new IllegalArgumentException();
             }
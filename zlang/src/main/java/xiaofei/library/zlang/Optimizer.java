@@ -0,0 +1,530 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package xiaofei.library.zlang;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * Optimizes the codes generated by {@link Compiler} before they are linked.
+ *
+ * The passes are repeated until nothing changes:
+ * <ul>
+ * <li>Constant folding evaluates the operators whose operands are literals with {@link OprAdapter}, so the result
+ * is exactly what the operator would produce at run time. EQUAL and NOT_EQUAL compare the literals with
+ * {@link Tag#equal(Object, Object)} as the engines do, except that two strings or other references are left
+ * for the run time. An operator which throws is left for the run time.
+ * Branches on boolean literals become jumps or disappear.</li>
+ * <li>Constant propagation replaces the loads of a local variable which is assigned a literal only once,
+ * provided the assignment is executed before the load on every path.</li>
+ * <li>Dead code elimination removes the unreachable codes, the jumps to the next code and the assignments of
+ * literals or variables to local variables which are never read.</li>
+ * <li>Jump threading retargets the jumps to JMPs, turns the JMPs to returns into returns and inverts the branches
+ * over a JMP. A short circuit whose value is only tested by a branch becomes a JPF or JPT without the AND or OR,
+ * and a branch on a NOT is inverted, provided the value is known to be a boolean, since the operator would throw
+ * an IllegalArgumentException for another value. The step of a for loop is moved after the body.</li>
+ * </ul>
+ * A code which is the target of a jump is never merged with the codes before it.
+ */
+
+class Optimizer {
+
+    private final Fct[] fcts;
+
+    private final Object[] operands;
+
+    private boolean[] deleted;
+
+    private boolean[] targets;
+
+    private int size;
+
+    private final int parameterNumber;
+
+    private Optimizer(ArrayList<Code> codes, int parameterNumber) {
+        this.parameterNumber = parameterNumber;
+        size = codes.size();
+        fcts = new Fct[size];
+        operands = new Object[size];
+        for (int i = 0; i < size; ++i) {
+            Code code = codes.get(i);
+            fcts[i] = code.getOpr();
+            operands[i] = code.getOperand();
+        }
+    }
+
+    static ArrayList<Code> optimize(ArrayList<Code> codes, int parameterNumber) {
+        Optimizer optimizer = new Optimizer(codes, parameterNumber);
+        optimizer.run();
+        ArrayList<Code> result = new ArrayList<>(optimizer.size);
+        for (int i = 0; i < optimizer.size; ++i) {
+            result.add(new Code(optimizer.fcts[i], optimizer.operands[i]));
+        }
+        return result;
+    }
+
+    private void run() {
+        boolean changed;
+        do {
+            changed = false;
+            start();
+            changed |= fold();
+            changed |= compact();
+            start();
+            changed |= propagate();
+            changed |= compact();
+            start();
+            eliminate();
+            changed |= compact();
+            start();
+            changed |= thread();
+            changed |= compact();
+            changed |= place();
+        } while (changed);
+    }
+
+    private void start() {
+        deleted = new boolean[size];
+        targets = new boolean[size];
+        for (int i = 0; i < size; ++i) {
+            if (isJump(fcts[i])) {
+                targets[(int) operands[i]] = true;
+            }
+        }
+    }
+
+    private boolean fold() {
+        boolean changed = false;
+        for (int i = 0; i < size; ++i) {
+            if (targets[i]) {
+                continue;
+            }
+            switch (fcts[i]) {
+                case OPR: {
+                    OprAdapter adapter = OprAdapterFactory.getInstance((Opr) operands[i]);
+                    int last = literal(i);
+                    if (last == -1) {
+                        break;
+                    }
+                    Object[] values;
+                    int first;
+                    if (adapter.getOperandNumber() == 1) {
+                        first = last;
+                        values = new Object[]{operands[last]};
+                    } else {
+                        first = targets[last] ? -1 : literal(last);
+                        if (first == -1) {
+                            break;
+                        }
+                        values = new Object[]{operands[first], operands[last]};
+                    }
+                    Object result;
+                    Opr opr = (Opr) operands[i];
+                    if (opr == Opr.EQUAL || opr == Opr.NOT_EQUAL) {
+                        // The engines compare the references by identity, which depends on how the literals are linked.
+                        if (isReference(values[0]) && isReference(values[1])) {
+                            break;
+                        }
+                        result = Tag.equal(values[0], values[1]) == (opr == Opr.EQUAL);
+                    } else {
+                        try {
+                            result = adapter.operate(values, 0);
+                        } catch (RuntimeException e) {
+                            break;
+                        }
+                    }
+                    // The result is kept in the first literal, which may be a jump target.
+                    operands[first] = result;
+                    deleted[last] = first != last;
+                    deleted[i] = true;
+                    changed = true;
+                    break;
+                }
+                case JPF:
+                case JPT: {
+                    int last = literal(i);
+                    if (last != -1 && operands[last] instanceof Boolean) {
+                        deleted[last] = true;
+                        if ((boolean) operands[last] != (fcts[i] == Fct.JPT)) {
+                            deleted[i] = true;
+                        } else {
+                            fcts[i] = Fct.JMP;
+                        }
+                        changed = true;
+                    }
+                    break;
+                }
+                case JPF_SC:
+                case JPT_SC: {
+                    // The value is left on the stack for the operator after the right operand.
+                    int last = literal(i);
+                    if (last != -1 && operands[last] instanceof Boolean) {
+                        if ((boolean) operands[last] == (fcts[i] == Fct.JPT_SC)) {
+                            fcts[i] = Fct.JMP;
+                        } else {
+                            deleted[i] = true;
+                        }
+                        changed = true;
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Returns whether the value is held as a reference rather than a tag on the stack, see {@link Tag#unbox}.
+     */
+    private static boolean isReference(Object value) {
+        return value != null && !(value instanceof Integer) && !(value instanceof Double)
+                && !(value instanceof Boolean) && !(value instanceof Long);
+    }
+
+    private boolean propagate() {
+        // INT is the first code and reserves the local variables.
+        int locals = (int) operands[0];
+        int[] stores = new int[locals];
+        int[] counts = new int[locals];
+        BitSet arrays = new BitSet();
+        for (int i = 0; i < size; ++i) {
+            if (fcts[i] == Fct.STO) {
+                int local = (int) operands[i];
+                ++counts[local];
+                stores[local] = targets[i] ? -1 : literal(i);
+            } else if (fcts[i] == Fct.ALOD || fcts[i] == Fct.ASTO) {
+                arrays.set((int) operands[i]);
+            }
+        }
+        BitSet candidates = new BitSet();
+        for (int i = parameterNumber; i < locals; ++i) {
+            if (counts[i] == 1 && stores[i] != -1 && !arrays.get(i)) {
+                candidates.set(i);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return false;
+        }
+        // The candidates which are assigned on every path to each code.
+        BitSet[] assigned = new BitSet[size];
+        ArrayDeque<Integer> worklist = new ArrayDeque<>();
+        assigned[0] = new BitSet();
+        worklist.add(0);
+        while (!worklist.isEmpty()) {
+            int pc = worklist.poll();
+            BitSet state = assigned[pc];
+            if (fcts[pc] == Fct.STO && candidates.get((int) operands[pc])) {
+                state = (BitSet) state.clone();
+                state.set((int) operands[pc]);
+            }
+            if (fallsThrough(fcts[pc])) {
+                merge(assigned, pc + 1, state, worklist);
+            }
+            if (isJump(fcts[pc])) {
+                merge(assigned, (int) operands[pc], state, worklist);
+            }
+        }
+        boolean changed = false;
+        for (int i = 0; i < size; ++i) {
+            if (fcts[i] == Fct.LOD && assigned[i] != null && assigned[i].get((int) operands[i])) {
+                fcts[i] = Fct.LIT;
+                operands[i] = operands[stores[(int) operands[i]]];
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private void eliminate() {
+        boolean[] reachable = new boolean[size];
+        ArrayDeque<Integer> worklist = new ArrayDeque<>();
+        reachable[0] = true;
+        worklist.add(0);
+        while (!worklist.isEmpty()) {
+            int pc = worklist.poll();
+            if (fallsThrough(fcts[pc]) && !reachable[pc + 1]) {
+                reachable[pc + 1] = true;
+                worklist.add(pc + 1);
+            }
+            if (isJump(fcts[pc]) && !reachable[(int) operands[pc]]) {
+                reachable[(int) operands[pc]] = true;
+                worklist.add((int) operands[pc]);
+            }
+        }
+        boolean[] read = new boolean[(int) operands[0]];
+        for (int i = 0; i < size; ++i) {
+            if (!reachable[i]) {
+                deleted[i] = true;
+            } else if (fcts[i] == Fct.LOD || fcts[i] == Fct.ALOD || fcts[i] == Fct.ASTO) {
+                read[(int) operands[i]] = true;
+            }
+        }
+        for (int i = 0; i < size; ++i) {
+            if (deleted[i]) {
+                continue;
+            }
+            if (fcts[i] == Fct.JMP && next(i) == (int) operands[i]) {
+                deleted[i] = true;
+            } else if (fcts[i] == Fct.STO && !read[(int) operands[i]] && !targets[i]) {
+                int last = previous(i);
+                if (last != -1 && (fcts[last] == Fct.LIT && isValue(operands[last]) || fcts[last] == Fct.LOD)) {
+                    deleted[last] = true;
+                    deleted[i] = true;
+                }
+            }
+        }
+    }
+
+    private boolean thread() {
+        boolean changed = false;
+        int[] sources = new int[size];
+        for (int i = 0; i < size; ++i) {
+            if (isJump(fcts[i])) {
+                ++sources[(int) operands[i]];
+            }
+        }
+        for (int i = 0; i < size; ++i) {
+            Fct fct = fcts[i];
+            if (fct == Fct.JPF_SC || fct == Fct.JPT_SC) {
+                // a; JPF_SC L; b; OPR AND; L: JPF M becomes a; JPF M; b; L: JPF M, and likewise for OR and JPT.
+                // The branch may follow an OPR NOT at the label.
+                int label = (int) operands[i];
+                int closer = label - 1;
+                boolean jumpIfTrue = fct == Fct.JPT_SC;
+                boolean negated = fcts[label] == Fct.OPR && operands[label] == Opr.NOT;
+                int branch = negated ? label + 1 : label;
+                if (sources[label] == 1 && isBranch(fcts[branch]) && !(negated && targets[branch])
+                        && fcts[closer] == Fct.OPR && !targets[closer] && !deleted[closer]
+                        && operands[closer] == (jumpIfTrue ? Opr.OR : Opr.AND) && (negated || isBoolean(closer - 1))) {
+                    fcts[i] = jumpIfTrue ? Fct.JPT : Fct.JPF;
+                    // The value of the short circuit decides the branch.
+                    int target = (jumpIfTrue != negated) == (fcts[branch] == Fct.JPT)
+                            ? (int) operands[branch] : branch + 1;
+                    operands[i] = target;
+                    targets[target] = true;
+                    deleted[closer] = true;
+                    changed = true;
+                }
+            } else if (isBranch(fct) && i > 1 && fcts[i - 1] == Fct.OPR && operands[i - 1] == Opr.NOT
+                    && !targets[i - 1] && !targets[i] && !deleted[i - 1] && isBoolean(i - 2)) {
+                // OPR NOT; JPF L becomes JPT L.
+                fcts[i] = fct == Fct.JPF ? Fct.JPT : Fct.JPF;
+                deleted[i - 1] = true;
+                changed = true;
+            } else if (fct == Fct.JMP || isBranch(fct)) {
+                int target = destination((int) operands[i]);
+                if (target != (int) operands[i]) {
+                    operands[i] = target;
+                    changed = true;
+                }
+                if (fct == Fct.JMP && (fcts[target] == Fct.FUN_RETURN || fcts[target] == Fct.VOID_RETURN)) {
+                    fcts[i] = fcts[target];
+                    operands[i] = operands[target];
+                    changed = true;
+                } else if (isBranch(fct) && i + 2 < size && fcts[i + 1] == Fct.JMP && !targets[i + 1]
+                        && !deleted[i + 1] && target == i + 2) {
+                    // JPF L; JMP M; L: becomes JPT M; L:
+                    fcts[i] = fct == Fct.JPF ? Fct.JPT : Fct.JPF;
+                    operands[i] = operands[i + 1];
+                    deleted[i + 1] = true;
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Returns whether the code always leaves a boolean on the stack. Otherwise the operator which the branch
+     * replaces has to check the value, whose exception differs from that of the branch.
+     */
+    private boolean isBoolean(int pc) {
+        if (deleted[pc]) {
+            return false;
+        } else if (fcts[pc] == Fct.LIT) {
+            return operands[pc] instanceof Boolean;
+        } else {
+            return fcts[pc] == Fct.OPR && ((Opr) operands[pc]).compareTo(Opr.EQUAL) >= 0;
+        }
+    }
+
+    /**
+     * Returns where a jump to the specified code finally goes through a chain of JMPs.
+     */
+    private int destination(int pc) {
+        int target = pc;
+        for (int i = 0; i < size && fcts[target] == Fct.JMP; ++i) {
+            target = (int) operands[target];
+        }
+        return fcts[target] == Fct.JMP ? pc : target;
+    }
+
+    /**
+     * Moves the code between a JMP and its target after the code which jumps back to it, which is how a for loop
+     * is compiled:
+     * <pre>
+     * JMP B; S: step; JMP C; B: body; JMP S; E:
+     * </pre>
+     * becomes
+     * <pre>
+     * body; step; JMP C; E:
+     * </pre>
+     */
+    private boolean place() {
+        for (int i = 0; i < size; ++i) {
+            if (fcts[i] != Fct.JMP) {
+                continue;
+            }
+            int body = (int) operands[i];
+            if (body <= i + 1 || fallsThrough(fcts[body - 1])) {
+                continue;
+            }
+            // A continue statement also jumps to the step, so the last jump is the end of the body.
+            int end = size - 1;
+            while (end >= body && !(fcts[end] == Fct.JMP && (int) operands[end] == i + 1)) {
+                --end;
+            }
+            if (end < body) {
+                continue;
+            }
+            int[] positions = new int[size];
+            Fct[] oldFcts = fcts.clone();
+            Object[] oldOperands = operands.clone();
+            int j = i;
+            for (int k = body; k < end; ++k) {
+                positions[k] = j++;
+            }
+            for (int k = i + 1; k < body; ++k) {
+                positions[k] = j++;
+            }
+            positions[i] = positions[body];
+            positions[end] = positions[i + 1];
+            for (int k = 0; k < i; ++k) {
+                positions[k] = k;
+            }
+            for (int k = end + 1; k < size; ++k) {
+                positions[k] = k - 2;
+            }
+            for (int k = 0; k < size; ++k) {
+                if (k != i && k != end) {
+                    int position = positions[k];
+                    fcts[position] = oldFcts[k];
+                    operands[position] = isJump(oldFcts[k]) ? positions[(int) oldOperands[k]] : oldOperands[k];
+                }
+            }
+            size -= 2;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes the deleted codes and adjusts the jump targets.
+     *
+     * @return true if any code is removed
+     */
+    private boolean compact() {
+        int[] positions = new int[size + 1];
+        int newSize = 0;
+        for (int i = 0; i < size; ++i) {
+            positions[i] = newSize;
+            if (!deleted[i]) {
+                ++newSize;
+            }
+        }
+        positions[size] = newSize;
+        boolean changed = newSize != size;
+        for (int i = 0, j = 0; i < size; ++i) {
+            if (deleted[i]) {
+                continue;
+            }
+            fcts[j] = fcts[i];
+            operands[j] = isJump(fcts[i]) ? positions[(int) operands[i]] : operands[i];
+            ++j;
+        }
+        size = newSize;
+        return changed;
+    }
+
+    /**
+     * Returns the code executed just before the specified one, or -1 if the code can be reached in other ways.
+     */
+    private int previous(int pc) {
+        for (int i = pc - 1; i >= 0; --i) {
+            if (!deleted[i]) {
+                return fallsThrough(fcts[i]) ? i : -1;
+            }
+            if (targets[i]) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the literal pushed just before the specified code, or -1 if there is no such literal.
+     */
+    private int literal(int pc) {
+        int last = previous(pc);
+        return last != -1 && fcts[last] == Fct.LIT && isValue(operands[last]) ? last : -1;
+    }
+
+    private int next(int pc) {
+        int i = pc + 1;
+        while (i < size && deleted[i]) {
+            ++i;
+        }
+        return i;
+    }
+
+    private static boolean isValue(Object constant) {
+        return constant == null || constant instanceof String || constant instanceof Boolean
+                || constant instanceof Number || constant instanceof Character;
+    }
+
+    private static boolean isJump(Fct fct) {
+        return fct == Fct.JMP || fct == Fct.JPF || fct == Fct.JPT || fct == Fct.JPF_SC || fct == Fct.JPT_SC;
+    }
+
+    private static boolean isBranch(Fct fct) {
+        return fct == Fct.JPF || fct == Fct.JPT;
+    }
+
+    private static boolean fallsThrough(Fct fct) {
+        return fct != Fct.JMP && fct != Fct.FUN_RETURN && fct != Fct.VOID_RETURN;
+    }
+
+    private static void merge(BitSet[] states, int pc, BitSet state, ArrayDeque<Integer> worklist) {
+        BitSet old = states[pc];
+        if (old == null) {
+            states[pc] = state;
+            worklist.add(pc);
+        } else if (!state.equals(old)) {
+            BitSet merged = (BitSet) old.clone();
+            merged.and(state);
+            if (!merged.equals(old)) {
+                states[pc] = merged;
+                worklist.add(pc);
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A loop like "parallel for i = a to b step c reduce s statement", whose iterations run concurrently.
+ *
+ * {@link Compiler} compiles the body into a synthetic function, whose parameters are the loop variable,
+ * the reduction variable if any, and the other variables of the enclosing function. Each iteration calls
+ * the function, so the variables are private to the iteration: the enclosing variables are copied when the loop
+ * starts and assignments to them are not visible outside. Objects such as arrays are shared, not copied.
+ *
+ * The iterations are split into ranges, which run as fork-join tasks, each on the interpreter stack of its thread.
+ * The function returns the new value of the reduction variable. In each range, the reduction variable starts from
+ * zero of the type of its initial value, or "" for a string. The results of the ranges are added in the order of
+ * the ranges, and then added to the initial value. So with ints and strings the result is the same as that of
+ * a sequential loop, but with doubles it may differ by rounding.
+ */
+
+final class ParallelLoop {
+
+    private static final OprAdapter PLUS = OprAdapterFactory.getInstance(Opr.PLUS);
+
+    private static volatile ForkJoinPool pool;
+
+    private final Library library;
+
+    private final String functionName;
+
+    private final int parameterNumber;
+
+    private final boolean reduces;
+
+    private volatile CompiledFunction function;
+
+    ParallelLoop(Library library, String functionName, int parameterNumber, boolean reduces) {
+        this.library = library;
+        this.functionName = functionName;
+        this.parameterNumber = parameterNumber;
+        this.reduces = reduces;
+    }
+
+    private static ForkJoinPool getPool() {
+        if (pool == null) {
+            synchronized (ParallelLoop.class) {
+                if (pool == null) {
+                    pool = new ForkJoinPool();
+                }
+            }
+        }
+        return pool;
+    }
+
+    private static int getInt(Object value, String name) {
+        if (!(value instanceof Integer)) {
+            throw new ZlangRuntimeException(ZlangRuntimeError.ILLEGAL_ARGUMENT,
+                    "The " + name + " of a parallel loop should be an int: " + value);
+        }
+        return (Integer) value;
+    }
+
+    private static Object getZero(Object value) {
+        if (value instanceof Integer) {
+            return 0;
+        } else if (value instanceof Long) {
+            return 0L;
+        } else if (value instanceof Double) {
+            return 0.0;
+        } else if (value instanceof Float) {
+            return 0.0f;
+        } else if (value instanceof String) {
+            return "";
+        } else {
+            throw new ZlangRuntimeException(ZlangRuntimeError.ILLEGAL_ARGUMENT, "Cannot reduce " + value);
+        }
+    }
+
+    private static Object add(Object value1, Object value2) {
+        return PLUS.operate(new Object[]{value1, value2}, 0);
+    }
+
+    /**
+     * @param input the start, the end and the step of the loop, the initial value of the reduction variable
+     *              if any, and the values of the captured variables.
+     * @return the final value of the reduction variable, or null if there is none.
+     */
+    Object run(Object[] input) {
+        int start = getInt(input[0], "start");
+        int end = getInt(input[1], "end");
+        int step = getInt(input[2], "step");
+        if (step <= 0) {
+            throw new ZlangRuntimeException(ZlangRuntimeError.ILLEGAL_ARGUMENT,
+                    "The step of a parallel loop should be positive: " + step);
+        }
+        Object initialValue = reduces ? input[3] : null;
+        Object zero = reduces ? getZero(initialValue) : null;
+        long count = end < start ? 0 : ((long) end - start) / step + 1;
+        if (count == 0) {
+            return initialValue;
+        }
+        if (function == null) {
+            function = library.getFunction(functionName, parameterNumber);
+        }
+        Object[] arguments = new Object[parameterNumber];
+        System.arraycopy(input, 3, arguments, 1, parameterNumber - 1);
+        ForkJoinPool pool = getPool();
+        long threshold = Math.max(1, count / (8 * pool.getParallelism()));
+        Range range = new Range(arguments, start, step, zero, 0, count, threshold);
+        Object result = ForkJoinTask.inForkJoinPool() ? range.invoke() : pool.invoke(range);
+        return reduces ? add(initialValue, result) : null;
+    }
+
+    @Override
+    public String toString() {
+        return "parallel " + functionName;
+    }
+
+    private class Range extends RecursiveTask<Object> {
+
+        private static final long serialVersionUID = 1L;
+
+        final Object[] arguments;
+
+        final int start;
+
+        final int step;
+
+        final Object zero;
+
+        final long from;
+
+        final long to;
+
+        final long threshold;
+
+        Range(Object[] arguments, int start, int step, Object zero, long from, long to, long threshold) {
+            this.arguments = arguments;
+            this.start = start;
+            this.step = step;
+            this.zero = zero;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected Object compute() {
+            if (to - from > threshold) {
+                long middle = (from + to) >>> 1;
+                Range left = new Range(arguments, start, step, zero, from, middle, threshold);
+                Range right = new Range(arguments, start, step, zero, middle, to, threshold);
+                left.fork();
+                Object rightResult = right.compute();
+                Object leftResult = left.join();
+                return reduces ? add(leftResult, rightResult) : null;
+            }
+            CompiledFunction function = ParallelLoop.this.function;
+            Object value = zero;
+            ExecutionContext context = ExecutionContext.obtain();
+            try {
+                for (long i = from; i < to; ++i) {
+                    Object[] input = arguments.clone();
+                    input[0] = (int) (start + i * step);
+                    if (reduces) {
+                        input[1] = value;
+                    }
+                    value = Executor.execute(context, function, input);
+                }
+            } finally {
+                context.release();
+            }
+            return value;
+        }
+    }
+}
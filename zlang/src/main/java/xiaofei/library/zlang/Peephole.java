@@ -0,0 +1,99 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+/**
+ * Fuses the frequent instruction sequences emitted by {@link Compiler} into superinstructions.
+ *
+ * The superinstructions are the sequences which {@link Compiler} emits for the common statements:
+ * <ul>
+ * <li>LOD LOD OPR and LOD LIT OPR for a binary operator on a variable and a variable or a literal,
+ * e.g. a + b or i * 2.</li>
+ * <li>The same followed by JPF for the condition of an if or a while statement, e.g. i &lt; n, and for the test
+ * of a for loop whose bound is a variable. {@link Optimizer} turns some of them into JPT when it inverts a
+ * branch.</li>
+ * <li>LIT LOD OPR STO for the step of a for loop, i = i + c.</li>
+ * <li>STO JMP for an assignment at the end of a loop body, before the jump back to the loop head.</li>
+ * </ul>
+ *
+ * Only the opcode of the first instruction is replaced. The other instructions are left as they are, so jumping
+ * into the middle of a sequence still works and jump targets need no adjustment. A typed OPR is matched as OPR and
+ * keeps its opcode, so the superinstruction applies it without checking the tags.
+ */
+
+class Peephole {
+
+    private Peephole() {}
+
+    static void fuse(int[] opcodes, int[] operands) {
+        int size = opcodes.length;
+        int i = 0;
+        while (i < size) {
+            int length = 1;
+            if (matches(opcodes, i, Opcode.LIT, Opcode.LOD, Opcode.OPR, Opcode.STO)
+                    && operands[i + 1] == operands[i + 3] && operands[i + 2] == Opr.PLUS.ordinal()) {
+                opcodes[i] = Opcode.INC_LOCAL;
+                length = 4;
+            } else if (matches(opcodes, i, Opcode.LOD, Opcode.LOD, Opcode.OPR, Opcode.JPF)
+                    && isBinary(operands[i + 2])) {
+                opcodes[i] = Opcode.LOD_LOD_OPR_JPF;
+                length = 4;
+            } else if (matches(opcodes, i, Opcode.LOD, Opcode.LIT, Opcode.OPR, Opcode.JPF)
+                    && isBinary(operands[i + 2])) {
+                opcodes[i] = Opcode.LOD_LIT_OPR_JPF;
+                length = 4;
+            } else if (matches(opcodes, i, Opcode.LOD, Opcode.LOD, Opcode.OPR, Opcode.JPT)
+                    && isBinary(operands[i + 2])) {
+                opcodes[i] = Opcode.LOD_LOD_OPR_JPT;
+                length = 4;
+            } else if (matches(opcodes, i, Opcode.LOD, Opcode.LIT, Opcode.OPR, Opcode.JPT)
+                    && isBinary(operands[i + 2])) {
+                opcodes[i] = Opcode.LOD_LIT_OPR_JPT;
+                length = 4;
+            } else if (matches(opcodes, i, Opcode.LOD, Opcode.LOD, Opcode.OPR) && isBinary(operands[i + 2])) {
+                opcodes[i] = Opcode.LOD_LOD_OPR;
+                length = 3;
+            } else if (matches(opcodes, i, Opcode.LOD, Opcode.LIT, Opcode.OPR) && isBinary(operands[i + 2])) {
+                opcodes[i] = Opcode.LOD_LIT_OPR;
+                length = 3;
+            } else if (matches(opcodes, i, Opcode.STO, Opcode.JMP)) {
+                opcodes[i] = Opcode.STO_JMP;
+                length = 2;
+            }
+            i += length;
+        }
+    }
+
+    private static boolean matches(int[] opcodes, int start, int... sequence) {
+        if (start + sequence.length > opcodes.length) {
+            return false;
+        }
+        for (int i = 0; i < sequence.length; ++i) {
+            if (Opcode.generic(opcodes[start + i]) != sequence[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isBinary(int opr) {
+        return OprAdapterFactory.getInstance(opr).getOperandNumber() == 2;
+    }
+}
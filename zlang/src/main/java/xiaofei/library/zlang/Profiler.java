@@ -0,0 +1,228 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records how the functions of a library perform, see {@link Library.Builder#setProfilingEnabled(boolean)}.
+ *
+ * The profile covers the Zlang functions and the Java functions called during the executions of the functions
+ * of the library, including the functions of the dependencies. It can be exported as a report or as collapsed
+ * stacks, which are the input of flame graph tools.
+ *
+ * Each execution records its calls in a tree of its own, which is merged into the profiler when it finishes,
+ * so a profiler can be shared by concurrent executions.
+ */
+
+public final class Profiler {
+
+    /**
+     * Keyed by the CompiledFunction or the JavaFunction.
+     */
+    private final LinkedHashMap<Object, FunctionProfile> profiles = new LinkedHashMap<>();
+
+    /**
+     * The exclusive time of each stack, whose frames are separated by semicolons.
+     */
+    private final LinkedHashMap<String, Long> stacks = new LinkedHashMap<>();
+
+    Profiler() {}
+
+    /**
+     * A function called from the function of the parent node.
+     */
+    static final class Node {
+
+        final Object function;
+
+        private HashMap<Object, Node> children;
+
+        long invocationCount;
+
+        long nanos;
+
+        long childNanos;
+
+        final long[] hitCounts;
+
+        Node(Object function) {
+            this.function = function;
+            this.hitCounts = function instanceof CompiledFunction
+                    ? new long[((CompiledFunction) function).size()] : null;
+        }
+
+        Node getChild(Object function) {
+            if (children == null) {
+                children = new HashMap<>();
+            }
+            Node child = children.get(function);
+            if (child == null) {
+                child = new Node(function);
+                children.put(function, child);
+            }
+            return child;
+        }
+    }
+
+    synchronized void merge(Node root) {
+        if (root.children != null) {
+            HashMap<Object, Integer> active = new HashMap<>();
+            for (Node child : root.children.values()) {
+                merge(child, "", active);
+            }
+        }
+    }
+
+    private void merge(Node node, String parentStack, HashMap<Object, Integer> active) {
+        FunctionProfile profile = profiles.get(node.function);
+        if (profile == null) {
+            if (node.function instanceof CompiledFunction) {
+                CompiledFunction function = (CompiledFunction) node.function;
+                profile = new FunctionProfile(function.library, function.functionName, function.parameterNumber,
+                        false, function.size());
+            } else {
+                JavaFunction function = (JavaFunction) node.function;
+                profile = new FunctionProfile(null, function.getFunctionName(), function.getParameterNumber(),
+                        true, 0);
+            }
+            profiles.put(node.function, profile);
+        }
+        long exclusiveNanos = node.nanos - node.childNanos;
+        profile.invocationCount += node.invocationCount;
+        profile.exclusiveNanos += exclusiveNanos;
+        if (node.hitCounts != null) {
+            for (int i = 0; i < node.hitCounts.length; ++i) {
+                profile.hitCounts[i] += node.hitCounts[i];
+            }
+        }
+        Integer depth = active.get(node.function);
+        if (depth == null) {
+            // The outermost activation of a recursive function.
+            profile.inclusiveNanos += node.nanos;
+            depth = 0;
+        }
+        String stack = parentStack.isEmpty() ? profile.getLabel() : parentStack + ";" + profile.getLabel();
+        Long stackNanos = stacks.get(stack);
+        stacks.put(stack, stackNanos == null ? exclusiveNanos : stackNanos + exclusiveNanos);
+        if (node.children != null) {
+            active.put(node.function, depth + 1);
+            for (Node child : node.children.values()) {
+                merge(child, stack, active);
+            }
+            if (depth == 0) {
+                active.remove(node.function);
+            } else {
+                active.put(node.function, depth);
+            }
+        }
+    }
+
+    /**
+     * Returns the profiles of the functions, with the most exclusive time first.
+     */
+    public synchronized List<FunctionProfile> getProfiles() {
+        ArrayList<FunctionProfile> result = new ArrayList<>();
+        for (FunctionProfile profile : profiles.values()) {
+            result.add(new FunctionProfile(profile));
+        }
+        Collections.sort(result, new Comparator<FunctionProfile>() {
+            @Override
+            public int compare(FunctionProfile o1, FunctionProfile o2) {
+                return Long.compare(o2.getExclusiveNanos(), o1.getExclusiveNanos());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns the profile of the function, or null if it has not been called.
+     * If functions of different libraries have the same name and parameter number, their profiles are merged.
+     */
+    public synchronized FunctionProfile getProfile(String functionName, int parameterNumber) {
+        FunctionProfile result = null;
+        for (FunctionProfile profile : profiles.values()) {
+            if (profile.getFunctionName().equals(functionName) && profile.getParameterNumber() == parameterNumber) {
+                if (result == null) {
+                    result = new FunctionProfile(profile);
+                } else {
+                    result.invocationCount += profile.invocationCount;
+                    result.inclusiveNanos += profile.inclusiveNanos;
+                    result.exclusiveNanos += profile.exclusiveNanos;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a table of the functions, with the most exclusive time first, followed by the hit counts of
+     * the instructions of each Zlang function.
+     */
+    public String getReport() {
+        List<FunctionProfile> profiles = getProfiles();
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%-32s %12s %16s %16s%n",
+                "Function", "Invocations", "Inclusive(us)", "Exclusive(us)"));
+        for (FunctionProfile profile : profiles) {
+            builder.append(String.format("%-32s %12d %16d %16d%n",
+                    profile.getLabel() + (profile.isJavaFunction() ? " (Java)" : ""), profile.getInvocationCount(),
+                    profile.getInclusiveNanos() / 1000, profile.getExclusiveNanos() / 1000));
+        }
+        for (FunctionProfile profile : profiles) {
+            if (profile.isJavaFunction()) {
+                continue;
+            }
+            CompiledFunction function = profile.getLibrary()
+                    .getFunction(profile.getFunctionName(), profile.getParameterNumber());
+            builder.append(System.getProperty("line.separator")).append(profile.getLabel())
+                    .append(System.getProperty("line.separator"));
+            for (int i = 0; i < profile.hitCounts.length; ++i) {
+                builder.append(String.format("%12d %6d %-16s %s%n", profile.hitCounts[i], i,
+                        Opcode.getName(Opcode.generic(function.opcodes[i])), function.getOperand(i)));
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns one line for each stack, which is the frames separated by semicolons, followed by a space and
+     * the time in nanoseconds spent in the last frame.
+     */
+    public synchronized String getCollapsedStacks() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Long> entry : stacks.entrySet()) {
+            builder.append(entry.getKey()).append(' ').append(entry.getValue())
+                    .append(System.getProperty("line.separator"));
+        }
+        return builder.toString();
+    }
+
+    public synchronized void reset() {
+        profiles.clear();
+        stacks.clear();
+    }
+}
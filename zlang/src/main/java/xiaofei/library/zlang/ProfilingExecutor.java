@@ -0,0 +1,253 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+import java.util.Arrays;
+
+/**
+ * The interpreter used for the libraries with a {@link Profiler}.
+ *
+ * It runs the generic form of the stack code, i.e. without quickening or superinstructions, and records each call
+ * and each instruction. Being a separate loop, it costs nothing when profiling is disabled. Functions called during
+ * a profiled execution are always interpreted here, whatever their engine and even if they have been compiled
+ * by the JIT.
+ */
+
+final class ProfilingExecutor {
+
+    private ProfilingExecutor() {}
+
+    static Object execute(ExecutionContext context, CompiledFunction function, Object[] input) {
+        Profiler.Node root = new Profiler.Node(null);
+        try {
+            return run(context, function, input, root);
+        } finally {
+            function.library.getProfiler().merge(root);
+        }
+    }
+
+    private static Object run(ExecutionContext context, CompiledFunction function, Object[] input,
+                              Profiler.Node root) {
+        context.ensureCapacity(1 + function.frameSize);
+        Object[] stack = context.stack;
+        long[] values = context.primitives;
+        for (int i = 0; i < input.length; ++i) {
+            Tag.unbox(stack, values, i + 1, input[i]);
+        }
+        // The nodes of the active calls and the time when they started, indexed by the call depth.
+        Profiler.Node[] nodes = new Profiler.Node[16];
+        long[] startTimes = new long[16];
+        nodes[0] = root;
+        int callDepth = 1;
+        context.ensureFrameCapacity(callDepth);
+        context.frameFunctions[callDepth] = null;
+        context.framePositions[callDepth] = -1;
+        context.frameBases[callDepth] = 0;
+        context.frameResults[callDepth] = 0;
+        Profiler.Node node = nodes[callDepth] = root.getChild(function);
+        ++node.invocationCount;
+        long[] hitCounts = node.hitCounts;
+        int pos = 0;
+        int base = 1;
+        int top = 0;
+        Library library = function.library;
+        int maxCallDepth = library.getMaxCallDepth();
+        Object returnValue = null;
+        startTimes[callDepth] = System.nanoTime();
+        do {
+            ++hitCounts[pos];
+            int opcode = Opcode.generic(function.opcodes[pos]);
+            int operand = function.operands[pos++];
+            switch (opcode) {
+                case Opcode.LIT:
+                    Tag.unbox(stack, values, ++top, function.constants[operand]);
+                    break;
+                case Opcode.LOD: {
+                    int address = base + operand;
+                    stack[++top] = stack[address];
+                    values[top] = values[address];
+                    break;
+                }
+                case Opcode.ALOD: {
+                    int dimens = (int) values[top--];
+                    int first = top - dimens + 1;
+                    Object array = ArrayAccess.innermost(stack[base + operand], stack, values, first, top);
+                    ArrayAccess.load(array, Tag.intValue(stack, values, top), stack, values, first);
+                    top = first;
+                    break;
+                }
+                case Opcode.STO: {
+                    int address = base + operand;
+                    stack[address] = stack[top];
+                    values[address] = values[top--];
+                    break;
+                }
+                case Opcode.ASTO: {
+                    int source = top--;
+                    int dimens = (int) values[top--];
+                    Object array = ArrayAccess.innermost(stack[base + operand], stack, values, top - dimens + 1, top);
+                    ArrayAccess.store(array, Tag.intValue(stack, values, top), stack, values, source);
+                    top -= dimens;
+                    break;
+                }
+                case Opcode.OPR:
+                    top = Executor.operate(context, top, operand);
+                    break;
+                case Opcode.INT:
+                    top += operand;
+                    break;
+                case Opcode.JMP:
+                    pos = operand;
+                    break;
+                case Opcode.JPF:
+                    if (!Tag.isTrue(stack, values, top--)) {
+                        pos = operand;
+                    }
+                    break;
+                case Opcode.JPT:
+                    if (Tag.isTrue(stack, values, top--)) {
+                        pos = operand;
+                    }
+                    break;
+                case Opcode.JPF_SC:
+                    if (!Tag.isTrue(stack, values, top)) {
+                        pos = operand;
+                    }
+                    break;
+                case Opcode.JPT_SC:
+                    if (Tag.isTrue(stack, values, top)) {
+                        pos = operand;
+                    }
+                    break;
+                case Opcode.FUN:
+                case Opcode.PROC:
+                case Opcode.TAIL_CALL: {
+                    CallSite callSite = (CallSite) function.constants[operand];
+                    int parameterNumber = (int) values[top--];
+                    CallSite.Target target = callSite.resolve(library, parameterNumber);
+                    JavaFunction javaFunction = target.javaFunction;
+                    if (javaFunction != null) {
+                        Object[] parameters = new Object[parameterNumber];
+                        for (int i = 0; i < parameterNumber; ++i) {
+                            parameters[i] = Tag.box(stack, values, top - parameterNumber + 1 + i);
+                        }
+                        top -= parameterNumber;
+                        Profiler.Node child = node.getChild(javaFunction);
+                        ++child.invocationCount;
+                        long startTime = System.nanoTime();
+                        Object result;
+                        try {
+                            result = javaFunction.call(parameters);
+                        } finally {
+                            long nanos = System.nanoTime() - startTime;
+                            child.nanos += nanos;
+                            node.childNanos += nanos;
+                        }
+                        if (opcode != Opcode.PROC) {
+                            Tag.unbox(stack, values, ++top, result);
+                        }
+                        break;
+                    }
+                    CompiledFunction callee = target.function;
+                    int first = top - parameterNumber + 1;
+                    if (opcode == Opcode.TAIL_CALL && callee.returnsValue) {
+                        // The callee takes over the frame, so it is recorded as a callee of the caller.
+                        long now = System.nanoTime();
+                        long nanos = now - startTimes[callDepth];
+                        node.nanos += nanos;
+                        nodes[callDepth - 1].childNanos += nanos;
+                        context.ensureCapacity(base + callee.frameSize);
+                        stack = context.stack;
+                        values = context.primitives;
+                        System.arraycopy(stack, first, stack, base, parameterNumber);
+                        System.arraycopy(values, first, values, base, parameterNumber);
+                        top = base - 1;
+                        node = nodes[callDepth] = nodes[callDepth - 1].getChild(callee);
+                        startTimes[callDepth] = now;
+                    } else {
+                        if (++callDepth > maxCallDepth) {
+                            throw new ZlangRuntimeException(ZlangRuntimeError.STACK_OVERFLOW,
+                                    "The call depth exceeds " + maxCallDepth + ".");
+                        }
+                        context.ensureCapacity(first + callee.frameSize);
+                        context.ensureFrameCapacity(callDepth);
+                        stack = context.stack;
+                        values = context.primitives;
+                        context.frameFunctions[callDepth] = function;
+                        context.framePositions[callDepth] = pos;
+                        context.frameBases[callDepth] = base;
+                        context.frameResults[callDepth] = opcode != Opcode.PROC ? 1 : 0;
+                        if (callDepth == nodes.length) {
+                            nodes = Arrays.copyOf(nodes, callDepth * 2);
+                            startTimes = Arrays.copyOf(startTimes, callDepth * 2);
+                        }
+                        node = nodes[callDepth] = node.getChild(callee);
+                        startTimes[callDepth] = System.nanoTime();
+                        top = first - 1;
+                        base = first;
+                    }
+                    ++node.invocationCount;
+                    hitCounts = node.hitCounts;
+                    function = callee;
+                    library = function.library;
+                    pos = 0;
+                    break;
+                }
+                case Opcode.FUN_RETURN:
+                case Opcode.VOID_RETURN: {
+                    long nanos = System.nanoTime() - startTimes[callDepth];
+                    node.nanos += nanos;
+                    int depth = callDepth--;
+                    node = nodes[callDepth];
+                    node.childNanos += nanos;
+                    hitCounts = node.hitCounts;
+                    int from = top;
+                    top = base;
+                    pos = context.framePositions[depth];
+                    base = context.frameBases[depth];
+                    function = (CompiledFunction) context.frameFunctions[depth];
+                    if (function != null) {
+                        library = function.library;
+                    }
+                    boolean isFunction = context.frameResults[depth] != 0;
+                    if (opcode == Opcode.VOID_RETURN) {
+                        if (isFunction) {
+                            throw new ZlangRuntimeException(ZlangRuntimeError.NO_RETURN_VALUE);
+                        }
+                        returnValue = Executor.NO_RETURN_VALUE;
+                        --top;
+                    } else if (isFunction) {
+                        stack[top] = stack[from];
+                        values[top] = values[from];
+                    } else {
+                        if (function == null) {
+                            returnValue = Tag.box(stack, values, from);
+                        }
+                        --top;
+                    }
+                    break;
+                }
+                default:
+                    throw new ZlangRuntimeException(ZlangRuntimeError.UNKNOWN_OPERATION, Opcode.getName(opcode));
+            }
+        } while (pos != -1);
+        return returnValue;
+    }
+}
@@ -0,0 +1,453 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+/**
+ * Runs the {@link RegisterFunction}s of the libraries whose engine is {@link Engine#REGISTER}.
+ *
+ * The frames are laid out on the stack of {@link ExecutionContext} in the same way as {@link Executor},
+ * except that a frame holds the registers of the function instead of the operand stack.
+ */
+
+class RegisterExecutor {
+
+
+    private static final int PLUS = Opr.PLUS.ordinal();
+
+    private static final int MINUS = Opr.MINUS.ordinal();
+
+    private static final int TIMES = Opr.TIMES.ordinal();
+
+    private static final int DIVIDE = Opr.DIVIDE.ordinal();
+
+    private static final int LESS = Opr.LESS.ordinal();
+
+    private static final int LESS_EQUAL = Opr.LESS_EQUAL.ordinal();
+
+    private static final int GREATER = Opr.GREATER.ordinal();
+
+    private static final int GREATER_EQUAL = Opr.GREATER_EQUAL.ordinal();
+
+    private static final int EQUAL = Opr.EQUAL.ordinal();
+
+    private static final int NOT_EQUAL = Opr.NOT_EQUAL.ordinal();
+
+    private RegisterExecutor() {}
+
+    static Object execute(CompiledFunction function, Object[] input) {
+        ExecutionContext context = ExecutionContext.obtain();
+        try {
+            return interpret(context, RegisterTranslator.translate(function), input);
+        } finally {
+            context.release();
+        }
+    }
+
+    static Object interpret(ExecutionContext context, RegisterFunction function, Object[] input) {
+        int base = 1;
+        context.ensureCapacity(base + function.registerCount);
+        Object[] stack = context.stack;
+        long[] values = context.primitives;
+        context.ensureFrameCapacity(1);
+        context.frameFunctions[1] = null;
+        for (int i = 0; i < input.length; ++i) {
+            Tag.unbox(stack, values, base + i, input[i]);
+        }
+        function.loadLiterals(stack, values, base);
+        Library library = function.function.library;
+        Object[] constants = function.function.constants;
+        int[] opcodes = function.opcodes;
+        int[] as = function.a;
+        int[] bs = function.b;
+        int[] cs = function.c;
+        int maxCallDepth = library.getMaxCallDepth();
+        int callDepth = 1;
+        int pc = 0;
+        while (true) {
+            int opcode = opcodes[pc];
+            int a = as[pc];
+            int b = bs[pc];
+            int c = cs[pc++];
+            switch (opcode) {
+                case RegisterOpcode.MOVE: {
+                    int x = base + a, y = base + b;
+                    stack[x] = stack[y];
+                    values[x] = values[y];
+                    break;
+                }
+                case RegisterOpcode.ADD: {
+                    int x = base + a, y = base + b, z = base + c;
+                    Object tag = stack[y];
+                    if (tag == Tag.INT && stack[z] == Tag.INT) {
+                        stack[x] = Tag.INT;
+                        values[x] = (int) values[y] + (int) values[z];
+                    } else if (tag == Tag.DOUBLE && stack[z] == Tag.DOUBLE) {
+                        stack[x] = Tag.DOUBLE;
+                        values[x] = Double.doubleToRawLongBits(
+                                Double.longBitsToDouble(values[y]) + Double.longBitsToDouble(values[z]));
+                    } else {
+                        operate(context, x, y, z, PLUS);
+                    }
+                    break;
+                }
+                case RegisterOpcode.SUB: {
+                    int x = base + a, y = base + b, z = base + c;
+                    Object tag = stack[y];
+                    if (tag == Tag.INT && stack[z] == Tag.INT) {
+                        stack[x] = Tag.INT;
+                        values[x] = (int) values[y] - (int) values[z];
+                    } else if (tag == Tag.DOUBLE && stack[z] == Tag.DOUBLE) {
+                        stack[x] = Tag.DOUBLE;
+                        values[x] = Double.doubleToRawLongBits(
+                                Double.longBitsToDouble(values[y]) - Double.longBitsToDouble(values[z]));
+                    } else {
+                        operate(context, x, y, z, MINUS);
+                    }
+                    break;
+                }
+                case RegisterOpcode.MUL: {
+                    int x = base + a, y = base + b, z = base + c;
+                    Object tag = stack[y];
+                    if (tag == Tag.INT && stack[z] == Tag.INT) {
+                        stack[x] = Tag.INT;
+                        values[x] = (int) values[y] * (int) values[z];
+                    } else if (tag == Tag.DOUBLE && stack[z] == Tag.DOUBLE) {
+                        stack[x] = Tag.DOUBLE;
+                        values[x] = Double.doubleToRawLongBits(
+                                Double.longBitsToDouble(values[y]) * Double.longBitsToDouble(values[z]));
+                    } else {
+                        operate(context, x, y, z, TIMES);
+                    }
+                    break;
+                }
+                case RegisterOpcode.DIV: {
+                    int x = base + a, y = base + b, z = base + c;
+                    Object tag = stack[y];
+                    if (tag == Tag.INT && stack[z] == Tag.INT) {
+                        stack[x] = Tag.INT;
+                        values[x] = (int) values[y] / (int) values[z];
+                    } else if (tag == Tag.DOUBLE && stack[z] == Tag.DOUBLE) {
+                        stack[x] = Tag.DOUBLE;
+                        values[x] = Double.doubleToRawLongBits(
+                                Double.longBitsToDouble(values[y]) / Double.longBitsToDouble(values[z]));
+                    } else {
+                        operate(context, x, y, z, DIVIDE);
+                    }
+                    break;
+                }
+                case RegisterOpcode.LT: {
+                    int x = base + a, y = base + b, z = base + c;
+                    Object tag = stack[y];
+                    if (tag == Tag.INT && stack[z] == Tag.INT) {
+                        stack[x] = Tag.BOOLEAN;
+                        values[x] = (int) values[y] < (int) values[z] ? 1 : 0;
+                    } else if (tag == Tag.DOUBLE && stack[z] == Tag.DOUBLE) {
+                        stack[x] = Tag.BOOLEAN;
+                        values[x] = Double.longBitsToDouble(values[y]) < Double.longBitsToDouble(values[z]) ? 1 : 0;
+                    } else {
+                        operate(context, x, y, z, LESS);
+                    }
+                    break;
+                }
+                case RegisterOpcode.LE: {
+                    int x = base + a, y = base + b, z = base + c;
+                    Object tag = stack[y];
+                    if (tag == Tag.INT && stack[z] == Tag.INT) {
+                        stack[x] = Tag.BOOLEAN;
+                        values[x] = (int) values[y] <= (int) values[z] ? 1 : 0;
+                    } else if (tag == Tag.DOUBLE && stack[z] == Tag.DOUBLE) {
+                        stack[x] = Tag.BOOLEAN;
+                        values[x] = Double.longBitsToDouble(values[y]) <= Double.longBitsToDouble(values[z]) ? 1 : 0;
+                    } else {
+                        operate(context, x, y, z, LESS_EQUAL);
+                    }
+                    break;
+                }
+                case RegisterOpcode.GT: {
+                    int x = base + a, y = base + b, z = base + c;
+                    Object tag = stack[y];
+                    if (tag == Tag.INT && stack[z] == Tag.INT) {
+                        stack[x] = Tag.BOOLEAN;
+                        values[x] = (int) values[y] > (int) values[z] ? 1 : 0;
+                    } else if (tag == Tag.DOUBLE && stack[z] == Tag.DOUBLE) {
+                        stack[x] = Tag.BOOLEAN;
+                        values[x] = Double.longBitsToDouble(values[y]) > Double.longBitsToDouble(values[z]) ? 1 : 0;
+                    } else {
+                        operate(context, x, y, z, GREATER);
+                    }
+                    break;
+                }
+                case RegisterOpcode.GE: {
+                    int x = base + a, y = base + b, z = base + c;
+                    Object tag = stack[y];
+                    if (tag == Tag.INT && stack[z] == Tag.INT) {
+                        stack[x] = Tag.BOOLEAN;
+                        values[x] = (int) values[y] >= (int) values[z] ? 1 : 0;
+                    } else if (tag == Tag.DOUBLE && stack[z] == Tag.DOUBLE) {
+                        stack[x] = Tag.BOOLEAN;
+                        values[x] = Double.longBitsToDouble(values[y]) >= Double.longBitsToDouble(values[z]) ? 1 : 0;
+                    } else {
+                        operate(context, x, y, z, GREATER_EQUAL);
+                    }
+                    break;
+                }
+                case RegisterOpcode.OPR:
+                    operate(context, base + a, base + b, base + c, function.d[pc - 1]);
+                    break;
+                case RegisterOpcode.JMP:
+                    pc = Executor.jump(function.function, pc, a);
+                    break;
+                case RegisterOpcode.JF:
+                    if (!Tag.isTrue(stack, values, base + a)) {
+                        pc = Executor.jump(function.function, pc, b);
+                    }
+                    break;
+                case RegisterOpcode.JT:
+                    if (Tag.isTrue(stack, values, base + a)) {
+                        pc = Executor.jump(function.function, pc, b);
+                    }
+                    break;
+                case RegisterOpcode.JF_LT: {
+                    int y = base + a, z = base + b;
+                    Object tag = stack[y];
+                    boolean result;
+                    if (tag == Tag.INT && stack[z] == Tag.INT) {
+                        result = (int) values[y] < (int) values[z];
+                    } else if (tag == Tag.DOUBLE && stack[z] == Tag.DOUBLE) {
+                        result = Double.longBitsToDouble(values[y]) < Double.longBitsToDouble(values[z]);
+                    } else {
+                        result = compare(context, y, z, LESS);
+                    }
+                    if (!result) {
+                        pc = Executor.jump(function.function, pc, c);
+                    }
+                    break;
+                }
+                case RegisterOpcode.JF_LE: {
+                    int y = base + a, z = base + b;
+                    Object tag = stack[y];
+                    boolean result;
+                    if (tag == Tag.INT && stack[z] == Tag.INT) {
+                        result = (int) values[y] <= (int) values[z];
+                    } else if (tag == Tag.DOUBLE && stack[z] == Tag.DOUBLE) {
+                        result = Double.longBitsToDouble(values[y]) <= Double.longBitsToDouble(values[z]);
+                    } else {
+                        result = compare(context, y, z, LESS_EQUAL);
+                    }
+                    if (!result) {
+                        pc = Executor.jump(function.function, pc, c);
+                    }
+                    break;
+                }
+                case RegisterOpcode.JF_GT: {
+                    int y = base + a, z = base + b;
+                    Object tag = stack[y];
+                    boolean result;
+                    if (tag == Tag.INT && stack[z] == Tag.INT) {
+                        result = (int) values[y] > (int) values[z];
+                    } else if (tag == Tag.DOUBLE && stack[z] == Tag.DOUBLE) {
+                        result = Double.longBitsToDouble(values[y]) > Double.longBitsToDouble(values[z]);
+                    } else {
+                        result = compare(context, y, z, GREATER);
+                    }
+                    if (!result) {
+                        pc = Executor.jump(function.function, pc, c);
+                    }
+                    break;
+                }
+                case RegisterOpcode.JF_GE: {
+                    int y = base + a, z = base + b;
+                    Object tag = stack[y];
+                    boolean result;
+                    if (tag == Tag.INT && stack[z] == Tag.INT) {
+                        result = (int) values[y] >= (int) values[z];
+                    } else if (tag == Tag.DOUBLE && stack[z] == Tag.DOUBLE) {
+                        result = Double.longBitsToDouble(values[y]) >= Double.longBitsToDouble(values[z]);
+                    } else {
+                        result = compare(context, y, z, GREATER_EQUAL);
+                    }
+                    if (!result) {
+                        pc = Executor.jump(function.function, pc, c);
+                    }
+                    break;
+                }
+                case RegisterOpcode.JF_EQ:
+                    if (!Tag.equal(stack, values, base + a, base + b)) {
+                        pc = Executor.jump(function.function, pc, c);
+                    }
+                    break;
+                case RegisterOpcode.JF_NE:
+                    if (Tag.equal(stack, values, base + a, base + b)) {
+                        pc = Executor.jump(function.function, pc, c);
+                    }
+                    break;
+                case RegisterOpcode.ALOD: {
+                    int last = base + c + function.d[pc - 1] - 1;
+                    Object array = ArrayAccess.innermost(stack[base + b], stack, values, base + c, last);
+                    ArrayAccess.load(array, Tag.intValue(stack, values, last), stack, values, base + a);
+                    break;
+                }
+                case RegisterOpcode.ASTO: {
+                    int last = base + b + c - 1;
+                    Object array = ArrayAccess.innermost(stack[base + a], stack, values, base + b, last);
+                    ArrayAccess.store(array, Tag.intValue(stack, values, last), stack, values,
+                            base + function.d[pc - 1]);
+                    break;
+                }
+                case RegisterOpcode.CALL:
+                case RegisterOpcode.CALL_VOID:
+                case RegisterOpcode.TAIL_CALL: {
+                    CallSite callSite = (CallSite) constants[c];
+                    CallSite.Target target = callSite.resolve(library, b);
+                    int first = base + a;
+                    JavaFunction javaFunction = target.javaFunction;
+                    if (javaFunction != null) {
+                        Object result = javaFunction.call(box(stack, values, first, b));
+                        if (opcode != RegisterOpcode.CALL_VOID) {
+                            Tag.unbox(stack, values, first, result);
+                        }
+                        break;
+                    }
+                    CompiledFunction callee = target.function;
+                    JitFunction calleeJitFunction = callee.jitFunction;
+                    if (calleeJitFunction == null && callee.library.isJitEnabled()) {
+                        calleeJitFunction = Jit.onInvocation(callee);
+                    }
+                    if (calleeJitFunction != null || callee.library.getEngine() != Engine.REGISTER
+                            || callee.library.getProfiler() != null || callee.memoCache != null) {
+                        Object[] parameters = box(stack, values, first, b);
+                        Object result = calleeJitFunction != null
+                                ? calleeJitFunction.invoke(parameters) : Executor.execute(callee, parameters);
+                        if (opcode != RegisterOpcode.CALL_VOID) {
+                            if (result == Executor.NO_RETURN_VALUE) {
+                                throw new ZlangRuntimeException(ZlangRuntimeError.NO_RETURN_VALUE);
+                            }
+                            Tag.unbox(stack, values, first, result);
+                        }
+                        break;
+                    }
+                    RegisterFunction calleeFunction = RegisterTranslator.translate(callee);
+                    if (opcode == RegisterOpcode.TAIL_CALL && callee.returnsValue) {
+                        // The callee takes over the frame, so its return goes directly to the caller.
+                        context.ensureCapacity(base + calleeFunction.registerCount);
+                        stack = context.stack;
+                        values = context.primitives;
+                        System.arraycopy(stack, first, stack, base, b);
+                        System.arraycopy(values, first, values, base, b);
+                    } else {
+                        if (++callDepth > maxCallDepth) {
+                            throw new ZlangRuntimeException(ZlangRuntimeError.STACK_OVERFLOW,
+                                    "The call depth exceeds " + maxCallDepth + ".");
+                        }
+                        int newBase = base + function.registerCount;
+                        context.ensureCapacity(newBase + calleeFunction.registerCount);
+                        context.ensureFrameCapacity(callDepth);
+                        stack = context.stack;
+                        values = context.primitives;
+                        context.frameFunctions[callDepth] = function;
+                        context.framePositions[callDepth] = pc;
+                        context.frameBases[callDepth] = base;
+                        // The absolute index of the register receiving the result, or -1 for a procedure call.
+                        context.frameResults[callDepth] = opcode != RegisterOpcode.CALL_VOID ? first : -1;
+                        System.arraycopy(stack, first, stack, newBase, b);
+                        System.arraycopy(values, first, values, newBase, b);
+                        base = newBase;
+                    }
+                    calleeFunction.loadLiterals(stack, values, base);
+                    function = calleeFunction;
+                    library = callee.library;
+                    constants = callee.constants;
+                    opcodes = function.opcodes;
+                    as = function.a;
+                    bs = function.b;
+                    cs = function.c;
+                    pc = 0;
+                    break;
+                }
+                case RegisterOpcode.RET:
+                case RegisterOpcode.RET_VOID: {
+                    int depth = callDepth--;
+                    RegisterFunction caller = (RegisterFunction) context.frameFunctions[depth];
+                    if (caller == null) {
+                        return opcode == RegisterOpcode.RET ? Tag.box(stack, values, base + a) : Executor.NO_RETURN_VALUE;
+                    }
+                    int result = context.frameResults[depth];
+                    if (result >= 0) {
+                        if (opcode == RegisterOpcode.RET_VOID) {
+                            throw new ZlangRuntimeException(ZlangRuntimeError.NO_RETURN_VALUE);
+                        }
+                        stack[result] = stack[base + a];
+                        values[result] = values[base + a];
+                    }
+                    base = context.frameBases[depth];
+                    pc = context.framePositions[depth];
+                    function = caller;
+                    library = function.function.library;
+                    constants = function.function.constants;
+                    opcodes = function.opcodes;
+                    as = function.a;
+                    bs = function.b;
+                    cs = function.c;
+                    break;
+                }
+                default:
+                    throw new ZlangRuntimeException(ZlangRuntimeError.UNKNOWN_OPERATION, RegisterOpcode.getName(opcode));
+            }
+        }
+    }
+
+    private static Object[] box(Object[] stack, long[] values, int first, int number) {
+        Object[] result = new Object[number];
+        for (int i = 0; i < number; ++i) {
+            result[i] = Tag.box(stack, values, first + i);
+        }
+        return result;
+    }
+
+    /**
+     * Applies the operator to the registers at the absolute indexes y and z, and stores the result at x.
+     * z is unused if the operator is unary.
+     */
+    private static void operate(ExecutionContext context, int x, int y, int z, int opr) {
+        Object[] stack = context.stack;
+        long[] values = context.primitives;
+        if (opr == EQUAL || opr == NOT_EQUAL) {
+            boolean equal = Tag.equal(stack, values, y, z);
+            stack[x] = Tag.BOOLEAN;
+            values[x] = equal == (opr == EQUAL) ? 1 : 0;
+            return;
+        }
+        OprAdapter oprAdapter = OprAdapterFactory.getInstance(opr);
+        Object[] operands = context.operands;
+        operands[0] = Tag.box(stack, values, y);
+        if (oprAdapter.getOperandNumber() == 2) {
+            operands[1] = Tag.box(stack, values, z);
+        }
+        Tag.unbox(stack, values, x, oprAdapter.operate(operands, 0));
+    }
+
+    private static boolean compare(ExecutionContext context, int y, int z, int opr) {
+        OprAdapter oprAdapter = OprAdapterFactory.getInstance(opr);
+        Object[] operands = context.operands;
+        operands[0] = Tag.box(context.stack, context.primitives, y);
+        operands[1] = Tag.box(context.stack, context.primitives, z);
+        return (boolean) oprAdapter.operate(operands, 0);
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+/**
+ * The register form of a {@link CompiledFunction}, which is what {@link RegisterExecutor} runs.
+ * It is translated from the stack code by {@link RegisterTranslator}.
+ *
+ * The registers of a frame are the local variables, followed by a temporary register for each slot of the operand
+ * stack, followed by the literals, which are loaded when the frame is created.
+ */
+
+final class RegisterFunction {
+
+    final CompiledFunction function;
+
+    final int[] opcodes;
+
+    final int[] a;
+
+    final int[] b;
+
+    final int[] c;
+
+    final int[] d;
+
+    final int registerCount;
+
+    /**
+     * The first register of the literals.
+     */
+    private final int literalBase;
+
+    /**
+     * The literals in the form of {@link Tag}.
+     */
+    private final Object[] literalReferences;
+
+    private final long[] literalPrimitives;
+
+    RegisterFunction(CompiledFunction function, int[] opcodes, int[] a, int[] b, int[] c, int[] d,
+                     int literalBase, Object[] literals) {
+        this.function = function;
+        this.opcodes = opcodes;
+        this.a = a;
+        this.b = b;
+        this.c = c;
+        this.d = d;
+        this.literalBase = literalBase;
+        this.registerCount = literalBase + literals.length;
+        this.literalReferences = new Object[literals.length];
+        this.literalPrimitives = new long[literals.length];
+        for (int i = 0; i < literals.length; ++i) {
+            Tag.unbox(literalReferences, literalPrimitives, i, literals[i]);
+        }
+    }
+
+    int size() {
+        return opcodes.length;
+    }
+
+    void loadLiterals(Object[] references, long[] primitives, int base) {
+        int length = literalReferences.length;
+        System.arraycopy(literalReferences, 0, references, base + literalBase, length);
+        System.arraycopy(literalPrimitives, 0, primitives, base + literalBase, length);
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+/**
+ * The opcodes of {@link RegisterFunction}. Each instruction has up to four int operands a, b, c and d.
+ * Registers are numbered from the base of the frame, and jump targets are instruction indexes.
+ */
+
+final class RegisterOpcode {
+
+    /**
+     * a = b
+     */
+    static final int MOVE = 0;
+
+    /**
+     * a = b + c
+     */
+    static final int ADD = 1;
+
+    /**
+     * a = b - c
+     */
+    static final int SUB = 2;
+
+    /**
+     * a = b * c
+     */
+    static final int MUL = 3;
+
+    /**
+     * a = b / c
+     */
+    static final int DIV = 4;
+
+    /**
+     * a = b < c
+     */
+    static final int LT = 5;
+
+    /**
+     * a = b <= c
+     */
+    static final int LE = 6;
+
+    /**
+     * a = b > c
+     */
+    static final int GT = 7;
+
+    /**
+     * a = b >= c
+     */
+    static final int GE = 8;
+
+    /**
+     * a = b op c, where op is the ordinal of the {@link Opr} in d. c is unused if op is unary.
+     */
+    static final int OPR = 9;
+
+    /**
+     * goto a
+     */
+    static final int JMP = 10;
+
+    /**
+     * if (!a) goto b
+     */
+    static final int JF = 11;
+
+    /**
+     * if (a) goto b
+     */
+    static final int JT = 12;
+
+    /**
+     * if (!(a < b)) goto c
+     */
+    static final int JF_LT = 13;
+
+    /**
+     * if (!(a <= b)) goto c
+     */
+    static final int JF_LE = 14;
+
+    /**
+     * if (!(a > b)) goto c
+     */
+    static final int JF_GT = 15;
+
+    /**
+     * if (!(a >= b)) goto c
+     */
+    static final int JF_GE = 16;
+
+    /**
+     * if (!(a == b)) goto c
+     */
+    static final int JF_EQ = 17;
+
+    /**
+     * if (!(a != b)) goto c
+     */
+    static final int JF_NE = 18;
+
+    /**
+     * a = b[c][c + 1]...[c + d - 1]
+     */
+    static final int ALOD = 19;
+
+    /**
+     * a[b][b + 1]...[b + c - 1] = d
+     */
+    static final int ASTO = 20;
+
+    /**
+     * a = the function in the constant c called with the b arguments starting from a
+     */
+    static final int CALL = 21;
+
+    /**
+     * the same as CALL but the result is discarded
+     */
+    static final int CALL_VOID = 22;
+
+    /**
+     * return a
+     */
+    static final int RET = 23;
+
+    /**
+     * return
+     */
+    static final int RET_VOID = 24;
+
+    /**
+     * the same as CALL, but the callee replaces the current function if it is run by {@link RegisterExecutor}
+     */
+    static final int TAIL_CALL = 25;
+
+    private static final String[] NAMES = {
+            "MOVE",
+            "ADD",
+            "SUB",
+            "MUL",
+            "DIV",
+            "LT",
+            "LE",
+            "GT",
+            "GE",
+            "OPR",
+            "JMP",
+            "JF",
+            "JT",
+            "JF_LT",
+            "JF_LE",
+            "JF_GT",
+            "JF_GE",
+            "JF_EQ",
+            "JF_NE",
+            "ALOD",
+            "ASTO",
+            "CALL",
+            "CALL_VOID",
+            "RET",
+            "RET_VOID",
+            "TAIL_CALL",
+    };
+
+    private RegisterOpcode() {}
+
+    static String getName(int opcode) {
+        return opcode >= 0 && opcode < NAMES.length ? NAMES[opcode] : Integer.toString(opcode);
+    }
+}
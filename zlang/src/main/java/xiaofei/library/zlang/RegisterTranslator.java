@@ -0,0 +1,384 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Translates the stack code of a {@link CompiledFunction} into a {@link RegisterFunction}.
+ *
+ * Each slot of the operand stack is given a temporary register according to {@link StackAnalysis}. LOD and LIT
+ * do not generate instructions. Instead the slot refers to the register of the local variable or the literal
+ * until the value has to be in the temporary register, i.e. at a jump or a jump target, before a call or an array
+ * access, or before the local variable is overwritten. Moreover, an STO after an instruction writes the result
+ * into the local variable directly, and a comparison followed by JPF becomes a single conditional jump.
+ */
+
+final class RegisterTranslator {
+
+    private final CompiledFunction function;
+
+    private final StackAnalysis analysis;
+
+    private final int locals;
+
+    /**
+     * The register holding the value of each slot of the operand stack. A negative value ~i means the literal
+     * at index i of the constants.
+     */
+    private final int[] slots;
+
+    private final int[] literalRegisters;
+
+    private final ArrayList<Object> literals = new ArrayList<>();
+
+    private int[] opcodes = new int[16];
+
+    private int[] a = new int[16];
+
+    private int[] b = new int[16];
+
+    private int[] c = new int[16];
+
+    private int[] d = new int[16];
+
+    private int size = 0;
+
+    /**
+     * The index of the last instruction whose destination is register a, if the instruction can be modified.
+     */
+    private int resultIndex = -1;
+
+    private RegisterTranslator(CompiledFunction function) {
+        this.function = function;
+        this.analysis = StackAnalysis.analyze(function);
+        // INT is always the first instruction and reserves the local variables.
+        this.locals = function.operands[0];
+        this.slots = new int[analysis.maxDepth];
+        this.literalRegisters = new int[function.constants.length];
+        Arrays.fill(literalRegisters, -1);
+    }
+
+    static RegisterFunction translate(CompiledFunction function) {
+        RegisterFunction result = function.registerFunction;
+        if (result == null) {
+            // Translating twice does no harm, so there is no lock.
+            function.registerFunction = result = new RegisterTranslator(function).translate();
+        }
+        return result;
+    }
+
+    private RegisterFunction translate() {
+        int[] stackOpcodes = function.opcodes;
+        int[] operands = function.operands;
+        int length = stackOpcodes.length;
+        int[] depths = analysis.depths;
+        boolean[] targets = new boolean[length];
+        for (int i = 0; i < length; ++i) {
+            switch (Opcode.generic(stackOpcodes[i])) {
+                case Opcode.JMP:
+                case Opcode.JPF:
+                case Opcode.JPT:
+                case Opcode.JPF_SC:
+                case Opcode.JPT_SC:
+                    targets[operands[i]] = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+        int[] starts = new int[length];
+        boolean fallThrough = false;
+        for (int pc = 0; pc < length; ++pc) {
+            int depth = depths[pc];
+            if (depth < 0) {
+                fallThrough = false;
+                continue;
+            }
+            if (targets[pc]) {
+                if (fallThrough) {
+                    materialize(0, depth);
+                }
+                for (int i = 0; i < depth; ++i) {
+                    slots[i] = temporary(i);
+                }
+                resultIndex = -1;
+            }
+            starts[pc] = size;
+            fallThrough = true;
+            int operand = operands[pc];
+            switch (Opcode.generic(stackOpcodes[pc])) {
+                case Opcode.LIT:
+                    slots[depth] = ~operand;
+                    break;
+                case Opcode.LOD:
+                    slots[depth] = operand;
+                    break;
+                case Opcode.ALOD: {
+                    int dimens = analysis.counts[pc];
+                    int first = depth - 1 - dimens;
+                    materialize(first, depth - 1);
+                    emit(RegisterOpcode.ALOD, temporary(first), operand, temporary(first), dimens);
+                    resultIndex = size - 1;
+                    break;
+                }
+                case Opcode.STO:
+                    store(operand, depth - 1);
+                    break;
+                case Opcode.ASTO: {
+                    int dimens = analysis.counts[pc];
+                    int first = depth - 2 - dimens;
+                    materialize(first, depth - 2);
+                    emit(RegisterOpcode.ASTO, operand, temporary(first), dimens, register(slots[depth - 1]));
+                    break;
+                }
+                case Opcode.OPR:
+                    operate(operand, depth);
+                    break;
+                case Opcode.INT:
+                    break;
+                case Opcode.JMP:
+                    materialize(0, depth);
+                    emit(RegisterOpcode.JMP, operand, 0, 0, 0);
+                    fallThrough = false;
+                    break;
+                case Opcode.JPF:
+                    jumpIfFalse(operand, depth);
+                    break;
+                case Opcode.JPT:
+                    materialize(0, depth - 1);
+                    emit(RegisterOpcode.JT, register(slots[depth - 1]), operand, 0, 0);
+                    break;
+                case Opcode.JPF_SC:
+                    materialize(0, depth);
+                    emit(RegisterOpcode.JF, temporary(depth - 1), operand, 0, 0);
+                    break;
+                case Opcode.JPT_SC:
+                    materialize(0, depth);
+                    emit(RegisterOpcode.JT, temporary(depth - 1), operand, 0, 0);
+                    break;
+                case Opcode.FUN:
+                case Opcode.PROC:
+                case Opcode.TAIL_CALL: {
+                    int parameterNumber = analysis.counts[pc];
+                    int first = depth - 1 - parameterNumber;
+                    materialize(first, depth - 1);
+                    int opcode = stackOpcodes[pc];
+                    boolean isFunction = opcode != Opcode.PROC;
+                    emit(opcode == Opcode.TAIL_CALL ? RegisterOpcode.TAIL_CALL
+                                    : isFunction ? RegisterOpcode.CALL : RegisterOpcode.CALL_VOID,
+                            temporary(first), parameterNumber, operand, 0);
+                    if (isFunction) {
+                        slots[first] = temporary(first);
+                    }
+                    break;
+                }
+                case Opcode.FUN_RETURN:
+                    emit(RegisterOpcode.RET, register(slots[depth - 1]), 0, 0, 0);
+                    fallThrough = false;
+                    break;
+                case Opcode.VOID_RETURN:
+                    emit(RegisterOpcode.RET_VOID, 0, 0, 0, 0);
+                    fallThrough = false;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode " + Opcode.getName(stackOpcodes[pc]) + " at " + pc);
+            }
+        }
+        for (int i = 0; i < size; ++i) {
+            switch (opcodes[i]) {
+                case RegisterOpcode.JMP:
+                    a[i] = starts[a[i]];
+                    break;
+                case RegisterOpcode.JF:
+                case RegisterOpcode.JT:
+                    b[i] = starts[b[i]];
+                    break;
+                case RegisterOpcode.JF_LT:
+                case RegisterOpcode.JF_LE:
+                case RegisterOpcode.JF_GT:
+                case RegisterOpcode.JF_GE:
+                case RegisterOpcode.JF_EQ:
+                case RegisterOpcode.JF_NE:
+                    c[i] = starts[c[i]];
+                    break;
+                default:
+                    break;
+            }
+        }
+        return new RegisterFunction(function, Arrays.copyOf(opcodes, size), Arrays.copyOf(a, size),
+                Arrays.copyOf(b, size), Arrays.copyOf(c, size), Arrays.copyOf(d, size),
+                locals + analysis.maxDepth, literals.toArray());
+    }
+
+    private int temporary(int slot) {
+        return locals + slot;
+    }
+
+    private int register(int slot) {
+        if (slot >= 0) {
+            return slot;
+        }
+        int index = ~slot;
+        if (literalRegisters[index] < 0) {
+            literalRegisters[index] = locals + analysis.maxDepth + literals.size();
+            literals.add(function.constants[index]);
+        }
+        return literalRegisters[index];
+    }
+
+    /**
+     * Moves the values of the slots in [from, to) into their temporary registers.
+     */
+    private void materialize(int from, int to) {
+        for (int i = from; i < to; ++i) {
+            if (slots[i] != temporary(i)) {
+                emit(RegisterOpcode.MOVE, temporary(i), register(slots[i]), 0, 0);
+                slots[i] = temporary(i);
+            }
+        }
+    }
+
+    private void store(int local, int slot) {
+        boolean referred = false;
+        for (int i = 0; i < slot; ++i) {
+            if (slots[i] == local) {
+                referred = true;
+                break;
+            }
+        }
+        int source = slots[slot];
+        if (!referred && source == temporary(slot) && resultIndex >= 0 && resultIndex == size - 1 && a[resultIndex] == source) {
+            a[resultIndex] = local;
+            return;
+        }
+        for (int i = 0; i < slot; ++i) {
+            if (slots[i] == local) {
+                emit(RegisterOpcode.MOVE, temporary(i), local, 0, 0);
+                slots[i] = temporary(i);
+            }
+        }
+        if (source != local) {
+            emit(RegisterOpcode.MOVE, local, register(source), 0, 0);
+        }
+    }
+
+    private void operate(int opr, int depth) {
+        if (OprAdapterFactory.getInstance(opr).getOperandNumber() == 1) {
+            emit(RegisterOpcode.OPR, temporary(depth - 1), register(slots[depth - 1]), 0, opr);
+            slots[depth - 1] = temporary(depth - 1);
+        } else {
+            int opcode;
+            switch (Opr.values()[opr]) {
+                case PLUS:
+                    opcode = RegisterOpcode.ADD;
+                    break;
+                case MINUS:
+                    opcode = RegisterOpcode.SUB;
+                    break;
+                case TIMES:
+                    opcode = RegisterOpcode.MUL;
+                    break;
+                case DIVIDE:
+                    opcode = RegisterOpcode.DIV;
+                    break;
+                case LESS:
+                    opcode = RegisterOpcode.LT;
+                    break;
+                case LESS_EQUAL:
+                    opcode = RegisterOpcode.LE;
+                    break;
+                case GREATER:
+                    opcode = RegisterOpcode.GT;
+                    break;
+                case GREATER_EQUAL:
+                    opcode = RegisterOpcode.GE;
+                    break;
+                default:
+                    opcode = RegisterOpcode.OPR;
+                    break;
+            }
+            emit(opcode, temporary(depth - 2), register(slots[depth - 2]), register(slots[depth - 1]), opr);
+            slots[depth - 2] = temporary(depth - 2);
+        }
+        resultIndex = size - 1;
+    }
+
+    private void jumpIfFalse(int target, int depth) {
+        int condition = slots[depth - 1];
+        if (resultIndex >= 0 && resultIndex == size - 1 && a[resultIndex] == condition) {
+            int opcode;
+            switch (opcodes[resultIndex]) {
+                case RegisterOpcode.LT:
+                    opcode = RegisterOpcode.JF_LT;
+                    break;
+                case RegisterOpcode.LE:
+                    opcode = RegisterOpcode.JF_LE;
+                    break;
+                case RegisterOpcode.GT:
+                    opcode = RegisterOpcode.JF_GT;
+                    break;
+                case RegisterOpcode.GE:
+                    opcode = RegisterOpcode.JF_GE;
+                    break;
+                case RegisterOpcode.OPR:
+                    if (d[resultIndex] == Opr.EQUAL.ordinal()) {
+                        opcode = RegisterOpcode.JF_EQ;
+                    } else if (d[resultIndex] == Opr.NOT_EQUAL.ordinal()) {
+                        opcode = RegisterOpcode.JF_NE;
+                    } else {
+                        opcode = -1;
+                    }
+                    break;
+                default:
+                    opcode = -1;
+                    break;
+            }
+            if (opcode != -1) {
+                // The moves write the temporary registers below the condition, which the comparison does not read.
+                int left = b[resultIndex], right = c[resultIndex];
+                --size;
+                materialize(0, depth - 1);
+                emit(opcode, left, right, target, 0);
+                return;
+            }
+        }
+        materialize(0, depth - 1);
+        emit(RegisterOpcode.JF, register(condition), target, 0, 0);
+    }
+
+    private void emit(int opcode, int a, int b, int c, int d) {
+        if (size == opcodes.length) {
+            int capacity = size * 2;
+            opcodes = Arrays.copyOf(opcodes, capacity);
+            this.a = Arrays.copyOf(this.a, capacity);
+            this.b = Arrays.copyOf(this.b, capacity);
+            this.c = Arrays.copyOf(this.c, capacity);
+            this.d = Arrays.copyOf(this.d, capacity);
+        }
+        opcodes[size] = opcode;
+        this.a[size] = a;
+        this.b[size] = b;
+        this.c[size] = c;
+        this.d[size] = d;
+        ++size;
+    }
+}
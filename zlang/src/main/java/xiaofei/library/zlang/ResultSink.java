@@ -0,0 +1,33 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+/**
+ * Receives the results of {@link Library#executeBatch(String, Object[][], ResultSink)}.
+ */
+
+public interface ResultSink {
+
+    /**
+     * Called with the result for the input at the specified index. If the batch is split across threads,
+     * this is called concurrently and in no particular order.
+     */
+    void onResult(int index, Object result);
+}
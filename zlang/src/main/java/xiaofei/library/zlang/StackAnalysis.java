@@ -0,0 +1,215 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package xiaofei.library.zlang;
+
+import java.util.ArrayDeque;
+
+/**
+ * Computes the depth of the operand stack before each instruction of a {@link CompiledFunction}.
+ *
+ * The depth does not include the local variables reserved by INT. The analysis also tracks the integer
+ * literals on the stack, so that the parameter number of calls and the dimensions of ALOD and ASTO,
+ * which are pushed by LIT, are known statically.
+ */
+
+final class StackAnalysis {
+
+    /**
+     * The depth before each instruction, or -1 if the instruction is unreachable.
+     */
+    final int[] depths;
+
+    /**
+     * The parameter number of FUN, PROC and TAIL_CALL, or the dimensions of ALOD and ASTO. -1 for other instructions.
+     */
+    final int[] counts;
+
+    final int maxDepth;
+
+    private StackAnalysis(int[] depths, int[] counts, int maxDepth) {
+        this.depths = depths;
+        this.counts = counts;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * @throws IllegalStateException if the stack is not consistent or a count is not a literal
+     */
+    static StackAnalysis analyze(CompiledFunction function) {
+        return analyze(function.opcodes, function.operands, function.constants);
+    }
+
+    /**
+     * @throws IllegalStateException if the stack is not consistent or a count is not a literal
+     */
+    static StackAnalysis analyze(int[] opcodes, int[] operands, Object[] constants) {
+        int size = opcodes.length;
+        // Each element of a state is the Integer literal on the stack, or null if the value is unknown.
+        Object[][] states = new Object[size][];
+        int[] counts = new int[size];
+        for (int i = 0; i < size; ++i) {
+            counts[i] = -1;
+        }
+        int maxDepth = 0;
+        ArrayDeque<Integer> worklist = new ArrayDeque<>();
+        states[0] = new Object[0];
+        worklist.add(0);
+        while (!worklist.isEmpty()) {
+            int pc = worklist.poll();
+            Object[] state = states[pc];
+            int depth = state.length;
+            int operand = operands[pc];
+            int next = pc + 1;
+            int jump = -1;
+            Object[] result;
+            switch (Opcode.generic(opcodes[pc])) {
+                case Opcode.LIT: {
+                    Object constant = constants[operand];
+                    result = push(state, depth, constant instanceof Integer ? constant : null);
+                    break;
+                }
+                case Opcode.LOD:
+                    result = push(state, depth, null);
+                    break;
+                case Opcode.ALOD: {
+                    int dimens = literal(state, depth - 1, pc);
+                    counts[pc] = dimens;
+                    result = push(pop(state, depth, dimens + 1), depth - dimens - 1, null);
+                    break;
+                }
+                case Opcode.STO:
+                    result = pop(state, depth, 1);
+                    break;
+                case Opcode.ASTO: {
+                    int dimens = literal(state, depth - 2, pc);
+                    counts[pc] = dimens;
+                    result = pop(state, depth, dimens + 2);
+                    break;
+                }
+                case Opcode.OPR: {
+                    int num = OprAdapterFactory.getInstance(operand).getOperandNumber();
+                    result = push(pop(state, depth, num), depth - num, null);
+                    break;
+                }
+                case Opcode.INT:
+                    result = state;
+                    break;
+                case Opcode.JMP:
+                    result = state;
+                    next = -1;
+                    jump = operand;
+                    break;
+                case Opcode.JPF:
+                case Opcode.JPT:
+                    result = pop(state, depth, 1);
+                    jump = operand;
+                    break;
+                case Opcode.JPF_SC:
+                case Opcode.JPT_SC:
+                    result = state;
+                    jump = operand;
+                    break;
+                case Opcode.FUN:
+                case Opcode.PROC:
+                case Opcode.TAIL_CALL: {
+                    int parameterNumber = literal(state, depth - 1, pc);
+                    counts[pc] = parameterNumber;
+                    result = pop(state, depth, parameterNumber + 1);
+                    if (opcodes[pc] != Opcode.PROC) {
+                        result = push(result, result.length, null);
+                    }
+                    break;
+                }
+                case Opcode.FUN_RETURN:
+                case Opcode.VOID_RETURN:
+                    result = null;
+                    next = -1;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode " + Opcode.getName(opcodes[pc]) + " at " + pc);
+            }
+            if (result != null) {
+                maxDepth = Math.max(maxDepth, result.length);
+                if (next != -1) {
+                    merge(states, next, result, worklist);
+                }
+                if (jump != -1) {
+                    merge(states, jump, result, worklist);
+                }
+            }
+        }
+        int[] depths = new int[size];
+        for (int i = 0; i < size; ++i) {
+            depths[i] = states[i] == null ? -1 : states[i].length;
+        }
+        return new StackAnalysis(depths, counts, maxDepth);
+    }
+
+    private static Object[] push(Object[] state, int depth, Object value) {
+        Object[] result = new Object[depth + 1];
+        System.arraycopy(state, 0, result, 0, depth);
+        result[depth] = value;
+        return result;
+    }
+
+    private static Object[] pop(Object[] state, int depth, int number) {
+        if (number > depth) {
+            throw new IllegalStateException("Stack underflow.");
+        }
+        Object[] result = new Object[depth - number];
+        System.arraycopy(state, 0, result, 0, depth - number);
+        return result;
+    }
+
+    private static int literal(Object[] state, int index, int pc) {
+        if (index < 0 || !(state[index] instanceof Integer)) {
+            throw new IllegalStateException("The count is not a literal at " + pc);
+        }
+        return (int) state[index];
+    }
+
+    private static void merge(Object[][] states, int pc, Object[] state, ArrayDeque<Integer> worklist) {
+        if (pc >= states.length) {
+            throw new IllegalStateException("Jump out of the function.");
+        }
+        Object[] old = states[pc];
+        if (old == null) {
+            states[pc] = state;
+            worklist.add(pc);
+            return;
+        }
+        if (old.length != state.length) {
+            throw new IllegalStateException("Inconsistent stack depth at " + pc);
+        }
+        boolean changed = false;
+        for (int i = 0; i < old.length; ++i) {
+            if (old[i] != null && !old[i].equals(state[i])) {
+                if (!changed) {
+                    old = old.clone();
+                    changed = true;
+                }
+                old[i] = null;
+            }
+        }
+        if (changed) {
+            states[pc] = old;
+            worklist.add(pc);
+        }
+    }
+}
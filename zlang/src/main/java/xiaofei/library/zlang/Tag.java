@@ -0,0 +1,155 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package xiaofei.library.zlang;
+
+/**
+ * The tags of the unboxed values on the stack of {@link Executor}.
+ *
+ * The stack consists of two parallel arrays. If a slot holds an int, a long, a double or a boolean,
+ * the reference array holds the corresponding tag and the primitive array holds the value
+ * (a double is stored as its raw long bits and a boolean as 0 or 1). Otherwise the reference array holds
+ * the value itself. Values are boxed only when they leave the stack, e.g. when passed to a Java function.
+ */
+
+final class Tag {
+
+    static final Tag INT = new Tag("int");
+
+    static final Tag LONG = new Tag("long");
+
+    static final Tag DOUBLE = new Tag("double");
+
+    static final Tag BOOLEAN = new Tag("boolean");
+
+    private final String name;
+
+    private Tag(String name) {
+        this.name = name;
+    }
+
+    static Object box(Object[] references, long[] primitives, int index) {
+        return box(references[index], primitives[index]);
+    }
+
+    /**
+     * Boxes a value held as a reference or a tag and a primitive value, as {@link ClosureExecutor} does.
+     */
+    static Object box(Object reference, long primitive) {
+        if (reference == INT) {
+            return (int) primitive;
+        } else if (reference == DOUBLE) {
+            return Double.longBitsToDouble(primitive);
+        } else if (reference == BOOLEAN) {
+            return primitive != 0;
+        } else if (reference == LONG) {
+            return primitive;
+        } else {
+            return reference;
+        }
+    }
+
+    static void unbox(Object[] references, long[] primitives, int index, Object value) {
+        if (value instanceof Integer) {
+            references[index] = INT;
+            primitives[index] = (int) value;
+        } else if (value instanceof Double) {
+            references[index] = DOUBLE;
+            primitives[index] = Double.doubleToRawLongBits((double) value);
+        } else if (value instanceof Boolean) {
+            references[index] = BOOLEAN;
+            primitives[index] = (boolean) value ? 1 : 0;
+        } else if (value instanceof Long) {
+            references[index] = LONG;
+            primitives[index] = (long) value;
+        } else {
+            references[index] = value;
+        }
+    }
+
+    /**
+     * Returns the condition of JPF, JPF_SC or JPT_SC. A non-boolean value causes the same exception as casting
+     * the boxed value to boolean.
+     */
+    static boolean isTrue(Object[] references, long[] primitives, int index) {
+        return isTrue(references[index], primitives[index]);
+    }
+
+    static boolean isTrue(Object reference, long primitive) {
+        if (reference == BOOLEAN) {
+            return primitive != 0;
+        }
+        return (boolean) box(reference, primitive);
+    }
+
+    /**
+     * Compares two slots for EQUAL and NOT_EQUAL. Primitive values of the same type are compared by value,
+     * and references are compared by identity.
+     */
+    static boolean equal(Object[] references, long[] primitives, int index1, int index2) {
+        return equal(references[index1], primitives[index1], references[index2], primitives[index2]);
+    }
+
+    static boolean equal(Object r1, long p1, Object r2, long p2) {
+        if (r1 != r2) {
+            return false;
+        } else if (r1 == DOUBLE) {
+            return Double.longBitsToDouble(p1) == Double.longBitsToDouble(p2);
+        } else if (r1 instanceof Tag) {
+            return p1 == p2;
+        } else {
+            return true;
+        }
+    }
+
+    /**
+     * Returns the index value of ALOD or ASTO.
+     */
+    static int intValue(Object[] references, long[] primitives, int index) {
+        return intValue(references[index], primitives[index]);
+    }
+
+    static int intValue(Object reference, long primitive) {
+        if (reference == INT) {
+            return (int) primitive;
+        }
+        return (int) box(reference, primitive);
+    }
+
+    /**
+     * Compares two boxed values in the same way as {@link #equal(Object[], long[], int, int)}.
+     */
+    static boolean equal(Object o1, Object o2) {
+        if (o1 == o2) {
+            return true;
+        } else if (o1 == null || o2 == null || o1.getClass() != o2.getClass()) {
+            return false;
+        } else if (o1 instanceof Double) {
+            return (double) o1 == (double) o2;
+        } else if (o1 instanceof Integer || o1 instanceof Long || o1 instanceof Boolean) {
+            return o1.equals(o2);
+        } else {
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
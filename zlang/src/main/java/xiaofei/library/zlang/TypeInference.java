@@ -0,0 +1,182 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package xiaofei.library.zlang;
+
+import xiaofei.library.zlang.IrFunction.Block;
+import xiaofei.library.zlang.IrFunction.Kind;
+import xiaofei.library.zlang.IrFunction.Value;
+
+/**
+ * Infers the values of an {@link IrFunction} which are always ints or always doubles, and records the types in
+ * {@link Value#type}. {@link IrGenerator} then emits an OPR whose operands are proven to be of a single type as
+ * {@link Fct#OPR_INT} or {@link Fct#OPR_DOUBLE}, which {@link Executor} runs without checking the tags.
+ *
+ * A constant has the type of its class, a copy has the type of its input, and an arithmetic operator applied to
+ * operands of a single type yields that type, as it does in {@link OprAdapterFactory}. The parameters, the array
+ * elements and the results of the calls are dynamic. A phi has the common type of its inputs, and an input which
+ * is not reached yet is ignored, so the counter of a loop and an accumulator initialized with a literal are typed
+ * although they depend on themselves.
+ */
+
+final class TypeInference {
+
+    /**
+     * The type of a value which is neither always an int nor always a double.
+     */
+    private static final Object DYNAMIC = new Object();
+
+    private final IrFunction function;
+
+    /**
+     * The type of each value, which is null until the value is reached.
+     */
+    private final Object[] types;
+
+    private TypeInference(IrFunction function) {
+        this.function = function;
+        this.types = new Object[function.getValueNumber()];
+    }
+
+    static void infer(IrFunction function) {
+        TypeInference inference = new TypeInference(function);
+        inference.solve();
+        for (Block block : function.blocks) {
+            inference.annotate(block.phis);
+            inference.annotate(block.instructions);
+        }
+    }
+
+    /**
+     * Returns the type of the operands of an operator which has a typed opcode, or null if the operands are not
+     * proven to be of a single type.
+     */
+    static Tag operandType(Value value) {
+        if (value.kind != Kind.OPERATE || !isTyped(value.opr)) {
+            return null;
+        }
+        Tag type = value.inputs[0].type;
+        for (Value input : value.inputs) {
+            if (input.type != type) {
+                return null;
+            }
+        }
+        return type;
+    }
+
+    private static boolean isTyped(Opr opr) {
+        switch (opr) {
+            case NEGATIVE:
+            case PLUS:
+            case MINUS:
+            case TIMES:
+            case DIVIDE:
+            case LESS:
+            case LESS_EQUAL:
+            case GREATER:
+            case GREATER_EQUAL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Computes the types until they no longer change. A type only goes from null to a tag and then to
+     * {@link #DYNAMIC}, so each value changes at most twice.
+     */
+    private void solve() {
+        boolean changed;
+        do {
+            changed = false;
+            for (Block block : function.blocks) {
+                for (Value phi : block.phis) {
+                    changed |= update(phi);
+                }
+                for (Value value : block.instructions) {
+                    changed |= update(value);
+                }
+            }
+        } while (changed);
+    }
+
+    private boolean update(Value value) {
+        Object type = compute(value);
+        if (type == types[value.id]) {
+            return false;
+        }
+        types[value.id] = type;
+        return true;
+    }
+
+    private Object compute(Value value) {
+        switch (value.kind) {
+            case CONSTANT:
+                if (value.constant instanceof Integer) {
+                    return Tag.INT;
+                } else if (value.constant instanceof Double) {
+                    return Tag.DOUBLE;
+                } else {
+                    return DYNAMIC;
+                }
+            case COPY:
+                return types[value.inputs[0].id];
+            case PHI: {
+                Object type = null;
+                for (Value input : value.inputs) {
+                    Object tmp = types[input.id];
+                    if (tmp != null && tmp != type) {
+                        type = type == null ? tmp : DYNAMIC;
+                    }
+                }
+                return type;
+            }
+            case OPERATE:
+                switch (value.opr) {
+                    case NEGATIVE:
+                    case PLUS:
+                    case MINUS:
+                    case TIMES:
+                    case DIVIDE: {
+                        // The result is known only when all the operands are.
+                        Object type = types[value.inputs[0].id];
+                        for (Value input : value.inputs) {
+                            Object tmp = types[input.id];
+                            if (tmp == null) {
+                                return null;
+                            } else if (tmp != type) {
+                                type = DYNAMIC;
+                            }
+                        }
+                        return type;
+                    }
+                    default:
+                        return DYNAMIC;
+                }
+            default:
+                return DYNAMIC;
+        }
+    }
+
+    private void annotate(Iterable<Value> values) {
+        for (Value value : values) {
+            Object type = types[value.id];
+            value.type = type instanceof Tag ? (Tag) type : null;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ *
+ * Copyright 2011-2017 Xiaofei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package xiaofei.library.zlang;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs executions of a {@link Library} in the background and returns futures of their results.
+ *
+ * Each execution runs on a virtual thread if the JDK supports them, so that Java functions which block,
+ * e.g. on I/O, do not hold platform threads. Otherwise the executions run on a pool of platform threads.
+ * Either way, at most maxConcurrency executions run at the same time and the rest wait in a queue.
+ */
+
+public class ZlangExecutorService {
+
+    private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = getVirtualThreadExecutorFactory();
+
+    private final Library library;
+
+    private final ExecutorService executorService;
+
+    private final Semaphore semaphore;
+
+    private final boolean virtual;
+
+    public ZlangExecutorService(Library library, int maxConcurrency) {
+        this(library, maxConcurrency, true);
+    }
+
+    /**
+     * @param preferVirtualThreads whether to use virtual threads when they are supported.
+     */
+    public ZlangExecutorService(Library library, int maxConcurrency, boolean preferVirtualThreads) {
+        if (library == null) {
+            throw new IllegalArgumentException("Library should not be null.");
+        }
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("Max concurrency should be positive.");
+        }
+        this.library = library;
+        ExecutorService virtualExecutor = preferVirtualThreads ? newVirtualThreadExecutor() : null;
+        if (virtualExecutor != null) {
+            // Virtual threads are cheap, so each execution gets one and waits for a permit on it.
+            executorService = virtualExecutor;
+            semaphore = new Semaphore(maxConcurrency);
+            virtual = true;
+        } else {
+            executorService = Executors.newFixedThreadPool(maxConcurrency, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "zlang-executor-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            semaphore = null;
+            virtual = false;
+        }
+    }
+
+    private static Method getVirtualThreadExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        if (NEW_VIRTUAL_THREAD_EXECUTOR == null) {
+            return null;
+        }
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+        } catch (Exception e) {
+            // E.g. virtual threads are a preview feature which is not enabled.
+            return null;
+        }
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        if (NEW_VIRTUAL_THREAD_EXECUTOR == null) {
+            return false;
+        }
+        ExecutorService executorService = newVirtualThreadExecutor();
+        if (executorService == null) {
+            return false;
+        }
+        executorService.shutdown();
+        return true;
+    }
+
+    public boolean isUsingVirtualThreads() {
+        return virtual;
+    }
+
+    public Future<Object> submit(final String functionName, final Object[] input) {
+        return executorService.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                if (semaphore == null) {
+                    return library.execute(functionName, input);
+                }
+                semaphore.acquire();
+                try {
+                    return library.execute(functionName, input);
+                } finally {
+                    semaphore.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops accepting executions. The submitted executions still run.
+     */
+    public void shutdown() {
+        executorService.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executorService.awaitTermination(timeout, unit);
+    }
+
+    public boolean isShutdown() {
+        return executorService.isShutdown();
+    }
+}
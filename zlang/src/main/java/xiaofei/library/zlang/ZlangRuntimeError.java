@@ -34,4 +34,6 @@ public enum ZlangRuntimeError {
     FIELD_GET_ERROR,
     METHOD_INVOCATION_ERROR,
     NEW_INSTANCE_ERROR,
+    STACK_OVERFLOW,
+    ASYNC_CALL_ERROR,
 }